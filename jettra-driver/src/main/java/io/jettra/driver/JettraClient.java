@@ -116,6 +116,29 @@ public class JettraClient {
         }
     }
     
+    /**
+     * Saves documents (maps, records or POJOs) into one collection with one
+     * request; the server applies and replicates them as a single batch.
+     * Returns the ids in order.
+     */
+    public <T> List<String> saveAll(String db, String col, List<T> documents) {
+        try {
+            String body = mapper.writeValueAsString(documents);
+             HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create(baseUrl + "/doc/bulk?db=" + db + "&col=" + col))
+                    .header("Authorization", getAuthHeader())
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(body))
+                    .build();
+            Map<String, Object> res = sendRequest(request, new TypeReference<Map<String, Object>>() {});
+            @SuppressWarnings("unchecked")
+            List<String> ids = (List<String>) res.get("ids");
+            return ids;
+        } catch (Exception e) {
+             throw new DriverException("Failed to save documents", e);
+        }
+    }
+
     public Map<String, Object> getDocument(String db, String col, String id) {
           HttpRequest request = HttpRequest.newBuilder()
                     .uri(URI.create(baseUrl + "/doc?db=" + db + "&col=" + col + "&id=" + id))
@@ -134,6 +157,90 @@ public class JettraClient {
           return sendRequest(request, new TypeReference<List<Map<String, Object>>>() {});
     }
 
+    /**
+     * The document as it was at asOf (the server answers 404 if it did not exist then).
+     */
+    public Map<String, Object> getDocument(String db, String col, String id, java.time.Instant asOf) {
+          HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create(baseUrl + "/doc?db=" + db + "&col=" + col + "&id=" + id + "&asOf=" + asOf.toEpochMilli()))
+                    .header("Authorization", getAuthHeader())
+                    .GET()
+                    .build();
+          return sendRequest(request, new TypeReference<Map<String, Object>>() {});
+    }
+
+    /**
+     * The collection's documents as they were at asOf.
+     */
+    public List<Map<String, Object>> query(String db, String col, int limit, int offset, java.time.Instant asOf) {
+         HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create(baseUrl + "/query?db=" + db + "&col=" + col + "&limit=" + limit + "&offset=" + offset
+                            + "&asOf=" + asOf.toEpochMilli()))
+                    .header("Authorization", getAuthHeader())
+                    .GET()
+                    .build();
+          return sendRequest(request, new TypeReference<List<Map<String, Object>>>() {});
+    }
+
+    /**
+     * Keyset pagination: pass a null token for the first page and the
+     * returned {@link QueryPage#next()} for each following one.
+     */
+    public QueryPage query(String db, String col, int limit, String token) {
+         String uri = baseUrl + "/query?db=" + db + "&col=" + col + "&limit=" + limit + "&paginate=true";
+         if (token != null) uri += "&token=" + token;
+
+         HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create(uri))
+                    .header("Authorization", getAuthHeader())
+                    .GET()
+                    .build();
+          Map<String, Object> page = sendRequest(request, new TypeReference<Map<String, Object>>() {});
+          @SuppressWarnings("unchecked")
+          List<Map<String, Object>> results = (List<Map<String, Object>>) page.get("results");
+          return new QueryPage(results, (String) page.get("next"));
+    }
+
+    // Sequences
+    public long nextSequence(String db, String col, String field) {
+        return nextSequence(db, col, field, 1);
+    }
+
+    /**
+     * Reserves count consecutive values of the sequence and returns the first,
+     * so a client can number count documents with one call.
+     */
+    public long nextSequence(String db, String col, String field, int count) {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(baseUrl + "/sequence?db=" + db + "&col=" + col + "&field=" + field + "&count=" + count))
+                .header("Authorization", getAuthHeader())
+                .POST(HttpRequest.BodyPublishers.noBody())
+                .build();
+        Map<String, Object> res = sendRequest(request, new TypeReference<Map<String, Object>>() {});
+        return ((Number) res.get("value")).longValue();
+    }
+
+    /**
+     * Changes fields of a stored document on the server, e.g.
+     * {@code Map.of("$inc", Map.of("stock", -1))}, without reading and
+     * saving it whole. Supports $set, $unset, $inc and $push; returns the
+     * document as saved.
+     */
+    public Map<String, Object> patchDocument(String db, String col, String id, Map<String, Object> patch) {
+        try {
+            String body = mapper.writeValueAsString(patch);
+            HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create(baseUrl + "/doc?db=" + db + "&col=" + col + "&id=" + id))
+                    .header("Authorization", getAuthHeader())
+                    .header("Content-Type", "application/json")
+                    .method("PATCH", HttpRequest.BodyPublishers.ofString(body))
+                    .build();
+            return sendRequest(request, new TypeReference<Map<String, Object>>() {});
+        } catch (Exception e) {
+             throw new DriverException("Failed to patch document", e);
+        }
+    }
+
     public void deleteDocument(String db, String col, String id) {
         deleteDocument(db, col, id, null);
     }
@@ -247,6 +354,29 @@ public class JettraClient {
         sendRequest(request, null);
     }
 
+    /**
+     * The document as the transaction sees it: its own writes, else the
+     * committed state when it began.
+     */
+    public Map<String, Object> getDocumentInTransaction(String db, String col, String id, String txID) {
+          HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create(baseUrl + "/doc?db=" + db + "&col=" + col + "&id=" + id + "&tx=" + txID))
+                    .header("Authorization", getAuthHeader())
+                    .GET()
+                    .build();
+          return sendRequest(request, new TypeReference<Map<String, Object>>() {});
+    }
+
+    public List<Map<String, Object>> queryInTransaction(String db, String col, int limit, int offset, String txID) {
+         HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create(baseUrl + "/query?db=" + db + "&col=" + col + "&limit=" + limit + "&offset=" + offset
+                            + "&tx=" + txID))
+                    .header("Authorization", getAuthHeader())
+                    .GET()
+                    .build();
+          return sendRequest(request, new TypeReference<List<Map<String, Object>>>() {});
+    }
+
     // Backup
     public String backupDatabase(String db) {
         HttpRequest request = HttpRequest.newBuilder()
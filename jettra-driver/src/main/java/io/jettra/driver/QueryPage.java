@@ -0,0 +1,16 @@
+package io.jettra.driver;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * One page of a paginated query. Pass {@link #next()} back to
+ * {@link JettraClient#query(String, String, int, String)} to read the
+ * following page; it is null on the last page.
+ */
+public record QueryPage(List<Map<String, Object>> results, String next) {
+
+    public boolean hasNext() {
+        return next != null;
+    }
+}
@@ -140,6 +140,28 @@ public class JettraMemoryDriver {
         }
     }
     
+    /**
+     * Saves documents into one collection with one request. Returns the ids
+     * in order.
+     */
+    public List<String> saveAll(String db, String col, List<Map<String, Object>> documents) {
+        try {
+            String body = mapper.writeValueAsString(documents);
+             HttpRequest request = HttpRequest.newBuilder()
+                    .uri(URI.create(baseUrl + "/doc/bulk?db=" + db + "&col=" + col))
+                    .header("Authorization", getAuthHeader())
+                    .header("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(body))
+                    .build();
+            Map<String, Object> res = sendRequest(request, new TypeReference<Map<String, Object>>() {});
+            @SuppressWarnings("unchecked")
+            List<String> ids = (List<String>) res.get("ids");
+            return ids;
+        } catch (Exception e) {
+             throw new MemoryDriverException("Failed to save documents", e);
+        }
+    }
+
     public Map<String, Object> getDocument(String db, String col, String id) {
           HttpRequest request = HttpRequest.newBuilder()
                     .uri(URI.create(baseUrl + "/doc?db=" + db + "&col=" + col + "&id=" + id))
@@ -128,6 +128,7 @@ public class JettraMemoryServer {
                 .delete("/api/cols", api::deleteCollection)
                 .get("/api/metrics", api::metrics)
                 .post("/api/doc", api::saveDocument)
+                .post("/api/doc/bulk", api::saveDocuments)
                 .get("/api/doc", api::getDocument)
                 .put("/api/doc", api::updateDocument)
                 .delete("/api/doc", api::deleteDocument)
@@ -318,6 +319,34 @@ public class JettraMemoryServer {
         }
     }
 
+    // JSON array or NDJSON (one document per line) into one collection
+    private void saveDocuments(ServerRequest req, ServerResponse res) {
+        try {
+            String dbName = req.query().get("db");
+            String colName = req.query().get("col");
+            byte[] bytes = req.content().as(byte[].class);
+            java.util.List<Map<String, Object>> docs;
+            try (com.fasterxml.jackson.databind.MappingIterator<Map<String, Object>> it = mapper
+                    .readerFor(Map.class).readValues(bytes)) {
+                docs = it.readAll();
+            }
+
+            MemoryCollection collection = db.createCollection(dbName, colName);
+            java.util.List<String> ids = new java.util.ArrayList<>(docs.size());
+            for (Map<String, Object> doc : docs) {
+                String id = (String) doc.get("_id");
+                if (id == null)
+                    id = java.util.UUID.randomUUID().toString();
+                doc.put("_id", id);
+                collection.insert(id, doc, 0);
+                ids.add(id);
+            }
+            res.send(mapper.writeValueAsString(Map.of("status", "ok", "count", ids.size(), "ids", ids)));
+        } catch (Exception e) {
+            res.status(500).send(e.getMessage());
+        }
+    }
+
     private void getDocument(ServerRequest req, ServerResponse res) {
         try {
             String dbName = req.query().get("db");
@@ -0,0 +1,88 @@
+package io.jettra.core.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Write and read of one document on the stream-based path JettraEngineStore
+ * used before (a ByteArrayOutputStream, 64 KB buffered GZIP streams and a
+ * new Deflater/Inflater per document) against the pooled path it uses now.
+ * Run with {@code -prof gc} and compare gc.alloc.rate.norm.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DocumentSerializationBenchmark {
+    private Map<String, Object> document;
+    private byte[] streamFile;
+    private byte[] pooledFile;
+
+    @Setup
+    public void setup() throws Exception {
+        document = new LinkedHashMap<>();
+        document.put("_id", "c1");
+        document.put("name", "Customer number 1");
+        document.put("email", "customer1@example.com");
+        document.put("city", "Santiago");
+        document.put("n", 42);
+        document.put("tags", List.of("a", "b", "c"));
+        document.put("score", 3.5);
+        streamFile = streamWrite();
+        ByteBuffer framed = pooledWrite();
+        pooledFile = new byte[framed.remaining()];
+        framed.get(pooledFile);
+    }
+
+    @Benchmark
+    public byte[] streamWrite() throws Exception {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new GZIPOutputStream(baos), 64 * 1024))) {
+            JettraBinarySerialization.serialize(document, out);
+        }
+        return baos.toByteArray();
+    }
+
+    @Benchmark
+    public ByteBuffer pooledWrite() throws Exception {
+        return DocumentCompressor.encodeStandalone(JettraBinarySerialization.serializeToBuffer(document, null));
+    }
+
+    @Benchmark
+    public Map<String, Object> streamRead() throws Exception {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new GZIPInputStream(new ByteArrayInputStream(streamFile)), 64 * 1024))) {
+            return JettraBinarySerialization.deserialize(in);
+        }
+    }
+
+    @Benchmark
+    public Map<String, Object> pooledRead() throws Exception {
+        return JettraBinarySerialization.deserialize(DocumentCompressor.decode(ByteBuffer.wrap(pooledFile), null));
+    }
+}
@@ -2,6 +2,7 @@ package io.jettra.core;
 
 import java.util.logging.Logger;
 
+import io.jettra.core.query.QueryPlanner;
 import io.jettra.core.storage.BTreeIndexEngine;
 import io.jettra.core.storage.DocumentStore;
 import io.jettra.core.storage.IndexEngine;
@@ -14,6 +15,7 @@ public class Engine {
     private final io.jettra.core.config.ConfigManager configManager;
     private final DocumentStore store;
     private final IndexEngine indexer;
+    private final QueryPlanner planner;
     private final io.jettra.core.auth.AuthManager auth;
     private final io.jettra.core.raft.RaftNode raftNode;
     private final io.jettra.core.raft.RaftService raftService;
@@ -23,17 +25,39 @@ public class Engine {
 
         String dataDir = (String) config.getOrDefault("DataDir", "data");
 
-        this.store = new RouterDocumentStore(dataDir);
+        // Document cache budgets in MB, shared by the Basic and Engine stores
+        long cacheMB = ((Number) config.getOrDefault("CacheSizeMB", 64)).longValue();
+        long offHeapCacheMB = ((Number) config.getOrDefault("OffHeapCacheSizeMB", 0)).longValue();
+        // "hashed" shards document files into id-hashed subdirectories (existing collections migrate on first use)
+        boolean hashedLayout = "hashed".equalsIgnoreCase(String.valueOf(config.getOrDefault("StorageLayout", "flat")));
+        this.store = new RouterDocumentStore(dataDir, cacheMB * 1024 * 1024, offHeapCacheMB * 1024 * 1024,
+                hashedLayout);
+        // Default write-ahead log durability: none, batched (fsync within DurabilityIntervalMs) or always
+        ((RouterDocumentStore) this.store).setDefaultDurability(new io.jettra.core.storage.WriteAheadLog.Durability(
+                io.jettra.core.storage.WriteAheadLog.Mode.parse(String.valueOf(config.getOrDefault("Durability", "batched"))),
+                ((Number) config.getOrDefault("DurabilityIntervalMs", 10)).longValue()));
+        // Threads one filtered scan of an Engine collection may use (default: half the cores)
+        if (config.get("ScanParallelism") instanceof Number scanParallelism) {
+            ((RouterDocumentStore) this.store).setScanParallelism(scanParallelism.intValue());
+        }
+        // Sequence values reserved per durable write (see SequenceAllocator)
+        if (config.get("SequenceBlockSize") instanceof Number sequenceBlockSize) {
+            ((RouterDocumentStore) this.store).getSequences().setBlockSize(sequenceBlockSize.intValue());
+        }
         ValidationManager validator = new ValidationManager(this.store);
         ((RouterDocumentStore) this.store).setValidator(validator);
 
+        // Attached before any write, so bootstrap writes are indexed too
+        this.indexer = new BTreeIndexEngine(dataDir, this.store);
+        ((BTreeIndexEngine) this.indexer).loadIndexes();
+        ((RouterDocumentStore) this.store).setIndexer(this.indexer);
+
         // Run Bootstrap (Must run before Auth/Raft which rely on system collections)
         io.jettra.core.bootstrap.BootstrapManager bootstrap = new io.jettra.core.bootstrap.BootstrapManager(store,
                 config);
         bootstrap.init();
 
-        this.indexer = new BTreeIndexEngine(dataDir);
-        ((BTreeIndexEngine) this.indexer).loadIndexes();
+        this.planner = new QueryPlanner(this.store, this.indexer);
 
         this.auth = new io.jettra.core.auth.AuthManager(store);
 
@@ -49,6 +73,21 @@ public class Engine {
 
             this.raftNode = new io.jettra.core.raft.RaftNode(nodeId, peers, configManager, this.store, this.indexer);
             this.raftService = new io.jettra.core.raft.RaftService(raftNode);
+            // Reserved sequence blocks go to the followers, so a new leader never hands out a value twice
+            io.jettra.core.raft.RaftNode raft = this.raftNode;
+            ((RouterDocumentStore) this.store).getSequences().setListener((db, col, field, upper) -> {
+                java.util.Map<String, Object> cmd = new java.util.HashMap<>();
+                cmd.put("op", "sequence");
+                cmd.put("db", db);
+                cmd.put("col", col);
+                cmd.put("field", field);
+                cmd.put("upper", upper);
+                // Values reserved off the leader could collide with the leader's, so none are handed out
+                if (!raft.replicate(cmd)) {
+                    throw new Exception("Sequence " + db + "/" + col + "." + field
+                            + " can only be reserved on the leader, this node is not the leader");
+                }
+            });
         } else {
             this.raftNode = null;
             this.raftService = null;
@@ -74,6 +113,10 @@ public class Engine {
         return indexer;
     }
 
+    public QueryPlanner getQueryPlanner() {
+        return planner;
+    }
+
     public io.jettra.core.auth.AuthManager getAuth() {
         return auth;
     }
@@ -0,0 +1,599 @@
+package io.jettra.core.query;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import io.jettra.core.storage.DocumentStore;
+import io.jettra.core.storage.FilterMatcher;
+import io.jettra.core.storage.IndexEngine;
+import io.jettra.core.storage.IndexEngine.IndexDefinition;
+import io.jettra.core.storage.IndexEngine.IndexRange;
+
+/**
+ * Chooses how a filtered query is executed: through an index (exact match,
+ * leading prefix of a composite index, range on the next index field, or the
+ * intersection of two indexes) or through the store's collection scan. When a
+ * sort is requested, an index whose next field is the sort field is walked in
+ * order so ORDER BY ... LIMIT n stops after n matches instead of sorting the
+ * whole collection.
+ *
+ * Costs are counted in index entries read, with a document fetch weighing
+ * {@link #FETCH_COST} entries. Candidate indexes are probed for up to
+ * {@link #PROBE_BUDGET} matches: a candidate that ends within the budget has
+ * an exact count and its probed ids are reused to run the plan, a larger one
+ * is costed from the index engine's estimate and read only if it is chosen.
+ *
+ * {@link #page} serves keyset pagination: each page walks one index (or the
+ * collection's id tree) from the position where the previous page stopped,
+ * so deep pages cost the same as the first one.
+ */
+public class QueryPlanner {
+
+    public static final String COLLECTION_SCAN = "COLLECTION_SCAN";
+    public static final String INDEX_EXACT = "INDEX_EXACT";
+    public static final String INDEX_PREFIX = "INDEX_PREFIX";
+    public static final String INDEX_RANGE = "INDEX_RANGE";
+    public static final String INDEX_INTERSECTION = "INDEX_INTERSECTION";
+    public static final String INDEX_ORDERED = "INDEX_ORDERED";
+    public static final String ID_ORDERED = "ID_ORDERED";
+    public static final String HISTORY_SCAN = "HISTORY_SCAN";
+
+    public static final String SORT_NONE = "NONE";
+    public static final String SORT_INDEX = "INDEX";
+    public static final String SORT_MEMORY = "MEMORY";
+
+    private static final long FETCH_COST = 4;
+    // Matches read per candidate index while planning; past this the engine's estimate is used
+    private static final int PROBE_BUDGET = 64 * (int) FETCH_COST;
+    private static final String ID_FIELD = "_id";
+    // Index fields of a token that holds an offset, see offsetPage
+    private static final String OFFSET_TOKEN = "$offset";
+
+    private final DocumentStore store;
+    private final IndexEngine indexer;
+
+    public QueryPlanner(DocumentStore store, IndexEngine indexer) {
+        this.store = store;
+        this.indexer = indexer;
+    }
+
+    /**
+     * Requested result order on one field.
+     */
+    public record Sort(String field, boolean descending) {
+
+        /**
+         * Parses "field" (ascending) or "-field" (descending).
+         */
+        public static Sort parse(String spec) {
+            if (spec == null || spec.isBlank()) {
+                return null;
+            }
+            spec = spec.trim();
+            return spec.startsWith("-") ? new Sort(spec.substring(1), true) : new Sort(spec, false);
+        }
+    }
+
+    /**
+     * Chosen access path, as reported by explain.
+     */
+    public record QueryPlan(String type, List<List<String>> indexes, long estimatedCost, long scanCost,
+            int candidates, String sort) {
+
+        public Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("type", type);
+            map.put("indexes", indexes);
+            map.put("estimatedCost", estimatedCost);
+            map.put("scanCost", scanCost);
+            map.put("candidates", candidates);
+            map.put("sort", sort);
+            return map;
+        }
+    }
+
+    public record QueryResult(QueryPlan plan, List<Map<String, Object>> documents) {
+    }
+
+    /**
+     * Lazily evaluated results; close it to release the store's file handles.
+     */
+    public record QueryCursor(QueryPlan plan, Stream<Map<String, Object>> documents) implements AutoCloseable {
+
+        @Override
+        public void close() {
+            documents.close();
+        }
+    }
+
+    /**
+     * One page of results; nextToken resumes after its last document and is
+     * null on the last page.
+     */
+    public record QueryPage(QueryPlan plan, List<Map<String, Object>> documents, String nextToken) {
+    }
+
+    // Index usable for the filter: equality prefix, optional range on the next field,
+    // the ids it matched when probed (in index order) and its exact or estimated match count
+    private record Candidate(IndexDefinition index, List<Object> prefix, IndexRange range, List<String> ids,
+            boolean complete, long matches) {
+
+        boolean exact() {
+            return range == null && prefix.size() == index.fields().size();
+        }
+
+        String type() {
+            return range != null ? INDEX_RANGE : exact() ? INDEX_EXACT : INDEX_PREFIX;
+        }
+    }
+
+    // Plan plus how to run it: ids to fetch, an index to walk in order, an index whose
+    // ids are read when the query runs, or a scan (all null)
+    private record Selection(QueryPlan plan, List<String> ids, Candidate walk, Candidate lookup) {
+
+        Selection(QueryPlan plan, List<String> ids, Candidate walk) {
+            this(plan, ids, walk, null);
+        }
+    }
+
+    public QueryPlan explain(String database, String collection, Map<String, Object> filter) throws Exception {
+        return explain(database, collection, filter, null, 0, 0);
+    }
+
+    public QueryPlan explain(String database, String collection, Map<String, Object> filter, Sort sort, int limit,
+            int offset) throws Exception {
+        return select(database, collection, filter, sort, limit, offset).plan();
+    }
+
+    public List<Map<String, Object>> query(String database, String collection, Map<String, Object> filter,
+            int limit, int offset) throws Exception {
+        return execute(database, collection, filter, null, limit, offset).documents();
+    }
+
+    public List<Map<String, Object>> query(String database, String collection, Map<String, Object> filter,
+            Sort sort, int limit, int offset) throws Exception {
+        return execute(database, collection, filter, sort, limit, offset).documents();
+    }
+
+    public QueryResult execute(String database, String collection, Map<String, Object> filter, int limit,
+            int offset) throws Exception {
+        return execute(database, collection, filter, null, limit, offset);
+    }
+
+    public QueryResult execute(String database, String collection, Map<String, Object> filter, Sort sort,
+            int limit, int offset) throws Exception {
+        try (QueryCursor cursor = open(database, collection, filter, sort, limit, offset)) {
+            return new QueryResult(cursor.plan(), cursor.documents().toList());
+        }
+    }
+
+    /**
+     * Plans the query and returns its results as a lazy stream. Unbounded
+     * scans and index lookups read one document at a time while the stream is
+     * consumed; pages with a limit and ordered walks are bounded, and
+     * in-memory sorts have to see every match first.
+     */
+    public QueryCursor open(String database, String collection, Map<String, Object> filter, Sort sort, int limit,
+            int offset) throws Exception {
+        Selection selection = select(database, collection, filter, sort, limit, offset);
+        QueryPlan plan = selection.plan();
+
+        if (selection.walk() != null) {
+            Candidate walk = selection.walk();
+            List<Map<String, Object>> results = new ArrayList<>();
+            int[] skipped = { 0 };
+            indexer.scanIndex(database, collection, walk.index().fields(), walk.prefix(), walk.range(),
+                    sort.descending(), id -> {
+                        Map<String, Object> doc = store.findByID(database, collection, id);
+                        if (doc == null || !FilterMatcher.matches(doc, filter)) {
+                            return true;
+                        }
+                        if (skipped[0] < offset) {
+                            skipped[0]++;
+                            return true;
+                        }
+                        results.add(doc);
+                        return limit <= 0 || results.size() < limit;
+                    });
+            return new QueryCursor(plan, results.stream());
+        }
+
+        List<String> ids = selection.ids();
+        if (selection.lookup() != null) {
+            Candidate lookup = selection.lookup();
+            List<String> found = new ArrayList<>();
+            indexer.scanIndex(database, collection, lookup.index().fields(), lookup.prefix(), lookup.range(), false,
+                    id -> found.add(id));
+            ids = found;
+        }
+
+        boolean sortInMemory = SORT_MEMORY.equals(plan.sort());
+        if (ids == null && limit > 0 && !sortInMemory) {
+            // A bounded page: the store skips the offset without decoding documents
+            return new QueryCursor(plan, store.query(database, collection, filter, limit, offset).stream());
+        }
+
+        Stream<Map<String, Object>> docs;
+        if (ids == null) {
+            docs = store.stream(database, collection, filter);
+        } else {
+            // Index keys may be truncated or conflate number types, so re-check the filter
+            docs = ids.stream()
+                    .map(id -> fetch(database, collection, id))
+                    .filter(doc -> doc != null && FilterMatcher.matches(doc, filter));
+        }
+        if (sortInMemory) {
+            Comparator<Map<String, Object>> order = (a, b) -> FilterMatcher.compareValues(a.get(sort.field()),
+                    b.get(sort.field()));
+            docs = docs.sorted(sort.descending() ? order.reversed() : order);
+        }
+        if (offset > 0) {
+            docs = docs.skip(offset);
+        }
+        if (limit > 0) {
+            docs = docs.limit(limit);
+        }
+        return new QueryCursor(plan, docs);
+    }
+
+    /**
+     * Runs the query against the collection as it was at asOf (epoch
+     * millis). Indexes only describe the current documents, so this always
+     * scans the collection's version history and sorts in memory.
+     */
+    public QueryCursor open(String database, String collection, Map<String, Object> filter, Sort sort, int limit,
+            int offset, long asOf) throws Exception {
+        long scanCost = FETCH_COST * store.count(database, collection);
+        QueryPlan plan = new QueryPlan(HISTORY_SCAN, List.of(), scanCost, scanCost, 0,
+                sort == null ? SORT_NONE : SORT_MEMORY);
+        Stream<Map<String, Object>> docs = store.stream(database, collection, filter, asOf);
+        if (sort != null) {
+            Comparator<Map<String, Object>> order = (a, b) -> FilterMatcher.compareValues(a.get(sort.field()),
+                    b.get(sort.field()));
+            docs = docs.sorted(sort.descending() ? order.reversed() : order);
+        }
+        if (offset > 0) {
+            docs = docs.skip(offset);
+        }
+        if (limit > 0) {
+            docs = docs.limit(limit);
+        }
+        return new QueryCursor(plan, docs);
+    }
+
+    /**
+     * Returns up to limit matching documents starting after the position
+     * encoded in token (from the first match when token is null). Pages are
+     * read in index order: the sort field's index when a sort is given
+     * (sorting on {@code _id} uses the id tree), otherwise the most selective
+     * single index or, failing that, the id tree. Writes between pages never
+     * cause skipped or repeated documents, except for documents whose walked
+     * key itself changed. A pagination started while the id tree is still
+     * being built is read by offset throughout (see offsetPage).
+     */
+    public QueryPage page(String database, String collection, Map<String, Object> filter, Sort sort, int limit,
+            String token) throws Exception {
+        if (indexer == null) {
+            throw new IllegalStateException("Pagination requires the index engine");
+        }
+        Map<String, Object> conditions = filter != null ? filter : Map.of();
+        boolean descending = sort != null && sort.descending();
+        List<String> fields = null;
+        byte[] after = null;
+
+        if (token != null && !token.isBlank()) {
+            String[] parts = decodeToken(token);
+            descending = parts[0].equals("1");
+            fields = List.of(parts[1].split(","));
+            after = Base64.getUrlDecoder().decode(parts[2]);
+            if (sort != null && sort.descending() != descending) {
+                throw new IllegalArgumentException("Continuation token does not match the requested sort");
+            }
+            if (fields.equals(List.of(OFFSET_TOKEN))) {
+                return offsetPage(database, collection, filter, sort, descending, limit, decodeOffset(after));
+            }
+        } else if (sort != null && !sort.field().equals(ID_FIELD)) {
+            for (IndexDefinition def : indexer.getIndexes(database, collection)) {
+                List<Object> prefix = equalityPrefix(def.fields(), conditions);
+                if (prefix.size() < def.fields().size() && def.fields().get(prefix.size()).equals(sort.field())) {
+                    fields = def.fields();
+                    break;
+                }
+            }
+            if (fields == null) {
+                throw new IllegalArgumentException(
+                        "Paginating by " + sort.field() + " requires an index whose next field is " + sort.field());
+            }
+        } else if (sort == null) {
+            QueryPlan best = select(database, collection, filter, null, 0, 0).plan();
+            if (best.indexes().size() == 1) {
+                fields = best.indexes().get(0);
+            }
+        }
+        if (fields == null || fields.equals(List.of(ID_FIELD))) {
+            fields = List.of(ID_FIELD);
+        }
+
+        List<Object> prefix = List.of();
+        IndexRange range = null;
+        String type = ID_ORDERED;
+        if (!fields.equals(List.of(ID_FIELD))) {
+            List<String> indexFields = fields;
+            if (indexer.getIndexes(database, collection).stream().noneMatch(d -> d.fields().equals(indexFields))) {
+                throw new IllegalArgumentException("Invalid or expired continuation token");
+            }
+            prefix = equalityPrefix(fields, conditions);
+            range = prefix.size() < fields.size() ? rangeOf(conditions.get(fields.get(prefix.size()))) : null;
+            type = sort != null ? INDEX_ORDERED
+                    : range != null ? INDEX_RANGE : prefix.size() == fields.size() ? INDEX_EXACT : INDEX_PREFIX;
+        }
+
+        List<Map<String, Object>> results = new ArrayList<>();
+        byte[][] last = { null };
+        boolean[] more = { false };
+        IndexEngine.PositionVisitor visitor = (id, position) -> {
+            Map<String, Object> doc = store.findByID(database, collection, id);
+            if (doc == null || !FilterMatcher.matches(doc, filter)) {
+                return true;
+            }
+            if (limit > 0 && results.size() == limit) {
+                more[0] = true;
+                return false;
+            }
+            results.add(doc);
+            last[0] = position;
+            return true;
+        };
+        if (fields.equals(List.of(ID_FIELD))) {
+            if (!indexer.scanIds(database, collection, descending, after, visitor)) {
+                // Id tree still being built; a token cannot point into it, so this is a first page
+                return offsetPage(database, collection, filter, sort, descending, limit, 0);
+            }
+        } else {
+            indexer.scanIndex(database, collection, fields, prefix, range, descending, after, visitor);
+        }
+
+        long cost = (long) results.size() * (1 + FETCH_COST);
+        QueryPlan plan = new QueryPlan(type, List.of(fields), cost, FETCH_COST * store.count(database, collection),
+                0, sort != null ? SORT_INDEX : SORT_NONE);
+        String next = more[0] ? encodeToken(descending, fields, last[0]) : null;
+        return new QueryPage(plan, results, next);
+    }
+
+    /**
+     * A page read with open() at offset, for a collection whose id tree is
+     * still being built: offset paging until the pagination ends, with the
+     * offset in the token. Writes between pages can shift documents across
+     * pages, as with plain offset paging.
+     */
+    private QueryPage offsetPage(String database, String collection, Map<String, Object> filter, Sort sort,
+            boolean descending, int limit, int offset) throws Exception {
+        List<Map<String, Object>> results;
+        QueryPlan plan;
+        try (QueryCursor cursor = open(database, collection, filter, sort, limit > 0 ? limit + 1 : 0, offset)) {
+            plan = cursor.plan();
+            results = new ArrayList<>(cursor.documents().toList());
+        }
+        String next = null;
+        if (limit > 0 && results.size() > limit) {
+            results.remove(limit);
+            next = encodeToken(descending, List.of(OFFSET_TOKEN),
+                    Integer.toString(offset + limit).getBytes(StandardCharsets.UTF_8));
+        }
+        return new QueryPage(plan, results, next);
+    }
+
+    private static int decodeOffset(byte[] position) {
+        try {
+            int offset = Integer.parseInt(new String(position, StandardCharsets.UTF_8));
+            if (offset < 0) {
+                throw new NumberFormatException();
+            }
+            return offset;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid or expired continuation token");
+        }
+    }
+
+    private static String encodeToken(boolean descending, List<String> fields, byte[] position) {
+        String token = (descending ? "1" : "0") + ":" + String.join(",", fields) + ":"
+                + Base64.getUrlEncoder().withoutPadding().encodeToString(position);
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // [direction, index fields, position]
+    private static String[] decodeToken(String token) {
+        try {
+            String text = new String(Base64.getUrlDecoder().decode(token), StandardCharsets.UTF_8);
+            int first = text.indexOf(':');
+            int lastColon = text.lastIndexOf(':');
+            if (first != 1 || lastColon <= first + 1) {
+                throw new IllegalArgumentException();
+            }
+            return new String[] { text.substring(0, 1), text.substring(first + 1, lastColon),
+                    text.substring(lastColon + 1) };
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Invalid or expired continuation token");
+        }
+    }
+
+    private Map<String, Object> fetch(String database, String collection, String id) {
+        try {
+            return store.findByID(database, collection, id);
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to read " + collection + "/" + id + ": " + e.getMessage(), e);
+        }
+    }
+
+    private Selection select(String database, String collection, Map<String, Object> filter, Sort sort, int limit,
+            int offset) throws Exception {
+        boolean hasFilter = filter != null && !filter.isEmpty();
+        String scanSort = sort != null ? SORT_MEMORY : SORT_NONE;
+        if ((!hasFilter && sort == null) || indexer == null || !indexer.hasIndexes(database, collection)) {
+            return scan(0, 0, scanSort);
+        }
+
+        long scanCost = FETCH_COST * store.count(database, collection);
+        // An index matching more documents than this can never beat the scan
+        int cap = (int) Math.min(Integer.MAX_VALUE - 1, scanCost / FETCH_COST) + 1;
+        int budget = Math.min(cap, PROBE_BUDGET);
+        Map<String, Object> conditions = hasFilter ? filter : Map.of();
+
+        List<Candidate> candidates = new ArrayList<>();
+        Candidate ordered = null;
+        for (IndexDefinition def : indexer.getIndexes(database, collection)) {
+            List<Object> prefix = equalityPrefix(def.fields(), conditions);
+            String next = prefix.size() < def.fields().size() ? def.fields().get(prefix.size()) : null;
+            IndexRange range = next != null ? rangeOf(conditions.get(next)) : null;
+
+            Candidate candidate = null;
+            if (!prefix.isEmpty() || range != null) {
+                List<String> ids = new ArrayList<>();
+                indexer.scanIndex(database, collection, def.fields(), prefix, range, false, id -> {
+                    ids.add(id);
+                    return ids.size() < budget;
+                });
+                boolean complete = ids.size() < budget;
+                long matches = ids.size();
+                if (!complete) {
+                    long estimate = indexer.estimateCount(database, collection, def.fields(), prefix, range);
+                    matches = estimate < 0 ? cap : Math.min(cap, Math.max(budget, estimate));
+                }
+                candidate = new Candidate(def, prefix, range, ids, complete, matches);
+                candidates.add(candidate);
+            }
+            if (sort != null && sort.field().equals(next) && (ordered == null || candidate != null)) {
+                ordered = candidate != null ? candidate : new Candidate(def, prefix, null, List.of(), false, cap);
+            }
+        }
+
+        int examined = candidates.size();
+        Selection best = scan(scanCost, examined, scanSort);
+        long bestCost = scanCost;
+
+        if (!candidates.isEmpty()) {
+            candidates.sort(Comparator.comparingLong(Candidate::matches).thenComparing(c -> !c.exact()));
+            Candidate first = candidates.get(0);
+            long cost = first.matches() * (1 + FETCH_COST);
+            if (cost < bestCost) {
+                bestCost = cost;
+                QueryPlan plan = new QueryPlan(first.type(), List.of(first.index().fields()), cost, scanCost,
+                        examined, scanSort);
+                best = first.complete() ? new Selection(plan, first.ids(), null)
+                        : new Selection(plan, null, null, first);
+            }
+
+            if (candidates.size() > 1 && first.complete() && candidates.get(1).complete()) {
+                Candidate second = candidates.get(1);
+                Set<String> other = new LinkedHashSet<>(second.ids());
+                List<String> both = new ArrayList<>();
+                for (String id : first.ids()) {
+                    if (other.contains(id)) {
+                        both.add(id);
+                    }
+                }
+                cost = first.ids().size() + second.ids().size() + both.size() * FETCH_COST;
+                if (cost < bestCost) {
+                    bestCost = cost;
+                    best = new Selection(new QueryPlan(INDEX_INTERSECTION,
+                            List.of(first.index().fields(), second.index().fields()), cost, scanCost, examined,
+                            scanSort), both, null);
+                }
+            }
+        }
+
+        if (ordered != null) {
+            // The index already yields the requested order: either reuse the probed ids
+            // or walk it lazily and stop once offset + limit documents matched
+            Selection walk;
+            long cost;
+            if (ordered.complete()) {
+                List<String> ids = new ArrayList<>(ordered.ids());
+                if (sort.descending()) {
+                    Collections.reverse(ids);
+                }
+                cost = ids.size() * (1 + FETCH_COST);
+                walk = new Selection(orderedPlan(ordered, cost, scanCost, examined), ids, null);
+            } else {
+                cost = (limit > 0 ? (long) (offset + limit) : ordered.matches()) * (1 + FETCH_COST);
+                walk = new Selection(orderedPlan(ordered, cost, scanCost, examined), null, ordered);
+            }
+            // The alternatives still have to sort every match in memory
+            long sortCost = best.ids() != null ? best.ids().size()
+                    : best.lookup() != null ? best.lookup().matches() : scanCost / FETCH_COST;
+            if (cost <= bestCost + sortCost) {
+                return walk;
+            }
+        }
+        return best;
+    }
+
+    private static QueryPlan orderedPlan(Candidate ordered, long cost, long scanCost, int examined) {
+        return new QueryPlan(INDEX_ORDERED, List.of(ordered.index().fields()), cost, scanCost, examined,
+                SORT_INDEX);
+    }
+
+    private static Selection scan(long scanCost, int candidates, String sort) {
+        return new Selection(new QueryPlan(COLLECTION_SCAN, List.of(), scanCost, scanCost, candidates, sort), null,
+                null);
+    }
+
+    /**
+     * Values of the leading index fields the filter compares for equality.
+     */
+    private static List<Object> equalityPrefix(List<String> fields, Map<String, Object> conditions) {
+        List<Object> prefix = new ArrayList<>();
+        for (String field : fields) {
+            if (!conditions.containsKey(field)) {
+                break;
+            }
+            Object value = conditions.get(field);
+            if (value instanceof Map || value instanceof List) {
+                break;
+            }
+            prefix.add(value);
+        }
+        return prefix;
+    }
+
+    /**
+     * Index range implied by an operator condition ($gt/$gte/$lt/$lte), or
+     * null when the condition has no usable bound.
+     */
+    private static IndexRange rangeOf(Object condition) {
+        if (!FilterMatcher.isOperator(condition)) {
+            return null;
+        }
+        Map<?, ?> ops = (Map<?, ?>) condition;
+        Object lower = null, upper = null;
+        boolean lowerInclusive = false, upperInclusive = false;
+        if (ops.containsKey(FilterMatcher.GT) != ops.containsKey(FilterMatcher.GTE)) {
+            lowerInclusive = ops.containsKey(FilterMatcher.GTE);
+            lower = ops.get(lowerInclusive ? FilterMatcher.GTE : FilterMatcher.GT);
+        }
+        if (ops.containsKey(FilterMatcher.LT) != ops.containsKey(FilterMatcher.LTE)) {
+            upperInclusive = ops.containsKey(FilterMatcher.LTE);
+            upper = ops.get(upperInclusive ? FilterMatcher.LTE : FilterMatcher.LT);
+        }
+        if (lower != null && upper != null && !FilterMatcher.comparable(lower, upper)) {
+            upper = null; // Nothing can match both; the residual filter drops every candidate
+        }
+        if (!rangeValue(lower) || !rangeValue(upper) || (lower == null && upper == null)) {
+            return null;
+        }
+        return new IndexRange(lower, lowerInclusive, upper, upperInclusive);
+    }
+
+    private static boolean rangeValue(Object value) {
+        return value == null || value instanceof Number || value instanceof String || value instanceof Boolean;
+    }
+}
@@ -850,6 +850,16 @@ public class RaftNode {
                     LOGGER.info("Replicated Save: " + db + "/" + col + " ID: " + doc.get("_id"));
                     break;
                 }
+                case "save_all": {
+                    String db = (String) command.get("db");
+                    String col = (String) command.get("col");
+                    @SuppressWarnings("unchecked")
+                    List<Map<String, Object>> docs = (List<Map<String, Object>>) command.get("docs");
+                    // Ids (and sequence values) were assigned by the leader
+                    store.saveAll(db, col, docs);
+                    LOGGER.info("Replicated Bulk Save: " + db + "/" + col + " (" + docs.size() + " documents)");
+                    break;
+                }
                 case "update": {
                     String db = (String) command.get("db");
                     String col = (String) command.get("col");
@@ -926,6 +936,41 @@ public class RaftNode {
                     LOGGER.info("Replicated Rename DB: " + oldName + " -> " + newName);
                     break;
                 }
+                case "set_durability": {
+                    String db = (String) command.get("db");
+                    if (store instanceof io.jettra.core.storage.RouterDocumentStore router) {
+                        @SuppressWarnings("unchecked")
+                        Map<String, Object> durability = (Map<String, Object>) command.get("durability");
+                        router.setDurability(db, io.jettra.core.storage.WriteAheadLog.Durability.fromMap(durability,
+                                router.getDurability(db)));
+                    }
+                    LOGGER.info("Replicated Durability: " + db);
+                    break;
+                }
+                case "set_retention": {
+                    String db = (String) command.get("db");
+                    String col = (String) command.get("col");
+                    @SuppressWarnings("unchecked")
+                    Map<String, Object> retention = (Map<String, Object>) command.get("retention");
+                    try {
+                        store.setRetention(db, col, io.jettra.core.storage.VersionArchive.Retention.fromMap(retention));
+                    } catch (Exception e) {
+                        LOGGER.warning("Replicated Retention failed: " + e.getMessage());
+                    }
+                    LOGGER.info("Replicated Retention: " + db + "/" + col);
+                    break;
+                }
+                case "sequence": {
+                    // A block reserved by the leader: this node continues above it if it becomes leader
+                    String db = (String) command.get("db");
+                    String col = (String) command.get("col");
+                    String field = (String) command.get("field");
+                    if (store instanceof io.jettra.core.storage.RouterDocumentStore router) {
+                        router.getSequences().advance(db, col, field, ((Number) command.get("upper")).longValue());
+                    }
+                    LOGGER.fine("Replicated Sequence: " + db + "/" + col + "/" + field);
+                    break;
+                }
                 case "create_index": {
                     String db = (String) command.get("db");
                     String col = (String) command.get("col");
@@ -1258,7 +1303,8 @@ public class RaftNode {
             }
 
             File snapshotFile = File.createTempFile("snapshot", ".zip");
-            List<String> excludes = List.of("federated.json", "config.json", "raft", "temp", "tmp");
+            List<String> excludes = List.of("federated.json", "config.json", "raft", "temp", "tmp",
+                    io.jettra.core.storage.Catalog.MANIFEST, io.jettra.core.storage.WriteAheadLog.WAL_DIR);
             
             LOGGER.info("Zipping data directory: " + dataDirFile.getAbsolutePath() + " to " + snapshotFile.getAbsolutePath());
             io.jettra.core.util.ZipUtils.zipDirectory(dataDirFile.toPath(), snapshotFile.toPath(), excludes);
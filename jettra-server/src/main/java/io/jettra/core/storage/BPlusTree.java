@@ -0,0 +1,569 @@
+package io.jettra.core.storage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Paged, file-backed B+tree mapping byte[] keys (unsigned lexicographic order)
+ * to small byte[] values.
+ *
+ * Layout: page 0 is the header, every other page holds one node. Nodes are
+ * read through an LRU page cache; dirty pages are written back on eviction and
+ * on {@link #checkpoint()}. The header carries a "clean" flag that is cleared
+ * on disk before the first change after a checkpoint, so a tree that was not
+ * checkpointed (crash) is reported by {@link #isClean()} and can be rebuilt by
+ * the owner. Deletes do not rebalance; empty leaves are skipped by scans and
+ * reclaimed by a rebuild.
+ */
+public class BPlusTree implements Closeable {
+    public static final int PAGE_SIZE = 8192;
+    public static final int MAX_KEY_SIZE = 1024;
+    public static final int MAX_VALUE_SIZE = 1024;
+
+    private static final int MAGIC = 0x4A425054; // "JBPT"
+    private static final int DEFAULT_CACHE_PAGES = 256;
+    private static final byte LEAF = 1;
+    private static final byte INTERNAL = 2;
+    private static final int NODE_HEADER = 1 + 2 + 4;
+    // Header: magic, format, page size, root, page count (ints), entry count (long), then the clean flag
+    private static final int CLEAN_OFFSET = 5 * 4 + 8;
+
+    private final Path file;
+    private final int formatVersion;
+    private final FileChannel channel;
+    private final Map<Integer, Node> cache;
+
+    private int rootPage;
+    private int pageCount;
+    private long entryCount;
+    private boolean clean;
+    private boolean headerDirty;
+
+    /**
+     * Visitor for ordered scans; return false to stop.
+     */
+    @FunctionalInterface
+    public interface EntryVisitor {
+        boolean visit(byte[] key, byte[] value) throws IOException;
+    }
+
+    private static final class Node {
+        final int page;
+        final boolean leaf;
+        final List<byte[]> keys = new ArrayList<>();
+        final List<byte[]> values = new ArrayList<>(); // leaf only
+        final List<Integer> children = new ArrayList<>(); // internal only
+        int next; // right sibling (leaf only), 0 = none
+        boolean dirty;
+
+        Node(int page, boolean leaf) {
+            this.page = page;
+            this.leaf = leaf;
+        }
+
+        int size() {
+            int size = NODE_HEADER;
+            if (leaf) {
+                for (int i = 0; i < keys.size(); i++) {
+                    size += 2 + keys.get(i).length + 2 + values.get(i).length;
+                }
+            } else {
+                size += 4;
+                for (byte[] key : keys) {
+                    size += 2 + key.length + 4;
+                }
+            }
+            return size;
+        }
+    }
+
+    private record Split(byte[] separator, int rightPage) {
+    }
+
+    /**
+     * Opens (or creates) a tree. A file written with another {@code formatVersion}
+     * is treated as empty and unclean so the owner rebuilds it.
+     */
+    public BPlusTree(Path file, int formatVersion) throws IOException {
+        this(file, formatVersion, DEFAULT_CACHE_PAGES);
+    }
+
+    public BPlusTree(Path file, int formatVersion, int cachePages) throws IOException {
+        this.file = file;
+        this.formatVersion = formatVersion;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.cache = new LinkedHashMap<>(cachePages, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, Node> eldest) {
+                if (size() > cachePages) {
+                    try {
+                        if (eldest.getValue().dirty) {
+                            writeNode(eldest.getValue());
+                        }
+                    } catch (IOException e) {
+                        throw new java.io.UncheckedIOException(e);
+                    }
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        if (!readHeader()) {
+            reset();
+            clean = false;
+        }
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * True when the tree was checkpointed after its last modification.
+     */
+    public synchronized boolean isClean() {
+        return clean;
+    }
+
+    public synchronized long size() {
+        return entryCount;
+    }
+
+    // --- Header ---
+
+    private boolean readHeader() throws IOException {
+        if (channel.size() < PAGE_SIZE) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(32);
+        readFully(header, 0);
+        header.flip();
+        if (header.getInt() != MAGIC || header.getInt() != formatVersion || header.getInt() != PAGE_SIZE) {
+            return false;
+        }
+        rootPage = header.getInt();
+        pageCount = header.getInt();
+        entryCount = header.getLong();
+        clean = header.get() == 1;
+        return true;
+    }
+
+    private void writeHeader() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(PAGE_SIZE);
+        header.putInt(MAGIC).putInt(formatVersion).putInt(PAGE_SIZE)
+                .putInt(rootPage).putInt(pageCount).putLong(entryCount).put((byte) (clean ? 1 : 0));
+        header.position(PAGE_SIZE).flip();
+        writeFully(header, 0);
+        headerDirty = false;
+    }
+
+    private void markModified() throws IOException {
+        if (clean) {
+            // Persist "unclean" before the first page of this epoch can hit the disk
+            clean = false;
+            writeHeader();
+            channel.force(false);
+        }
+        headerDirty = true;
+    }
+
+    /**
+     * Drops every entry (used before a rebuild).
+     */
+    public synchronized void reset() throws IOException {
+        cache.clear();
+        channel.truncate(0);
+        pageCount = 1;
+        entryCount = 0;
+        Node root = allocate(true);
+        rootPage = root.page;
+        clean = false;
+        writeHeader();
+    }
+
+    /**
+     * Clears the clean flag of a tree that is not open, so its owner rebuilds
+     * it on the next open. Used when writes may have reached the documents but
+     * not the tree (log replay after a crash).
+     */
+    public static void markUnclean(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() < PAGE_SIZE) {
+                return; // Not a valid tree: rebuilt on open anyway
+            }
+            channel.write(ByteBuffer.wrap(new byte[] { 0 }), CLEAN_OFFSET);
+            channel.force(false);
+        }
+    }
+
+    // --- Page I/O ---
+
+    private Node allocate(boolean leaf) {
+        Node node = new Node(pageCount++, leaf);
+        node.dirty = true;
+        cache.put(node.page, node);
+        return node;
+    }
+
+    private Node load(int page) throws IOException {
+        Node node = cache.get(page);
+        if (node != null) {
+            return node;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(PAGE_SIZE);
+        readFully(buffer, (long) page * PAGE_SIZE);
+        buffer.flip();
+
+        byte type = buffer.get();
+        int count = buffer.getShort() & 0xFFFF;
+        node = new Node(page, type == LEAF);
+        node.next = buffer.getInt();
+        if (node.leaf) {
+            for (int i = 0; i < count; i++) {
+                node.keys.add(readBytes(buffer));
+                node.values.add(readBytes(buffer));
+            }
+        } else {
+            node.children.add(buffer.getInt());
+            for (int i = 0; i < count; i++) {
+                node.keys.add(readBytes(buffer));
+                node.children.add(buffer.getInt());
+            }
+        }
+        cache.put(page, node);
+        return node;
+    }
+
+    private void writeNode(Node node) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(PAGE_SIZE);
+        buffer.put(node.leaf ? LEAF : INTERNAL);
+        buffer.putShort((short) node.keys.size());
+        buffer.putInt(node.next);
+        if (node.leaf) {
+            for (int i = 0; i < node.keys.size(); i++) {
+                writeBytes(buffer, node.keys.get(i));
+                writeBytes(buffer, node.values.get(i));
+            }
+        } else {
+            buffer.putInt(node.children.get(0));
+            for (int i = 0; i < node.keys.size(); i++) {
+                writeBytes(buffer, node.keys.get(i));
+                buffer.putInt(node.children.get(i + 1));
+            }
+        }
+        buffer.position(PAGE_SIZE).flip();
+        writeFully(buffer, (long) node.page * PAGE_SIZE);
+        node.dirty = false;
+    }
+
+    private static byte[] readBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static void writeBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of index file " + file);
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    /**
+     * Writes dirty pages and the header, forces them to disk and marks the tree clean.
+     */
+    public synchronized void checkpoint() throws IOException {
+        if (clean && !headerDirty) {
+            return;
+        }
+        for (Node node : cache.values()) {
+            if (node.dirty) {
+                writeNode(node);
+            }
+        }
+        channel.force(false);
+        clean = true;
+        writeHeader();
+        channel.force(false);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            checkpoint();
+        } finally {
+            cache.clear();
+            channel.close();
+        }
+    }
+
+    // --- Key comparison ---
+
+    public static int compare(byte[] a, byte[] b) {
+        return Arrays.compareUnsigned(a, b);
+    }
+
+    /** Index of the first key >= key. */
+    private static int lowerBound(List<byte[]> keys, byte[] key) {
+        int low = 0, high = keys.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compare(keys.get(mid), key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /** Index of the first key > key. */
+    private static int upperBound(List<byte[]> keys, byte[] key) {
+        int low = 0, high = keys.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compare(keys.get(mid), key) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private Node findLeaf(byte[] key) throws IOException {
+        Node node = load(rootPage);
+        while (!node.leaf) {
+            node = load(node.children.get(upperBound(node.keys, key)));
+        }
+        return node;
+    }
+
+    private static byte[] checkKey(byte[] key) {
+        // Oversized keys are truncated; callers re-check documents against the filter
+        return key.length > MAX_KEY_SIZE ? Arrays.copyOf(key, MAX_KEY_SIZE) : key;
+    }
+
+    // --- Operations ---
+
+    public synchronized byte[] get(byte[] key) throws IOException {
+        key = checkKey(key);
+        Node leaf = findLeaf(key);
+        int i = lowerBound(leaf.keys, key);
+        if (i < leaf.keys.size() && compare(leaf.keys.get(i), key) == 0) {
+            return leaf.values.get(i);
+        }
+        return null;
+    }
+
+    /**
+     * Inserts or replaces the value for a key.
+     */
+    public synchronized void put(byte[] key, byte[] value) throws IOException {
+        key = checkKey(key);
+        if (value.length > MAX_VALUE_SIZE) {
+            throw new IOException("Index value too large: " + value.length + " bytes");
+        }
+        markModified();
+        Split split = insert(load(rootPage), key, value);
+        if (split != null) {
+            Node root = allocate(false);
+            root.children.add(rootPage);
+            root.keys.add(split.separator());
+            root.children.add(split.rightPage());
+            rootPage = root.page;
+        }
+    }
+
+    private Split insert(Node node, byte[] key, byte[] value) throws IOException {
+        if (node.leaf) {
+            int i = lowerBound(node.keys, key);
+            if (i < node.keys.size() && compare(node.keys.get(i), key) == 0) {
+                node.values.set(i, value);
+            } else {
+                node.keys.add(i, key);
+                node.values.add(i, value);
+                entryCount++;
+            }
+            node.dirty = true;
+            return node.size() > PAGE_SIZE ? splitLeaf(node) : null;
+        }
+
+        int childIndex = upperBound(node.keys, key);
+        Split split = insert(load(node.children.get(childIndex)), key, value);
+        if (split == null) {
+            return null;
+        }
+        node.keys.add(childIndex, split.separator());
+        node.children.add(childIndex + 1, split.rightPage());
+        node.dirty = true;
+        return node.size() > PAGE_SIZE ? splitInternal(node) : null;
+    }
+
+    private int splitPoint(Node node) {
+        int half = node.size() / 2;
+        int size = NODE_HEADER;
+        for (int i = 0; i < node.keys.size() - 1; i++) {
+            size += 2 + node.keys.get(i).length + (node.leaf ? 2 + node.values.get(i).length : 4);
+            if (size >= half) {
+                return Math.max(1, i + 1);
+            }
+        }
+        return node.keys.size() / 2;
+    }
+
+    private Split splitLeaf(Node node) {
+        int mid = splitPoint(node);
+        Node right = allocate(true);
+        right.keys.addAll(node.keys.subList(mid, node.keys.size()));
+        right.values.addAll(node.values.subList(mid, node.values.size()));
+        node.keys.subList(mid, node.keys.size()).clear();
+        node.values.subList(mid, node.values.size()).clear();
+        right.next = node.next;
+        node.next = right.page;
+        return new Split(right.keys.get(0), right.page);
+    }
+
+    private Split splitInternal(Node node) {
+        int mid = Math.min(splitPoint(node), node.keys.size() - 1);
+        byte[] separator = node.keys.get(mid);
+        Node right = allocate(false);
+        right.keys.addAll(node.keys.subList(mid + 1, node.keys.size()));
+        right.children.addAll(node.children.subList(mid + 1, node.children.size()));
+        node.keys.subList(mid, node.keys.size()).clear();
+        node.children.subList(mid + 1, node.children.size()).clear();
+        return new Split(separator, right.page);
+    }
+
+    /**
+     * Removes a key; returns true if it was present.
+     */
+    public synchronized boolean remove(byte[] key) throws IOException {
+        key = checkKey(key);
+        Node leaf = findLeaf(key);
+        int i = lowerBound(leaf.keys, key);
+        if (i < leaf.keys.size() && compare(leaf.keys.get(i), key) == 0) {
+            markModified();
+            leaf.keys.remove(i);
+            leaf.values.remove(i);
+            leaf.dirty = true;
+            entryCount--;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Estimated number of entries whose keys sort before key (every entry
+     * when key is null), interpolated from the key's position in each node on
+     * its root-to-leaf path. Reads one page per level instead of the entries.
+     */
+    public synchronized long rank(byte[] key) throws IOException {
+        if (key == null) {
+            return entryCount;
+        }
+        key = checkKey(key);
+        double before = 0, width = 1;
+        Node node = load(rootPage);
+        while (!node.leaf) {
+            int child = upperBound(node.keys, key);
+            width /= node.children.size();
+            before += child * width;
+            node = load(node.children.get(child));
+        }
+        if (!node.keys.isEmpty()) {
+            before += width * lowerBound(node.keys, key) / node.keys.size();
+        }
+        return Math.round(before * entryCount);
+    }
+
+    /**
+     * Visits entries in key order starting at {@code from} (null = first key).
+     */
+    public synchronized void scan(byte[] from, boolean inclusive, EntryVisitor visitor) throws IOException {
+        Node leaf;
+        int i;
+        if (from == null) {
+            leaf = load(rootPage);
+            while (!leaf.leaf) {
+                leaf = load(leaf.children.get(0));
+            }
+            i = 0;
+        } else {
+            from = checkKey(from);
+            leaf = findLeaf(from);
+            i = inclusive ? lowerBound(leaf.keys, from) : upperBound(leaf.keys, from);
+        }
+
+        while (true) {
+            for (; i < leaf.keys.size(); i++) {
+                if (!visitor.visit(leaf.keys.get(i), leaf.values.get(i))) {
+                    return;
+                }
+            }
+            if (leaf.next == 0) {
+                return;
+            }
+            leaf = load(leaf.next);
+            i = 0;
+        }
+    }
+
+    /**
+     * Visits entries in reverse key order starting at {@code from} (null =
+     * last key). Leaves are only linked forward, so this walks down from the
+     * root and visits children right to left.
+     */
+    public synchronized void scanDescending(byte[] from, boolean inclusive, EntryVisitor visitor)
+            throws IOException {
+        descend(load(rootPage), from == null ? null : checkKey(from), inclusive, visitor);
+    }
+
+    private boolean descend(Node node, byte[] from, boolean inclusive, EntryVisitor visitor) throws IOException {
+        if (node.leaf) {
+            int i = node.keys.size() - 1;
+            if (from != null) {
+                i = (inclusive ? upperBound(node.keys, from) : lowerBound(node.keys, from)) - 1;
+            }
+            for (; i >= 0; i--) {
+                if (!visitor.visit(node.keys.get(i), node.values.get(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int child = from == null ? node.children.size() - 1 : upperBound(node.keys, from);
+        List<Integer> children = new ArrayList<>(node.children.subList(0, child + 1));
+        for (int c = children.size() - 1; c >= 0; c--) {
+            // Only the first child visited can contain keys past the start key
+            if (!descend(load(children.get(c)), c == child ? from : null, inclusive, visitor)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -4,40 +4,105 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
 
-import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Stream;
 
+/**
+ * Index engine backed by one persistent {@link BPlusTree} per index, stored in
+ * {@code <col>/_indexes/<fields>.bpt} next to the {@code _indexes.jdb}
+ * definitions. Trees that were checkpointed cleanly are opened as-is at
+ * startup; only missing, outdated or uncleanly closed trees are rebuilt from
+ * the collection data.
+ *
+ * Every entry key is the encoded field values followed by the document id, so
+ * the posting list of a value is one contiguous, id-sorted run of the tree and
+ * lookups cost O(log n + matches) for unique and non-unique indexes alike.
+ * Keys are typed and order-preserving ({@link IndexKeys}), and documents
+ * missing a field are indexed under null, so range filters and ORDER BY are
+ * answered by walking the tree.
+ */
 public class BTreeIndexEngine implements IndexEngine {
+    // Bump when the on-disk key/value layout changes so old trees get rebuilt
+    private static final int TREE_FORMAT = 3;
+    private static final String TREE_DIR = "_indexes";
+    private static final String TREE_EXT = ".bpt";
+    private static final long CHECKPOINT_INTERVAL_SECONDS = 30;
+    // Implicit id-ordered tree, built in the background on first use by scanIds
+    private static final List<String> PRIMARY = List.of("_id");
+    private static final String PRIMARY_KEY = "_id";
+
     private final String dataDirectory;
-    // CollectionKey (db.col) -> FieldKey ("field1,field2") -> ValueKey
-    // ("val1,val2") -> ID
-    private final Map<String, Map<String, Map<String, String>>> indexes = new ConcurrentHashMap<>();
+    // CollectionKey (db.col) -> FieldKey ("field1,field2") -> tree (encoded values + ID -> ID)
+    private final Map<String, Map<String, BPlusTree>> indexes = new ConcurrentHashMap<>();
+    // CollectionKey (db.col) -> fields of its sequential indexes, read from _indexes.jdb on first use
+    private final Map<String, List<String>> sequentialFields = new ConcurrentHashMap<>();
     private final ObjectMapper mapper = new ObjectMapper(new CBORFactory());
     private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ScheduledExecutorService checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "jettra-index-checkpoint");
+        t.setDaemon(true);
+        return t;
+    });
+    // Id trees still being filled by the builder: not scanned, and not checkpointed as clean
+    private final Set<BPlusTree> building = ConcurrentHashMap.newKeySet();
+    private final ExecutorService builder = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "jettra-index-build");
+        t.setDaemon(true);
+        return t;
+    });
+    private DocumentStore store;
 
     public BTreeIndexEngine(String dataDirectory) {
         this.dataDirectory = dataDirectory;
+        checkpointer.scheduleWithFixedDelay(this::checkpoint, CHECKPOINT_INTERVAL_SECONDS,
+                CHECKPOINT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "jettra-index-shutdown"));
+    }
+
+    public BTreeIndexEngine(String dataDirectory, DocumentStore store) {
+        this(dataDirectory);
+        this.store = store;
+    }
+
+    /**
+     * Store used to read documents when a tree has to be rebuilt. Without it
+     * documents are read as CBOR files (JettraBasicStore layout).
+     */
+    public void setStore(DocumentStore store) {
+        this.store = store;
     }
 
     @Override
     public void reload() {
+        lock.writeLock().lock();
+        try {
+            closeAll();
+            sequentialFields.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
         loadIndexes();
     }
 
     public void loadIndexes() {
-        // In a real implementation, we would scan all DBs/Cols and load _indexes.jdb
-        // For simplicity/parity with Go prototype, we can lazily load or scan here.
-        // Implementing basic scan:
+        // Open the persisted trees of every collection that declares indexes
         try {
             Path root = Paths.get(dataDirectory);
             if (!Files.exists(root))
@@ -61,45 +126,116 @@ public class BTreeIndexEngine implements IndexEngine {
         }
     }
 
-    private void loadCollectionIndexes(String db, String col) {
+    @Override
+    public void openIndexes(String database) throws Exception {
+        Path dbDir = Paths.get(dataDirectory, database);
+        if (!Files.isDirectory(dbDir))
+            return;
+
+        try (Stream<Path> cols = Files.list(dbDir)) {
+            for (Path col : cols.toList()) {
+                if (Files.isDirectory(col)) {
+                    loadCollectionIndexes(database, col.getFileName().toString());
+                }
+            }
+        }
+    }
+
+    @Override
+    public void closeIndexes(String database, String collection) throws Exception {
+        lock.writeLock().lock();
         try {
-            List<IndexDefinition> defs = getIndexes(db, col);
-            if (defs.isEmpty())
-                return;
+            String prefix = collection != null ? database + "." + collection : database + ".";
+            for (String colKey : new ArrayList<>(indexes.keySet())) {
+                boolean match = collection != null ? colKey.equals(prefix) : colKey.startsWith(prefix);
+                if (!match)
+                    continue;
+                Map<String, BPlusTree> colIdx = indexes.remove(colKey);
+                for (BPlusTree tree : colIdx.values()) {
+                    closeTree(tree);
+                }
+            }
+            sequentialFields.keySet().removeIf(colKey -> collection != null ? colKey.equals(prefix)
+                    : colKey.startsWith(prefix));
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean hasIndexes(String database, String collection) {
+        // Only secondary indexes need the previous document; the id tree does not
+        Map<String, BPlusTree> colIdx = indexes.get(database + "." + collection);
+        if (colIdx == null)
+            return false;
+        for (String fieldKey : colIdx.keySet()) {
+            if (!fieldKey.equals(PRIMARY_KEY))
+                return true;
+        }
+        return false;
+    }
 
-            String key = db + "." + col;
-            indexes.putIfAbsent(key, new ConcurrentHashMap<>());
+    private void loadCollectionIndexes(String db, String col) {
+        if (indexes.containsKey(db + "." + col))
+            return; // Already open
 
-            for (IndexDefinition def : defs) {
-                String fieldKey = String.join(",", def.fields());
-                indexes.get(key).putIfAbsent(fieldKey, new ConcurrentHashMap<>());
+        try {
+            List<List<String>> trees = new ArrayList<>();
+            for (IndexDefinition def : getIndexes(db, col)) {
+                trees.add(def.fields());
+            }
+            if (!trees.contains(PRIMARY) && Files.exists(treePath(db, col, PRIMARY))) {
+                trees.add(PRIMARY);
             }
 
-            // Rebuild index from data (Naive implementation matching Go)
-            Path colDir = Paths.get(dataDirectory, db, col);
-            try (Stream<Path> files = Files.list(colDir)) {
-                files.filter(p -> p.toString().endsWith(".jdb") && !p.endsWith("_indexes.jdb"))
-                        .forEach(p -> {
-                            try {
-                                Map<String, Object> doc = mapper.readValue(p.toFile(),
-                                        new TypeReference<Map<String, Object>>() {
-                                        });
-                                String id = (String) doc.get("_id");
-                                if (id == null)
-                                    id = (String) doc.get("id");
-
-                                if (id != null) {
-                                    updateIndex(db, col, id, doc);
-                                }
-                            } catch (Exception ignore) {
-                            }
-                        });
+            for (List<String> fields : trees) {
+                BPlusTree tree = openTree(db, col, fields);
+                if (!tree.isClean()) {
+                    rebuildIndex(db, col, fields);
+                }
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Marks every tree of a collection for rebuild on its next open. Called
+     * by log replay, which runs before any tree is open and rewrites
+     * documents without going through the index engine.
+     */
+    public static void markStale(String dataDirectory, String database, String collection) throws IOException {
+        Path dir = Paths.get(dataDirectory, database, collection, TREE_DIR);
+        if (!Files.isDirectory(dir))
+            return;
+        try (Stream<Path> trees = Files.list(dir)) {
+            for (Path tree : trees.toList()) {
+                if (tree.getFileName().toString().endsWith(TREE_EXT)) {
+                    BPlusTree.markUnclean(tree);
+                }
+            }
+        }
+    }
+
+    private Path treePath(String database, String collection, List<String> fields) {
+        String name = String.join(",", fields).replaceAll("[^A-Za-z0-9_.,-]", "_");
+        return Paths.get(dataDirectory, database, collection, TREE_DIR, name + TREE_EXT);
+    }
+
+    private BPlusTree openTree(String database, String collection, List<String> fields) throws Exception {
+        Map<String, BPlusTree> colIdx = indexes.computeIfAbsent(database + "." + collection,
+                k -> new ConcurrentHashMap<>());
+        String fieldKey = String.join(",", fields);
+        BPlusTree tree = colIdx.get(fieldKey);
+        if (tree == null) {
+            Path path = treePath(database, collection, fields);
+            Files.createDirectories(path.getParent());
+            tree = new BPlusTree(path, TREE_FORMAT);
+            colIdx.put(fieldKey, tree);
+        }
+        return tree;
+    }
+
     @Override
     public void createIndex(String database, String collection, List<String> fields, boolean unique, boolean sequential)
             throws Exception {
@@ -115,12 +251,7 @@ public class BTreeIndexEngine implements IndexEngine {
             current.add(new IndexDefinition(fields, unique, sequential));
             saveIndexes(database, collection, current);
 
-            // Update memory and rebuild
-            String key = database + "." + collection;
-            indexes.putIfAbsent(key, new ConcurrentHashMap<>());
-            String fieldKey = String.join(",", fields);
-            indexes.get(key).put(fieldKey, new ConcurrentHashMap<>());
-
+            openTree(database, collection, fields);
             rebuildIndex(database, collection, fields);
         } finally {
             lock.writeLock().unlock();
@@ -132,92 +263,340 @@ public class BTreeIndexEngine implements IndexEngine {
         Files.createDirectories(validPath);
         Path idxPath = validPath.resolve("_indexes.jdb");
         mapper.writeValue(idxPath.toFile(), defs);
+        sequentialFields.remove(database + "." + collection);
     }
 
     private void rebuildIndex(String database, String collection, List<String> fields) {
-        // Scan all docs and call updateIndex
-        // For efficiency, we just call loadCollectionIndexes logic again or similar?
-        // Let's just scan files.
         Path colDir = Paths.get(dataDirectory, database, collection);
         if (!Files.exists(colDir))
             return;
 
-        try (Stream<Path> files = Files.list(colDir)) {
-            files.filter(p -> p.toString().endsWith(".jdb") && !p.endsWith("_indexes.jdb"))
-                    .forEach(p -> {
-                        try {
-                            Map<String, Object> doc = mapper.readValue(p.toFile(),
-                                    new TypeReference<Map<String, Object>>() {
-                                    });
-                            String id = (String) doc.get("_id");
-                            if (id == null)
-                                id = (String) doc.get("id");
-
-                            if (id != null) {
-                                updateIndex(database, collection, id, doc);
-                            }
-                        } catch (Exception ignore) {
-                        }
-                    });
+        try {
+            BPlusTree tree = openTree(database, collection, fields);
+            tree.reset();
+            fillTree(tree, database, collection, fields);
+            tree.checkpoint();
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    private void fillTree(BPlusTree tree, String database, String collection, List<String> fields) throws Exception {
+        if (store != null) {
+            // Streamed, so building an index never holds the whole collection in memory
+            try (Stream<Map<String, Object>> docs = store.stream(database, collection, null)) {
+                for (Iterator<Map<String, Object>> it = docs.iterator(); it.hasNext();) {
+                    Map<String, Object> doc = it.next();
+                    indexDocument(tree, fields, documentId(doc), doc);
+                }
+            }
+        } else {
+            // Flat or hashed, whichever the collection uses (a fresh layout only reads the marker)
+            Path colDir = Paths.get(dataDirectory, database, collection);
+            try (Stream<Path> files = new DocumentLayout(false).documentFiles(colDir)) {
+                for (Path p : files.toList()) {
+                    try {
+                        Map<String, Object> doc = mapper.readValue(p.toFile(),
+                                new TypeReference<Map<String, Object>>() {
+                                });
+                        indexDocument(tree, fields, documentId(doc), doc);
+                    } catch (Exception ignore) {
+                    }
+                }
+            }
+        }
+    }
+
+    private static String documentId(Map<String, Object> doc) {
+        String id = (String) doc.get("_id");
+        return id != null ? id : (String) doc.get("id");
+    }
+
+    private static List<Object> indexValues(List<String> fields, Map<String, Object> document) {
+        List<Object> values = new ArrayList<>(fields.size());
+        for (String f : fields) {
+            values.add(document.get(f));
+        }
+        return values;
+    }
+
+    /**
+     * Entry key: encoded values (cut if too long, candidates are re-checked by
+     * callers) followed by the id component.
+     */
+    private static byte[] entryKey(byte[] valueKey, String id) {
+        byte[] idKey = IndexKeys.encode(List.of(id));
+        int max = Math.max(0, BPlusTree.MAX_KEY_SIZE - idKey.length);
+        byte[] prefix = valueKey.length > max ? Arrays.copyOf(valueKey, max) : valueKey;
+        byte[] key = Arrays.copyOf(prefix, prefix.length + idKey.length);
+        System.arraycopy(idKey, 0, key, prefix.length, idKey.length);
+        return key;
+    }
+
+    private static byte[] lookupKey(List<?> values) {
+        byte[] valueKey = IndexKeys.encode(values);
+        return valueKey.length > BPlusTree.MAX_KEY_SIZE / 2 ? Arrays.copyOf(valueKey, BPlusTree.MAX_KEY_SIZE / 2)
+                : valueKey;
+    }
+
+    private static void indexDocument(BPlusTree tree, List<String> fields, String id, Map<String, Object> document)
+            throws Exception {
+        if (id == null || document == null) {
+            return;
+        }
+        List<Object> values = fields.equals(PRIMARY) ? List.of(id) : indexValues(fields, document);
+        tree.put(entryKey(IndexKeys.encode(values), id), id.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void unindexDocument(BPlusTree tree, List<String> fields, String id, Map<String, Object> document)
+            throws Exception {
+        if (fields.equals(PRIMARY) && id != null) {
+            tree.remove(entryKey(IndexKeys.encode(List.of(id)), id));
+            return;
+        }
+        if (id == null || document == null) {
+            return;
+        }
+        List<Object> values = indexValues(fields, document);
+        tree.remove(entryKey(IndexKeys.encode(values), id));
+    }
+
     @Override
     public void updateIndex(String database, String collection, String id, Map<String, Object> document)
             throws Exception {
-        // No lock needed for concurrent map if careful, but to be safe with structure
-        // updates?
-        // We assume structure (indexes map keys) is stable after creation.
-
-        String key = database + "." + collection;
-        Map<String, Map<String, String>> colIdx = indexes.get(key);
+        Map<String, BPlusTree> colIdx = indexes.get(database + "." + collection);
         if (colIdx == null)
             return; // No indexes for this col
 
-        for (Map.Entry<String, Map<String, String>> entry : colIdx.entrySet()) {
-            String fieldKey = entry.getKey();
-            String[] fields = fieldKey.split(",");
-
-            List<String> values = new ArrayList<>();
-            boolean hasAll = true;
-            for (String f : fields) {
-                Object val = document.get(f);
-                if (val == null) {
-                    hasAll = false;
-                    break;
-                }
-                values.add(val.toString());
-            }
+        for (Map.Entry<String, BPlusTree> entry : colIdx.entrySet()) {
+            indexDocument(entry.getValue(), List.of(entry.getKey().split(",")), id, document);
+        }
+    }
 
-            if (hasAll) {
-                String valKey = String.join(",", values);
-                entry.getValue().put(valKey, id);
-            }
+    @Override
+    public void removeFromIndex(String database, String collection, String id, Map<String, Object> document)
+            throws Exception {
+        Map<String, BPlusTree> colIdx = indexes.get(database + "." + collection);
+        if (colIdx == null)
+            return;
+
+        for (Map.Entry<String, BPlusTree> entry : colIdx.entrySet()) {
+            unindexDocument(entry.getValue(), List.of(entry.getKey().split(",")), id, document);
         }
     }
 
     @Override
     public List<String> findWithIndex(String database, String collection, List<String> fields, List<String> values)
             throws Exception {
-        String key = database + "." + collection;
-        String fieldKey = String.join(",", fields);
-        String valKey = String.join(",", values);
+        return findWithIndex(database, collection, fields, values, 0);
+    }
 
-        Map<String, Map<String, String>> colIdx = indexes.get(key);
+    @Override
+    public List<String> findWithIndex(String database, String collection, List<String> fields, List<?> values,
+            int max) throws Exception {
+        Map<String, BPlusTree> colIdx = indexes.get(database + "." + collection);
         if (colIdx != null) {
-            Map<String, String> valMap = colIdx.get(fieldKey);
-            if (valMap != null) {
-                String id = valMap.get(valKey);
-                if (id != null) {
-                    return Collections.singletonList(id);
-                }
+            BPlusTree tree = colIdx.get(String.join(",", fields));
+            if (tree != null && values.size() <= fields.size()) {
+                return scanPostings(tree, lookupKey(values), max);
             }
         }
         return new ArrayList<>();
     }
 
+    @Override
+    public boolean scanIds(String database, String collection, boolean descending, byte[] after,
+            PositionVisitor visitor) throws Exception {
+        Map<String, BPlusTree> colIdx = indexes.get(database + "." + collection);
+        BPlusTree tree = colIdx != null ? colIdx.get(PRIMARY_KEY) : null;
+        if (tree == null) {
+            buildIdTree(database, collection);
+            return false;
+        }
+        if (building.contains(tree)) {
+            return false;
+        }
+        scanIndex(database, collection, PRIMARY, List.of(), null, descending, after, visitor);
+        return true;
+    }
+
+    /**
+     * Creates the collection's id tree and fills it on the builder thread,
+     * without the engine lock, so the scan holds up neither readers nor
+     * index updates. Writes meanwhile go into the tree as into any other.
+     * An id deleted after the scan read its document can be left behind;
+     * the id tree only serves scanIds, whose callers fetch every document
+     * and skip the missing ones.
+     */
+    private void buildIdTree(String database, String collection) throws Exception {
+        BPlusTree tree;
+        lock.writeLock().lock();
+        try {
+            Map<String, BPlusTree> colIdx = indexes.computeIfAbsent(database + "." + collection,
+                    k -> new ConcurrentHashMap<>());
+            if (colIdx.containsKey(PRIMARY_KEY) || !Files.exists(Paths.get(dataDirectory, database, collection))) {
+                return;
+            }
+            Path path = treePath(database, collection, PRIMARY);
+            Files.createDirectories(path.getParent());
+            tree = new BPlusTree(path, TREE_FORMAT);
+            // Emptied before writes can reach it, and listed before the scan starts
+            tree.reset();
+            building.add(tree);
+            colIdx.put(PRIMARY_KEY, tree);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        builder.execute(() -> {
+            try {
+                fillTree(tree, database, collection, PRIMARY);
+                building.remove(tree);
+                tree.checkpoint();
+            } catch (Exception e) {
+                System.err.println("BTreeIndexEngine: could not build the id tree of " + database + "."
+                        + collection + ": " + e.getMessage());
+                dropIdTree(database, collection, tree);
+            }
+        });
+    }
+
+    // A failed build is dropped, so the next scanIds starts another
+    private void dropIdTree(String database, String collection, BPlusTree tree) {
+        lock.writeLock().lock();
+        try {
+            Map<String, BPlusTree> colIdx = indexes.get(database + "." + collection);
+            if (colIdx != null) {
+                colIdx.remove(PRIMARY_KEY, tree);
+            }
+            closeTree(tree);
+        } catch (Exception e) {
+            System.err.println("Index close failed for " + tree.getFile() + ": " + e.getMessage());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void scanIndex(String database, String collection, List<String> fields, List<?> prefix,
+            IndexRange range, boolean descending, byte[] after, PositionVisitor visitor) throws Exception {
+        Map<String, BPlusTree> colIdx = indexes.get(database + "." + collection);
+        BPlusTree tree = colIdx != null ? colIdx.get(String.join(",", fields)) : null;
+        if (tree == null || prefix.size() > fields.size() || (range != null && prefix.size() == fields.size())) {
+            return;
+        }
+
+        byte[] prefixKey = lookupKey(prefix);
+        Object lower = range != null ? range.lower() : null;
+        Object upper = range != null ? range.upper() : null;
+        byte[] lowerKey = lower != null ? bound(prefix, lower) : null;
+        byte[] upperKey = upper != null ? bound(prefix, upper) : null;
+        // An open side is closed at the edge of the other bound's type
+        byte[] typeStart = range != null ? IndexKeys.typeStart(prefix, lower != null ? lower : upper) : null;
+        byte[] typeEnd = range != null ? IndexKeys.typeEnd(prefix, lower != null ? lower : upper) : null;
+        boolean lowerInclusive = range == null || range.lowerInclusive();
+        boolean upperInclusive = range == null || range.upperInclusive();
+
+        Exception[] failure = new Exception[1];
+        BPlusTree.EntryVisitor entries = (key, value) -> {
+            if (!IndexKeys.startsWith(key, prefixKey)) {
+                return false;
+            }
+            if (lowerKey != null && (BPlusTree.compare(key, lowerKey) < 0
+                    || (!lowerInclusive && IndexKeys.startsWith(key, lowerKey)))) {
+                return !descending; // Ascending: still before the range
+            }
+            if (upperKey != null && (upperInclusive
+                    ? BPlusTree.compare(key, upperKey) > 0 && !IndexKeys.startsWith(key, upperKey)
+                    : BPlusTree.compare(key, upperKey) >= 0)) {
+                return descending; // Descending: still after the range
+            }
+            if (typeStart != null && (BPlusTree.compare(key, typeStart) < 0 || BPlusTree.compare(key, typeEnd) >= 0)) {
+                return false;
+            }
+            try {
+                return visitor.visit(new String(value, StandardCharsets.UTF_8), key);
+            } catch (Exception e) {
+                failure[0] = e;
+                return false;
+            }
+        };
+
+        if (after != null) {
+            // Resume strictly past the last visited entry; the checks above still bound the walk
+            if (descending) {
+                tree.scanDescending(after, false, entries);
+            } else {
+                tree.scan(after, false, entries);
+            }
+        } else if (!descending) {
+            byte[] from = lowerKey != null ? lowerKey : typeStart != null ? typeStart : prefixKey;
+            tree.scan(from, true, entries);
+        } else {
+            // Keys extending a bound continue with a tag byte, so bound + 0xFF is past all of them
+            byte[] from = upperKey != null ? (upperInclusive ? after(upperKey) : upperKey)
+                    : typeEnd != null ? typeEnd : prefixKey.length > 0 ? after(prefixKey) : null;
+            tree.scanDescending(from, false, entries);
+        }
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+    }
+
+    @Override
+    public long estimateCount(String database, String collection, List<String> fields, List<?> prefix,
+            IndexRange range) throws Exception {
+        Map<String, BPlusTree> colIdx = indexes.get(database + "." + collection);
+        BPlusTree tree = colIdx != null ? colIdx.get(String.join(",", fields)) : null;
+        if (tree == null || prefix.size() > fields.size() || (range != null && prefix.size() == fields.size())) {
+            return 0;
+        }
+
+        // The same start keys as the ascending and descending walks of scanIndex
+        byte[] prefixKey = lookupKey(prefix);
+        Object lower = range != null ? range.lower() : null;
+        Object upper = range != null ? range.upper() : null;
+        byte[] from, to;
+        if (range == null) {
+            from = prefixKey;
+            to = prefixKey.length > 0 ? after(prefixKey) : null;
+        } else {
+            Object typed = lower != null ? lower : upper;
+            from = lower == null ? IndexKeys.typeStart(prefix, typed)
+                    : range.lowerInclusive() ? bound(prefix, lower) : after(bound(prefix, lower));
+            to = upper == null ? IndexKeys.typeEnd(prefix, typed)
+                    : range.upperInclusive() ? after(bound(prefix, upper)) : bound(prefix, upper);
+        }
+        return Math.max(0, tree.rank(to) - tree.rank(from));
+    }
+
+    private static byte[] bound(List<?> prefix, Object value) {
+        List<Object> values = new ArrayList<>(prefix);
+        values.add(value);
+        return IndexKeys.encode(values);
+    }
+
+    private static byte[] after(byte[] key) {
+        byte[] next = Arrays.copyOf(key, key.length + 1);
+        next[key.length] = (byte) 0xFF;
+        return next;
+    }
+
+    /**
+     * Collects the ids of the contiguous run of entries starting with prefix
+     * (up to max ids when max is greater than 0).
+     */
+    private static List<String> scanPostings(BPlusTree tree, byte[] prefix, int max) throws Exception {
+        List<String> ids = new ArrayList<>();
+        tree.scan(prefix, true, (key, value) -> {
+            if (!IndexKeys.startsWith(key, prefix)) {
+                return false;
+            }
+            ids.add(new String(value, StandardCharsets.UTF_8));
+            return max <= 0 || ids.size() < max;
+        });
+        return ids;
+    }
+
     @Override
     public List<IndexDefinition> getIndexes(String database, String collection) throws Exception {
         Path idxPath = Paths.get(dataDirectory, database, collection, "_indexes.jdb");
@@ -228,6 +607,20 @@ public class BTreeIndexEngine implements IndexEngine {
         });
     }
 
+    @Override
+    public List<String> getSequentialFields(String database, String collection) {
+        return sequentialFields.computeIfAbsent(database + "." + collection, k -> {
+            try {
+                return getIndexes(database, collection).stream()
+                        .filter(def -> def.sequential() && def.fields().size() == 1)
+                        .map(def -> def.fields().get(0)).toList();
+            } catch (Exception e) {
+                System.err.println("BTreeIndexEngine: could not read indexes of " + k + ": " + e.getMessage());
+                return List.of();
+            }
+        });
+    }
+
     @Override
     public void deleteIndex(String database, String collection, List<String> fields) throws Exception {
         lock.writeLock().lock();
@@ -248,11 +641,63 @@ public class BTreeIndexEngine implements IndexEngine {
             if (changed) {
                 saveIndexes(database, collection, next);
 
-                String key = database + "." + collection;
-                if (indexes.containsKey(key)) {
-                    indexes.get(key).remove(fieldKey);
+                Map<String, BPlusTree> colIdx = indexes.get(database + "." + collection);
+                BPlusTree tree = colIdx != null ? colIdx.remove(fieldKey) : null;
+                if (tree != null) {
+                    tree.close();
+                }
+                Files.deleteIfExists(treePath(database, collection, fields));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Flushes dirty pages of every open tree and marks them clean on disk.
+     */
+    public void checkpoint() {
+        for (Map<String, BPlusTree> colIdx : indexes.values()) {
+            for (BPlusTree tree : colIdx.values()) {
+                if (building.contains(tree)) {
+                    continue;
+                }
+                try {
+                    tree.checkpoint();
+                } catch (Exception e) {
+                    System.err.println("Index checkpoint failed for " + tree.getFile() + ": " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Closing checkpoints the tree; one closed half built is marked for rebuild on its next open
+    private void closeTree(BPlusTree tree) throws IOException {
+        tree.close();
+        if (building.remove(tree)) {
+            BPlusTree.markUnclean(tree.getFile());
+        }
+    }
+
+    private void closeAll() {
+        for (Map<String, BPlusTree> colIdx : indexes.values()) {
+            for (BPlusTree tree : colIdx.values()) {
+                try {
+                    closeTree(tree);
+                } catch (Exception e) {
+                    System.err.println("Index close failed for " + tree.getFile() + ": " + e.getMessage());
                 }
             }
+        }
+        indexes.clear();
+    }
+
+    public void close() {
+        checkpointer.shutdown();
+        builder.shutdownNow();
+        lock.writeLock().lock();
+        try {
+            closeAll();
         } finally {
             lock.writeLock().unlock();
         }
@@ -0,0 +1,265 @@
+package io.jettra.core.storage;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * In-memory catalog of databases, their engine, their collections and the
+ * number of live documents in each, so listing and counting never touch the
+ * filesystem.
+ *
+ * The stores report document additions and removals while holding the
+ * collection write lock (they alone know whether a save replaced an existing
+ * document); RouterDocumentStore reports structural changes. The catalog is
+ * written to {@code <dataDir>/_catalog.json} a few seconds after a change and
+ * marked clean on shutdown. A manifest that is missing, unreadable or was not
+ * closed cleanly (crash) is ignored and the catalog rebuilt from the stores.
+ */
+public class Catalog {
+    public static final String MANIFEST = "_catalog.json";
+    private static final int FORMAT = 1;
+    private static final long FLUSH_INTERVAL_SECONDS = 5;
+
+    private static final class DatabaseEntry {
+        volatile String engine;
+        final Map<String, AtomicLong> collections = new ConcurrentHashMap<>();
+    }
+
+    private final Path manifest;
+    private final Map<String, DatabaseEntry> databases = new ConcurrentHashMap<>();
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final AtomicBoolean dirty = new AtomicBoolean();
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "jettra-catalog-flush");
+        t.setDaemon(true);
+        return t;
+    });
+    private volatile boolean closed;
+
+    public Catalog(String dataDirectory) {
+        this.manifest = Paths.get(dataDirectory, MANIFEST);
+    }
+
+    /**
+     * Loads the manifest. Returns false when it cannot be trusted and the
+     * caller has to rebuild the catalog.
+     */
+    public boolean load() {
+        databases.clear();
+        if (!Files.exists(manifest)) {
+            return false;
+        }
+        try {
+            Map<String, Object> root = mapper.readValue(manifest.toFile(), new TypeReference<Map<String, Object>>() {
+            });
+            if (!Integer.valueOf(FORMAT).equals(root.get("format")) || !Boolean.TRUE.equals(root.get("clean"))) {
+                return false;
+            }
+            @SuppressWarnings("unchecked")
+            Map<String, Map<String, Object>> dbs = (Map<String, Map<String, Object>>) root.get("databases");
+            for (Map.Entry<String, Map<String, Object>> db : dbs.entrySet()) {
+                DatabaseEntry entry = database(db.getKey());
+                entry.engine = (String) db.getValue().get("engine");
+                @SuppressWarnings("unchecked")
+                Map<String, Number> cols = (Map<String, Number>) db.getValue().get("collections");
+                for (Map.Entry<String, Number> col : cols.entrySet()) {
+                    entry.collections.put(col.getKey(), new AtomicLong(col.getValue().longValue()));
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            System.err.println("Catalog: ignoring unreadable manifest " + manifest + ": " + e.getMessage());
+            databases.clear();
+            return false;
+        }
+    }
+
+    /**
+     * Marks the manifest as in use (not clean) and starts the background
+     * flush. Counts in a manifest left in this state after a crash may be
+     * behind, which is why load() rejects it.
+     */
+    public void open() {
+        flush(false);
+        flusher.scheduleWithFixedDelay(() -> {
+            if (dirty.getAndSet(false)) {
+                flush(false);
+            }
+        }, FLUSH_INTERVAL_SECONDS, FLUSH_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "jettra-catalog-shutdown"));
+    }
+
+    public void close() {
+        closed = true;
+        flusher.shutdown();
+        flush(true);
+    }
+
+    public void clear() {
+        databases.clear();
+        changed();
+    }
+
+    // --- Reads ---
+
+    public boolean containsDatabase(String database) {
+        return databases.containsKey(database);
+    }
+
+    public String getEngine(String database) {
+        DatabaseEntry entry = databases.get(database);
+        return entry == null ? null : entry.engine;
+    }
+
+    public long count(String database, String collection) {
+        DatabaseEntry entry = databases.get(database);
+        AtomicLong count = entry == null ? null : entry.collections.get(collection);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * Collection names of a database, or null when the database is unknown.
+     */
+    public List<String> getCollections(String database) {
+        DatabaseEntry entry = databases.get(database);
+        return entry == null ? null : new ArrayList<>(entry.collections.keySet());
+    }
+
+    public Map<String, List<String>> getStructure() {
+        Map<String, List<String>> structure = new TreeMap<>();
+        for (Map.Entry<String, DatabaseEntry> e : databases.entrySet()) {
+            List<String> cols = new ArrayList<>(e.getValue().collections.keySet());
+            cols.sort(null);
+            structure.put(e.getKey(), cols);
+        }
+        return structure;
+    }
+
+    // --- Updates ---
+
+    public void createDatabase(String database, String engine) {
+        DatabaseEntry entry = database(database);
+        if (engine != null) {
+            entry.engine = engine;
+        }
+        changed();
+    }
+
+    public void setEngine(String database, String engine) {
+        DatabaseEntry entry = databases.get(database);
+        if (entry != null && engine != null && !engine.equals(entry.engine)) {
+            entry.engine = engine;
+            changed();
+        }
+    }
+
+    public void renameDatabase(String oldName, String newName) {
+        DatabaseEntry entry = databases.remove(oldName);
+        if (entry != null) {
+            databases.put(newName, entry);
+        }
+        changed();
+    }
+
+    public void dropDatabase(String database) {
+        databases.remove(database);
+        changed();
+    }
+
+    /**
+     * Replaces what is known about a database, e.g. after a restore.
+     */
+    public void putDatabase(String database, String engine, Map<String, Long> counts) {
+        DatabaseEntry entry = new DatabaseEntry();
+        entry.engine = engine;
+        counts.forEach((col, count) -> entry.collections.put(col, new AtomicLong(count)));
+        databases.put(database, entry);
+        changed();
+    }
+
+    public void createCollection(String database, String collection) {
+        if (database(database).collections.putIfAbsent(collection, new AtomicLong()) == null) {
+            changed();
+        }
+    }
+
+    public void dropCollection(String database, String collection) {
+        DatabaseEntry entry = databases.get(database);
+        if (entry != null && entry.collections.remove(collection) != null) {
+            changed();
+        }
+    }
+
+    /**
+     * A document that did not exist before was stored.
+     */
+    public void documentAdded(String database, String collection) {
+        database(database).collections.computeIfAbsent(collection, k -> new AtomicLong()).incrementAndGet();
+        changed();
+    }
+
+    /**
+     * An existing document was deleted.
+     */
+    public void documentRemoved(String database, String collection) {
+        DatabaseEntry entry = databases.get(database);
+        AtomicLong count = entry == null ? null : entry.collections.get(collection);
+        if (count != null) {
+            count.updateAndGet(c -> Math.max(0, c - 1));
+            changed();
+        }
+    }
+
+    private DatabaseEntry database(String database) {
+        return databases.computeIfAbsent(database, k -> new DatabaseEntry());
+    }
+
+    private void changed() {
+        if (closed) {
+            // Shut down already: nothing will flush later, so don't leave a clean manifest behind
+            flush(false);
+        } else {
+            dirty.set(true);
+        }
+    }
+
+    private synchronized void flush(boolean clean) {
+        Map<String, Object> dbs = new TreeMap<>();
+        for (Map.Entry<String, DatabaseEntry> e : databases.entrySet()) {
+            Map<String, Object> db = new LinkedHashMap<>();
+            db.put("engine", e.getValue().engine);
+            Map<String, Long> cols = new TreeMap<>();
+            e.getValue().collections.forEach((col, count) -> cols.put(col, count.get()));
+            db.put("collections", cols);
+            dbs.put(e.getKey(), db);
+        }
+        Map<String, Object> root = new LinkedHashMap<>();
+        root.put("format", FORMAT);
+        root.put("clean", clean);
+        root.put("databases", dbs);
+        try {
+            Files.createDirectories(manifest.getParent());
+            Path tmp = manifest.resolveSibling(MANIFEST + ".tmp");
+            mapper.writeValue(tmp.toFile(), root);
+            Files.move(tmp, manifest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (Exception e) {
+            System.err.println("Catalog: failed to write " + manifest + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package io.jettra.core.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+
+/**
+ * Two-level locking for the file-based stores.
+ *
+ * Document operations take their database's lock shared and their
+ * collection's lock shared (reads) or exclusive (writes), so work on
+ * different collections proceeds in parallel. Structural operations on a
+ * database (create, rename, delete, restore) take the database lock
+ * exclusively and wait for every collection operation in it to finish.
+ *
+ * Locks are created on first use and kept for the life of the store:
+ * dropping one while another thread waits on it would let two threads hold
+ * "the" lock of the same collection.
+ */
+public final class CollectionLocks {
+
+    private final Map<String, ReentrantReadWriteLock> databases = new ConcurrentHashMap<>();
+    private final Map<String, ReentrantReadWriteLock> collections = new ConcurrentHashMap<>();
+
+    private ReentrantReadWriteLock database(String database) {
+        return databases.computeIfAbsent(database, k -> new ReentrantReadWriteLock());
+    }
+
+    private ReentrantReadWriteLock collection(String database, String collection) {
+        return collections.computeIfAbsent(database + "/" + collection, k -> new ReentrantReadWriteLock());
+    }
+
+    public void lockRead(String database, String collection) {
+        database(database).readLock().lock();
+        collection(database, collection).readLock().lock();
+    }
+
+    public void unlockRead(String database, String collection) {
+        collection(database, collection).readLock().unlock();
+        database(database).readLock().unlock();
+    }
+
+    public void lockWrite(String database, String collection) {
+        database(database).readLock().lock();
+        collection(database, collection).writeLock().lock();
+    }
+
+    public void unlockWrite(String database, String collection) {
+        collection(database, collection).writeLock().unlock();
+        database(database).readLock().unlock();
+    }
+
+    /**
+     * Write locks of several collections ({database, collection} pairs),
+     * taken in name order so two batches over the same collections cannot
+     * deadlock. Returns the pairs to pass to {@link #unlockWrite(List)}.
+     */
+    public List<String[]> lockWrite(Collection<String[]> pairs) {
+        List<String[]> sorted = new ArrayList<>(new TreeMap<>(pairs.stream()
+                .collect(Collectors.toMap(p -> p[0] + "/" + p[1], p -> p, (a, b) -> a))).values());
+        for (String[] pair : sorted) {
+            lockWrite(pair[0], pair[1]);
+        }
+        return sorted;
+    }
+
+    public void unlockWrite(List<String[]> locked) {
+        for (int i = locked.size() - 1; i >= 0; i--) {
+            unlockWrite(locked.get(i)[0], locked.get(i)[1]);
+        }
+    }
+
+    /**
+     * Keeps a database from being renamed, deleted or restored without
+     * blocking its collections.
+     */
+    public void lockDatabaseShared(String database) {
+        database(database).readLock().lock();
+    }
+
+    public void unlockDatabaseShared(String database) {
+        database(database).readLock().unlock();
+    }
+
+    /**
+     * Exclusive access to the given databases, acquired in name order so two
+     * renames in opposite directions cannot deadlock.
+     */
+    public void lockDatabases(String... names) {
+        String[] sorted = names.clone();
+        Arrays.sort(sorted);
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || !sorted[i].equals(sorted[i - 1])) {
+                database(sorted[i]).writeLock().lock();
+            }
+        }
+    }
+
+    public void unlockDatabases(String... names) {
+        String[] sorted = names.clone();
+        Arrays.sort(sorted);
+        for (int i = sorted.length - 1; i >= 0; i--) {
+            if (i == 0 || !sorted[i].equals(sorted[i - 1])) {
+                database(sorted[i]).writeLock().unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,495 @@
+package io.jettra.core.storage;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Byte-bounded document cache shared by the file-based stores.
+ *
+ * Keys are hashed to independent segments, each with its own lock, so
+ * concurrent reads of different documents rarely contend. Every segment runs
+ * a W-TinyLFU policy: new documents enter a small LRU window (1% of the
+ * segment's budget) and are only admitted to the main area, a segmented LRU
+ * (probation and protected), if a count-min sketch says they are used more
+ * often than the entry they would evict. One-off scans therefore cannot
+ * flush the hot set.
+ *
+ * Sizes are estimated from the document structure (see
+ * {@link #estimateSize(Object)}); documents larger than a segment's budget
+ * are never cached.
+ *
+ * An optional {@link OffHeapDocumentCache} acts as a second tier: documents
+ * evicted from the main area are kept there in serialized form, and misses
+ * here are looked up there before going to disk. With an on-heap budget of
+ * 0 every document goes straight to the off-heap tier.
+ *
+ * Documents are copied on the way in and on the way out, so neither the
+ * caller that saved a document nor one that read it can change the cached
+ * instance under other readers.
+ */
+public class DocumentCache {
+
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    private static final int SEGMENTS = 16;
+
+    private final long maxBytes;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final OffHeapDocumentCache offHeap;
+
+    public DocumentCache(long maxBytes) {
+        this(maxBytes, 0);
+    }
+
+    /**
+     * @param offHeapBytes budget of the off-heap tier, 0 to disable it
+     */
+    public DocumentCache(long maxBytes, long offHeapBytes) {
+        this.offHeap = offHeapBytes > 0 ? new OffHeapDocumentCache(offHeapBytes) : null;
+        this.maxBytes = Math.max(0, maxBytes);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(this.maxBytes / SEGMENTS);
+        }
+    }
+
+    public static String key(String database, String collection, String id) {
+        return database + "/" + collection + "/" + id;
+    }
+
+    public Map<String, Object> get(String key) {
+        Segment segment = segment(key);
+        Map<String, Object> value = segment.get(key);
+        if (value != null) {
+            hits.increment();
+            return copy(value);
+        }
+        misses.increment();
+        if (offHeap != null) {
+            value = offHeap.get(key);
+            if (value != null) {
+                // Still valid off-heap, so the copy there is kept
+                segment.put(key, value, estimateSize(value), false);
+                return copy(value);
+            }
+        }
+        return value;
+    }
+
+    public void put(String key, Map<String, Object> document) {
+        if (document == null) {
+            invalidate(key);
+            return;
+        }
+        Map<String, Object> copy = copy(document);
+        segment(key).put(key, copy, estimateSize(copy), true);
+    }
+
+    public void invalidate(String key) {
+        segment(key).remove(key);
+    }
+
+    /**
+     * Drops every entry whose key starts with prefix, e.g. "db/" or
+     * "db/collection/" when a database or collection is removed.
+     */
+    public void invalidatePrefix(String prefix) {
+        for (Segment segment : segments) {
+            segment.removeIf(prefix);
+        }
+        // After the on-heap tier, so nothing evicted meanwhile is left behind
+        if (offHeap != null) {
+            offHeap.invalidatePrefix(prefix);
+        }
+    }
+
+    public void clear() {
+        invalidatePrefix("");
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public Map<String, Object> stats() {
+        long entries = 0, bytes = 0;
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                entries += segment.data.size();
+                bytes += segment.windowBytes + segment.probationBytes + segment.protectedBytes;
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        long h = hits.sum(), m = misses.sum();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("hits", h);
+        stats.put("misses", m);
+        stats.put("hitRate", h + m == 0 ? 0.0 : Math.round(h * 1000.0 / (h + m)) / 10.0);
+        stats.put("evictions", evictions.sum());
+        stats.put("entries", entries);
+        stats.put("bytes", bytes);
+        stats.put("maxBytes", maxBytes);
+        if (offHeap != null) {
+            stats.put("offHeap", offHeap.stats());
+        }
+        return stats;
+    }
+
+    private Segment segment(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return segments[(h & 0x7fffffff) % SEGMENTS];
+    }
+
+    /**
+     * Deep copy of a document's maps, lists and byte arrays; other values
+     * (strings, numbers, booleans) are immutable and shared.
+     */
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> copy(Map<String, Object> document) {
+        return (Map<String, Object>) copyValue(document);
+    }
+
+    private static Object copyValue(Object value) {
+        if (value instanceof Map<?, ?> map) {
+            Map<String, Object> copy = new LinkedHashMap<>(Math.max(16, map.size() * 4 / 3 + 1));
+            map.forEach((k, v) -> copy.put(String.valueOf(k), copyValue(v)));
+            return copy;
+        }
+        if (value instanceof List<?> list) {
+            List<Object> copy = new ArrayList<>(list.size());
+            for (Object item : list) {
+                copy.add(copyValue(item));
+            }
+            return copy;
+        }
+        if (value instanceof byte[] bytes) {
+            return bytes.clone();
+        }
+        return value;
+    }
+
+    /**
+     * Rough heap footprint of a decoded document: object headers, boxed
+     * numbers, string contents and map/list entries.
+     */
+    public static long estimateSize(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof String s) {
+            return 40 + 2L * s.length();
+        }
+        if (value instanceof Number || value instanceof Boolean) {
+            return 16;
+        }
+        if (value instanceof byte[] bytes) {
+            return 16 + bytes.length;
+        }
+        if (value instanceof Map<?, ?> map) {
+            long size = 48;
+            for (Map.Entry<?, ?> e : map.entrySet()) {
+                size += 32 + estimateSize(e.getKey()) + estimateSize(e.getValue());
+            }
+            return size;
+        }
+        if (value instanceof Collection<?> list) {
+            long size = 40;
+            for (Object item : list) {
+                size += 8 + estimateSize(item);
+            }
+            return size;
+        }
+        return 32;
+    }
+
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    private static final class Node {
+        final String key;
+        Map<String, Object> value;
+        long weight;
+        int queue;
+        Node prev, next;
+
+        Node(String key) {
+            this.key = key;
+        }
+    }
+
+    // Intrusive LRU list: head is most recently used, tail is the next victim
+    private static final class Queue {
+        Node head, tail;
+
+        void addFirst(Node node) {
+            node.prev = null;
+            node.next = head;
+            if (head != null) {
+                head.prev = node;
+            }
+            head = node;
+            if (tail == null) {
+                tail = node;
+            }
+        }
+
+        void unlink(Node node) {
+            if (node.prev != null) {
+                node.prev.next = node.next;
+            } else {
+                head = node.next;
+            }
+            if (node.next != null) {
+                node.next.prev = node.prev;
+            } else {
+                tail = node.prev;
+            }
+            node.prev = node.next = null;
+        }
+    }
+
+    private final class Segment {
+        final ReentrantLock lock = new ReentrantLock();
+        final Map<String, Node> data = new HashMap<>();
+        final Queue[] queues = { new Queue(), new Queue(), new Queue() };
+        final FrequencySketch sketch;
+        final long maxBytes;
+        final long windowMax;
+        final long protectedMax;
+        long windowBytes, probationBytes, protectedBytes;
+
+        Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+            this.windowMax = Math.max(1, maxBytes / 100);
+            this.protectedMax = (maxBytes - windowMax) * 8 / 10;
+            // About one counter per 512 bytes of budget (a small document)
+            this.sketch = new FrequencySketch((int) Math.min(1 << 20, Math.max(256, maxBytes / 512)));
+        }
+
+        Map<String, Object> get(String key) {
+            lock.lock();
+            try {
+                sketch.increment(key.hashCode());
+                Node node = data.get(key);
+                if (node == null) {
+                    return null;
+                }
+                onAccess(node);
+                return node.value;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // changed: value is new data, so any off-heap copy is stale
+        void put(String key, Map<String, Object> value, long weight, boolean changed) {
+            lock.lock();
+            try {
+                sketch.increment(key.hashCode());
+                Node node = data.get(key);
+                if (offHeap != null && changed) {
+                    offHeap.invalidate(key);
+                }
+                if (weight > maxBytes) {
+                    if (node != null) {
+                        unlink(node);
+                        data.remove(key);
+                    }
+                    if (offHeap != null && changed) {
+                        offHeap.put(key, value);
+                    }
+                    return;
+                }
+                if (node != null) {
+                    addBytes(node.queue, weight - node.weight);
+                    node.value = value;
+                    node.weight = weight;
+                    onAccess(node);
+                } else {
+                    node = new Node(key);
+                    node.value = value;
+                    node.weight = weight;
+                    node.queue = WINDOW;
+                    queues[WINDOW].addFirst(node);
+                    windowBytes += weight;
+                    data.put(key, node);
+                }
+                evict();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void remove(String key) {
+            lock.lock();
+            try {
+                Node node = data.remove(key);
+                if (node != null) {
+                    unlink(node);
+                }
+                if (offHeap != null) {
+                    offHeap.invalidate(key);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void removeIf(String prefix) {
+            lock.lock();
+            try {
+                Iterator<Node> it = data.values().iterator();
+                while (it.hasNext()) {
+                    Node node = it.next();
+                    if (node.key.startsWith(prefix)) {
+                        unlink(node);
+                        it.remove();
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void onAccess(Node node) {
+            switch (node.queue) {
+                case WINDOW, PROTECTED -> {
+                    queues[node.queue].unlink(node);
+                    queues[node.queue].addFirst(node);
+                }
+                default -> {
+                    // Second hit in the main area: promote, demoting protected LRU entries if needed
+                    move(node, PROTECTED);
+                    while (protectedBytes > protectedMax && queues[PROTECTED].tail != node) {
+                        move(queues[PROTECTED].tail, PROBATION);
+                    }
+                }
+            }
+        }
+
+        private void evict() {
+            // Window overflow moves its LRU entries to probation as admission candidates
+            List<Node> candidates = new ArrayList<>();
+            while (windowBytes > windowMax && queues[WINDOW].tail != null) {
+                Node candidate = queues[WINDOW].tail;
+                move(candidate, PROBATION);
+                candidates.add(candidate);
+            }
+
+            int next = 0;
+            while (windowBytes + probationBytes + protectedBytes > maxBytes) {
+                Node victim = queues[PROBATION].tail != null ? queues[PROBATION].tail
+                        : queues[PROTECTED].tail != null ? queues[PROTECTED].tail : queues[WINDOW].tail;
+                while (next < candidates.size() && !data.containsKey(candidates.get(next).key)) {
+                    next++;
+                }
+                Node candidate = next < candidates.size() ? candidates.get(next) : null;
+                Node evicted = victim;
+                if (candidate != null && candidate != victim
+                        && sketch.frequency(candidate.key.hashCode()) <= sketch.frequency(victim.key.hashCode())) {
+                    // Not used more often than what it would replace: reject the newcomer
+                    evicted = candidate;
+                    next++;
+                }
+                unlink(evicted);
+                data.remove(evicted.key);
+                evictions.increment();
+                if (offHeap != null && evicted.queue != WINDOW && evicted != candidate) {
+                    // Demoted under the segment lock so an invalidation cannot be overtaken
+                    offHeap.put(evicted.key, evicted.value);
+                }
+            }
+        }
+
+        private void move(Node node, int queue) {
+            unlink(node);
+            node.queue = queue;
+            queues[queue].addFirst(node);
+            addBytes(queue, node.weight);
+        }
+
+        private void unlink(Node node) {
+            queues[node.queue].unlink(node);
+            addBytes(node.queue, -node.weight);
+        }
+
+        private void addBytes(int queue, long delta) {
+            switch (queue) {
+                case WINDOW -> windowBytes += delta;
+                case PROBATION -> probationBytes += delta;
+                default -> protectedBytes += delta;
+            }
+        }
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters (4 rows) with periodic halving, so
+     * the frequency of keys that stopped being read decays over time.
+     */
+    private static final class FrequencySketch {
+        private final byte[][] rows = new byte[4][];
+        private final int mask;
+        private final int sampleSize;
+        private int additions;
+
+        FrequencySketch(int width) {
+            int size = Integer.highestOneBit(Math.max(16, width - 1) << 1);
+            for (int i = 0; i < rows.length; i++) {
+                rows[i] = new byte[size];
+            }
+            this.mask = size - 1;
+            this.sampleSize = 10 * size;
+        }
+
+        void increment(int hash) {
+            boolean added = false;
+            for (int i = 0; i < rows.length; i++) {
+                int index = index(hash, i);
+                if (rows[i][index] < 15) {
+                    rows[i][index]++;
+                    added = true;
+                }
+            }
+            if (added && ++additions >= sampleSize) {
+                reset();
+            }
+        }
+
+        int frequency(int hash) {
+            int min = 15;
+            for (int i = 0; i < rows.length; i++) {
+                min = Math.min(min, rows[i][index(hash, i)]);
+            }
+            return min;
+        }
+
+        private int index(int hash, int row) {
+            int h = hash * (0x9E3779B9 + 2 * row + 1);
+            h ^= h >>> 15;
+            h *= 0x85EBCA6B;
+            h ^= h >>> 13;
+            return h & mask;
+        }
+
+        private void reset() {
+            for (byte[] row : rows) {
+                for (int j = 0; j < row.length; j++) {
+                    row[j] >>= 1;
+                }
+            }
+            additions /= 2;
+        }
+    }
+}
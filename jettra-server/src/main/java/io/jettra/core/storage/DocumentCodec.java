@@ -0,0 +1,146 @@
+package io.jettra.core.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compression codec for stored documents. The id is written in each
+ * document's header (see DocumentCompressor), so ids must never change;
+ * decoding does not depend on settings such as the level, only on the id
+ * and the preset dictionary the document was encoded with.
+ *
+ * Codecs work between ByteBuffers and return their output in a per-thread
+ * ScratchBuffer: a result is valid until the same thread calls the same
+ * codec again, and has to be copied to be kept longer.
+ */
+public interface DocumentCodec {
+
+    DocumentCodec RAW = new Raw();
+
+    byte id();
+
+    String name();
+
+    /**
+     * Encodes the buffer's remaining bytes, priming the codec with
+     * dictionary when it is not null.
+     */
+    ByteBuffer encode(ByteBuffer data, byte[] dictionary) throws IOException;
+
+    /**
+     * Decodes the buffer's remaining bytes back into rawLength bytes.
+     */
+    ByteBuffer decode(ByteBuffer data, int rawLength, byte[] dictionary) throws IOException;
+
+    static DocumentCodec deflate(int level) {
+        return new Deflate(level);
+    }
+
+    final class Raw implements DocumentCodec {
+        private Raw() {
+        }
+
+        @Override
+        public byte id() {
+            return 0;
+        }
+
+        @Override
+        public String name() {
+            return "raw";
+        }
+
+        @Override
+        public ByteBuffer encode(ByteBuffer data, byte[] dictionary) {
+            return data.slice();
+        }
+
+        @Override
+        public ByteBuffer decode(ByteBuffer data, int rawLength, byte[] dictionary) {
+            return data.slice();
+        }
+    }
+
+    /**
+     * zlib deflate; Deflaters, Inflaters and their output buffers are reused
+     * per thread instead of allocated (with their native state) for every
+     * document.
+     */
+    final class Deflate implements DocumentCodec {
+        private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+        private static final ThreadLocal<ScratchBuffer> INFLATED = ScratchBuffer.slot(8192);
+        private final int level;
+        private final ThreadLocal<Deflater> deflater;
+        private final ThreadLocal<ScratchBuffer> deflated = ScratchBuffer.slot(8192);
+
+        private Deflate(int level) {
+            this.level = level;
+            this.deflater = ThreadLocal.withInitial(() -> new Deflater(level));
+        }
+
+        @Override
+        public byte id() {
+            return 1;
+        }
+
+        @Override
+        public String name() {
+            return "deflate-" + level;
+        }
+
+        @Override
+        public ByteBuffer encode(ByteBuffer data, byte[] dictionary) {
+            Deflater def = deflater.get();
+            def.reset();
+            if (dictionary != null) {
+                def.setDictionary(dictionary);
+            }
+            def.setInput(data.slice());
+            def.finish();
+            ScratchBuffer out = ScratchBuffer.get(deflated);
+            while (!def.finished()) {
+                out.ensure(Math.max(64, data.remaining() / 2));
+                byte[] array = out.array();
+                out.advance(def.deflate(array, out.size(), array.length - out.size()));
+            }
+            return out.view();
+        }
+
+        @Override
+        public ByteBuffer decode(ByteBuffer data, int rawLength, byte[] dictionary) throws IOException {
+            Inflater inf = INFLATER.get();
+            inf.reset();
+            inf.setInput(data.slice());
+            ScratchBuffer out = ScratchBuffer.get(INFLATED);
+            out.ensure(rawLength);
+            byte[] raw = out.array();
+            try {
+                int n = 0;
+                while (n < rawLength) {
+                    int read = inf.inflate(raw, n, rawLength - n);
+                    if (read == 0) {
+                        if (inf.needsDictionary()) {
+                            if (dictionary == null) {
+                                throw new IOException("Document was compressed with a dictionary that is missing");
+                            }
+                            inf.setDictionary(dictionary);
+                        } else if (inf.finished() || inf.needsInput()) {
+                            break;
+                        }
+                    }
+                    n += read;
+                }
+                if (n != rawLength) {
+                    throw new IOException("Compressed document is truncated");
+                }
+            } catch (DataFormatException | IllegalArgumentException e) {
+                throw new IOException("Corrupted compressed document: " + e.getMessage());
+            }
+            out.advance(rawLength);
+            return out.view();
+        }
+    }
+}
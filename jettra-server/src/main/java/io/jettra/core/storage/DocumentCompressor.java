@@ -0,0 +1,370 @@
+package io.jettra.core.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Chooses how JettraEngineStore compresses the documents of one collection.
+ *
+ * Small documents barely compress on their own, so the compressor keeps a
+ * sample of recently written documents and, once it has enough, trains a
+ * preset dictionary from them (the most common content of the samples,
+ * placed where deflate finds it cheapest). Dictionaries are stored in
+ * {@code <col>/_dicts/<id>.zdict} and never rewritten; documents name the
+ * one they used, so a retrained dictionary only applies to new writes.
+ *
+ * The codec is picked adaptively: every PROBE_INTERVAL writes (and for the
+ * first WARMUP_PROBES writes, while the JIT settles) a document is encoded
+ * with all candidates, and their compression ratio and encode time per byte are
+ * tracked as moving averages. Writes use the candidate with the lowest
+ * cost, ratio plus CPU time priced at NANOS_PER_BYTE_SAVED per byte saved;
+ * incompressible collections therefore fall back to raw.
+ *
+ * File framing: {@code 00 00 <raw>} (unchanged from before), or
+ * {@code 00 <codec id> <dictionary id varint, 0 = none> <raw length varint> <data>}.
+ */
+public class DocumentCompressor {
+    public static final String DICTIONARY_DIR = "_dicts";
+    private static final String DICTIONARY_EXT = ".zdict";
+    static final int MAX_DICTIONARY_BYTES = 32 * 1024; // deflate window
+    static final int TRAIN_SAMPLES = 64;
+    static final int SAMPLE_EVERY = 16;
+    static final int MAX_SAMPLE_BYTES = 4096;
+    static final int PROBE_INTERVAL = 256;
+    static final int WARMUP_PROBES = 8;
+    static final long RETRAIN_AFTER = 100_000;
+    static final double NANOS_PER_BYTE_SAVED = 500.0;
+    private static final double ALPHA = 0.1;
+
+    private static final List<DocumentCodec> CANDIDATES = List.of(DocumentCodec.RAW,
+            DocumentCodec.deflate(java.util.zip.Deflater.BEST_SPEED),
+            DocumentCodec.deflate(6));
+    private static final Map<Byte, DocumentCodec> DECODERS = Map.of(DocumentCodec.RAW.id(), DocumentCodec.RAW,
+            CANDIDATES.get(1).id(), CANDIDATES.get(1));
+
+    private static final ThreadLocal<ScratchBuffer> FRAME = ScratchBuffer.slot(4096);
+
+    private static final class Measure {
+        double ratio = 1.0;
+        double nanosPerByte;
+        long probes;
+        long uses;
+    }
+
+    private final Path dictionaryDir;
+    private final Map<Integer, byte[]> dictionaries = new ConcurrentHashMap<>();
+    private final ArrayDeque<byte[]> samples = new ArrayDeque<>();
+    private final Map<DocumentCodec, Measure> measures = new LinkedHashMap<>();
+    private DocumentCodec current = CANDIDATES.get(1);
+    private volatile int dictionaryId;
+    private double trainedRatio;
+    private long writes;
+    private long writesSinceTraining;
+    private long bytesIn;
+    private long bytesOut;
+    private long encodeNanos;
+
+    public DocumentCompressor(Path collectionDir) throws IOException {
+        this.dictionaryDir = collectionDir.resolve(DICTIONARY_DIR);
+        for (DocumentCodec codec : CANDIDATES) {
+            measures.put(codec, new Measure());
+        }
+        if (Files.isDirectory(dictionaryDir)) {
+            try (var files = Files.list(dictionaryDir)) {
+                dictionaryId = files.map(p -> p.getFileName().toString())
+                        .filter(n -> n.endsWith(DICTIONARY_EXT))
+                        .mapToInt(n -> Integer.parseInt(n.substring(0, n.length() - DICTIONARY_EXT.length())))
+                        .max().orElse(0);
+            }
+        }
+    }
+
+    /**
+     * Compresses a serialized document (the buffer's remaining bytes) and
+     * frames it for storage. The result lives in a per-thread buffer, valid
+     * until the thread encodes again.
+     */
+    public synchronized ByteBuffer encode(ByteBuffer raw) throws IOException {
+        writes++;
+        writesSinceTraining++;
+        sample(raw);
+        byte[] dictionary = dictionaryId == 0 ? null : dictionary(dictionaryId);
+
+        DocumentCodec codec;
+        ByteBuffer encoded;
+        if (writes % PROBE_INTERVAL == 1 || measures.values().stream().anyMatch(m -> m.probes < WARMUP_PROBES)) {
+            // Each codec keeps its output in its own buffer, so all candidates' results stay valid here
+            Map<DocumentCodec, ByteBuffer> outputs = new java.util.HashMap<>();
+            for (DocumentCodec candidate : CANDIDATES) {
+                outputs.put(candidate, measure(candidate, raw, dictionary));
+            }
+            current = cheapest();
+            codec = current;
+            encoded = outputs.get(codec);
+        } else {
+            codec = current;
+            encoded = measure(codec, raw, dictionary);
+        }
+        measures.get(codec).uses++;
+        bytesIn += raw.remaining();
+
+        ByteBuffer framed = frame(codec, dictionary == null ? 0 : dictionaryId, raw.remaining(), encoded);
+        bytesOut += framed.remaining();
+        maybeRetrain();
+        return framed;
+    }
+
+    /**
+     * Frames a document without a compressor (no dictionary, default codec),
+     * for files outside a collection such as transaction ops.
+     */
+    public static ByteBuffer encodeStandalone(ByteBuffer raw) throws IOException {
+        DocumentCodec codec = CANDIDATES.get(1);
+        ByteBuffer encoded = codec.encode(raw, null);
+        if (encoded.remaining() + 4 >= raw.remaining()) {
+            return frame(DocumentCodec.RAW, 0, raw.remaining(), raw);
+        }
+        return frame(codec, 0, raw.remaining(), encoded);
+    }
+
+    private static ByteBuffer frame(DocumentCodec codec, int dictionaryId, int rawLength, ByteBuffer encoded) {
+        ScratchBuffer out = ScratchBuffer.get(FRAME);
+        out.write(0x00);
+        out.write(codec.id());
+        if (codec != DocumentCodec.RAW) {
+            out.writeVarInt(dictionaryId);
+            out.writeVarInt(rawLength);
+        }
+        out.write(encoded.array(), encoded.arrayOffset() + encoded.position(), encoded.remaining());
+        return out.view();
+    }
+
+    /**
+     * The serialized document inside a framed file (the buffer's remaining
+     * bytes, starting with 00). The compressor supplies dictionaries and may
+     * be null for documents that do not use one. A decompressed document
+     * lives in a per-thread buffer, valid until the thread decodes again.
+     */
+    public static ByteBuffer decode(ByteBuffer framed, DocumentCompressor compressor) throws IOException {
+        ByteBuffer header = framed.duplicate();
+        header.position(header.position() + 1);
+        byte codecId = header.get();
+        if (codecId == DocumentCodec.RAW.id()) {
+            return header.slice();
+        }
+        DocumentCodec codec = DECODERS.get(codecId);
+        if (codec == null) {
+            throw new IOException("Unknown document codec: " + codecId);
+        }
+        int id = JettraBinarySerialization.readVarInt(header);
+        int rawLength = JettraBinarySerialization.readVarInt(header);
+        if (rawLength < 0) {
+            throw new IOException("Invalid document length: " + rawLength);
+        }
+        byte[] dictionary = null;
+        if (id != 0) {
+            if (compressor == null) {
+                throw new IOException("Document uses compression dictionary " + id + " outside its collection");
+            }
+            dictionary = compressor.dictionary(id);
+        }
+        return codec.decode(header, rawLength, dictionary);
+    }
+
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("codec", current.name());
+        stats.put("dictionaryId", dictionaryId);
+        stats.put("dictionaryBytes", dictionaryId == 0 ? 0 : dictionaries.getOrDefault(dictionaryId, new byte[0]).length);
+        stats.put("documents", writes);
+        stats.put("bytesIn", bytesIn);
+        stats.put("bytesOut", bytesOut);
+        stats.put("ratio", bytesIn == 0 ? 1.0 : Math.round(bytesOut * 1000.0 / bytesIn) / 1000.0);
+        stats.put("encodeMicrosAvg", writes == 0 ? 0.0 : Math.round(encodeNanos / (double) writes / 10.0) / 100.0);
+        Map<String, Object> candidates = new LinkedHashMap<>();
+        for (Map.Entry<DocumentCodec, Measure> e : measures.entrySet()) {
+            Measure m = e.getValue();
+            candidates.put(e.getKey().name(), Map.of(
+                    "ratio", Math.round(m.ratio * 1000.0) / 1000.0,
+                    "nanosPerByte", Math.round(m.nanosPerByte * 10.0) / 10.0,
+                    "uses", m.uses));
+        }
+        stats.put("candidates", candidates);
+        return stats;
+    }
+
+    // Encodes and updates the codec's averages; probes count towards encodeNanos as they are paid for too
+    private ByteBuffer measure(DocumentCodec codec, ByteBuffer raw, byte[] dictionary) throws IOException {
+        long start = System.nanoTime();
+        ByteBuffer out = codec.encode(raw, codec == DocumentCodec.RAW ? null : dictionary);
+        long nanos = System.nanoTime() - start;
+        encodeNanos += nanos;
+        if (raw.remaining() > 0) {
+            Measure m = measures.get(codec);
+            double ratio = (double) out.remaining() / raw.remaining();
+            double perByte = (double) nanos / raw.remaining();
+            if (m.probes < WARMUP_PROBES) {
+                m.ratio = ratio;
+                m.nanosPerByte = perByte;
+            } else {
+                m.ratio += ALPHA * (ratio - m.ratio);
+                m.nanosPerByte += ALPHA * (perByte - m.nanosPerByte);
+            }
+            m.probes++;
+        }
+        return out;
+    }
+
+    private DocumentCodec cheapest() {
+        DocumentCodec best = current;
+        double bestCost = Double.MAX_VALUE;
+        for (Map.Entry<DocumentCodec, Measure> e : measures.entrySet()) {
+            Measure m = e.getValue();
+            double cost = m.ratio + m.nanosPerByte / NANOS_PER_BYTE_SAVED;
+            if (cost < bestCost) {
+                bestCost = cost;
+                best = e.getKey();
+            }
+        }
+        return best;
+    }
+
+    // Samples are copied out, the raw document is in the serializer's scratch buffer
+    private void sample(ByteBuffer raw) {
+        if (dictionaryId != 0 && writes % SAMPLE_EVERY != 0) {
+            return;
+        }
+        byte[] sample = new byte[Math.min(raw.remaining(), MAX_SAMPLE_BYTES)];
+        raw.get(raw.position(), sample);
+        samples.addLast(sample);
+        if (samples.size() > TRAIN_SAMPLES) {
+            samples.removeFirst();
+        }
+        if (dictionaryId == 0 && samples.size() >= TRAIN_SAMPLES) {
+            train();
+        }
+    }
+
+    // A dictionary that stopped fitting (the deflate ratio drifted 25% above what it was after
+    // training) is replaced by one trained on recent samples
+    private void maybeRetrain() {
+        Measure deflate = measures.get(CANDIDATES.get(1));
+        if (dictionaryId != 0 && trainedRatio == 0 && writesSinceTraining > PROBE_INTERVAL * 4L) {
+            trainedRatio = deflate.ratio;
+        }
+        if (trainedRatio > 0 && writesSinceTraining > RETRAIN_AFTER && deflate.ratio > trainedRatio * 1.25
+                && samples.size() >= TRAIN_SAMPLES) {
+            train();
+        }
+    }
+
+    private void train() {
+        byte[] dictionary = buildDictionary(samples);
+        if (dictionary.length < 64) {
+            return;
+        }
+        int id = dictionaryId + 1;
+        try {
+            Files.createDirectories(dictionaryDir);
+            Path file = dictionaryDir.resolve(id + DICTIONARY_EXT);
+            Path tmp = dictionaryDir.resolve(id + DICTIONARY_EXT + ".tmp");
+            Files.write(tmp, dictionary);
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            System.err.println("DocumentCompressor: could not store dictionary in " + dictionaryDir + ": "
+                    + e.getMessage());
+            return;
+        }
+        dictionaries.put(id, dictionary);
+        dictionaryId = id;
+        writesSinceTraining = 0;
+        trainedRatio = 0;
+        for (Measure m : measures.values()) {
+            m.probes = 0; // Ratios measured with the old dictionary no longer apply
+        }
+    }
+
+    /**
+     * Builds a preset dictionary from sample documents: 8-byte chunks are
+     * counted across samples and those found in at least two are kept,
+     * most frequent last (deflate references the end of the dictionary most
+     * cheaply), together with the text around them in the sample they came
+     * from, up to MAX_DICTIONARY_BYTES.
+     */
+    static byte[] buildDictionary(Iterable<byte[]> samples) {
+        final int k = 8;
+        Map<ByteBuffer, int[]> counts = new java.util.HashMap<>();
+        for (byte[] sample : samples) {
+            java.util.Set<ByteBuffer> seen = new java.util.HashSet<>();
+            for (int i = 0; i + k <= sample.length; i += 2) {
+                ByteBuffer chunk = ByteBuffer.wrap(sample, i, k).slice();
+                if (seen.add(chunk)) {
+                    counts.computeIfAbsent(chunk, c -> new int[1])[0]++;
+                }
+            }
+        }
+        List<Map.Entry<ByteBuffer, int[]>> common = counts.entrySet().stream()
+                .filter(e -> e.getValue()[0] >= 2)
+                .sorted((a, b) -> Integer.compare(b.getValue()[0], a.getValue()[0]))
+                .toList();
+
+        // Up to 32 bytes around each common chunk, most common first, skipping content already taken
+        List<byte[]> segments = new java.util.ArrayList<>();
+        java.util.Set<ByteBuffer> covered = new java.util.HashSet<>();
+        int total = 0;
+        for (Map.Entry<ByteBuffer, int[]> e : common) {
+            if (total >= MAX_DICTIONARY_BYTES) {
+                break;
+            }
+            if (covered.contains(e.getKey())) {
+                continue;
+            }
+            ByteBuffer chunk = e.getKey();
+            byte[] source = chunk.array();
+            int at = chunk.arrayOffset();
+            int from = Math.max(0, at - 12);
+            int to = Math.min(source.length, at + k + 12);
+            segments.add(java.util.Arrays.copyOfRange(source, from, to));
+            total += to - from;
+            for (int i = from; i + k <= to; i++) {
+                covered.add(ByteBuffer.wrap(source, i, k).slice());
+            }
+        }
+        // Least common first so the most common content ends up last
+        ByteArrayOutputStream dictionary = new ByteArrayOutputStream(Math.min(total, MAX_DICTIONARY_BYTES));
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            byte[] segment = segments.get(i);
+            if (dictionary.size() + segment.length <= MAX_DICTIONARY_BYTES) {
+                dictionary.write(segment, 0, segment.length);
+            }
+        }
+        return dictionary.toByteArray();
+    }
+
+    private byte[] dictionary(int id) throws IOException {
+        byte[] dictionary = dictionaries.get(id);
+        if (dictionary == null) {
+            Path file = dictionaryDir.resolve(id + DICTIONARY_EXT);
+            if (!Files.exists(file)) {
+                throw new IOException("Compression dictionary " + file + " is missing");
+            }
+            dictionary = Files.readAllBytes(file);
+            dictionaries.put(id, dictionary);
+        }
+        return dictionary;
+    }
+}
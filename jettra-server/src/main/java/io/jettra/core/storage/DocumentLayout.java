@@ -0,0 +1,289 @@
+package io.jettra.core.storage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+/**
+ * Where the file-per-document stores (JettraBasicStore, JettraEngineStore)
+ * keep a collection's document and version files.
+ *
+ * Flat layout (the original one): {@code <col>/<id>.jdb} and the version
+ * history in {@code <col>/_versions/<id>.jvh}. Hashed layout: two levels of
+ * 256 subdirectories chosen by a hash of the id, {@code <col>/3f/a0/<id>.jdb}
+ * and {@code <col>/_history/3f/a0/<id>.jvh}, so no directory grows past a few
+ * hundred entries per million documents. A hashed collection is marked by a
+ * {@code _layout} file. Older versions were kept as one file per version in
+ * {@link #versionDir}; VersionArchive folds those into the history file.
+ *
+ * With the hashed layout enabled, new collections are created hashed and
+ * existing flat collections are migrated the first time they are used
+ * (callers hold the collection write lock). Migration only moves files and
+ * writes the marker last, so an interrupted migration simply resumes.
+ * Hashed collections stay hashed even if the option is turned off again.
+ */
+public class DocumentLayout {
+    public static final String EXT = ".jdb";
+    public static final String HISTORY_EXT = ".jvh";
+    private static final String MARKER = "_layout";
+    private static final String HASHED = "hashed";
+    private static final String FLAT_VERSIONS = "_versions";
+    private static final String HASHED_VERSIONS = "_history";
+    private static final String INDEX_DEFINITIONS = "_indexes.jdb";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final boolean hashedByDefault;
+    // Collection directory -> hashed?; dropped when directories are moved or replaced
+    private final Map<Path, Boolean> layouts = new ConcurrentHashMap<>();
+
+    public DocumentLayout(boolean hashedByDefault) {
+        this.hashedByDefault = hashedByDefault;
+    }
+
+    public boolean isHashedByDefault() {
+        return hashedByDefault;
+    }
+
+    public boolean isHashed(Path collectionDir) {
+        Boolean hashed = layouts.get(collectionDir);
+        if (hashed == null) {
+            hashed = Files.exists(collectionDir.resolve(MARKER));
+            if (hashed || Files.isDirectory(collectionDir)) {
+                layouts.put(collectionDir, hashed);
+            }
+        }
+        return hashed;
+    }
+
+    /**
+     * True when an existing flat collection must be migrated before use.
+     */
+    public boolean needsMigration(Path collectionDir) {
+        return hashedByDefault && !isHashed(collectionDir) && Files.isDirectory(collectionDir);
+    }
+
+    /**
+     * Creates the collection directory if needed and brings it to the
+     * configured layout. Caller holds the collection write lock.
+     */
+    public void prepare(Path collectionDir) throws IOException {
+        Files.createDirectories(collectionDir);
+        if (needsMigration(collectionDir)) {
+            migrate(collectionDir);
+        }
+    }
+
+    public Path documentPath(Path collectionDir, String id) {
+        if (!isHashed(collectionDir)) {
+            return collectionDir.resolve(id + EXT);
+        }
+        int h = hash(id);
+        return collectionDir.resolve(shard(h)).resolve(shard(h >>> 8)).resolve(id + EXT);
+    }
+
+    public Path versionDir(Path collectionDir, String id) {
+        if (!isHashed(collectionDir)) {
+            return collectionDir.resolve(FLAT_VERSIONS).resolve(id);
+        }
+        int h = hash(id);
+        return collectionDir.resolve(HASHED_VERSIONS).resolve(shard(h)).resolve(shard(h >>> 8)).resolve(id);
+    }
+
+    /**
+     * Version history (see VersionArchive) of a document.
+     */
+    public Path historyFile(Path collectionDir, String id) {
+        Path dir = versionDir(collectionDir, id);
+        return dir.resolveSibling(id + HISTORY_EXT);
+    }
+
+    /**
+     * Lazily lists the version history files of a collection; close the stream.
+     */
+    public Stream<Path> historyFiles(Path collectionDir) throws IOException {
+        return historyEntries(collectionDir)
+                .filter(p -> p.getFileName().toString().endsWith(HISTORY_EXT) && Files.isRegularFile(p));
+    }
+
+    /**
+     * Lazily lists the per-version folders of the old format; close the stream.
+     */
+    public Stream<Path> legacyVersionDirs(Path collectionDir) throws IOException {
+        return historyEntries(collectionDir).filter(Files::isDirectory);
+    }
+
+    // Entries at the depth where version files and folders live: <root>/<entry> or <root>/aa/bb/<entry>
+    private Stream<Path> historyEntries(Path collectionDir) throws IOException {
+        boolean hashed = isHashed(collectionDir);
+        Path root = collectionDir.resolve(hashed ? HASHED_VERSIONS : FLAT_VERSIONS);
+        if (!Files.isDirectory(root)) {
+            return Stream.empty();
+        }
+        int depth = hashed ? 3 : 1;
+        return Files.walk(root, depth).filter(p -> !p.equals(root) && root.relativize(p).getNameCount() == depth);
+    }
+
+    public static String idOf(Path documentFile) {
+        String name = documentFile.getFileName().toString();
+        return name.substring(0, name.length() - EXT.length());
+    }
+
+    /**
+     * Lazily lists the document files of a collection; close the stream.
+     */
+    public Stream<Path> documentFiles(Path collectionDir) throws IOException {
+        if (!isHashed(collectionDir)) {
+            return Files.list(collectionDir).filter(DocumentLayout::isDocument);
+        }
+        return Files.list(collectionDir)
+                .filter(DocumentLayout::isShard)
+                .flatMap(DocumentLayout::listShard)
+                .filter(DocumentLayout::isShard)
+                .flatMap(DocumentLayout::listShard)
+                .filter(DocumentLayout::isDocument);
+    }
+
+    /**
+     * fsyncs the files of the given documents, then the directories holding
+     * them so creates and deletes are durable too. Missing files are skipped.
+     */
+    public void sync(Path collectionDir, Collection<String> ids) throws IOException {
+        Set<Path> dirs = new HashSet<>();
+        dirs.add(collectionDir);
+        for (String id : ids) {
+            Path file = documentPath(collectionDir, id);
+            dirs.add(file.getParent());
+            force(file);
+        }
+        for (Path dir : dirs) {
+            force(dir);
+        }
+    }
+
+    private static void force(Path path) throws IOException {
+        // A read-only handle is enough for fsync, and works for directories on Linux
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (java.nio.file.NoSuchFileException e) {
+            // Deleted meanwhile
+        } catch (IOException e) {
+            if (!Files.isDirectory(path)) {
+                throw e;
+            }
+            // Some platforms cannot open directories; their metadata is then left to the OS
+        }
+    }
+
+    /**
+     * Forgets the cached layout of every collection under dir, after it was
+     * renamed, deleted or restored.
+     */
+    public void forget(Path dir) {
+        layouts.keySet().removeIf(p -> p.startsWith(dir));
+    }
+
+    private void migrate(Path collectionDir) throws IOException {
+        System.out.println("DocumentLayout: migrating " + collectionDir + " to the hashed layout");
+        long moved = 0;
+        // Flat files are only ever at the top level, so a resumed migration finds just the rest
+        layouts.put(collectionDir, true);
+        try {
+            List<Path> files;
+            try (Stream<Path> s = Files.list(collectionDir).filter(DocumentLayout::isDocument)) {
+                files = s.toList();
+            }
+            for (Path file : files) {
+                Path target = documentPath(collectionDir, idOf(file));
+                Files.createDirectories(target.getParent());
+                Files.move(file, target, StandardCopyOption.REPLACE_EXISTING);
+                moved++;
+            }
+
+            Path flatVersions = collectionDir.resolve(FLAT_VERSIONS);
+            if (Files.isDirectory(flatVersions)) {
+                List<Path> versionDirs;
+                try (Stream<Path> s = Files.list(flatVersions)) {
+                    versionDirs = s.toList();
+                }
+                for (Path dir : versionDirs) {
+                    String name = dir.getFileName().toString();
+                    if (name.endsWith(HISTORY_EXT) && Files.isRegularFile(dir)) {
+                        Path target = historyFile(collectionDir, name.substring(0, name.length() - HISTORY_EXT.length()));
+                        Files.createDirectories(target.getParent());
+                        Files.move(dir, target, StandardCopyOption.REPLACE_EXISTING);
+                        continue;
+                    }
+                    Path target = versionDir(collectionDir, name);
+                    Files.createDirectories(target.getParent());
+                    if (Files.exists(target)) {
+                        mergeInto(dir, target);
+                    } else {
+                        Files.move(dir, target);
+                    }
+                }
+                Files.delete(flatVersions);
+            }
+
+            Files.writeString(collectionDir.resolve(MARKER), HASHED);
+        } catch (IOException | RuntimeException e) {
+            layouts.remove(collectionDir);
+            throw e;
+        }
+        System.out.println("DocumentLayout: migrated " + moved + " documents in " + collectionDir);
+    }
+
+    // Versions of an id split across both roots by an interrupted migration
+    private static void mergeInto(Path from, Path to) throws IOException {
+        try (Stream<Path> s = Files.list(from)) {
+            for (Path file : s.toList()) {
+                Files.move(file, to.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.delete(from);
+    }
+
+    private static boolean isDocument(Path p) {
+        String name = p.getFileName().toString();
+        return name.endsWith(EXT) && !name.equals(INDEX_DEFINITIONS) && Files.isRegularFile(p);
+    }
+
+    private static boolean isShard(Path p) {
+        String name = p.getFileName().toString();
+        return name.length() == 2 && Character.digit(name.charAt(0), 16) >= 0
+                && Character.digit(name.charAt(1), 16) >= 0 && Files.isDirectory(p);
+    }
+
+    private static Stream<Path> listShard(Path shard) {
+        try {
+            return Files.list(shard);
+        } catch (java.nio.file.NoSuchFileException e) {
+            return Stream.empty();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static int hash(String id) {
+        // String.hashCode is specified, so shard paths are stable across JVMs; mix so both levels vary
+        int h = id.hashCode();
+        h ^= h >>> 16;
+        h *= 0x45d9f3b;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static String shard(int bits) {
+        return new String(new char[] { HEX[(bits >>> 4) & 0xF], HEX[bits & 0xF] });
+    }
+}
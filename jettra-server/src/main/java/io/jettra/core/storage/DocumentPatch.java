@@ -0,0 +1,151 @@
+package io.jettra.core.storage;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Field-level update operators, applied to a stored document by the store
+ * instead of the client reading, changing and saving it whole.
+ *
+ * A patch maps operators to {field: argument} maps:
+ * <ul>
+ * <li>$set: sets the field to the argument</li>
+ * <li>$unset: removes the field (the argument is ignored)</li>
+ * <li>$inc: adds the numeric argument to the field, which starts at 0 when
+ * missing</li>
+ * <li>$push: appends the argument to the array field, which is created when
+ * missing; {"$each": [...]} appends several values</li>
+ * </ul>
+ * Fields are top-level fields, as in query filters. {@code _id} cannot be
+ * changed, and a field can only be named by one operator of a patch.
+ */
+public final class DocumentPatch {
+    public static final Set<String> OPERATORS = Set.of("$set", "$unset", "$inc", "$push");
+
+    private DocumentPatch() {
+    }
+
+    /**
+     * Checks the patch's shape, so a bad patch is refused before anything is
+     * read, logged or replicated.
+     */
+    public static void validate(Map<String, Object> patch) throws Exception {
+        if (patch == null || patch.isEmpty()) {
+            throw new Exception("Patch has no operators");
+        }
+        Set<String> fields = new HashSet<>();
+        for (Map.Entry<String, Object> e : patch.entrySet()) {
+            String operator = e.getKey();
+            if (!OPERATORS.contains(operator)) {
+                throw new Exception("Unknown patch operator " + operator + ", expected one of $set, $unset, $inc, $push");
+            }
+            if (!(e.getValue() instanceof Map<?, ?> arguments)) {
+                throw new Exception(operator + " takes an object of {field: value}");
+            }
+            for (Map.Entry<?, ?> argument : arguments.entrySet()) {
+                String field = String.valueOf(argument.getKey());
+                if (field.equals("_id")) {
+                    throw new Exception("_id cannot be patched");
+                }
+                if (!fields.add(field)) {
+                    throw new Exception("Field " + field + " is named by more than one patch operator");
+                }
+                if (operator.equals("$inc") && !(argument.getValue() instanceof Number)) {
+                    throw new Exception("$inc on " + field + " takes a number");
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a copy of document with the patch applied; document itself is
+     * not changed.
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> apply(Map<String, Object> document, Map<String, Object> patch)
+            throws Exception {
+        validate(patch);
+        Map<String, Object> result = (Map<String, Object>) copy(document);
+        for (Map.Entry<String, Object> e : patch.entrySet()) {
+            for (Map.Entry<String, Object> argument : ((Map<String, Object>) e.getValue()).entrySet()) {
+                String field = argument.getKey();
+                Object value = copy(argument.getValue());
+                switch (e.getKey()) {
+                    case "$set" -> result.put(field, value);
+                    case "$unset" -> result.remove(field);
+                    case "$inc" -> result.put(field, increment(field, result.get(field), (Number) value));
+                    case "$push" -> result.put(field, push(field, result.get(field), value));
+                    default -> throw new Exception("Unknown patch operator " + e.getKey());
+                }
+            }
+        }
+        return result;
+    }
+
+    private static Number increment(String field, Object current, Number by) throws Exception {
+        if (current == null) {
+            return by;
+        }
+        if (!(current instanceof Number number)) {
+            throw new Exception("$inc on " + field + ", which is not a number");
+        }
+        if (integral(number) && integral(by)) {
+            try {
+                long sum = Math.addExact(number.longValue(), by.longValue());
+                // Kept as the type the JSON parser reads the value back as
+                return sum == (int) sum ? (Number) (int) sum : (Number) sum;
+            } catch (ArithmeticException overflow) {
+                throw new Exception("$inc on " + field + " overflows a long");
+            }
+        }
+        if (number instanceof BigDecimal || by instanceof BigDecimal
+                || number instanceof java.math.BigInteger || by instanceof java.math.BigInteger) {
+            return new BigDecimal(number.toString()).add(new BigDecimal(by.toString()));
+        }
+        return number.doubleValue() + by.doubleValue();
+    }
+
+    private static boolean integral(Number n) {
+        return n instanceof Integer || n instanceof Long || n instanceof Short || n instanceof Byte;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Object> push(String field, Object current, Object value) throws Exception {
+        List<Object> list;
+        if (current == null) {
+            list = new ArrayList<>();
+        } else if (current instanceof List<?> existing) {
+            list = (List<Object>) existing;
+        } else {
+            throw new Exception("$push on " + field + ", which is not an array");
+        }
+        if (value instanceof Map<?, ?> each && each.size() == 1 && each.get("$each") instanceof List<?> values) {
+            list.addAll(values);
+        } else {
+            list.add(value);
+        }
+        return list;
+    }
+
+    // Deep copy of maps and lists, so the stored (possibly cached) document is never changed in place
+    private static Object copy(Object value) {
+        if (value instanceof Map<?, ?> map) {
+            Map<String, Object> copy = new LinkedHashMap<>();
+            map.forEach((k, v) -> copy.put(String.valueOf(k), copy(v)));
+            return copy;
+        }
+        if (value instanceof List<?> list) {
+            List<Object> copy = new ArrayList<>(list.size());
+            for (Object v : list) {
+                copy.add(copy(v));
+            }
+            return copy;
+        }
+        return value;
+    }
+}
@@ -2,18 +2,116 @@ package io.jettra.core.storage;
 
 import java.util.List;
 import java.util.Map;
+import java.util.stream.Stream;
 
 public interface DocumentStore {
     String save(String database, String collection, Map<String, Object> document) throws Exception;
 
+    /**
+     * Saves documents into one collection as a batch, holding its write lock
+     * once for all of them. Returns their ids in order.
+     */
+    default List<String> saveAll(String database, String collection, List<Map<String, Object>> documents)
+            throws Exception {
+        List<String> ids = new java.util.ArrayList<>(documents.size());
+        withWriteLocks(List.<String[]>of(new String[] { database, collection }), () -> {
+            for (Map<String, Object> document : documents) {
+                ids.add(save(database, collection, document));
+            }
+        });
+        return ids;
+    }
+
     Map<String, Object> findByID(String database, String collection, String id) throws Exception;
 
     List<Map<String, Object>> query(String database, String collection, Map<String, Object> filter, int limit,
             int offset)
             throws Exception;
 
+    /**
+     * Lazily reads the documents matching filter. Documents are loaded one at
+     * a time as the stream is consumed, so callers must close the stream
+     * (try-with-resources) to release the underlying directory or segment
+     * handles.
+     */
+    default Stream<Map<String, Object>> stream(String database, String collection, Map<String, Object> filter)
+            throws Exception {
+        return query(database, collection, filter, 0, 0).stream();
+    }
+
+    // Time travel: reads as of a past instant (epoch millis), served from the version history
+
+    /**
+     * The document as it was at asOf, or null if it did not exist then.
+     */
+    default Map<String, Object> findByID(String database, String collection, String id, long asOf)
+            throws Exception {
+        throw new Exception("Time-travel reads are not supported by " + getClass().getSimpleName());
+    }
+
+    /**
+     * Lazily reads the documents of a collection as they were at asOf that
+     * match filter; close the stream.
+     */
+    default Stream<Map<String, Object>> stream(String database, String collection, Map<String, Object> filter,
+            long asOf) throws Exception {
+        throw new Exception("Time-travel reads are not supported by " + getClass().getSimpleName());
+    }
+
+    default List<Map<String, Object>> query(String database, String collection, Map<String, Object> filter,
+            int limit, int offset, long asOf) throws Exception {
+        try (Stream<Map<String, Object>> docs = stream(database, collection, filter, asOf)) {
+            return docs.skip(Math.max(offset, 0)).limit(limit > 0 ? limit : Long.MAX_VALUE).toList();
+        }
+    }
+
     void update(String database, String collection, String id, Map<String, Object> document) throws Exception;
 
+    /**
+     * Applies field-level operators (see DocumentPatch) to a stored document
+     * under its collection's write lock, so concurrent patches of the same
+     * document do not lose each other's changes. Returns the document as
+     * saved; fails when it does not exist.
+     */
+    default Map<String, Object> patch(String database, String collection, String id, Map<String, Object> patch)
+            throws Exception {
+        return patch(database, collection, id, patch, null);
+    }
+
+    /**
+     * Called with the patched document while its collection is still
+     * locked, so the patches of a document reach it (e.g. replication) in
+     * the order they were applied.
+     */
+    @FunctionalInterface
+    interface PatchListener {
+        void patched(Map<String, Object> document) throws Exception;
+    }
+
+    /**
+     * As patch, calling listener (if not null) with the saved document
+     * before the collection is unlocked.
+     */
+    default Map<String, Object> patch(String database, String collection, String id, Map<String, Object> patch,
+            PatchListener listener) throws Exception {
+        DocumentPatch.validate(patch);
+        List<Map<String, Object>> patched = new java.util.ArrayList<>(1);
+        withWriteLocks(List.<String[]>of(new String[] { database, collection }), () -> {
+            Map<String, Object> current = findByID(database, collection, id);
+            if (current == null) {
+                throw new Exception("Document not found: " + id);
+            }
+            Map<String, Object> document = DocumentPatch.apply(current, patch);
+            document.put("_id", id);
+            save(database, collection, document);
+            if (listener != null) {
+                listener.patched(document);
+            }
+            patched.add(document);
+        });
+        return patched.get(0);
+    }
+
     void delete(String database, String collection, String id) throws Exception;
 
     int count(String database, String collection) throws Exception;
@@ -38,12 +136,31 @@ public interface DocumentStore {
     Map<String, Object> getVersionContent(String database, String collection, String id, String version)
             throws Exception;
 
+    /**
+     * How many versions of a collection's documents are kept, see VersionArchive.
+     */
+    default VersionArchive.Retention getRetention(String database, String collection) throws Exception {
+        return VersionArchive.Retention.NONE;
+    }
+
+    default void setRetention(String database, String collection, VersionArchive.Retention retention)
+            throws Exception {
+        throw new Exception("Version retention is not supported by " + getClass().getSimpleName());
+    }
+
     // Metadata/Engine Info
     String getDatabaseEngine(String database) throws Exception;
 
     default void reload() throws Exception {
     }
 
+    /**
+     * Forces the given documents (and their directory entries) to disk, so
+     * the write-ahead log records covering them can be dropped.
+     */
+    default void sync(String database, String collection, java.util.Collection<String> ids) throws Exception {
+    }
+
     long getNextSequence(String database, String collection, String field) throws Exception;
 
     void createCollection(String database, String collection) throws Exception;
@@ -62,4 +179,19 @@ public interface DocumentStore {
     void saveTx(String database, String collection, Map<String, Object> document, String txID) throws Exception;
 
     void deleteTx(String database, String collection, String id, String txID) throws Exception;
+
+    /**
+     * Runs work holding the write locks of every given collection
+     * ({database, collection} pairs), so a committed transaction is applied
+     * with one lock acquisition per collection and readers never see part of
+     * it. Writes made by work on this store re-enter the locks.
+     */
+    default void withWriteLocks(java.util.Collection<String[]> collections, LockedWork work) throws Exception {
+        work.run();
+    }
+
+    @FunctionalInterface
+    interface LockedWork {
+        void run() throws Exception;
+    }
 }
@@ -0,0 +1,123 @@
+package io.jettra.core.storage;
+
+import java.util.Map;
+
+/**
+ * Filter semantics shared by the stores and the query planner.
+ *
+ * A filter maps a field to either a plain value (equality) or an operator
+ * map such as {@code {"$gt": 10, "$lte": 20}}. Supported operators are
+ * $eq, $ne, $gt, $gte, $lt and $lte. Range operators only match values of
+ * the same kind (numbers with numbers, strings with strings, booleans with
+ * booleans).
+ */
+public final class FilterMatcher {
+
+    public static final String GT = "$gt";
+    public static final String GTE = "$gte";
+    public static final String LT = "$lt";
+    public static final String LTE = "$lte";
+    public static final String EQ = "$eq";
+    public static final String NE = "$ne";
+
+    private FilterMatcher() {
+    }
+
+    public static boolean matches(Map<String, Object> document, Map<String, Object> filter) {
+        if (filter == null || filter.isEmpty()) {
+            return true;
+        }
+        for (Map.Entry<String, Object> entry : filter.entrySet()) {
+            if (!matchesField(document.get(entry.getKey()), entry.getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * True when condition is an operator map ($gt, $lt, ...) rather than a
+     * value to compare for equality.
+     */
+    public static boolean isOperator(Object condition) {
+        if (!(condition instanceof Map<?, ?> map) || map.isEmpty()) {
+            return false;
+        }
+        for (Object key : map.keySet()) {
+            if (!(key instanceof String s) || !s.startsWith("$")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matchesField(Object value, Object condition) {
+        if (!isOperator(condition)) {
+            return valuesEqual(condition, value);
+        }
+        for (Map.Entry<?, ?> op : ((Map<?, ?>) condition).entrySet()) {
+            Object operand = op.getValue();
+            boolean ok = switch ((String) op.getKey()) {
+                case EQ -> valuesEqual(operand, value);
+                case NE -> !valuesEqual(operand, value);
+                case GT -> comparable(value, operand) && compareValues(value, operand) > 0;
+                case GTE -> comparable(value, operand) && compareValues(value, operand) >= 0;
+                case LT -> comparable(value, operand) && compareValues(value, operand) < 0;
+                case LTE -> comparable(value, operand) && compareValues(value, operand) <= 0;
+                default -> throw new IllegalArgumentException("Unsupported filter operator: " + op.getKey());
+            };
+            if (!ok) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Equality as used by filters: numbers compare by value regardless of
+     * their boxed type, everything else with equals.
+     */
+    public static boolean valuesEqual(Object expected, Object actual) {
+        if (expected instanceof Number a && actual instanceof Number b) {
+            return Double.compare(a.doubleValue(), b.doubleValue()) == 0;
+        }
+        return expected == null ? actual == null : expected.equals(actual);
+    }
+
+    public static boolean comparable(Object a, Object b) {
+        return (a instanceof Number && b instanceof Number)
+                || (a instanceof String && b instanceof String)
+                || (a instanceof Boolean && b instanceof Boolean);
+    }
+
+    /**
+     * Total order used for sorting: null < booleans < numbers < strings and
+     * other values (by string form), matching the index key order.
+     */
+    public static int compareValues(Object a, Object b) {
+        int rank = Integer.compare(rank(a), rank(b));
+        if (rank != 0) {
+            return rank;
+        }
+        if (a == null) {
+            return 0;
+        }
+        if (a instanceof Number x && b instanceof Number y) {
+            return Double.compare(x.doubleValue(), y.doubleValue());
+        }
+        if (a instanceof Boolean x && b instanceof Boolean y) {
+            return Boolean.compare(x, y);
+        }
+        return String.valueOf(a).compareTo(String.valueOf(b));
+    }
+
+    private static int rank(Object value) {
+        if (value == null)
+            return 0;
+        if (value instanceof Boolean)
+            return 1;
+        if (value instanceof Number)
+            return 2;
+        return 3;
+    }
+}
@@ -9,15 +9,118 @@ public interface IndexEngine {
 
     void updateIndex(String database, String collection, String id, Map<String, Object> document) throws Exception;
 
+    /**
+     * Removes the entries of a stored document from every index of its
+     * collection (used on delete, and before re-indexing an update).
+     */
+    void removeFromIndex(String database, String collection, String id, Map<String, Object> document)
+            throws Exception;
+
+    default void updateIndex(String database, String collection, String id, Map<String, Object> oldDocument,
+            Map<String, Object> newDocument) throws Exception {
+        if (oldDocument != null) {
+            removeFromIndex(database, collection, id, oldDocument);
+        }
+        updateIndex(database, collection, id, newDocument);
+    }
+
+    default boolean hasIndexes(String database, String collection) {
+        return true;
+    }
+
+    /**
+     * Releases the open index files of a database (or of one collection when
+     * collection is not null) before they are moved or deleted on disk.
+     */
+    default void closeIndexes(String database, String collection) throws Exception {
+    }
+
+    /**
+     * Opens the indexes of a database whose files were moved or restored.
+     */
+    default void openIndexes(String database) throws Exception {
+    }
+
     List<String> findWithIndex(String database, String collection, List<String> fields, List<String> values)
             throws Exception;
 
+    /**
+     * Ids whose leading index values equal the given values. values may be a
+     * prefix of the index fields (composite index prefix lookup); at most max
+     * ids are returned when max is greater than 0.
+     */
+    List<String> findWithIndex(String database, String collection, List<String> fields, List<?> values, int max)
+            throws Exception;
+
+    /**
+     * Walks the ids of an index in key order (or reverse order): the leading
+     * fields must equal prefix, and the next field must fall in range when
+     * range is not null. The visitor returns false to stop the walk.
+     */
+    default void scanIndex(String database, String collection, List<String> fields, List<?> prefix,
+            IndexRange range, boolean descending, IdVisitor visitor) throws Exception {
+        scanIndex(database, collection, fields, prefix, range, descending, null,
+                (id, position) -> visitor.visit(id));
+    }
+
+    /**
+     * Same walk, resumed strictly after position (an opaque entry position
+     * handed to a previous visitor) when position is not null.
+     */
+    void scanIndex(String database, String collection, List<String> fields, List<?> prefix, IndexRange range,
+            boolean descending, byte[] after, PositionVisitor visitor) throws Exception;
+
+    /**
+     * Estimated number of entries the same walk would visit, computed without
+     * reading them, or -1 when the engine cannot tell.
+     */
+    default long estimateCount(String database, String collection, List<String> fields, List<?> prefix,
+            IndexRange range) throws Exception {
+        return -1;
+    }
+
+    /**
+     * Walks every document id of a collection in id order, resumed after
+     * position when it is not null. Returns false, having visited nothing,
+     * while the collection's id tree is not built yet.
+     */
+    boolean scanIds(String database, String collection, boolean descending, byte[] after, PositionVisitor visitor)
+            throws Exception;
+
     List<IndexDefinition> getIndexes(String database, String collection) throws Exception;
 
+    /**
+     * Fields of the collection's single-field sequential indexes: a document
+     * saved without one of them gets the next value of its sequence.
+     */
+    default List<String> getSequentialFields(String database, String collection) {
+        return List.of();
+    }
+
     void deleteIndex(String database, String collection, List<String> fields) throws Exception;
 
     void reload() throws Exception;
 
+    @FunctionalInterface
+    interface IdVisitor {
+        boolean visit(String id) throws Exception;
+    }
+
+    /**
+     * Visitor that also receives the entry position, usable to resume a walk.
+     */
+    @FunctionalInterface
+    interface PositionVisitor {
+        boolean visit(String id, byte[] position) throws Exception;
+    }
+
+    /**
+     * Bounds on one index field; a null bound is open. An open side still
+     * stays within the type (number, string, ...) of the other bound.
+     */
+    record IndexRange(Object lower, boolean lowerInclusive, Object upper, boolean upperInclusive) {
+    }
+
     record IndexDefinition(List<String> fields, boolean unique, boolean sequential) {
     }
 }
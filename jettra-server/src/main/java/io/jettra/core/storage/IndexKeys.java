@@ -0,0 +1,102 @@
+package io.jettra.core.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Binary encoding of index keys for {@link BPlusTree}.
+ *
+ * Each field value is written as one self-delimiting, typed component, so the
+ * key of a composite index starts with the key of any of its field prefixes
+ * and unsigned byte order matches value order: null < booleans < numbers
+ * (numerically, as sortable doubles) < strings. Other values are indexed by
+ * their string form.
+ */
+public final class IndexKeys {
+    private static final byte NULL = 0x01;
+    private static final byte BOOLEAN = 0x02;
+    private static final byte NUMBER = 0x03;
+    private static final byte STRING = 0x04;
+    private static final byte TERMINATOR = 0x00;
+    private static final byte ESCAPE = (byte) 0xFF;
+
+    private IndexKeys() {
+    }
+
+    public static byte[] encode(List<?> values) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (Object value : values) {
+            writeComponent(out, value);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Encoded prefix followed by the type tag of value: the first possible key
+     * of that type after the prefix.
+     */
+    public static byte[] typeStart(List<?> prefix, Object value) {
+        byte[] key = encode(prefix);
+        key = Arrays.copyOf(key, key.length + 1);
+        key[key.length - 1] = tag(value);
+        return key;
+    }
+
+    /**
+     * Exclusive upper bound of all keys of value's type after the prefix.
+     */
+    public static byte[] typeEnd(List<?> prefix, Object value) {
+        byte[] key = typeStart(prefix, value);
+        key[key.length - 1]++;
+        return key;
+    }
+
+    public static boolean startsWith(byte[] key, byte[] prefix) {
+        return key.length >= prefix.length
+                && Arrays.equals(key, 0, prefix.length, prefix, 0, prefix.length);
+    }
+
+    private static byte tag(Object value) {
+        if (value == null)
+            return NULL;
+        if (value instanceof Boolean)
+            return BOOLEAN;
+        if (value instanceof Number)
+            return NUMBER;
+        return STRING;
+    }
+
+    private static void writeComponent(ByteArrayOutputStream out, Object value) {
+        byte tag = tag(value);
+        out.write(tag);
+        switch (tag) {
+            case NULL -> {
+            }
+            case BOOLEAN -> out.write((Boolean) value ? 1 : 0);
+            case NUMBER -> {
+                double number = ((Number) value).doubleValue();
+                long bits = Double.doubleToLongBits(number == 0.0 ? 0.0 : number);
+                // Flip so negative numbers sort before positive ones, big-endian
+                bits = bits < 0 ? ~bits : bits ^ Long.MIN_VALUE;
+                for (int shift = 56; shift >= 0; shift -= 8) {
+                    out.write((int) (bits >>> shift));
+                }
+            }
+            default -> {
+                writeEscaped(out, String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+                out.write(TERMINATOR);
+            }
+        }
+    }
+
+    private static void writeEscaped(ByteArrayOutputStream out, byte[] bytes) {
+        for (byte b : bytes) {
+            out.write(b);
+            if (b == TERMINATOR) {
+                out.write(ESCAPE);
+            }
+        }
+    }
+}
@@ -12,8 +12,6 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Stream;
 
 import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
@@ -21,13 +19,47 @@ import io.jettra.core.validation.Validator;
 
 public class JettraBasicStore implements DocumentStore {
     private final String dataDirectory;
-    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final CollectionLocks locks;
     // Use CBOR Factory for binary storage
     private final ObjectMapper mapper = new ObjectMapper(new CBORFactory());
     private Validator validator;
+    private Catalog catalog;
+    private final DocumentCache cache;
+    private final DocumentLayout layout;
+    private final VersionArchive archive;
+    private final VersionArchive.DocumentReader versionReader;
 
     public JettraBasicStore(String dataDirectory) throws Exception {
+        this(dataDirectory, new DocumentCache(DocumentCache.DEFAULT_MAX_BYTES));
+    }
+
+    public JettraBasicStore(String dataDirectory, DocumentCache cache) throws Exception {
+        this(dataDirectory, cache, new DocumentLayout(false));
+    }
+
+    public JettraBasicStore(String dataDirectory, DocumentCache cache, DocumentLayout layout) throws Exception {
+        this(dataDirectory, cache, layout, new VersionArchive(dataDirectory, layout));
+    }
+
+    public JettraBasicStore(String dataDirectory, DocumentCache cache, DocumentLayout layout, VersionArchive archive)
+            throws Exception {
+        this(dataDirectory, cache, layout, archive, new CollectionLocks());
+    }
+
+    /**
+     * @param locks shared with the other stores of the same data directory,
+     *              so a database-level operation run through one store
+     *              waits for writers in all of them
+     */
+    public JettraBasicStore(String dataDirectory, DocumentCache cache, DocumentLayout layout, VersionArchive archive,
+            CollectionLocks locks) throws Exception {
         this.dataDirectory = dataDirectory;
+        this.locks = locks;
+        this.cache = cache;
+        this.layout = layout;
+        this.archive = archive;
+        this.versionReader = file -> mapper.readValue(file.toFile(), new TypeReference<Map<String, Object>>() {
+        });
         Files.createDirectories(Paths.get(dataDirectory));
     }
 
@@ -35,9 +67,50 @@ public class JettraBasicStore implements DocumentStore {
         this.validator = validator;
     }
 
+    /**
+     * Catalog told about documents added and removed, see RouterDocumentStore.
+     */
+    public void setCatalog(Catalog catalog) {
+        this.catalog = catalog;
+    }
+
+    /**
+     * Collection directory, migrated first if the hashed layout is enabled and
+     * it is still flat. Call before taking the collection's read lock.
+     */
+    private Path collectionDir(String database, String collection) throws Exception {
+        Path dir = Paths.get(dataDirectory, database, collection);
+        if (layout.needsMigration(dir)) {
+            locks.lockWrite(database, collection);
+            try {
+                prepare(dir);
+            } finally {
+                locks.unlockWrite(database, collection);
+            }
+        }
+        return dir;
+    }
+
+    /**
+     * layout.prepare, after letting the archiver finish with the old paths.
+     */
+    private void prepare(Path dir) throws Exception {
+        if (layout.needsMigration(dir)) {
+            archive.flush();
+        }
+        layout.prepare(dir);
+    }
+
+    /**
+     * Queues the versions a crash left unarchived in a database.
+     */
+    void resumeVersions(String database) throws Exception {
+        archive.resume(Paths.get(dataDirectory, database), versionReader);
+    }
+
     @Override
     public String save(String database, String collection, Map<String, Object> document) throws Exception {
-        lock.writeLock().lock();
+        locks.lockWrite(database, collection);
         try {
             if (validator != null) {
                 validator.validate(database, collection, document);
@@ -54,38 +127,52 @@ public class JettraBasicStore implements DocumentStore {
             }
 
             Path collectionDir = Paths.get(dataDirectory, database, collection);
-            Files.createDirectories(collectionDir);
+            prepare(collectionDir);
 
-            Path filePath = collectionDir.resolve(id + ".jdb");
+            Path filePath = layout.documentPath(collectionDir, id);
+            Files.createDirectories(filePath.getParent());
             
             // Versioning: if exists, backup
-            if (Files.exists(filePath)) {
-                createVersion(database, collection, id);
+            boolean exists = Files.exists(filePath);
+            if (exists) {
+                archive.archive(collectionDir, id, filePath, false, versionReader);
             }
             
             // Write Map as CBOR
             mapper.writeValue(filePath.toFile(), document);
+            cache.put(DocumentCache.key(database, collection, id), document);
+            if (!exists && catalog != null) {
+                catalog.documentAdded(database, collection);
+            }
             System.out.println("DEBUG: JettraBasicStore saved " + filePath + " ID: " + id);
 
             return id;
         } finally {
-            lock.writeLock().unlock();
+            locks.unlockWrite(database, collection);
         }
     }
 
     @Override
     public Map<String, Object> findByID(String database, String collection, String id) throws Exception {
-        lock.readLock().lock();
+        Path collectionDir = collectionDir(database, collection);
+        locks.lockRead(database, collection);
         try {
-            Path filePath = Paths.get(dataDirectory, database, collection, id + ".jdb");
+            String cacheKey = DocumentCache.key(database, collection, id);
+            Map<String, Object> cached = cache.get(cacheKey);
+            if (cached != null) {
+                return cached;
+            }
+            Path filePath = layout.documentPath(collectionDir, id);
             if (!Files.exists(filePath)) {
                 return null;
             }
             // Read CBOR to Map
-            return mapper.readValue(filePath.toFile(), new TypeReference<Map<String, Object>>() {
+            Map<String, Object> doc = mapper.readValue(filePath.toFile(), new TypeReference<Map<String, Object>>() {
             });
+            cache.put(cacheKey, doc);
+            return doc;
         } finally {
-            lock.readLock().unlock();
+            locks.unlockRead(database, collection);
         }
     }
 
@@ -93,16 +180,16 @@ public class JettraBasicStore implements DocumentStore {
     public List<Map<String, Object>> query(String database, String collection, Map<String, Object> filter, int limit,
             int offset)
             throws Exception {
-        lock.readLock().lock();
+        Path collectionDir = collectionDir(database, collection);
+        locks.lockRead(database, collection);
         try {
-            Path collectionDir = Paths.get(dataDirectory, database, collection);
             if (!Files.exists(collectionDir)) {
                 return new ArrayList<>();
             }
 
             List<Map<String, Object>> results = new ArrayList<>();
-            try (Stream<Path> paths = Files.list(collectionDir)) {
-                List<Path> files = paths.filter(p -> p.toString().endsWith(".jdb") && !p.getFileName().toString().equals("_indexes.jdb")).toList();
+            try (Stream<Path> paths = layout.documentFiles(collectionDir)) {
+                List<Path> files = paths.toList();
                 System.out.println("DEBUG: JettraBasicStore query " + database + "/" + collection + " found " + files.size() + " files.");
 
                 int skipped = 0;
@@ -118,21 +205,14 @@ public class JettraBasicStore implements DocumentStore {
 
                     Map<String, Object> docMap = null;
                     try {
-                        docMap = mapper.readValue(file.toFile(), new TypeReference<Map<String, Object>>() {});
+                        docMap = read(database, collection, file);
                     } catch (Exception e) {
                         System.err.println("Skipping corrupted file: " + file.getFileName() + " - " + e.getMessage());
                         continue;
                     }
 
                     if (filter != null && !filter.isEmpty()) {
-                        boolean match = true;
-                        for (Map.Entry<String, Object> entry : filter.entrySet()) {
-                            if (!entry.getValue().equals(docMap.get(entry.getKey()))) {
-                                match = false;
-                                break;
-                            }
-                        }
-                        if (!match)
+                        if (!FilterMatcher.matches(docMap, filter))
                             continue;
 
                         // If matched, apply offset logic here
@@ -150,10 +230,51 @@ public class JettraBasicStore implements DocumentStore {
             }
             return results;
         } finally {
-            lock.readLock().unlock();
+            locks.unlockRead(database, collection);
+        }
+    }
+
+    @Override
+    public Stream<Map<String, Object>> stream(String database, String collection, Map<String, Object> filter)
+            throws Exception {
+        Path collectionDir = collectionDir(database, collection);
+        if (!Files.exists(collectionDir)) {
+            return Stream.empty();
+        }
+
+        // Lazy listing; each file is read under the collection's read lock only while it is decoded
+        return layout.documentFiles(collectionDir)
+                .map(file -> streamRead(database, collection, file))
+                .filter(docMap -> docMap != null && FilterMatcher.matches(docMap, filter));
+    }
+
+    private Map<String, Object> streamRead(String database, String collection, Path file) {
+        locks.lockRead(database, collection);
+        try {
+            if (!Files.exists(file)) {
+                return null;
+            }
+            return read(database, collection, file);
+        } catch (Exception e) {
+            System.err.println("Skipping corrupted file: " + file.getFileName() + " - " + e.getMessage());
+            return null;
+        } finally {
+            locks.unlockRead(database, collection);
         }
     }
 
+    // Document of a listed collection file, through the cache
+    private Map<String, Object> read(String database, String collection, Path file) throws Exception {
+        String id = DocumentLayout.idOf(file);
+        String cacheKey = DocumentCache.key(database, collection, id);
+        Map<String, Object> docMap = cache.get(cacheKey);
+        if (docMap == null) {
+            docMap = mapper.readValue(file.toFile(), new TypeReference<Map<String, Object>>() {});
+            cache.put(cacheKey, docMap);
+        }
+        return docMap;
+    }
+
     @Override
     public void update(String database, String collection, String id, Map<String, Object> document) throws Exception {
         save(database, collection, document);
@@ -161,7 +282,8 @@ public class JettraBasicStore implements DocumentStore {
 
     @Override
     public void delete(String database, String collection, String id) throws Exception {
-        lock.writeLock().lock();
+        Path collectionDir = collectionDir(database, collection);
+        locks.lockWrite(database, collection);
         try {
             if (validator != null) {
                 // We need the document to validate deletion
@@ -172,66 +294,67 @@ public class JettraBasicStore implements DocumentStore {
                      validator.validateDelete(database, collection, document);
                 }
             }
-            Path filePath = Paths.get(dataDirectory, database, collection, id + ".jdb");
+            Path filePath = layout.documentPath(collectionDir, id);
             if (Files.exists(filePath)) {
-                createVersion(database, collection, id);
-                Files.delete(filePath);
+                // Moving the file to the archive is the delete
+                archive.archive(collectionDir, id, filePath, true, versionReader);
+                cache.invalidate(DocumentCache.key(database, collection, id));
+                if (catalog != null) {
+                    catalog.documentRemoved(database, collection);
+                }
             }
         } finally {
-            lock.writeLock().unlock();
+            locks.unlockWrite(database, collection);
         }
     }
 
     @Override
     public int count(String database, String collection) throws Exception {
-        lock.readLock().lock();
+        Path collectionDir = collectionDir(database, collection);
+        locks.lockRead(database, collection);
         try {
-            Path collectionDir = Paths.get(dataDirectory, database, collection);
             if (!Files.exists(collectionDir))
                 return 0;
-            try (Stream<Path> paths = Files.list(collectionDir)) {
-                return (int) paths.filter(p -> p.toString().endsWith(".jdb")).count();
+            try (Stream<Path> paths = layout.documentFiles(collectionDir)) {
+                return (int) paths.count();
             }
         } finally {
-            lock.readLock().unlock();
+            locks.unlockRead(database, collection);
         }
     }
 
     @Override
     public Map<String, List<String>> getDatabaseStructure() throws Exception {
-        lock.readLock().lock();
-        try {
-            Map<String, List<String>> structure = new HashMap<>();
-            Path root = Paths.get(dataDirectory);
-            if (!Files.exists(root))
-                return structure;
-
-            try (Stream<Path> dbs = Files.list(root)) {
-                for (Path db : dbs.toList()) {
-                    if (Files.isDirectory(db)) {
-                        String dbName = db.getFileName().toString();
-                        List<String> cols = new ArrayList<>();
-                        try (Stream<Path> collections = Files.list(db)) {
-                            for (Path col : collections.toList()) {
-                                if (Files.isDirectory(col)) {
-                                    cols.add(col.getFileName().toString());
-                                }
+        Map<String, List<String>> structure = new HashMap<>();
+        Path root = Paths.get(dataDirectory);
+        if (!Files.exists(root))
+            return structure;
+
+        try (Stream<Path> dbs = Files.list(root)) {
+            for (Path db : dbs.toList()) {
+                if (Files.isDirectory(db)) {
+                    String dbName = db.getFileName().toString();
+                    List<String> cols = new ArrayList<>();
+                    try (Stream<Path> collections = Files.list(db)) {
+                        for (Path col : collections.toList()) {
+                            if (Files.isDirectory(col)) {
+                                cols.add(col.getFileName().toString());
                             }
                         }
-                        structure.put(dbName, cols);
+                    } catch (java.nio.file.NoSuchFileException e) {
+                        continue; // Deleted or renamed while listing; not locked here
                     }
+                    structure.put(dbName, cols);
                 }
             }
-            return structure;
-        } finally {
-            lock.readLock().unlock();
         }
+        return structure;
     }
 
     // Implement dummy methods for the rest of the interface for now
     @Override
     public void createDatabase(String name, String engine) throws Exception {
-        lock.writeLock().lock();
+        locks.lockDatabases(name);
         try {
             Path dbDir = Paths.get(dataDirectory, name);
             Files.createDirectories(dbDir);
@@ -244,27 +367,35 @@ public class JettraBasicStore implements DocumentStore {
             save(name, "_engine", config);
 
         } finally {
-            lock.writeLock().unlock();
+            locks.unlockDatabases(name);
         }
     }
 
     @Override
     public void renameDatabase(String oldName, String newName) throws Exception {
-        lock.writeLock().lock();
+        archive.flush();
+        locks.lockDatabases(oldName, newName);
         try {
             Path oldDir = Paths.get(dataDirectory, oldName);
             Path newDir = Paths.get(dataDirectory, newName);
             if (Files.exists(oldDir)) {
                 Files.move(oldDir, newDir);
             }
+            layout.forget(oldDir);
+            archive.forget(oldDir);
+            layout.forget(newDir);
+            archive.forget(newDir);
+            cache.invalidatePrefix(oldName + "/");
+            cache.invalidatePrefix(newName + "/");
         } finally {
-            lock.writeLock().unlock();
+            locks.unlockDatabases(oldName, newName);
         }
     }
 
     @Override
     public void deleteDatabase(String name) throws Exception {
-        lock.writeLock().lock();
+        archive.flush();
+        locks.lockDatabases(name);
         try {
             Path dir = Paths.get(dataDirectory, name);
             if (Files.exists(dir)) {
@@ -274,14 +405,17 @@ public class JettraBasicStore implements DocumentStore {
                         .forEach(File::delete);
                 }
             }
+            layout.forget(dir);
+            archive.forget(dir);
+            cache.invalidatePrefix(name + "/");
         } finally {
-            lock.writeLock().unlock();
+            locks.unlockDatabases(name);
         }
     }
 
     @Override
     public String backupDatabase(String database) throws Exception {
-        lock.readLock().lock();
+        locks.lockDatabaseShared(database);
         try {
             Path dbDir = Paths.get(dataDirectory, database);
             if (!Files.exists(dbDir)) {
@@ -296,29 +430,49 @@ public class JettraBasicStore implements DocumentStore {
             Path zipPath = backupsDir.resolve(zipName);
 
             try (java.util.zip.ZipOutputStream zos = new java.util.zip.ZipOutputStream(Files.newOutputStream(zipPath))) {
-                try (Stream<Path> walk = Files.walk(dbDir)) {
-                    walk.filter(path -> !Files.isDirectory(path))
-                        .forEach(path -> {
-                            java.util.zip.ZipEntry zipEntry = new java.util.zip.ZipEntry(dbDir.relativize(path).toString());
-                            try {
-                                zos.putNextEntry(zipEntry);
-                                Files.copy(path, zos);
-                                zos.closeEntry();
-                            } catch (Exception e) {
-                                System.err.println("Failed to zip file: " + path);
-                            }
-                        });
+                // One collection at a time: only writers of the collection being copied wait
+                try (Stream<Path> entries = Files.list(dbDir)) {
+                    for (Path entry : entries.toList()) {
+                        if (!Files.isDirectory(entry)) {
+                            zipFiles(zos, dbDir, entry);
+                            continue;
+                        }
+                        String collection = entry.getFileName().toString();
+                        locks.lockRead(database, collection);
+                        try {
+                            zipFiles(zos, dbDir, entry);
+                        } finally {
+                            locks.unlockRead(database, collection);
+                        }
+                    }
                 }
             }
             return zipName;
         } finally {
-            lock.readLock().unlock();
+            locks.unlockDatabaseShared(database);
+        }
+    }
+
+    private static void zipFiles(java.util.zip.ZipOutputStream zos, Path dbDir, Path root) throws Exception {
+        try (Stream<Path> walk = Files.walk(root)) {
+            walk.filter(path -> !Files.isDirectory(path))
+                .forEach(path -> {
+                    java.util.zip.ZipEntry zipEntry = new java.util.zip.ZipEntry(dbDir.relativize(path).toString());
+                    try {
+                        zos.putNextEntry(zipEntry);
+                        Files.copy(path, zos);
+                        zos.closeEntry();
+                    } catch (Exception e) {
+                        System.err.println("Failed to zip file: " + path);
+                    }
+                });
         }
     }
 
     @Override
     public void restoreDatabase(String zipFilename, String targetDatabase) throws Exception {
-        lock.writeLock().lock();
+        archive.flush();
+        locks.lockDatabases(targetDatabase);
         try {
             Path backupsDir = Paths.get("backups");
             Path zipPath = backupsDir.resolve(zipFilename);
@@ -341,6 +495,9 @@ public class JettraBasicStore implements DocumentStore {
                         .forEach(File::delete);
                 }
             }
+            layout.forget(targetDir);
+            archive.forget(targetDir);
+            cache.invalidatePrefix(targetDatabase + "/");
             Files.createDirectories(targetDir);
 
             // Unzip
@@ -367,7 +524,7 @@ public class JettraBasicStore implements DocumentStore {
             }
 
         } finally {
-            lock.writeLock().unlock();
+            locks.unlockDatabases(targetDatabase);
         }
     }
 
@@ -378,12 +535,11 @@ public class JettraBasicStore implements DocumentStore {
 
     @Override
     public void createCollection(String database, String collection) throws Exception {
-        lock.writeLock().lock();
+        locks.lockWrite(database, collection);
         try {
-            Path dir = Paths.get(dataDirectory, database, collection);
-            Files.createDirectories(dir);
+            prepare(Paths.get(dataDirectory, database, collection));
         } finally {
-            lock.writeLock().unlock();
+            locks.unlockWrite(database, collection);
         }
     }
 
@@ -393,7 +549,8 @@ public class JettraBasicStore implements DocumentStore {
 
     @Override
     public void deleteCollection(String database, String collection) throws Exception {
-        lock.writeLock().lock();
+        archive.flush();
+        locks.lockWrite(database, collection);
         try {
             Path dir = Paths.get(dataDirectory, database, collection);
             if (Files.exists(dir)) {
@@ -403,8 +560,11 @@ public class JettraBasicStore implements DocumentStore {
                         .forEach(File::delete);
                 }
             }
+            layout.forget(dir);
+            archive.forget(dir);
+            cache.invalidatePrefix(DocumentCache.key(database, collection, ""));
         } finally {
-            lock.writeLock().unlock();
+            locks.unlockWrite(database, collection);
         }
     }
 
@@ -497,93 +657,127 @@ public class JettraBasicStore implements DocumentStore {
         mapper.writeValue(txDir.resolve(filename).toFile(), op);
     }
 
-
-    private void createVersion(String database, String collection, String id) {
+    @Override
+    public void withWriteLocks(java.util.Collection<String[]> collections, LockedWork work) throws Exception {
+        List<String[]> locked = locks.lockWrite(collections);
         try {
-            Path original = Paths.get(dataDirectory, database, collection, id + ".jdb");
-            if (!Files.exists(original)) return;
-            
-            Path versionDir = Paths.get(dataDirectory, database, collection, "_versions", id);
-            Files.createDirectories(versionDir);
-            
-            // Use nanoTime to prevent collisions during rapid updates
-            String timestamp = System.currentTimeMillis() + "_" + System.nanoTime();
-            
-            Path versionPath = versionDir.resolve(timestamp + ".jdb");
-            Files.copy(original, versionPath);
-        } catch (Exception e) {
-            e.printStackTrace();
+            work.run();
+        } finally {
+            locks.unlockWrite(locked);
         }
     }
 
+
+    // --- Time travel, see VersionArchive#asOf ---
+
     @Override
-    public List<String> getVersions(String database, String collection, String id) throws Exception {
-        lock.readLock().lock();
+    public Map<String, Object> findByID(String database, String collection, String id, long asOf) throws Exception {
+        Path collectionDir = collectionDir(database, collection);
+        locks.lockRead(database, collection);
         try {
-            Path versionDir = Paths.get(dataDirectory, database, collection, "_versions", id);
-            if (!Files.exists(versionDir)) {
-                return new ArrayList<>();
-            }
-            try (Stream<Path> files = Files.list(versionDir)) {
-                return files.map(p -> p.getFileName().toString().replace(".jdb", ""))
-                        .sorted(java.util.Comparator.reverseOrder())
-                        .toList();
-            }
+            return archive.asOf(collectionDir, id, asOf, layout.documentPath(collectionDir, id), versionReader,
+                    () -> findByID(database, collection, id));
         } finally {
-            lock.readLock().unlock();
+            locks.unlockRead(database, collection);
+        }
+    }
+
+    @Override
+    public Stream<Map<String, Object>> stream(String database, String collection, Map<String, Object> filter,
+            long asOf) throws Exception {
+        Path collectionDir = collectionDir(database, collection);
+        if (!Files.exists(collectionDir)) {
+            return Stream.empty();
+        }
+        // Current documents plus those only found in the history (deleted since)
+        java.util.Set<String> archived = archive.ids(collectionDir, versionReader);
+        return Stream.concat(layout.documentFiles(collectionDir).map(DocumentLayout::idOf), archived.stream())
+                .distinct()
+                .map(id -> streamReadAsOf(database, collection, id, asOf))
+                .filter(docMap -> docMap != null && FilterMatcher.matches(docMap, filter));
+    }
+
+    private Map<String, Object> streamReadAsOf(String database, String collection, String id, long asOf) {
+        try {
+            return findByID(database, collection, id, asOf);
+        } catch (Exception e) {
+            System.err.println("Skipping unreadable version of " + id + " - " + e.getMessage());
+            return null;
         }
     }
 
+    @Override
+    public List<String> getVersions(String database, String collection, String id) throws Exception {
+        return archive.versions(collectionDir(database, collection), id, versionReader);
+    }
+
     @Override
     public void restoreVersion(String database, String collection, String id, String version) throws Exception {
-        lock.writeLock().lock();
+        Path collectionDir = collectionDir(database, collection);
+        locks.lockWrite(database, collection);
         try {
-            Path versionFile = Paths.get(dataDirectory, database, collection, "_versions", id, version + ".jdb");
-            if (!Files.exists(versionFile)) {
+            Map<String, Object> content = archive.content(collectionDir, id, version, versionReader);
+            if (content == null) {
                 throw new Exception("Version " + version + " not found");
             }
-            
-            // Backup current state before restore!
-            createVersion(database, collection, id);
-            
-            Path targetFile = Paths.get(dataDirectory, database, collection, id + ".jdb");
-            Files.copy(versionFile, targetFile, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+
+            // Archive the current state before restore
+            Path targetFile = layout.documentPath(collectionDir, id);
+            boolean exists = Files.exists(targetFile);
+            if (exists) {
+                archive.archive(collectionDir, id, targetFile, false, versionReader);
+            }
+            Files.createDirectories(targetFile.getParent());
+            mapper.writeValue(targetFile.toFile(), content);
+            cache.invalidate(DocumentCache.key(database, collection, id));
+            if (!exists && catalog != null) {
+                catalog.documentAdded(database, collection);
+            }
         } finally {
-            lock.writeLock().unlock();
+            locks.unlockWrite(database, collection);
         }
     }
 
     @Override
     public Map<String, Object> getVersionContent(String database, String collection, String id, String version) throws Exception {
-        lock.readLock().lock();
+        return archive.content(collectionDir(database, collection), id, version, versionReader);
+    }
+
+    @Override
+    public VersionArchive.Retention getRetention(String database, String collection) throws Exception {
+        return archive.getRetention(Paths.get(dataDirectory, database, collection));
+    }
+
+    @Override
+    public void setRetention(String database, String collection, VersionArchive.Retention retention)
+            throws Exception {
+        archive.setRetention(collectionDir(database, collection), retention);
+    }
+
+    @Override
+    public void sync(String database, String collection, java.util.Collection<String> ids) throws Exception {
+        locks.lockRead(database, collection);
         try {
-            Path versionFile = Paths.get(dataDirectory, database, collection, "_versions", id, version + ".jdb");
-            if (!Files.exists(versionFile)) {
-                return null;
-            }
-            return mapper.readValue(versionFile.toFile(), new TypeReference<Map<String, Object>>() {});
+            layout.sync(Paths.get(dataDirectory, database, collection), ids);
         } finally {
-            lock.readLock().unlock();
+            locks.unlockRead(database, collection);
         }
     }
 
     @Override
     public void reload() {
-        // Basic store currently doesn't cache documents in memory, it reads from disk on every findByID/query.
-        // No specific action needed for reload now, but implementing for interface consistency.
+        // Files may have been replaced on disk (e.g. by a hot reload)
+        cache.clear();
+        layout.forget(Paths.get(dataDirectory));
+        archive.forget(Paths.get(dataDirectory));
     }
 
     @Override
     public String getDatabaseEngine(String database) throws Exception {
-        lock.readLock().lock();
-        try {
-            Map<String, Object> config = findByID(database, "_engine", "config");
-            if (config != null && config.containsKey("engine")) {
-                return (String) config.get("engine");
-            }
-            return "JettraBasicStore";
-        } finally {
-            lock.readLock().unlock();
+        Map<String, Object> config = findByID(database, "_engine", "config");
+        if (config != null && config.containsKey("engine")) {
+            return (String) config.get("engine");
         }
+        return "JettraBasicStore";
     }
 }
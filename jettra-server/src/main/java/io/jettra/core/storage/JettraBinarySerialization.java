@@ -3,6 +3,9 @@ package io.jettra.core.storage;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -11,6 +14,21 @@ import java.util.Map;
 /**
  * Custom optimized binary serialization format for JettraDB.
  * Efficient packaging of Map<String, Object> structures.
+ *
+ * Documents are written as TYPE_KEYED_DOCUMENT: the field count, a table of
+ * (key, offset) pairs, then the values in table order. Offsets are relative
+ * to the first value, so a single field can be decoded without reading the
+ * others (see LazyDocument). Keys, in the table and in nested maps, are ids
+ * from the collection's KeyDictionary when one is given, else written inline.
+ * Integers and longs are zig-zag varints, so small negative numbers stay small.
+ *
+ * Writing goes through per-thread ScratchBuffers and reading works on a
+ * ByteBuffer in place, so neither side allocates streams or working arrays
+ * per document; only the decoded values themselves are new objects.
+ *
+ * Earlier formats are still read: TYPE_DOCUMENT (inline keys, fixed 4-byte
+ * offsets), plain TYPE_MAP documents, and the fixed-width TYPE_LONG /
+ * TYPE_LONG_ARRAY and unsigned TYPE_INTEGER / TYPE_INT_ARRAY values.
  */
 public class JettraBinarySerialization {
 
@@ -26,13 +44,84 @@ public class JettraBinarySerialization {
     private static final byte TYPE_INT_ARRAY = 9;
     private static final byte TYPE_LONG_ARRAY = 10;
     private static final byte TYPE_DOUBLE_ARRAY = 11;
+    // Top-level document with a field offset table: [n][n x (key, offset:int)][values]
+    static final byte TYPE_DOCUMENT = 12;
+    // Format 2: [n][n x (keyRef, offset:varint)][values]; keyRef is id + 1, or 0 and an inline key
+    static final byte TYPE_KEYED_DOCUMENT = 13;
+    private static final byte TYPE_KEYED_MAP = 14;
+    private static final byte TYPE_ZIGZAG_INT = 15;
+    private static final byte TYPE_ZIGZAG_LONG = 16;
+    private static final byte TYPE_ZIGZAG_INT_ARRAY = 17;
+    private static final byte TYPE_ZIGZAG_LONG_ARRAY = 18;
+
+    // Per thread: the document being written and the values behind its offset table
+    private static final ThreadLocal<ScratchBuffer> OUT = ScratchBuffer.slot(4096);
+    private static final ThreadLocal<ScratchBuffer> VALUES = ScratchBuffer.slot(4096);
 
     public static void serialize(Map<String, Object> document, DataOutputStream out) throws IOException {
-        writeObject(document, out);
+        serialize(document, null, out);
+    }
+
+    /**
+     * Writes a document with its keys taken from the dictionary (inline when
+     * it is null). Any key ids it uses are durable when this returns.
+     */
+    public static void serialize(Map<String, Object> document, KeyDictionary dictionary, DataOutputStream out)
+            throws IOException {
+        ByteBuffer bytes = serializeToBuffer(document, dictionary);
+        out.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+    }
+
+    /**
+     * Encodes a document into this thread's scratch buffer and returns a view
+     * of it, valid until the thread serializes again; callers that keep the
+     * bytes use {@link #toBytes}.
+     */
+    public static ByteBuffer serializeToBuffer(Map<String, Object> document, KeyDictionary dictionary)
+            throws IOException {
+        ScratchBuffer out = ScratchBuffer.get(OUT);
+        ScratchBuffer values = ScratchBuffer.get(VALUES);
+        out.write(TYPE_KEYED_DOCUMENT);
+        out.writeVarInt(document.size());
+        for (Map.Entry<String, Object> entry : document.entrySet()) {
+            writeKey(entry.getKey(), dictionary, out);
+            out.writeVarInt(values.size());
+            writeObject(entry.getValue(), dictionary, values);
+        }
+        out.write(values);
+        if (dictionary != null) {
+            dictionary.flush();
+        }
+        return out.view();
+    }
+
+    /**
+     * A serialized document in an array of its own.
+     */
+    public static byte[] toBytes(Map<String, Object> document, KeyDictionary dictionary) throws IOException {
+        ByteBuffer bytes = serializeToBuffer(document, dictionary);
+        return java.util.Arrays.copyOfRange(bytes.array(), bytes.position(), bytes.limit());
     }
 
+    /**
+     * Reads a document that takes up the rest of the stream.
+     */
     public static Map<String, Object> deserialize(DataInputStream in) throws IOException {
-        Object result = readObject(in);
+        return deserialize(ByteBuffer.wrap(in.readAllBytes()), null);
+    }
+
+    /**
+     * Reads a document from the buffer's position up to its limit.
+     */
+    public static Map<String, Object> deserialize(ByteBuffer buffer) throws IOException {
+        return deserialize(buffer, null);
+    }
+
+    /**
+     * Reads a document whose keys may refer to the given dictionary.
+     */
+    public static Map<String, Object> deserialize(ByteBuffer buffer, KeyDictionary dictionary) throws IOException {
+        Object result = read(buffer, dictionary);
         if (result instanceof Map) {
             @SuppressWarnings("unchecked")
             Map<String, Object> map = (Map<String, Object>) result;
@@ -41,48 +130,76 @@ public class JettraBinarySerialization {
         throw new IOException("Data is not a valid JettraDB document (Map)");
     }
 
-    private static void writeObject(Object obj, DataOutputStream out) throws IOException {
+    /**
+     * True when the buffer holds a document with a field offset table.
+     */
+    static boolean isIndexed(ByteBuffer buffer) {
+        if (buffer.remaining() == 0) {
+            return false;
+        }
+        byte type = buffer.get(buffer.position());
+        return type == TYPE_DOCUMENT || type == TYPE_KEYED_DOCUMENT;
+    }
+
+    /**
+     * Decodes the value starting at the buffer's position, advancing it.
+     */
+    static Object read(ByteBuffer buffer, KeyDictionary dictionary) throws IOException {
+        try {
+            return readObject(buffer, dictionary);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Truncated JettraDB document");
+        }
+    }
+
+    private static void writeObject(Object obj, KeyDictionary dictionary, ScratchBuffer out) throws IOException {
         if (obj == null) {
-            out.writeByte(TYPE_NULL);
+            out.write(TYPE_NULL);
             return;
         }
 
         if (obj instanceof Boolean) {
-            out.writeByte(((Boolean) obj) ? TYPE_BOOLEAN_TRUE : TYPE_BOOLEAN_FALSE);
+            out.write(((Boolean) obj) ? TYPE_BOOLEAN_TRUE : TYPE_BOOLEAN_FALSE);
         } else if (obj instanceof Integer) {
-            out.writeByte(TYPE_INTEGER);
-            writeVarInt((Integer) obj, out);
+            out.write(TYPE_ZIGZAG_INT);
+            out.writeVarLong(zigZag((Integer) obj));
         } else if (obj instanceof Long) {
-            out.writeByte(TYPE_LONG);
-            out.writeLong((Long) obj);
+            out.write(TYPE_ZIGZAG_LONG);
+            out.writeVarLong(zigZag((Long) obj));
         } else if (obj instanceof Double) {
-            out.writeByte(TYPE_DOUBLE);
-            out.writeDouble((Double) obj);
+            out.write(TYPE_DOUBLE);
+            out.writeLong(Double.doubleToLongBits((Double) obj));
         } else if (obj instanceof String) {
-            out.writeByte(TYPE_STRING);
-            writeString((String) obj, out);
+            out.write(TYPE_STRING);
+            out.writeString((String) obj);
         } else if (obj instanceof List) {
             List<?> list = (List<?>) obj;
             if (isHomogeneous(list, Integer.class)) {
-                out.writeByte(TYPE_INT_ARRAY);
-                writeIntArray((List<Integer>) list, out);
+                out.write(TYPE_ZIGZAG_INT_ARRAY);
+                out.writeVarInt(list.size());
+                for (Object val : list) {
+                    out.writeVarLong(zigZag((Integer) val));
+                }
             } else if (isHomogeneous(list, Long.class)) {
-                out.writeByte(TYPE_LONG_ARRAY);
-                writeLongArray((List<Long>) list, out);
+                out.write(TYPE_ZIGZAG_LONG_ARRAY);
+                out.writeVarInt(list.size());
+                for (Object val : list) {
+                    out.writeVarLong(zigZag((Long) val));
+                }
             } else if (isHomogeneous(list, Double.class)) {
-                out.writeByte(TYPE_DOUBLE_ARRAY);
+                out.write(TYPE_DOUBLE_ARRAY);
                 writeDoubleArray((List<Double>) list, out);
             } else {
-                out.writeByte(TYPE_LIST);
-                writeList(list, out);
+                out.write(TYPE_LIST);
+                writeList(list, dictionary, out);
             }
         } else if (obj instanceof Map) {
-            out.writeByte(TYPE_MAP);
-            writeMap((Map<?, ?>) obj, out);
+            out.write(TYPE_KEYED_MAP);
+            writeKeyedMap((Map<?, ?>) obj, dictionary, out);
         } else {
             // Fallback to String for unknown types
-            out.writeByte(TYPE_STRING);
-            writeString(obj.toString(), out);
+            out.write(TYPE_STRING);
+            out.writeString(obj.toString());
         }
     }
 
@@ -94,8 +211,41 @@ public class JettraBinarySerialization {
         return true;
     }
 
-    private static Object readObject(DataInputStream in) throws IOException {
-        byte type = in.readByte();
+    private static void writeKey(String key, KeyDictionary dictionary, ScratchBuffer out) throws IOException {
+        int id = dictionary == null ? -1 : dictionary.idOf(key);
+        out.writeVarInt(id + 1);
+        if (id < 0) {
+            out.writeString(key);
+        }
+    }
+
+    private static void writeList(List<?> list, KeyDictionary dictionary, ScratchBuffer out) throws IOException {
+        out.writeVarInt(list.size());
+        for (Object item : list) {
+            writeObject(item, dictionary, out);
+        }
+    }
+
+    private static void writeDoubleArray(List<Double> list, ScratchBuffer out) throws IOException {
+        out.writeVarInt(list.size());
+        for (Double val : list) {
+            out.writeLong(Double.doubleToLongBits(val));
+        }
+    }
+
+    private static void writeKeyedMap(Map<?, ?> map, KeyDictionary dictionary, ScratchBuffer out)
+            throws IOException {
+        out.writeVarInt(map.size());
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            writeKey(entry.getKey().toString(), dictionary, out); // Keys are always strings in our docs
+            writeObject(entry.getValue(), dictionary, out);
+        }
+    }
+
+    // --- Reading (ByteBuffer, so LazyDocument can decode single fields in place) ---
+
+    private static Object readObject(ByteBuffer in, KeyDictionary dictionary) throws IOException {
+        byte type = in.get();
         switch (type) {
             case TYPE_NULL:
                 return null;
@@ -106,63 +256,90 @@ public class JettraBinarySerialization {
             case TYPE_INTEGER:
                 return readVarInt(in);
             case TYPE_LONG:
-                return in.readLong();
+                return in.getLong();
             case TYPE_DOUBLE:
-                return in.readDouble();
+                return in.getDouble();
             case TYPE_STRING:
                 return readString(in);
             case TYPE_LIST:
-                return readList(in);
+                return readList(in, dictionary);
             case TYPE_MAP:
-                return readMap(in);
+                return readMap(in, dictionary);
             case TYPE_INT_ARRAY:
                 return readIntArray(in);
             case TYPE_LONG_ARRAY:
                 return readLongArray(in);
             case TYPE_DOUBLE_ARRAY:
                 return readDoubleArray(in);
+            case TYPE_DOCUMENT:
+                return readDocument(in, dictionary);
+            case TYPE_KEYED_DOCUMENT:
+                return readKeyedDocument(in, dictionary);
+            case TYPE_KEYED_MAP:
+                return readKeyedMap(in, dictionary);
+            case TYPE_ZIGZAG_INT:
+                return (int) unZigZag(readVarLong(in));
+            case TYPE_ZIGZAG_LONG:
+                return unZigZag(readVarLong(in));
+            case TYPE_ZIGZAG_INT_ARRAY: {
+                int size = readVarInt(in);
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add((int) unZigZag(readVarLong(in)));
+                }
+                return list;
+            }
+            case TYPE_ZIGZAG_LONG_ARRAY: {
+                int size = readVarInt(in);
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(unZigZag(readVarLong(in)));
+                }
+                return list;
+            }
             default:
                 throw new IOException("Unknown type byte: " + type);
         }
     }
 
-    private static void writeString(String str, DataOutputStream out) throws IOException {
-        byte[] bytes = str.getBytes(java.nio.charset.StandardCharsets.UTF_8);
-        writeVarInt(bytes.length, out);
-        out.write(bytes);
-    }
-
-    private static String readString(DataInputStream in) throws IOException {
+    static String readString(ByteBuffer in) throws IOException {
         int len = readVarInt(in);
-        byte[] bytes = new byte[len];
-        in.readFully(bytes);
-        return new String(bytes, java.nio.charset.StandardCharsets.UTF_8);
+        String value;
+        if (in.hasArray()) {
+            value = new String(in.array(), in.arrayOffset() + in.position(), len, StandardCharsets.UTF_8);
+        } else {
+            byte[] bytes = new byte[len];
+            in.get(in.position(), bytes);
+            value = new String(bytes, StandardCharsets.UTF_8);
+        }
+        in.position(in.position() + len);
+        return value;
     }
 
-    private static void writeList(List<?> list, DataOutputStream out) throws IOException {
-        writeVarInt(list.size(), out);
-        for (Object item : list) {
-            writeObject(item, out);
+    /**
+     * Reads a key reference: an id from the dictionary or an inline string.
+     */
+    static String readKey(ByteBuffer in, KeyDictionary dictionary) throws IOException {
+        int ref = readVarInt(in);
+        if (ref == 0) {
+            return readString(in);
+        }
+        if (dictionary == null) {
+            throw new IOException("Document keys refer to a key dictionary that was not given");
         }
+        return dictionary.name(ref - 1);
     }
 
-    private static List<Object> readList(DataInputStream in) throws IOException {
+    private static List<Object> readList(ByteBuffer in, KeyDictionary dictionary) throws IOException {
         int size = readVarInt(in);
         List<Object> list = new ArrayList<>(size);
         for (int i = 0; i < size; i++) {
-            list.add(readObject(in));
+            list.add(readObject(in, dictionary));
         }
         return list;
     }
 
-    private static void writeIntArray(List<Integer> list, DataOutputStream out) throws IOException {
-        writeVarInt(list.size(), out);
-        for (Integer val : list) {
-            writeVarInt(val, out);
-        }
-    }
-
-    private static List<Object> readIntArray(DataInputStream in) throws IOException {
+    private static List<Object> readIntArray(ByteBuffer in) throws IOException {
         int size = readVarInt(in);
         List<Object> list = new ArrayList<>(size);
         for (int i = 0; i < size; i++) {
@@ -171,54 +348,72 @@ public class JettraBinarySerialization {
         return list;
     }
 
-    private static void writeLongArray(List<Long> list, DataOutputStream out) throws IOException {
-        writeVarInt(list.size(), out);
-        for (Long val : list) {
-            out.writeLong(val);
+    private static List<Object> readLongArray(ByteBuffer in) throws IOException {
+        int size = readVarInt(in);
+        List<Object> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            list.add(in.getLong());
         }
+        return list;
     }
 
-    private static List<Object> readLongArray(DataInputStream in) throws IOException {
+    private static List<Object> readDoubleArray(ByteBuffer in) throws IOException {
         int size = readVarInt(in);
         List<Object> list = new ArrayList<>(size);
         for (int i = 0; i < size; i++) {
-            list.add(in.readLong());
+            list.add(in.getDouble());
         }
         return list;
     }
-    
-    private static void writeDoubleArray(List<Double> list, DataOutputStream out) throws IOException {
-        writeVarInt(list.size(), out);
-        for (Double val : list) {
-            out.writeDouble(val);
+
+    private static Map<String, Object> readMap(ByteBuffer in, KeyDictionary dictionary) throws IOException {
+        int size = readVarInt(in);
+        // Use LinkedHashMap to preserve order if possible (though hashmap doesnt guarantee)
+        Map<String, Object> map = new LinkedHashMap<>(size);
+        for (int i = 0; i < size; i++) {
+            String key = readString(in);
+            Object value = readObject(in, dictionary);
+            map.put(key, value);
         }
+        return map;
     }
 
-    private static List<Object> readDoubleArray(DataInputStream in) throws IOException {
+    private static Map<String, Object> readKeyedMap(ByteBuffer in, KeyDictionary dictionary) throws IOException {
         int size = readVarInt(in);
-        List<Object> list = new ArrayList<>(size);
+        Map<String, Object> map = new LinkedHashMap<>(size);
         for (int i = 0; i < size; i++) {
-            list.add(in.readDouble());
+            String key = readKey(in, dictionary);
+            map.put(key, readObject(in, dictionary));
         }
-        return list;
+        return map;
     }
 
-    private static void writeMap(Map<?, ?> map, DataOutputStream out) throws IOException {
-        writeVarInt(map.size(), out);
-        for (Map.Entry<?, ?> entry : map.entrySet()) {
-            writeString(entry.getKey().toString(), out); // Keys are always strings in our docs
-            writeObject(entry.getValue(), out);
+    private static Map<String, Object> readDocument(ByteBuffer in, KeyDictionary dictionary) throws IOException {
+        int size = readVarInt(in);
+        // Values follow the table in the same order, so a full read ignores the offsets
+        String[] keys = new String[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = readString(in);
+            in.position(in.position() + 4);
+        }
+        Map<String, Object> map = new LinkedHashMap<>(size);
+        for (String key : keys) {
+            map.put(key, readObject(in, dictionary));
         }
+        return map;
     }
 
-    private static Map<String, Object> readMap(DataInputStream in) throws IOException {
+    private static Map<String, Object> readKeyedDocument(ByteBuffer in, KeyDictionary dictionary)
+            throws IOException {
         int size = readVarInt(in);
-        // Use LinkedHashMap to preserve order if possible (though hashmap doesnt guarantee)
-        Map<String, Object> map = new LinkedHashMap<>(size); 
+        String[] keys = new String[size];
         for (int i = 0; i < size; i++) {
-            String key = readString(in);
-            Object value = readObject(in);
-            map.put(key, value);
+            keys[i] = readKey(in, dictionary);
+            readVarInt(in);
+        }
+        Map<String, Object> map = new LinkedHashMap<>(size);
+        for (String key : keys) {
+            map.put(key, readObject(in, dictionary));
         }
         return map;
     }
@@ -226,24 +421,16 @@ public class JettraBinarySerialization {
     // --- VarInt Implementation ---
 
     /**
-     * Writes an integer using variable-length encoding (VarInt).
-     * Similar to Protocol Buffers varint.
+     * Reads an integer written with variable-length encoding (VarInt, see
+     * ScratchBuffer.writeVarInt). Similar to Protocol Buffers varint.
      * Use 7 bits per byte, MSB indicates if more bytes follow.
      */
-    private static void writeVarInt(int value, DataOutputStream out) throws IOException {
-        while ((value & 0xFFFFFF80) != 0) {
-            out.writeByte((value & 0x7F) | 0x80);
-            value >>>= 7;
-        }
-        out.writeByte(value & 0x7F);
-    }
-
-    private static int readVarInt(DataInputStream in) throws IOException {
+    static int readVarInt(ByteBuffer in) throws IOException {
         int value = 0;
         int shift = 0;
         byte b;
         do {
-            b = in.readByte();
+            b = in.get();
             value |= (b & 0x7F) << shift;
             shift += 7;
             if (shift > 35) {
@@ -253,4 +440,27 @@ public class JettraBinarySerialization {
         return value;
     }
 
+    private static long readVarLong(ByteBuffer in) throws IOException {
+        long value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.get();
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+            if (shift > 70) {
+                throw new IOException("VarLong too long or malformed");
+            }
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    // Zig-zag maps signed to unsigned so -1 is 1, 1 is 2, ... and small magnitudes take one byte
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
 }
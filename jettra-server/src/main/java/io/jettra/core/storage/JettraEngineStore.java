@@ -1,23 +1,19 @@
 package io.jettra.core.storage;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.locks.ReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.stream.Stream;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
@@ -29,109 +25,267 @@ import io.jettra.core.validation.Validator;
  */
 public class JettraEngineStore implements DocumentStore {
     private final String dataDirectory;
-    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final CollectionLocks locks;
     private Validator validator;
+    private Catalog catalog;
+    private volatile int scanParallelism = ParallelScan.defaultParallelism();
     private final ObjectMapper cborMapper = new ObjectMapper(new CBORFactory());
+    private final DocumentCache cache;
+    private final DocumentLayout layout;
+    private final VersionArchive archive;
+    private final VersionArchive.DocumentReader versionReader;
+    // Collection directory -> key dictionary and compressor, opened on first use
+    private final Map<Path, CollectionFormat> formats = new java.util.concurrent.ConcurrentHashMap<>();
+
+    private static final ThreadLocal<ScratchBuffer> READ_BUFFER = ScratchBuffer.slot(16 * 1024);
+
+    private record CollectionFormat(KeyDictionary keys, DocumentCompressor compressor) {
+    }
 
     public JettraEngineStore(String dataDirectory) throws Exception {
+        this(dataDirectory, new DocumentCache(DocumentCache.DEFAULT_MAX_BYTES));
+    }
+
+    public JettraEngineStore(String dataDirectory, DocumentCache cache) throws Exception {
+        this(dataDirectory, cache, new DocumentLayout(false));
+    }
+
+    public JettraEngineStore(String dataDirectory, DocumentCache cache, DocumentLayout layout) throws Exception {
+        this(dataDirectory, cache, layout, new VersionArchive(dataDirectory, layout));
+    }
+
+    public JettraEngineStore(String dataDirectory, DocumentCache cache, DocumentLayout layout, VersionArchive archive)
+            throws Exception {
+        this(dataDirectory, cache, layout, archive, new CollectionLocks());
+    }
+
+    /**
+     * @param locks shared with the other stores of the same data directory,
+     *              so a database-level operation run through one store
+     *              waits for writers in all of them
+     */
+    public JettraEngineStore(String dataDirectory, DocumentCache cache, DocumentLayout layout, VersionArchive archive,
+            CollectionLocks locks) throws Exception {
         this.dataDirectory = dataDirectory;
+        this.locks = locks;
+        this.cache = cache;
+        this.layout = layout;
+        this.archive = archive;
+        this.versionReader = path -> readMap(path, formatOf(path));
         Files.createDirectories(Paths.get(dataDirectory));
     }
 
-    // LRU Cache: capacity 5000 items
-    private final Map<String, Map<String, Object>> cache = java.util.Collections.synchronizedMap(
-        new java.util.LinkedHashMap<String, Map<String, Object>>(5000, 0.75f, true) {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<String, Map<String, Object>> eldest) {
-                return size() > 5000;
+    /**
+     * Collection directory, migrated first if the hashed layout is enabled and
+     * it is still flat. Call before taking the collection's read lock.
+     */
+    private Path collectionDir(String database, String collection) throws Exception {
+        Path dir = Paths.get(dataDirectory, database, collection);
+        if (layout.needsMigration(dir)) {
+            locks.lockWrite(database, collection);
+            try {
+                prepare(dir);
+            } finally {
+                locks.unlockWrite(database, collection);
             }
-        });
-        
+        }
+        return dir;
+    }
+
+    /**
+     * layout.prepare, after letting the archiver finish with the old paths.
+     */
+    private void prepare(Path dir) throws Exception {
+        if (layout.needsMigration(dir)) {
+            archive.flush();
+        }
+        layout.prepare(dir);
+    }
+
+    /**
+     * Queues the versions a crash left unarchived in a database.
+     */
+    void resumeVersions(String database) throws Exception {
+        archive.resume(Paths.get(dataDirectory, database), versionReader);
+    }
+
     private String getCacheKey(String db, String col, String id) {
-        return db + "/" + col + "/" + id;
+        return DocumentCache.key(db, col, id);
+    }
+
+    private CollectionFormat format(Path collectionDir) throws Exception {
+        CollectionFormat format = formats.get(collectionDir);
+        if (format != null) {
+            return format;
+        }
+        synchronized (formats) {
+            format = formats.get(collectionDir);
+            if (format == null) {
+                format = new CollectionFormat(KeyDictionary.open(collectionDir.resolve(KeyDictionary.FILE)),
+                        new DocumentCompressor(collectionDir));
+                formats.put(collectionDir, format);
+            }
+            return format;
+        }
+    }
+
+    // Format of the collection a document, pending or version file is in: <data>/<db>/<col>/...
+    private CollectionFormat formatOf(Path file) throws Exception {
+        Path root = Paths.get(dataDirectory);
+        return format(root.resolve(root.relativize(file).subpath(0, 2)));
+    }
+
+    /**
+     * Closes the key dictionaries and drops the compressors of every
+     * collection under dir, after it was renamed, deleted or restored.
+     */
+    private void forgetFormats(Path dir) {
+        synchronized (formats) {
+            formats.entrySet().removeIf(e -> {
+                if (!e.getKey().startsWith(dir)) {
+                    return false;
+                }
+                e.getValue().keys().close();
+                return true;
+            });
+        }
+    }
+
+    /**
+     * Compression statistics per collection ("db/col") opened since startup.
+     */
+    public Map<String, Object> compressionStats() {
+        Map<String, Object> stats = new java.util.TreeMap<>();
+        Path root = Paths.get(dataDirectory);
+        for (Map.Entry<Path, CollectionFormat> e : formats.entrySet()) {
+            Path relative = root.relativize(e.getKey());
+            stats.put(relative.getName(0) + "/" + relative.getName(1), e.getValue().compressor().stats());
+        }
+        return stats;
     }
 
     public void setValidator(Validator validator) {
         this.validator = validator;
     }
 
+    /**
+     * Most threads a single filtered scan may use, see ParallelScan (1 scans
+     * on the request thread only).
+     */
+    public void setScanParallelism(int scanParallelism) {
+        this.scanParallelism = Math.max(1, scanParallelism);
+    }
+
+    /**
+     * Catalog told about documents added and removed, see RouterDocumentStore.
+     */
+    public void setCatalog(Catalog catalog) {
+        this.catalog = catalog;
+    }
+
     private void writeMap(Path path, Map<String, Object> map) throws Exception {
-        // Adaptive compression: Serialize to byte array first
-        java.io.ByteArrayOutputStream baos = new java.io.ByteArrayOutputStream();
-        try (DataOutputStream dos = new DataOutputStream(baos)) {
-            JettraBinarySerialization.serialize(map, dos);
-        }
-        byte[] data = baos.toByteArray();
-        
-        // Threshold 512 bytes
-        try (java.io.OutputStream fileOut = new java.io.BufferedOutputStream(Files.newOutputStream(path), 65536);
-             DataOutputStream out = new DataOutputStream(fileOut)) {
-             
-             if (data.length > 512) {
-                 // GZIP Magic will be written by GZIPOutputStream (0x1f 0x8b)
-                 // NOTE: GZIPOutputStream writes header.
-                 // We just wrap it.
-                 try (GZIPOutputStream gzip = new GZIPOutputStream(out) {
-                     {
-                         def.setLevel(java.util.zip.Deflater.BEST_SPEED); // Optimize speed
-                     }
-                 }) {
-                    gzip.write(data);
-                 }
-             } else {
-                 // Write Uncompressed Magic: 0x00 0x00 (2 bytes to avoid confusion with GZIP 0x1f 0x8b or CBOR)
-                 out.writeByte(0x00);
-                 out.writeByte(0x00);
-                 out.write(data);
-             }
+        writeMap(path, map, null);
+    }
+
+    /**
+     * Writes a document in the collection's format: keys from its dictionary,
+     * compressed as its DocumentCompressor decides. Without a format (files
+     * outside a collection) keys stay inline and the default codec is used.
+     */
+    private void writeMap(Path path, Map<String, Object> map, CollectionFormat format) throws Exception {
+        // Serializer and codecs encode into per-thread buffers; nothing is copied before the write
+        ByteBuffer data = JettraBinarySerialization.serializeToBuffer(map, format == null ? null : format.keys());
+        ByteBuffer framed = format == null ? DocumentCompressor.encodeStandalone(data)
+                : format.compressor().encode(data);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (framed.hasRemaining()) {
+                channel.write(framed);
+            }
         }
     }
 
     private Map<String, Object> readMap(Path path) throws Exception {
-        try (java.io.InputStream fileIn = Files.newInputStream(path);
-             java.io.BufferedInputStream bufIn = new java.io.BufferedInputStream(fileIn, 65536)) {
-             
-             bufIn.mark(10);
-             int b1 = bufIn.read();
-             int b2 = bufIn.read();
-             bufIn.reset();
-             
-             if (b1 == 0x1f && b2 == 0x8b) {
-                 // GZIP -> JettraBinary
-                 try (DataInputStream in = new DataInputStream(new GZIPInputStream(bufIn))) {
-                     return JettraBinarySerialization.deserialize(in);
-                 }
-             } else if (b1 == 0x00 && b2 == 0x00) {
-                 // Custom Uncompressed JettraBinary
-                 // Skip magic bytes
-                 bufIn.read(); // 0x00
-                 bufIn.read(); // 0x00
-                 try (DataInputStream in = new DataInputStream(bufIn)) {
-                     return JettraBinarySerialization.deserialize(in);
-                 }
-             } else {
-                 // Fallback: Check for CBOR Map (Major type 5 [0xa0..0xbf] or Indefinite [0xbf])
-                 if (b1 != -1 && (b1 == 0xbf || (b1 >= 0xa0 && b1 <= 0xbf))) {
-                     // CBOR
-                     return cborMapper.readValue(bufIn, new com.fasterxml.jackson.core.type.TypeReference<Map<String, Object>>(){});
-                 } else {
-                     // Fallback to JettraBinary uncompressed OLD format (no magic, just starts with type byte?)
-                     // Type byte for Map is 8.
-                     // But wait, old format had GZIP header 1f 8b OR just data?
-                     // Previous implementation: "Fallback to JettraBinary uncompressed"
-                     // This means it was possbile to have raw uncompressed data.
-                     // Assuming it starts with valid Type Byte (e.g. 8).
-                     try (DataInputStream in = new DataInputStream(bufIn)) {
-                         return JettraBinarySerialization.deserialize(in);
-                     }
-                 }
-             }
+        return readMap(path, null);
+    }
+
+    private Map<String, Object> readMap(Path path, CollectionFormat format) throws Exception {
+        return LazyDocument.materialize(readDocument(path, format));
+    }
+
+    /**
+     * Reads a document file, as a LazyDocument when it was written with a
+     * field offset table so scans can test a filter before decoding it all.
+     * The file is read into a per-thread buffer that a LazyDocument points
+     * into, so the result must be materialized before the thread reads
+     * another document.
+     */
+    private Map<String, Object> readDocument(Path path, CollectionFormat format) throws Exception {
+        ByteBuffer bytes = readFile(path);
+        int length = bytes.remaining();
+        int b1 = length > 0 ? bytes.get(0) & 0xFF : -1;
+        int b2 = length > 1 ? bytes.get(1) & 0xFF : -1;
+        KeyDictionary keys = format == null ? null : format.keys();
+
+        if (b1 == 0x00 && b2 != -1) {
+            // Framed JettraBinary: 0x00 and the codec (0x00 0x00 is uncompressed), see DocumentCompressor
+            return LazyDocument.of(DocumentCompressor.decode(bytes, format == null ? null : format.compressor()), keys);
+        } else if (b1 == 0x1f && b2 == 0x8b) {
+            // GZIP -> JettraBinary, as written before codecs were chosen per collection
+            try (GZIPInputStream in = new GZIPInputStream(new java.io.ByteArrayInputStream(bytes.array(), 0, length))) {
+                return LazyDocument.of(ByteBuffer.wrap(in.readAllBytes()), keys);
+            }
+        } else if (b1 == 0xbf || (b1 >= 0xa0 && b1 <= 0xbf)) {
+            // Fallback: CBOR Map (Major type 5 [0xa0..0xbf] or Indefinite [0xbf])
+            return cborMapper.readValue(bytes.array(), 0, length,
+                    new com.fasterxml.jackson.core.type.TypeReference<Map<String, Object>>(){});
+        } else {
+            // Fallback to JettraBinary uncompressed OLD format (no magic, starts with the type byte)
+            return LazyDocument.of(bytes, keys);
         }
     }
 
+    private static ByteBuffer readFile(Path path) throws Exception {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE - 8) {
+                throw new Exception("Document file too large: " + path);
+            }
+            ScratchBuffer buffer = ScratchBuffer.get(READ_BUFFER);
+            buffer.ensure((int) size);
+            ByteBuffer target = ByteBuffer.wrap(buffer.array(), 0, (int) size);
+            while (target.hasRemaining() && channel.read(target) >= 0) {
+                // Keep reading until the whole file is in
+            }
+            return target.flip();
+        }
+    }
+
+    /**
+     * Cached or freshly read document if it matches the filter, else null.
+     * Only matching documents are fully decoded and cached.
+     */
+    private Map<String, Object> readMatching(String cacheKey, Path file, CollectionFormat format,
+            Map<String, Object> filter) throws Exception {
+        Map<String, Object> docMap = cache.get(cacheKey);
+        if (docMap == null) {
+            if (!Files.exists(file)) {
+                return null;
+            }
+            Map<String, Object> document = readDocument(file, format);
+            if (!FilterMatcher.matches(document, filter)) {
+                return null;
+            }
+            docMap = LazyDocument.materialize(document);
+            cache.put(cacheKey, docMap);
+            return docMap;
+        }
+        return FilterMatcher.matches(docMap, filter) ? docMap : null;
+    }
+
     @Override
     public String save(String database, String collection, Map<String, Object> document) throws Exception {
-        lock.writeLock().lock();
+        locks.lockWrite(database, collection);
         try {
             if (validator != null) {
                 validator.validate(database, collection, document);
@@ -147,7 +301,7 @@ public class JettraEngineStore implements DocumentStore {
             }
 
             Path collectionDir = Paths.get(dataDirectory, database, collection);
-            Files.createDirectories(collectionDir);
+            prepare(collectionDir);
 
             Path filePath = collectionDir.resolve(id + ".jdbbin"); // Use .jdbbin extension to distinguish? Or keep .jdb? User asked for verification. simpler to keep .jdb? 
             // The file content is different. If we use same extension, we can't easily tell file type without reading header. 
@@ -157,43 +311,50 @@ public class JettraEngineStore implements DocumentStore {
             // Wait, existing tools use `mapper.readValue`. If I give them binary file, they will crash.
             // So this database MUST only be accessed by this engine.
             
-            Path finalPath = collectionDir.resolve(id + ".jdb");
+            Path finalPath = layout.documentPath(collectionDir, id);
+            Files.createDirectories(finalPath.getParent());
 
-            if (Files.exists(finalPath)) {
-                createVersion(database, collection, id);
+            boolean exists = Files.exists(finalPath);
+            if (exists) {
+                archive.archive(collectionDir, id, finalPath, false, versionReader);
             }
             
-            writeMap(finalPath, document);
+            writeMap(finalPath, document, format(collectionDir));
 
             // Update Cache
             cache.put(getCacheKey(database, collection, id), document);
+            if (!exists && catalog != null) {
+                catalog.documentAdded(database, collection);
+            }
 
             return id;
         } finally {
-            lock.writeLock().unlock();
+            locks.unlockWrite(database, collection);
         }
     }
 
     @Override
     public Map<String, Object> findByID(String database, String collection, String id) throws Exception {
-        lock.readLock().lock();
+        Path collectionDir = collectionDir(database, collection);
+        locks.lockRead(database, collection);
         try {
-            Path filePath = Paths.get(dataDirectory, database, collection, id + ".jdb");
+            Path filePath = layout.documentPath(collectionDir, id);
             
             // Check cache first
             String cacheKey = getCacheKey(database, collection, id);
-            if (cache.containsKey(cacheKey)) {
-                return cache.get(cacheKey);
+            Map<String, Object> cached = cache.get(cacheKey);
+            if (cached != null) {
+                return cached;
             }
 
             if (!Files.exists(filePath)) {
                 return null;
             }
-            Map<String, Object> doc = readMap(filePath);
+            Map<String, Object> doc = readMap(filePath, format(collectionDir));
             cache.put(cacheKey, doc);
             return doc;
         } finally {
-            lock.readLock().unlock();
+            locks.unlockRead(database, collection);
         }
     }
 
@@ -201,16 +362,23 @@ public class JettraEngineStore implements DocumentStore {
     public List<Map<String, Object>> query(String database, String collection, Map<String, Object> filter, int limit,
             int offset)
             throws Exception {
-        lock.readLock().lock();
+        Path collectionDir = collectionDir(database, collection);
+        locks.lockRead(database, collection);
         try {
-            Path collectionDir = Paths.get(dataDirectory, database, collection);
             if (!Files.exists(collectionDir)) {
                 return new ArrayList<>();
             }
 
             List<Map<String, Object>> results = new ArrayList<>();
-            try (Stream<Path> paths = Files.list(collectionDir)) {
-                List<Path> files = paths.filter(p -> p.toString().endsWith(".jdb") && !p.getFileName().toString().equals("_indexes.jdb")).toList();
+            CollectionFormat format = format(collectionDir);
+            try (Stream<Path> paths = layout.documentFiles(collectionDir)) {
+                List<Path> files = paths.toList();
+
+                if (filter != null && !filter.isEmpty()) {
+                    // Every file has to be read and tested: spread that over the scan pool
+                    return ParallelScan.scan(files, file -> scanRead(database, collection, file, format, filter),
+                            offset, limit, scanParallelism);
+                }
 
                 int skipped = 0;
                 for (Path file : files) {
@@ -223,28 +391,15 @@ public class JettraEngineStore implements DocumentStore {
 
                     Map<String, Object> docMap;
                     try {
-                        String id = file.getFileName().toString().replace(".jdb", "");
-                        String cacheKey = getCacheKey(database, collection, id);
-                        if (cache.containsKey(cacheKey)) {
-                            docMap = cache.get(cacheKey);
-                        } else {
-                            docMap = readMap(file);
-                            cache.put(cacheKey, docMap);
-                        }
+                        String id = DocumentLayout.idOf(file);
+                        docMap = readMatching(getCacheKey(database, collection, id), file, format, filter);
                     } catch (Exception e) {
                         System.err.println("Skipping corrupted file (Engine): " + file.getFileName() + " - " + e.getMessage());
                         continue;
                     }
 
                     if (filter != null && !filter.isEmpty()) {
-                        boolean match = true;
-                        for (Map.Entry<String, Object> entry : filter.entrySet()) {
-                            if (!entry.getValue().equals(docMap.get(entry.getKey()))) {
-                                match = false;
-                                break;
-                            }
-                        }
-                        if (!match)
+                        if (docMap == null)
                             continue;
                         if (skipped < offset) {
                             skipped++;
@@ -252,6 +407,9 @@ public class JettraEngineStore implements DocumentStore {
                         }
                     }
 
+                    if (docMap == null) {
+                        continue; // Deleted while listing
+                    }
                     results.add(docMap);
                     if (limit > 0 && results.size() >= limit) {
                         break;
@@ -260,7 +418,48 @@ public class JettraEngineStore implements DocumentStore {
             }
             return results;
         } finally {
-            lock.readLock().unlock();
+            locks.unlockRead(database, collection);
+        }
+    }
+
+    @Override
+    public Stream<Map<String, Object>> stream(String database, String collection, Map<String, Object> filter)
+            throws Exception {
+        Path collectionDir = collectionDir(database, collection);
+        if (!Files.exists(collectionDir)) {
+            return Stream.empty();
+        }
+
+        // The directory is listed lazily and each document is read under the collection's read lock,
+        // so no lock is held between elements while the caller writes them out
+        return layout.documentFiles(collectionDir)
+                .map(file -> streamRead(database, collection, file, filter))
+                .filter(docMap -> docMap != null);
+    }
+
+    private Map<String, Object> streamRead(String database, String collection, Path file,
+            Map<String, Object> filter) {
+        locks.lockRead(database, collection);
+        try {
+            return scanRead(database, collection, file, format(Paths.get(dataDirectory, database, collection)),
+                    filter);
+        } catch (Exception e) {
+            System.err.println("Skipping corrupted file (Engine): " + file.getFileName() + " - " + e.getMessage());
+            return null;
+        } finally {
+            locks.unlockRead(database, collection);
+        }
+    }
+
+    // One file of a scan, run by ParallelScan workers while the query holds the read lock
+    private Map<String, Object> scanRead(String database, String collection, Path file, CollectionFormat format,
+            Map<String, Object> filter) {
+        try {
+            String id = DocumentLayout.idOf(file);
+            return readMatching(getCacheKey(database, collection, id), file, format, filter);
+        } catch (Exception e) {
+            System.err.println("Skipping corrupted file (Engine): " + file.getFileName() + " - " + e.getMessage());
+            return null;
         }
     }
 
@@ -271,7 +470,8 @@ public class JettraEngineStore implements DocumentStore {
 
     @Override
     public void delete(String database, String collection, String id) throws Exception {
-        lock.writeLock().lock();
+        Path collectionDir = collectionDir(database, collection);
+        locks.lockWrite(database, collection);
         try {
             if (validator != null) {
                 Map<String, Object> document = findByID(database, collection, id);
@@ -279,91 +479,101 @@ public class JettraEngineStore implements DocumentStore {
                      validator.validateDelete(database, collection, document);
                 }
             }
-            Path filePath = Paths.get(dataDirectory, database, collection, id + ".jdb");
+            Path filePath = layout.documentPath(collectionDir, id);
             if (Files.exists(filePath)) {
-                createVersion(database, collection, id);
-                Files.delete(filePath);
-                cache.remove(getCacheKey(database, collection, id));
+                // Moving the file to the archive is the delete
+                archive.archive(collectionDir, id, filePath, true, versionReader);
+                cache.invalidate(getCacheKey(database, collection, id));
+                if (catalog != null) {
+                    catalog.documentRemoved(database, collection);
+                }
             }
         } finally {
-            lock.writeLock().unlock();
+            locks.unlockWrite(database, collection);
         }
     }
 
     @Override
     public int count(String database, String collection) throws Exception {
-        lock.readLock().lock();
+        Path collectionDir = collectionDir(database, collection);
+        locks.lockRead(database, collection);
         try {
-            Path collectionDir = Paths.get(dataDirectory, database, collection);
             if (!Files.exists(collectionDir))
                 return 0;
-            try (Stream<Path> paths = Files.list(collectionDir)) {
-                return (int) paths.filter(p -> p.toString().endsWith(".jdb")).count();
+            try (Stream<Path> paths = layout.documentFiles(collectionDir)) {
+                return (int) paths.count();
             }
         } finally {
-            lock.readLock().unlock();
+            locks.unlockRead(database, collection);
         }
     }
 
     @Override
     public Map<String, List<String>> getDatabaseStructure() throws Exception {
-        lock.readLock().lock();
-        try {
-            Map<String, List<String>> structure = new HashMap<>();
-            Path root = Paths.get(dataDirectory);
-            if (!Files.exists(root))
-                return structure;
-
-            try (Stream<Path> dbs = Files.list(root)) {
-                for (Path db : dbs.toList()) {
-                    if (Files.isDirectory(db)) {
-                        String dbName = db.getFileName().toString();
-                        List<String> cols = new ArrayList<>();
-                        try (Stream<Path> collections = Files.list(db)) {
-                            for (Path col : collections.toList()) {
-                                if (Files.isDirectory(col)) {
-                                    cols.add(col.getFileName().toString());
-                                }
+        Map<String, List<String>> structure = new HashMap<>();
+        Path root = Paths.get(dataDirectory);
+        if (!Files.exists(root))
+            return structure;
+
+        try (Stream<Path> dbs = Files.list(root)) {
+            for (Path db : dbs.toList()) {
+                if (Files.isDirectory(db)) {
+                    String dbName = db.getFileName().toString();
+                    List<String> cols = new ArrayList<>();
+                    try (Stream<Path> collections = Files.list(db)) {
+                        for (Path col : collections.toList()) {
+                            if (Files.isDirectory(col)) {
+                                cols.add(col.getFileName().toString());
                             }
                         }
-                        structure.put(dbName, cols);
+                    } catch (java.nio.file.NoSuchFileException e) {
+                        continue; // Deleted or renamed while listing; not locked here
                     }
+                    structure.put(dbName, cols);
                 }
             }
-            return structure;
-        } finally {
-            lock.readLock().unlock();
         }
+        return structure;
     }
 
     @Override
     public void createDatabase(String name, String engine) throws Exception {
-        lock.writeLock().lock();
+        locks.lockDatabases(name);
         try {
             Path dbDir = Paths.get(dataDirectory, name);
             Files.createDirectories(dbDir);
         } finally {
-            lock.writeLock().unlock();
+            locks.unlockDatabases(name);
         }
     }
 
     @Override
     public void renameDatabase(String oldName, String newName) throws Exception {
-        lock.writeLock().lock();
+        archive.flush();
+        locks.lockDatabases(oldName, newName);
         try {
             Path oldDir = Paths.get(dataDirectory, oldName);
             Path newDir = Paths.get(dataDirectory, newName);
             if (Files.exists(oldDir)) {
                 Files.move(oldDir, newDir);
             }
+            layout.forget(oldDir);
+            archive.forget(oldDir);
+            forgetFormats(oldDir);
+            layout.forget(newDir);
+            archive.forget(newDir);
+            forgetFormats(newDir);
+            cache.invalidatePrefix(oldName + "/");
+            cache.invalidatePrefix(newName + "/");
         } finally {
-            lock.writeLock().unlock();
+            locks.unlockDatabases(oldName, newName);
         }
     }
 
     @Override
     public void deleteDatabase(String name) throws Exception {
-        lock.writeLock().lock();
+        archive.flush();
+        locks.lockDatabases(name);
         try {
             Path dir = Paths.get(dataDirectory, name);
             if (Files.exists(dir)) {
@@ -373,14 +583,18 @@ public class JettraEngineStore implements DocumentStore {
                         .forEach(File::delete);
                 }
             }
+            layout.forget(dir);
+            archive.forget(dir);
+            forgetFormats(dir);
+            cache.invalidatePrefix(name + "/");
         } finally {
-            lock.writeLock().unlock();
+            locks.unlockDatabases(name);
         }
     }
 
     @Override
     public String backupDatabase(String database) throws Exception {
-        lock.readLock().lock();
+        locks.lockDatabaseShared(database);
         try {
             Path dbDir = Paths.get(dataDirectory, database);
             if (!Files.exists(dbDir)) {
@@ -395,29 +609,49 @@ public class JettraEngineStore implements DocumentStore {
             Path zipPath = backupsDir.resolve(zipName);
 
             try (java.util.zip.ZipOutputStream zos = new java.util.zip.ZipOutputStream(Files.newOutputStream(zipPath))) {
-                try (Stream<Path> walk = Files.walk(dbDir)) {
-                    walk.filter(path -> !Files.isDirectory(path))
-                        .forEach(path -> {
-                            java.util.zip.ZipEntry zipEntry = new java.util.zip.ZipEntry(dbDir.relativize(path).toString());
-                            try {
-                                zos.putNextEntry(zipEntry);
-                                Files.copy(path, zos);
-                                zos.closeEntry();
-                            } catch (Exception e) {
-                                System.err.println("Failed to zip file: " + path);
-                            }
-                        });
+                // One collection at a time: only writers of the collection being copied wait
+                try (Stream<Path> entries = Files.list(dbDir)) {
+                    for (Path entry : entries.toList()) {
+                        if (!Files.isDirectory(entry)) {
+                            zipFiles(zos, dbDir, entry);
+                            continue;
+                        }
+                        String collection = entry.getFileName().toString();
+                        locks.lockRead(database, collection);
+                        try {
+                            zipFiles(zos, dbDir, entry);
+                        } finally {
+                            locks.unlockRead(database, collection);
+                        }
+                    }
                 }
             }
             return zipName;
         } finally {
-            lock.readLock().unlock();
+            locks.unlockDatabaseShared(database);
+        }
+    }
+
+    private static void zipFiles(java.util.zip.ZipOutputStream zos, Path dbDir, Path root) throws Exception {
+        try (Stream<Path> walk = Files.walk(root)) {
+            walk.filter(path -> !Files.isDirectory(path))
+                .forEach(path -> {
+                    java.util.zip.ZipEntry zipEntry = new java.util.zip.ZipEntry(dbDir.relativize(path).toString());
+                    try {
+                        zos.putNextEntry(zipEntry);
+                        Files.copy(path, zos);
+                        zos.closeEntry();
+                    } catch (Exception e) {
+                        System.err.println("Failed to zip file: " + path);
+                    }
+                });
         }
     }
 
     @Override
     public void restoreDatabase(String zipFilename, String targetDatabase) throws Exception {
-        lock.writeLock().lock();
+        archive.flush();
+        locks.lockDatabases(targetDatabase);
         try {
             Path backupsDir = Paths.get("backups");
             Path zipPath = backupsDir.resolve(zipFilename);
@@ -435,6 +669,10 @@ public class JettraEngineStore implements DocumentStore {
                         .forEach(File::delete);
                 }
             }
+            layout.forget(targetDir);
+            archive.forget(targetDir);
+            forgetFormats(targetDir);
+            cache.invalidatePrefix(targetDatabase + "/");
             Files.createDirectories(targetDir);
 
             try (java.util.zip.ZipInputStream zis = new java.util.zip.ZipInputStream(Files.newInputStream(zipPath))) {
@@ -457,7 +695,7 @@ public class JettraEngineStore implements DocumentStore {
             }
 
         } finally {
-            lock.writeLock().unlock();
+            locks.unlockDatabases(targetDatabase);
         }
     }
 
@@ -468,12 +706,11 @@ public class JettraEngineStore implements DocumentStore {
 
     @Override
     public void createCollection(String database, String collection) throws Exception {
-        lock.writeLock().lock();
+        locks.lockWrite(database, collection);
         try {
-            Path dir = Paths.get(dataDirectory, database, collection);
-            Files.createDirectories(dir);
+            prepare(Paths.get(dataDirectory, database, collection));
         } finally {
-            lock.writeLock().unlock();
+            locks.unlockWrite(database, collection);
         }
     }
 
@@ -483,7 +720,8 @@ public class JettraEngineStore implements DocumentStore {
 
     @Override
     public void deleteCollection(String database, String collection) throws Exception {
-        lock.writeLock().lock();
+        archive.flush();
+        locks.lockWrite(database, collection);
         try {
             Path dir = Paths.get(dataDirectory, database, collection);
             if (Files.exists(dir)) {
@@ -493,8 +731,12 @@ public class JettraEngineStore implements DocumentStore {
                         .forEach(File::delete);
                 }
             }
+            layout.forget(dir);
+            archive.forget(dir);
+            forgetFormats(dir);
+            cache.invalidatePrefix(DocumentCache.key(database, collection, ""));
         } finally {
-            lock.writeLock().unlock();
+            locks.unlockWrite(database, collection);
         }
     }
 
@@ -580,85 +822,122 @@ public class JettraEngineStore implements DocumentStore {
         writeMap(txDir.resolve(filename), op);
     }
 
-
-    private void createVersion(String database, String collection, String id) {
+    @Override
+    public void withWriteLocks(java.util.Collection<String[]> collections, LockedWork work) throws Exception {
+        List<String[]> locked = locks.lockWrite(collections);
         try {
-            Path original = Paths.get(dataDirectory, database, collection, id + ".jdb");
-            if (!Files.exists(original)) return;
-            
-            Path versionDir = Paths.get(dataDirectory, database, collection, "_versions", id);
-            Files.createDirectories(versionDir);
-            
-            String timestamp = String.valueOf(System.currentTimeMillis());
-            
-            Path versionPath = versionDir.resolve(timestamp + ".jdb");
-            Files.copy(original, versionPath);
-        } catch (Exception e) {
-            e.printStackTrace();
+            work.run();
+        } finally {
+            locks.unlockWrite(locked);
         }
     }
 
+
+    // --- Time travel, see VersionArchive#asOf ---
+
     @Override
-    public List<String> getVersions(String database, String collection, String id) throws Exception {
-        lock.readLock().lock();
+    public Map<String, Object> findByID(String database, String collection, String id, long asOf) throws Exception {
+        Path collectionDir = collectionDir(database, collection);
+        locks.lockRead(database, collection);
         try {
-            Path versionDir = Paths.get(dataDirectory, database, collection, "_versions", id);
-            if (!Files.exists(versionDir)) {
-                return new ArrayList<>();
-            }
-            try (Stream<Path> files = Files.list(versionDir)) {
-                return files.map(p -> p.getFileName().toString().replace(".jdb", ""))
-                        .sorted(java.util.Comparator.reverseOrder())
-                        .toList();
-            }
+            return archive.asOf(collectionDir, id, asOf, layout.documentPath(collectionDir, id), versionReader,
+                    () -> findByID(database, collection, id));
         } finally {
-            lock.readLock().unlock();
+            locks.unlockRead(database, collection);
+        }
+    }
+
+    @Override
+    public Stream<Map<String, Object>> stream(String database, String collection, Map<String, Object> filter,
+            long asOf) throws Exception {
+        Path collectionDir = collectionDir(database, collection);
+        if (!Files.exists(collectionDir)) {
+            return Stream.empty();
+        }
+        // Current documents plus those only found in the history (deleted since)
+        java.util.Set<String> archived = archive.ids(collectionDir, versionReader);
+        return Stream.concat(layout.documentFiles(collectionDir).map(DocumentLayout::idOf), archived.stream())
+                .distinct()
+                .map(id -> streamReadAsOf(database, collection, id, asOf))
+                .filter(docMap -> docMap != null && FilterMatcher.matches(docMap, filter));
+    }
+
+    private Map<String, Object> streamReadAsOf(String database, String collection, String id, long asOf) {
+        try {
+            return findByID(database, collection, id, asOf);
+        } catch (Exception e) {
+            System.err.println("Skipping unreadable version of " + id + " - " + e.getMessage());
+            return null;
         }
     }
 
+    @Override
+    public List<String> getVersions(String database, String collection, String id) throws Exception {
+        return archive.versions(collectionDir(database, collection), id, versionReader);
+    }
+
     @Override
     public void restoreVersion(String database, String collection, String id, String version) throws Exception {
-        lock.writeLock().lock();
+        Path collectionDir = collectionDir(database, collection);
+        locks.lockWrite(database, collection);
         try {
-            Path versionFile = Paths.get(dataDirectory, database, collection, "_versions", id, version + ".jdb");
-            if (!Files.exists(versionFile)) {
+            Map<String, Object> content = archive.content(collectionDir, id, version, versionReader);
+            if (content == null) {
                 throw new Exception("Version " + version + " not found");
             }
-            
-            createVersion(database, collection, id);
-            
-            Path targetFile = Paths.get(dataDirectory, database, collection, id + ".jdb");
-            Files.copy(versionFile, targetFile, java.nio.file.StandardCopyOption.REPLACE_EXISTING);
+
+            // Archive the current state before restore
+            Path targetFile = layout.documentPath(collectionDir, id);
+            boolean exists = Files.exists(targetFile);
+            if (exists) {
+                archive.archive(collectionDir, id, targetFile, false, versionReader);
+            }
+            Files.createDirectories(targetFile.getParent());
+            writeMap(targetFile, content, format(collectionDir));
+            cache.invalidate(getCacheKey(database, collection, id));
+            if (!exists && catalog != null) {
+                catalog.documentAdded(database, collection);
+            }
         } finally {
-            lock.writeLock().unlock();
+            locks.unlockWrite(database, collection);
         }
     }
 
     @Override
     public Map<String, Object> getVersionContent(String database, String collection, String id, String version) throws Exception {
-        lock.readLock().lock();
-        try {
-            Path versionFile = Paths.get(dataDirectory, database, collection, "_versions", id, version + ".jdb");
-            if (!Files.exists(versionFile)) {
-                return null;
-            }
-            return readMap(versionFile);
-        } finally {
-            lock.readLock().unlock();
-        }
+        return archive.content(collectionDir(database, collection), id, version, versionReader);
+    }
+
+    @Override
+    public VersionArchive.Retention getRetention(String database, String collection) throws Exception {
+        return archive.getRetention(Paths.get(dataDirectory, database, collection));
     }
 
+    @Override
+    public void setRetention(String database, String collection, VersionArchive.Retention retention)
+            throws Exception {
+        archive.setRetention(collectionDir(database, collection), retention);
+    }
 
     @Override
-    public void reload() {
-        lock.writeLock().lock();
+    public void sync(String database, String collection, java.util.Collection<String> ids) throws Exception {
+        locks.lockRead(database, collection);
         try {
-            cache.clear();
+            layout.sync(Paths.get(dataDirectory, database, collection), ids);
         } finally {
-            lock.writeLock().unlock();
+            locks.unlockRead(database, collection);
         }
     }
 
+    @Override
+    public void reload() {
+        // Entries re-read concurrently come from disk, so no lock is needed
+        cache.clear();
+        layout.forget(Paths.get(dataDirectory));
+        archive.forget(Paths.get(dataDirectory));
+        forgetFormats(Paths.get(dataDirectory));
+    }
+
     @Override
     public String getDatabaseEngine(String database) throws Exception {
         return "JettraEngineStore";
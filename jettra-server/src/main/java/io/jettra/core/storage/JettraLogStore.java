@@ -0,0 +1,1305 @@
+package io.jettra.core.storage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import io.jettra.core.validation.Validator;
+
+/**
+ * Append-only storage engine.
+ * Documents are appended as JettraBinarySerialization records to large segment
+ * files per collection ({@code <col>/_segments/<n>.seg}) and located through an
+ * in-memory id -> (segment, offset) directory that is rebuilt from the segments
+ * the first time a collection is touched. Superseded records stay in the
+ * segments and back the version history.
+ *
+ * Sealed segments that are mostly superseded records are compacted: the
+ * records still needed (live documents and the versions the collection's
+ * retention keeps) are copied to the active segment and the old segment is
+ * deleted. This runs when a segment is sealed, when a retention is set and
+ * hourly.
+ */
+public class JettraLogStore implements DocumentStore {
+    public static final String ENGINE_NAME = "JettraLogStore";
+
+    private static final String SEGMENTS_DIR = "_segments";
+    private static final String SEGMENT_EXT = ".seg";
+    private static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+
+    // Record layout: [magic:int][bodyLength:int][crc32(body):int][body]
+    // body: [op:byte][timestamp:long][idLength:short][id][payload]
+    private static final int RECORD_MAGIC = 0x4A4C5331; // "JLS1"
+    private static final int HEADER_SIZE = 12;
+    private static final byte OP_PUT = 1;
+    private static final byte OP_DELETE = 2;
+    private static final long COMPACTION_INTERVAL_MINUTES = 60;
+
+    private final String dataDirectory;
+    private final CollectionLocks locks;
+    private final Map<String, CollectionLog> collections = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "jettra-log-compaction");
+        t.setDaemon(true);
+        return t;
+    });
+    private Validator validator;
+    private Catalog catalog;
+
+    public JettraLogStore(String dataDirectory) throws Exception {
+        this(dataDirectory, new CollectionLocks());
+    }
+
+    /**
+     * @param locks shared with the other stores of the same data directory,
+     *              see JettraBasicStore
+     */
+    public JettraLogStore(String dataDirectory, CollectionLocks locks) throws Exception {
+        this.dataDirectory = dataDirectory;
+        this.locks = locks;
+        Files.createDirectories(Paths.get(dataDirectory));
+        compactor.scheduleWithFixedDelay(this::compactOpen, COMPACTION_INTERVAL_MINUTES,
+                COMPACTION_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    public void setValidator(Validator validator) {
+        this.validator = validator;
+    }
+
+    /**
+     * Catalog told about documents added and removed, see RouterDocumentStore.
+     */
+    public void setCatalog(Catalog catalog) {
+        this.catalog = catalog;
+    }
+
+    // --- Segment directory ---
+
+    // timestamp: when the record was written, i.e. when its state began
+    private record Location(int segment, long offset, int length, long timestamp) {
+    }
+
+    // name: when the state at location ended (superseded or deleted)
+    private record Version(String name, Location location) {
+
+        long end() {
+            return Long.parseLong(name);
+        }
+    }
+
+    private record Record(byte op, long timestamp, String id, byte[] payload) {
+    }
+
+    // A record found while opening a collection, applied once every segment is read
+    private record Entry(byte op, String id, Location location) {
+    }
+
+    /**
+     * Open segments and live directory of a single collection.
+     */
+    private final class CollectionLog {
+        private final String database;
+        private final String collection;
+        private final Path segmentsDir;
+        private final KeyDictionary keys;
+        private final TreeMap<Integer, FileChannel> segments = new TreeMap<>();
+        private final Map<String, Location> live = new ConcurrentHashMap<>();
+        private final Map<String, List<Version>> history = new ConcurrentHashMap<>();
+        private int activeSegment;
+        private long activeSize;
+        private long lastTimestamp;
+
+        CollectionLog(String database, String collection, Path collectionDir) throws IOException {
+            this.database = database;
+            this.collection = collection;
+            this.segmentsDir = collectionDir.resolve(SEGMENTS_DIR);
+            Files.createDirectories(segmentsDir);
+            this.keys = KeyDictionary.open(collectionDir.resolve(KeyDictionary.FILE));
+            try {
+                recover();
+            } catch (IOException | RuntimeException e) {
+                keys.close();
+                throw e;
+            }
+        }
+
+        private void recover() throws IOException {
+            List<Integer> ids = new ArrayList<>();
+            try (Stream<Path> files = Files.list(segmentsDir)) {
+                files.map(p -> p.getFileName().toString())
+                        .filter(name -> name.endsWith(SEGMENT_EXT))
+                        .forEach(name -> ids.add(Integer.parseInt(name.substring(0, name.length() - SEGMENT_EXT.length()))));
+            }
+            ids.sort(null);
+
+            List<Entry> entries = new ArrayList<>();
+            for (int i = 0; i < ids.size(); i++) {
+                int segment = ids.get(i);
+                FileChannel channel = open(segment);
+                segments.put(segment, channel);
+                boolean sealed = i < ids.size() - 1;
+                long validEnd = scan(segment, channel, sealed, entries);
+                if (validEnd < channel.size() && !sealed) {
+                    // Torn write at the tail (crash mid-append): drop the partial record
+                    System.err.println("JettraLogStore: truncating segment " + segmentsDir.resolve(segment + SEGMENT_EXT)
+                            + " from " + channel.size() + " to " + validEnd + " bytes");
+                    channel.truncate(validEnd);
+                }
+            }
+            // Compaction copies old records into newer segments, so replay in time order
+            entries.sort(java.util.Comparator.comparingLong(e -> e.location().timestamp()));
+            for (Entry entry : entries) {
+                apply(entry.op(), entry.id(), entry.location());
+            }
+
+            if (segments.isEmpty()) {
+                activeSegment = 1;
+                segments.put(activeSegment, open(activeSegment));
+                activeSize = 0;
+            } else {
+                activeSegment = segments.lastKey();
+                activeSize = segments.get(activeSegment).size();
+            }
+        }
+
+        private FileChannel open(int segment) throws IOException {
+            return FileChannel.open(segmentsDir.resolve(segment + SEGMENT_EXT),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        /**
+         * Adds the records of a segment to entries and returns the offset after the last valid record.
+         * The active segment stops at its first damaged record, which can only be a torn append.
+         * A sealed segment was complete once, so a damaged record there is skipped (the scan
+         * resumes at the next valid record) rather than costing every record after it.
+         */
+        private long scan(int segment, FileChannel channel, boolean sealed, List<Entry> entries) throws IOException {
+            long size = channel.size();
+            long position = 0;
+            while (position + HEADER_SIZE <= size) {
+                byte[] body = validBody(channel, position, size);
+                if (body == null) {
+                    if (!sealed) {
+                        break;
+                    }
+                    long next = resync(channel, position + 1, size);
+                    System.err.println("JettraLogStore: skipping " + (next - position) + " damaged bytes at offset "
+                            + position + " of sealed segment " + segmentsDir.resolve(segment + SEGMENT_EXT));
+                    position = next;
+                    continue;
+                }
+                Record record = decodeBody(body);
+                entries.add(new Entry(record.op(), record.id(),
+                        new Location(segment, position, HEADER_SIZE + body.length, record.timestamp())));
+                lastTimestamp = Math.max(lastTimestamp, record.timestamp());
+                position += HEADER_SIZE + body.length;
+            }
+            return position;
+        }
+
+        /**
+         * Body of the record at position, or null if no intact record starts there.
+         */
+        private byte[] validBody(FileChannel channel, long position, long size) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header, position);
+            header.flip();
+            int magic = header.getInt();
+            int bodyLength = header.getInt();
+            int crc = header.getInt();
+            if (magic != RECORD_MAGIC || bodyLength <= 0 || position + HEADER_SIZE + bodyLength > size) {
+                return null;
+            }
+            ByteBuffer body = ByteBuffer.allocate(bodyLength);
+            readFully(channel, body, position + HEADER_SIZE);
+            return crc32(body.array()) == crc ? body.array() : null;
+        }
+
+        /**
+         * Offset of the next intact record at or after from, or size if there is none.
+         */
+        private long resync(FileChannel channel, long from, long size) throws IOException {
+            ByteBuffer window = ByteBuffer.allocate(64 * 1024);
+            long base = from;
+            while (base + HEADER_SIZE <= size) {
+                int length = (int) Math.min(window.capacity(), size - base);
+                window.clear().limit(length);
+                readFully(channel, window, base);
+                for (int i = 0; i + 4 <= length; i++) {
+                    if (window.getInt(i) == RECORD_MAGIC && validBody(channel, base + i, size) != null) {
+                        return base + i;
+                    }
+                }
+                // The magic may straddle two windows
+                base += length - 3;
+            }
+            return size;
+        }
+
+        private void apply(byte op, String id, Location location) {
+            Location previous = live.get(id);
+            if (previous != null && previous.timestamp() == location.timestamp()) {
+                // Same record twice: compaction copied it but stopped before deleting its segment
+                live.put(id, location);
+                return;
+            }
+            if (previous != null) {
+                history.computeIfAbsent(id, k -> new ArrayList<>())
+                        .add(new Version(String.valueOf(location.timestamp()), previous));
+            }
+            if (op == OP_PUT) {
+                live.put(id, location);
+            } else {
+                live.remove(id);
+            }
+        }
+
+        private long nextTimestamp() {
+            // Monotonic per collection so version names never collide
+            lastTimestamp = Math.max(System.currentTimeMillis(), lastTimestamp + 1);
+            return lastTimestamp;
+        }
+
+        synchronized Location append(byte op, String id, byte[] payload) throws IOException {
+            Record record = new Record(op, nextTimestamp(), id, payload);
+            byte[] body = encodeBody(record);
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + body.length);
+            buffer.putInt(RECORD_MAGIC).putInt(body.length).putInt(crc32(body)).put(body).flip();
+            Location location = write(buffer, record.timestamp());
+            apply(op, id, location);
+            return location;
+        }
+
+        /**
+         * Writes a whole record to the active segment, sealing it first if the record does not fit.
+         */
+        private Location write(ByteBuffer buffer, long timestamp) throws IOException {
+            int length = buffer.remaining();
+            if (activeSize > 0 && activeSize + length > SEGMENT_SIZE) {
+                activeSegment++;
+                segments.put(activeSegment, open(activeSegment));
+                activeSize = 0;
+                compactLater(database, collection);
+            }
+
+            FileChannel channel = segments.get(activeSegment);
+            long position = activeSize;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            Location location = new Location(activeSegment, activeSize, length, timestamp);
+            activeSize = position;
+            return location;
+        }
+
+        /**
+         * Copies a record as is (timestamp included) to the active segment.
+         */
+        private Location copy(Location location) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(location.length());
+            readFully(segments.get(location.segment()), buffer, location.offset());
+            buffer.flip();
+            return write(buffer, location.timestamp());
+        }
+
+        /**
+         * Sealed segments less than half of which is still needed, see compact.
+         */
+        synchronized List<Integer> sparseSegments(VersionArchive.Retention retention) throws IOException {
+            Map<Integer, Long> needed = new HashMap<>();
+            for (Location location : live.values()) {
+                needed.merge(location.segment(), (long) location.length(), Long::sum);
+            }
+            long cutoff = cutoff(retention);
+            for (List<Version> versions : history.values()) {
+                for (int i = expired(versions, retention, cutoff); i < versions.size(); i++) {
+                    Location location = versions.get(i).location();
+                    needed.merge(location.segment(), (long) location.length(), Long::sum);
+                }
+            }
+            List<Integer> sparse = new ArrayList<>();
+            for (Map.Entry<Integer, FileChannel> e : segments.entrySet()) {
+                int segment = e.getKey();
+                if (segment != activeSegment && needed.getOrDefault(segment, 0L) * 2 < e.getValue().size()) {
+                    sparse.add(segment);
+                }
+            }
+            return sparse;
+        }
+
+        /**
+         * Copies the records of a sealed segment that are still needed to the active
+         * segment, then deletes the segment. Needed are live documents, the versions
+         * the retention keeps and the deletes that end one of those; the rest is
+         * dropped. Copies keep their timestamps, so a recovery (which replays in
+         * time order) rebuilds the same directory. Returns the bytes reclaimed.
+         */
+        synchronized long compact(int segment, VersionArchive.Retention retention) throws IOException {
+            FileChannel channel = segments.get(segment);
+            if (channel == null || segment == activeSegment) {
+                return 0;
+            }
+            long size = channel.size();
+            long copied = 0;
+            int firstWritten = activeSegment;
+
+            long cutoff = cutoff(retention);
+            for (Iterator<List<Version>> it = history.values().iterator(); it.hasNext();) {
+                List<Version> versions = it.next();
+                // Only expired versions at the start of the history go: dropping one whose
+                // predecessor stays would stretch the predecessor over its time
+                int expired = expired(versions, retention, cutoff);
+                int dropped = 0;
+                while (dropped < expired && versions.get(dropped).location().segment() == segment) {
+                    dropped++;
+                }
+                for (int i = dropped; i < versions.size(); i++) {
+                    Version version = versions.get(i);
+                    if (version.location().segment() == segment) {
+                        versions.set(i, new Version(version.name(), copy(version.location())));
+                        copied += version.location().length();
+                    }
+                }
+                versions.subList(0, dropped).clear();
+                if (versions.isEmpty()) {
+                    it.remove();
+                }
+            }
+            for (Map.Entry<String, Location> entry : live.entrySet()) {
+                Location location = entry.getValue();
+                if (location.segment() == segment) {
+                    entry.setValue(copy(location));
+                    copied += location.length();
+                }
+            }
+
+            // Deletes are not in the directory: find them in the segment
+            long position = 0;
+            while (position + HEADER_SIZE <= size) {
+                byte[] body = validBody(channel, position, size);
+                if (body == null) {
+                    position = resync(channel, position + 1, size);
+                    continue;
+                }
+                Record record = decodeBody(body);
+                int length = HEADER_SIZE + body.length;
+                List<Version> versions = history.get(record.id());
+                if (record.op() == OP_DELETE && versions != null
+                        && versions.get(0).location().timestamp() < record.timestamp()) {
+                    // A kept version started before this delete, which ends it
+                    copy(new Location(segment, position, length, record.timestamp()));
+                    copied += length;
+                }
+                position += length;
+            }
+
+            // The copies must be on disk before the originals go
+            for (FileChannel written : segments.tailMap(firstWritten, true).values()) {
+                written.force(false);
+            }
+            segments.remove(segment);
+            channel.close();
+            Files.delete(segmentsDir.resolve(segment + SEGMENT_EXT));
+            return size - copied;
+        }
+
+        Record read(Location location) throws IOException {
+            FileChannel channel = segments.get(location.segment());
+            if (channel == null) {
+                throw new IOException("Segment " + location.segment() + " missing in " + segmentsDir);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(location.length());
+            readFully(channel, buffer, location.offset());
+            buffer.flip();
+            buffer.position(HEADER_SIZE);
+            byte[] body = new byte[location.length() - HEADER_SIZE];
+            buffer.get(body);
+            return decodeBody(body);
+        }
+
+        /**
+         * Record holding the state of id at asOf, or null if it did not exist then.
+         */
+        synchronized Location locate(String id, long asOf) {
+            Location current = live.get(id);
+            if (current != null && current.timestamp() <= asOf) {
+                return current;
+            }
+            List<Version> versions = history.get(id);
+            if (versions == null) {
+                return null;
+            }
+            // Versions are appended in time order: find the first one ending after asOf
+            int low = 0;
+            int high = versions.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (versions.get(mid).end() <= asOf) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            if (low < versions.size() && versions.get(low).location().timestamp() <= asOf) {
+                return versions.get(low).location();
+            }
+            return null;
+        }
+
+        synchronized void sync() throws IOException {
+            for (FileChannel channel : segments.values()) {
+                channel.force(false);
+            }
+        }
+
+        synchronized void close() {
+            for (FileChannel channel : segments.values()) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+            segments.clear();
+            live.clear();
+            history.clear();
+            keys.close();
+        }
+    }
+
+    private static long cutoff(VersionArchive.Retention retention) {
+        return retention.maxAgeMs() > 0 ? System.currentTimeMillis() - retention.maxAgeMs() : Long.MIN_VALUE;
+    }
+
+    /**
+     * How many versions at the start of a history the retention no longer
+     * keeps, by the same rule as VersionArchive.
+     */
+    private static int expired(List<Version> versions, VersionArchive.Retention retention, long cutoff) {
+        int expired = retention.maxVersions() > 0 ? Math.max(0, versions.size() - retention.maxVersions()) : 0;
+        while (expired < versions.size() && versions.get(expired).end() < cutoff) {
+            expired++;
+        }
+        return expired;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of segment");
+            }
+        }
+    }
+
+    private static int crc32(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    private static byte[] encodeBody(Record record) throws IOException {
+        byte[] id = record.id().getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(11 + id.length + record.payload().length);
+        try (DataOutputStream out = new DataOutputStream(baos)) {
+            out.writeByte(record.op());
+            out.writeLong(record.timestamp());
+            out.writeShort(id.length);
+            out.write(id);
+            out.write(record.payload());
+        }
+        return baos.toByteArray();
+    }
+
+    private static Record decodeBody(byte[] body) {
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+        byte op = buffer.get();
+        long timestamp = buffer.getLong();
+        byte[] id = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(id);
+        byte[] payload = new byte[buffer.remaining()];
+        buffer.get(payload);
+        return new Record(op, timestamp, new String(id, StandardCharsets.UTF_8), payload);
+    }
+
+    private static byte[] serialize(Map<String, Object> document, KeyDictionary keys) throws IOException {
+        return JettraBinarySerialization.toBytes(document, keys);
+    }
+
+    private static Map<String, Object> deserialize(byte[] payload, KeyDictionary keys) throws IOException {
+        return JettraBinarySerialization.deserialize(ByteBuffer.wrap(payload), keys);
+    }
+
+    /**
+     * The decoded record if it matches the filter, else null. The filter is
+     * tested on a LazyDocument, so records that fail it are never fully decoded.
+     */
+    private static Map<String, Object> readMatching(byte[] payload, KeyDictionary keys, Map<String, Object> filter)
+            throws IOException {
+        Map<String, Object> document = LazyDocument.of(ByteBuffer.wrap(payload), keys);
+        return FilterMatcher.matches(document, filter) ? LazyDocument.materialize(document) : null;
+    }
+
+    private static String key(String database, String collection) {
+        return database + "/" + collection;
+    }
+
+    private CollectionLog collection(String database, String collection, boolean create) throws IOException {
+        String key = key(database, collection);
+        CollectionLog log = collections.get(key);
+        if (log != null) {
+            return log;
+        }
+        Path collectionDir = Paths.get(dataDirectory, database, collection);
+        if (!create && !Files.exists(collectionDir)) {
+            return null;
+        }
+        synchronized (collections) {
+            log = collections.get(key);
+            if (log == null) {
+                Files.createDirectories(collectionDir);
+                log = new CollectionLog(database, collection, collectionDir);
+                collections.put(key, log);
+            }
+            return log;
+        }
+    }
+
+    /**
+     * Closes the open segments of a database so it can be moved, deleted or
+     * replaced on disk by another component (see RouterDocumentStore).
+     */
+    public void closeDatabase(String database) {
+        locks.lockDatabases(database);
+        try {
+            String prefix = database + "/";
+            collections.entrySet().removeIf(e -> {
+                if (e.getKey().startsWith(prefix)) {
+                    e.getValue().close();
+                    return true;
+                }
+                return false;
+            });
+        } finally {
+            locks.unlockDatabases(database);
+        }
+    }
+
+    // --- Compaction ---
+
+    private void compactLater(String database, String collection) {
+        compactor.execute(() -> compact(database, collection));
+    }
+
+    private void compactOpen() {
+        for (String key : collections.keySet()) {
+            int slash = key.indexOf('/');
+            compact(key.substring(0, slash), key.substring(slash + 1));
+        }
+    }
+
+    /**
+     * Compacts the sparse sealed segments of an open collection. The write lock
+     * is taken per segment, so writers wait for one segment copy at most.
+     */
+    void compact(String database, String collection) {
+        String key = key(database, collection);
+        try {
+            VersionArchive.Retention retention = getRetention(database, collection);
+            List<Integer> sparse;
+            locks.lockRead(database, collection);
+            try {
+                CollectionLog log = collections.get(key);
+                if (log == null) {
+                    return;
+                }
+                sparse = log.sparseSegments(retention);
+            } finally {
+                locks.unlockRead(database, collection);
+            }
+
+            long reclaimed = 0;
+            for (int segment : sparse) {
+                locks.lockWrite(database, collection);
+                try {
+                    CollectionLog log = collections.get(key);
+                    if (log == null) {
+                        break;
+                    }
+                    reclaimed += log.compact(segment, retention);
+                } finally {
+                    locks.unlockWrite(database, collection);
+                }
+            }
+            if (!sparse.isEmpty()) {
+                System.out.println("JettraLogStore: compacted " + sparse.size() + " segments of " + key
+                        + ", reclaimed " + reclaimed + " bytes");
+            }
+        } catch (Exception e) {
+            System.err.println("JettraLogStore: compaction of " + key + " failed: " + e.getMessage());
+        }
+    }
+
+    private void closeCollection(String database, String collection) {
+        CollectionLog log = collections.remove(key(database, collection));
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        if (Files.exists(dir)) {
+            try (Stream<Path> walk = Files.walk(dir)) {
+                walk.sorted(java.util.Comparator.reverseOrder())
+                        .map(Path::toFile)
+                        .forEach(File::delete);
+            }
+        }
+    }
+
+    // --- DocumentStore ---
+
+    @Override
+    public String save(String database, String collection, Map<String, Object> document) throws Exception {
+        locks.lockWrite(database, collection);
+        try {
+            if (validator != null) {
+                validator.validate(database, collection, document);
+            }
+
+            String id = (String) document.get("_id");
+            if (id == null) {
+                id = (String) document.get("id");
+            }
+            if (id == null) {
+                id = UUID.randomUUID().toString();
+                document.put("_id", id);
+            }
+
+            CollectionLog log = collection(database, collection, true);
+            boolean exists = log.live.containsKey(id);
+            log.append(OP_PUT, id, serialize(document, log.keys));
+            if (!exists && catalog != null) {
+                catalog.documentAdded(database, collection);
+            }
+            return id;
+        } finally {
+            locks.unlockWrite(database, collection);
+        }
+    }
+
+    @Override
+    public Map<String, Object> findByID(String database, String collection, String id) throws Exception {
+        locks.lockRead(database, collection);
+        try {
+            CollectionLog log = collection(database, collection, false);
+            if (log == null) {
+                return null;
+            }
+            Location location = log.live.get(id);
+            if (location == null) {
+                return null;
+            }
+            return deserialize(log.read(location).payload(), log.keys);
+        } finally {
+            locks.unlockRead(database, collection);
+        }
+    }
+
+    @Override
+    public List<Map<String, Object>> query(String database, String collection, Map<String, Object> filter, int limit,
+            int offset) throws Exception {
+        locks.lockRead(database, collection);
+        try {
+            List<Map<String, Object>> results = new ArrayList<>();
+            CollectionLog log = collection(database, collection, false);
+            if (log == null) {
+                return results;
+            }
+
+            int skipped = 0;
+            for (Location location : log.live.values()) {
+                if ((filter == null || filter.isEmpty()) && skipped < offset) {
+                    // No filter: offset can be applied without reading the record
+                    skipped++;
+                    continue;
+                }
+
+                Map<String, Object> docMap;
+                try {
+                    docMap = readMatching(log.read(location).payload(), log.keys, filter);
+                } catch (Exception e) {
+                    System.err.println("Skipping corrupted record (Log): " + location + " - " + e.getMessage());
+                    continue;
+                }
+
+                if (filter != null && !filter.isEmpty()) {
+                    if (docMap == null)
+                        continue;
+                    if (skipped < offset) {
+                        skipped++;
+                        continue;
+                    }
+                }
+
+                results.add(docMap);
+                if (limit > 0 && results.size() >= limit) {
+                    break;
+                }
+            }
+            return results;
+        } finally {
+            locks.unlockRead(database, collection);
+        }
+    }
+
+    @Override
+    public Stream<Map<String, Object>> stream(String database, String collection, Map<String, Object> filter)
+            throws Exception {
+        CollectionLog log;
+        locks.lockRead(database, collection);
+        try {
+            log = collection(database, collection, false);
+        } finally {
+            locks.unlockRead(database, collection);
+        }
+        if (log == null) {
+            return Stream.empty();
+        }
+
+        // The live map is iterated weakly consistently; records are read one by one
+        return log.live.keySet().stream()
+                .map(id -> streamRead(database, collection, log, id, filter))
+                .filter(docMap -> docMap != null);
+    }
+
+    private Map<String, Object> streamRead(String database, String collection, CollectionLog log, String id,
+            Map<String, Object> filter) {
+        locks.lockRead(database, collection);
+        try {
+            Location location = log.live.get(id);
+            return location != null ? readMatching(log.read(location).payload(), log.keys, filter) : null;
+        } catch (Exception e) {
+            System.err.println("Skipping corrupted record (Log): " + id + " - " + e.getMessage());
+            return null;
+        } finally {
+            locks.unlockRead(database, collection);
+        }
+    }
+
+    // --- Time travel (every record knows when it was written, every version when it ended) ---
+
+    @Override
+    public Map<String, Object> findByID(String database, String collection, String id, long asOf) throws Exception {
+        locks.lockRead(database, collection);
+        try {
+            CollectionLog log = collection(database, collection, false);
+            Location location = log == null ? null : log.locate(id, asOf);
+            return location == null ? null : deserialize(log.read(location).payload(), log.keys);
+        } finally {
+            locks.unlockRead(database, collection);
+        }
+    }
+
+    @Override
+    public Stream<Map<String, Object>> stream(String database, String collection, Map<String, Object> filter,
+            long asOf) throws Exception {
+        CollectionLog log;
+        locks.lockRead(database, collection);
+        try {
+            log = collection(database, collection, false);
+        } finally {
+            locks.unlockRead(database, collection);
+        }
+        if (log == null) {
+            return Stream.empty();
+        }
+
+        // Live documents plus those deleted since, which only have history
+        return Stream.concat(log.live.keySet().stream(), log.history.keySet().stream())
+                .distinct()
+                .map(id -> streamReadAsOf(database, collection, id, asOf))
+                .filter(docMap -> docMap != null && FilterMatcher.matches(docMap, filter));
+    }
+
+    private Map<String, Object> streamReadAsOf(String database, String collection, String id, long asOf) {
+        try {
+            return findByID(database, collection, id, asOf);
+        } catch (Exception e) {
+            System.err.println("Skipping corrupted record (Log): " + id + " - " + e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    public void update(String database, String collection, String id, Map<String, Object> document) throws Exception {
+        save(database, collection, document);
+    }
+
+    @Override
+    public void delete(String database, String collection, String id) throws Exception {
+        locks.lockWrite(database, collection);
+        try {
+            CollectionLog log = collection(database, collection, false);
+            if (log == null || !log.live.containsKey(id)) {
+                return;
+            }
+            if (validator != null) {
+                Map<String, Object> document = findByID(database, collection, id);
+                if (document != null) {
+                    validator.validateDelete(database, collection, document);
+                }
+            }
+            log.append(OP_DELETE, id, new byte[0]);
+            if (catalog != null) {
+                catalog.documentRemoved(database, collection);
+            }
+        } finally {
+            locks.unlockWrite(database, collection);
+        }
+    }
+
+    @Override
+    public int count(String database, String collection) throws Exception {
+        locks.lockRead(database, collection);
+        try {
+            CollectionLog log = collection(database, collection, false);
+            return log == null ? 0 : log.live.size();
+        } finally {
+            locks.unlockRead(database, collection);
+        }
+    }
+
+    @Override
+    public Map<String, List<String>> getDatabaseStructure() throws Exception {
+        Map<String, List<String>> structure = new HashMap<>();
+        Path root = Paths.get(dataDirectory);
+        if (!Files.exists(root))
+            return structure;
+
+        try (Stream<Path> dbs = Files.list(root)) {
+            for (Path db : dbs.toList()) {
+                if (Files.isDirectory(db)) {
+                    String dbName = db.getFileName().toString();
+                    List<String> cols = new ArrayList<>();
+                    try (Stream<Path> cs = Files.list(db)) {
+                        for (Path col : cs.toList()) {
+                            if (Files.isDirectory(col)) {
+                                cols.add(col.getFileName().toString());
+                            }
+                        }
+                    } catch (java.nio.file.NoSuchFileException e) {
+                        continue; // Deleted or renamed while listing; not locked here
+                    }
+                    structure.put(dbName, cols);
+                }
+            }
+        }
+        return structure;
+    }
+
+    @Override
+    public void createDatabase(String name, String engine) throws Exception {
+        locks.lockDatabases(name);
+        try {
+            Files.createDirectories(Paths.get(dataDirectory, name));
+        } finally {
+            locks.unlockDatabases(name);
+        }
+    }
+
+    @Override
+    public void renameDatabase(String oldName, String newName) throws Exception {
+        locks.lockDatabases(oldName, newName);
+        try {
+            closeDatabase(oldName);
+            Path oldDir = Paths.get(dataDirectory, oldName);
+            Path newDir = Paths.get(dataDirectory, newName);
+            if (Files.exists(oldDir)) {
+                Files.move(oldDir, newDir);
+            }
+        } finally {
+            locks.unlockDatabases(oldName, newName);
+        }
+    }
+
+    @Override
+    public void deleteDatabase(String name) throws Exception {
+        locks.lockDatabases(name);
+        try {
+            closeDatabase(name);
+            deleteRecursively(Paths.get(dataDirectory, name));
+        } finally {
+            locks.unlockDatabases(name);
+        }
+    }
+
+    @Override
+    public String backupDatabase(String database) throws Exception {
+        locks.lockDatabaseShared(database);
+        try {
+            Path dbDir = Paths.get(dataDirectory, database);
+            if (!Files.exists(dbDir)) {
+                throw new Exception("Database " + database + " does not exist");
+            }
+
+            // Make sure every appended record is on disk before the segments are copied
+            String prefix = database + "/";
+            for (Map.Entry<String, CollectionLog> e : collections.entrySet()) {
+                if (e.getKey().startsWith(prefix)) {
+                    e.getValue().sync();
+                }
+            }
+
+            Path backupsDir = Paths.get("backups");
+            Files.createDirectories(backupsDir);
+
+            String timestamp = new java.text.SimpleDateFormat("yyyyMMddHHmmss").format(new java.util.Date());
+            String zipName = database + "_" + timestamp + ".zip";
+            Path zipPath = backupsDir.resolve(zipName);
+
+            try (java.util.zip.ZipOutputStream zos = new java.util.zip.ZipOutputStream(Files.newOutputStream(zipPath))) {
+                // One collection at a time: only writers of the collection being copied wait
+                try (Stream<Path> entries = Files.list(dbDir)) {
+                    for (Path entry : entries.toList()) {
+                        if (!Files.isDirectory(entry)) {
+                            zipFiles(zos, dbDir, entry);
+                            continue;
+                        }
+                        String collection = entry.getFileName().toString();
+                        locks.lockRead(database, collection);
+                        try {
+                            zipFiles(zos, dbDir, entry);
+                        } finally {
+                            locks.unlockRead(database, collection);
+                        }
+                    }
+                }
+            }
+            return zipName;
+        } finally {
+            locks.unlockDatabaseShared(database);
+        }
+    }
+
+    private static void zipFiles(java.util.zip.ZipOutputStream zos, Path dbDir, Path root) throws Exception {
+        try (Stream<Path> walk = Files.walk(root)) {
+            walk.filter(path -> !Files.isDirectory(path))
+                    .forEach(path -> {
+                        java.util.zip.ZipEntry zipEntry = new java.util.zip.ZipEntry(dbDir.relativize(path).toString());
+                        try {
+                            zos.putNextEntry(zipEntry);
+                            Files.copy(path, zos);
+                            zos.closeEntry();
+                        } catch (Exception e) {
+                            System.err.println("Failed to zip file: " + path);
+                        }
+                    });
+        }
+    }
+
+    @Override
+    public void restoreDatabase(String zipFilename, String targetDatabase) throws Exception {
+        locks.lockDatabases(targetDatabase);
+        try {
+            closeDatabase(targetDatabase);
+            Path backupsDir = Paths.get("backups");
+            Path zipPath = backupsDir.resolve(zipFilename);
+
+            if (!Files.exists(zipPath)) {
+                throw new Exception("Backup file " + zipFilename + " not found");
+            }
+
+            Path targetDir = Paths.get(dataDirectory, targetDatabase);
+            deleteRecursively(targetDir);
+            Files.createDirectories(targetDir);
+
+            try (java.util.zip.ZipInputStream zis = new java.util.zip.ZipInputStream(Files.newInputStream(zipPath))) {
+                java.util.zip.ZipEntry zipEntry = zis.getNextEntry();
+                while (zipEntry != null) {
+                    Path newPath = targetDir.resolve(zipEntry.getName());
+                    if (!newPath.normalize().startsWith(targetDir.normalize())) {
+                        throw new Exception("Zip Entry outside of target directory");
+                    }
+
+                    if (zipEntry.isDirectory()) {
+                        Files.createDirectories(newPath);
+                    } else {
+                        Files.createDirectories(newPath.getParent());
+                        Files.copy(zis, newPath);
+                    }
+                    zipEntry = zis.getNextEntry();
+                }
+                zis.closeEntry();
+            }
+        } finally {
+            locks.unlockDatabases(targetDatabase);
+        }
+    }
+
+    @Override
+    public long getNextSequence(String database, String collection, String field) throws Exception {
+        return 0;
+    }
+
+    @Override
+    public void createCollection(String database, String collection) throws Exception {
+        locks.lockWrite(database, collection);
+        try {
+            collection(database, collection, true);
+        } finally {
+            locks.unlockWrite(database, collection);
+        }
+    }
+
+    @Override
+    public void renameCollection(String database, String oldName, String newName) throws Exception {
+    }
+
+    @Override
+    public void deleteCollection(String database, String collection) throws Exception {
+        locks.lockWrite(database, collection);
+        try {
+            closeCollection(database, collection);
+            deleteRecursively(Paths.get(dataDirectory, database, collection));
+        } finally {
+            locks.unlockWrite(database, collection);
+        }
+    }
+
+    // --- Transactions (same op-file layout as the other engines) ---
+
+    private Path txDir(String txID) {
+        return Paths.get(dataDirectory, "_system", "_transactions", txID);
+    }
+
+    @Override
+    public String beginTransaction() throws Exception {
+        String txID = UUID.randomUUID().toString();
+        Files.createDirectories(txDir(txID));
+        return txID;
+    }
+
+    @Override
+    public void commitTransaction(String txID) throws Exception {
+        Path txDir = txDir(txID);
+        if (!Files.exists(txDir)) {
+            throw new Exception("Transaction " + txID + " not found or already completed.");
+        }
+
+        try {
+            try (Stream<Path> files = Files.list(txDir)) {
+                List<Path> ops = files.sorted().toList();
+
+                for (Path opFile : ops) {
+                    Map<String, Object> opData = deserialize(Files.readAllBytes(opFile), null);
+                    String type = (String) opData.get("type");
+                    String db = (String) opData.get("db");
+                    String col = (String) opData.get("col");
+
+                    if ("save".equals(type)) {
+                        @SuppressWarnings("unchecked")
+                        Map<String, Object> doc = (Map<String, Object>) opData.get("doc");
+                        save(db, col, doc);
+                    } else if ("delete".equals(type)) {
+                        String id = (String) opData.get("id");
+                        delete(db, col, id);
+                    }
+                }
+            }
+        } finally {
+            rollbackTransaction(txID);
+        }
+    }
+
+    @Override
+    public void rollbackTransaction(String txID) throws Exception {
+        deleteRecursively(txDir(txID));
+    }
+
+    @Override
+    public void saveTx(String database, String collection, Map<String, Object> document, String txID) throws Exception {
+        Path txDir = txDir(txID);
+        if (!Files.exists(txDir)) throw new Exception("Transaction " + txID + " not active");
+
+        Map<String, Object> op = new HashMap<>();
+        op.put("type", "save");
+        op.put("db", database);
+        op.put("col", collection);
+        op.put("doc", document);
+
+        Files.write(txDir.resolve(System.nanoTime() + ".op"), serialize(op, null));
+    }
+
+    @Override
+    public void deleteTx(String database, String collection, String id, String txID) throws Exception {
+        Path txDir = txDir(txID);
+        if (!Files.exists(txDir)) throw new Exception("Transaction " + txID + " not active");
+
+        Map<String, Object> op = new HashMap<>();
+        op.put("type", "delete");
+        op.put("db", database);
+        op.put("col", collection);
+        op.put("id", id);
+
+        Files.write(txDir.resolve(System.nanoTime() + ".op"), serialize(op, null));
+    }
+
+    @Override
+    public void withWriteLocks(java.util.Collection<String[]> collections, LockedWork work) throws Exception {
+        List<String[]> locked = locks.lockWrite(collections);
+        try {
+            work.run();
+        } finally {
+            locks.unlockWrite(locked);
+        }
+    }
+
+    // --- Versioning (superseded records in the segments) ---
+
+    @Override
+    public List<String> getVersions(String database, String collection, String id) throws Exception {
+        locks.lockRead(database, collection);
+        try {
+            CollectionLog log = collection(database, collection, false);
+            if (log == null) {
+                return new ArrayList<>();
+            }
+            List<Version> versions = log.history.get(id);
+            if (versions == null) {
+                return new ArrayList<>();
+            }
+            synchronized (log) {
+                return versions.stream()
+                        .map(Version::name)
+                        .sorted(java.util.Comparator.reverseOrder())
+                        .toList();
+            }
+        } finally {
+            locks.unlockRead(database, collection);
+        }
+    }
+
+    private Location findVersion(CollectionLog log, String id, String version) {
+        List<Version> versions = log.history.get(id);
+        if (versions == null) {
+            return null;
+        }
+        synchronized (log) {
+            for (Version v : versions) {
+                if (v.name().equals(version)) {
+                    return v.location();
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void restoreVersion(String database, String collection, String id, String version) throws Exception {
+        locks.lockWrite(database, collection);
+        try {
+            CollectionLog log = collection(database, collection, false);
+            Location location = log == null ? null : findVersion(log, id, version);
+            if (location == null) {
+                throw new Exception("Version " + version + " not found");
+            }
+            // Re-append the old payload; the current record becomes a version itself
+            boolean exists = log.live.containsKey(id);
+            log.append(OP_PUT, id, log.read(location).payload());
+            if (!exists && catalog != null) {
+                catalog.documentAdded(database, collection);
+            }
+        } finally {
+            locks.unlockWrite(database, collection);
+        }
+    }
+
+    @Override
+    public Map<String, Object> getVersionContent(String database, String collection, String id, String version)
+            throws Exception {
+        locks.lockRead(database, collection);
+        try {
+            CollectionLog log = collection(database, collection, false);
+            Location location = log == null ? null : findVersion(log, id, version);
+            if (location == null) {
+                return null;
+            }
+            return deserialize(log.read(location).payload(), log.keys);
+        } finally {
+            locks.unlockRead(database, collection);
+        }
+    }
+
+    @Override
+    public VersionArchive.Retention getRetention(String database, String collection) throws Exception {
+        return VersionArchive.readRetention(Paths.get(dataDirectory, database, collection));
+    }
+
+    /**
+     * Stores the retention of a collection and compacts its segments now.
+     * Versions it no longer keeps are dropped as their segments are compacted.
+     */
+    @Override
+    public void setRetention(String database, String collection, VersionArchive.Retention retention)
+            throws Exception {
+        locks.lockWrite(database, collection);
+        try {
+            VersionArchive.writeRetention(Paths.get(dataDirectory, database, collection), retention);
+        } finally {
+            locks.unlockWrite(database, collection);
+        }
+        compactLater(database, collection);
+    }
+
+    @Override
+    public void sync(String database, String collection, java.util.Collection<String> ids) throws Exception {
+        locks.lockRead(database, collection);
+        try {
+            CollectionLog log = collections.get(key(database, collection));
+            if (log != null) {
+                log.sync();
+            }
+        } finally {
+            locks.unlockRead(database, collection);
+        }
+    }
+
+    @Override
+    public void reload() {
+        // Logs reopen lazily, so closing each open database's logs is enough
+        java.util.Set<String> databases = new java.util.HashSet<>();
+        for (String key : collections.keySet()) {
+            databases.add(key.substring(0, key.indexOf('/')));
+        }
+        for (String database : databases) {
+            closeDatabase(database);
+        }
+    }
+
+    @Override
+    public String getDatabaseEngine(String database) throws Exception {
+        return ENGINE_NAME;
+    }
+}
@@ -0,0 +1,195 @@
+package io.jettra.core.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Field names of a collection numbered in order of first use, so binary
+ * documents store a small id instead of repeating every key (see
+ * JettraBinarySerialization). Ids are never reused or renumbered.
+ *
+ * Keys longer than MAX_KEY_LENGTH, and new keys once MAX_KEYS are taken,
+ * stay inline in the document, so collections that use data as keys (ids in
+ * a nested map, say) cannot grow the dictionary without bound.
+ *
+ * File layout: [varint length][UTF-8 name] per id, appended as keys are
+ * first seen. {@link #flush} fsyncs new entries; the serializer calls it
+ * before a document using them can reach the disk. A torn entry at the end
+ * (crash mid-append) is cut when the file is opened.
+ */
+public class KeyDictionary {
+    public static final String FILE = "_keys.dict";
+    static final int MAX_KEYS = 4096;
+    static final int MAX_KEY_LENGTH = 64;
+
+    private final FileChannel channel; // null for an in-memory dictionary
+    private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private volatile String[] names = new String[32];
+    private volatile int size;
+    private long end;
+    private volatile boolean dirty;
+
+    private KeyDictionary(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Dictionary that lives only as long as the process, for caches.
+     */
+    public static KeyDictionary inMemory() {
+        return new KeyDictionary(null);
+    }
+
+    public static KeyDictionary open(Path file) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        KeyDictionary dictionary = new KeyDictionary(channel);
+        try {
+            dictionary.load(file);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        return dictionary;
+    }
+
+    private void load(Path file) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate((int) channel.size());
+        while (data.hasRemaining()) {
+            if (channel.read(data, data.position()) < 0) {
+                break;
+            }
+        }
+        data.flip();
+        long valid = 0;
+        try {
+            while (data.hasRemaining()) {
+                int length = JettraBinarySerialization.readVarInt(data);
+                if (length < 0 || length > data.remaining()) {
+                    break;
+                }
+                byte[] name = new byte[length];
+                data.get(name);
+                add(new String(name, StandardCharsets.UTF_8));
+                valid = data.position();
+            }
+        } catch (IOException | RuntimeException e) {
+            // Torn varint at the end
+        }
+        if (valid < channel.size()) {
+            System.err.println("KeyDictionary: truncating " + file + " from " + channel.size() + " to " + valid
+                    + " bytes");
+            channel.truncate(valid);
+        }
+        end = valid;
+    }
+
+    /**
+     * Id of the key, assigning the next one if it is new, or -1 if the key
+     * is kept inline.
+     */
+    public int idOf(String key) throws IOException {
+        Integer id = ids.get(key);
+        if (id != null) {
+            return id;
+        }
+        if (key.length() > MAX_KEY_LENGTH || size >= MAX_KEYS) {
+            return -1;
+        }
+        return assign(key);
+    }
+
+    /**
+     * Id of a key already in the dictionary, or -1; never assigns.
+     */
+    public int lookup(String key) {
+        Integer id = ids.get(key);
+        return id == null ? -1 : id;
+    }
+
+    public String name(int id) throws IOException {
+        int known = size;
+        String[] current = names;
+        if (id < 0 || id >= known) {
+            throw new IOException("Unknown key id " + id + " (dictionary has " + known + " keys)");
+        }
+        return current[id];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Makes every assigned id durable. Cheap when nothing is new.
+     */
+    public void flush() throws IOException {
+        if (!dirty) {
+            return;
+        }
+        synchronized (this) {
+            if (dirty) {
+                channel.force(false);
+                dirty = false;
+            }
+        }
+    }
+
+    public synchronized void close() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            flush();
+            channel.close();
+        } catch (IOException e) {
+            System.err.println("KeyDictionary: close failed: " + e.getMessage());
+        }
+    }
+
+    private synchronized int assign(String key) throws IOException {
+        Integer existing = ids.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        if (size >= MAX_KEYS) {
+            return -1;
+        }
+        if (channel != null) {
+            byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer entry = ByteBuffer.allocate(5 + bytes.length);
+            int length = bytes.length;
+            while ((length & 0xFFFFFF80) != 0) {
+                entry.put((byte) ((length & 0x7F) | 0x80));
+                length >>>= 7;
+            }
+            entry.put((byte) length).put(bytes).flip();
+            while (entry.hasRemaining()) {
+                end += channel.write(entry, end);
+            }
+            dirty = true;
+        }
+        return add(key);
+    }
+
+    // Name is published before the new size, so readers that see the id also see its name
+    private int add(String key) {
+        int id = size;
+        String[] current = names;
+        if (id == current.length) {
+            current = Arrays.copyOf(current, id * 2);
+        }
+        current[id] = key;
+        names = current;
+        size = id + 1;
+        ids.put(key, id);
+        return id;
+    }
+}
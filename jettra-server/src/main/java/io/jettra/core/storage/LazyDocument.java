@@ -0,0 +1,183 @@
+package io.jettra.core.storage;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Read-only view of a document serialized by JettraBinarySerialization,
+ * decoding fields straight from the buffer as they are asked for. Only the
+ * offset table is parsed up front; get() and project() match keys against it
+ * (by dictionary id, or by bytes for inline keys) and decode just the values
+ * they return, so a filter over a scanned document touches the fields it
+ * names and nothing else.
+ *
+ * Anything that needs every entry (entrySet, iteration, equals) decodes the
+ * whole document once; {@link #toMap} returns that plain map. Decoding errors
+ * surface as UncheckedIOException since Map methods cannot throw.
+ */
+public final class LazyDocument extends AbstractMap<String, Object> {
+    private final ByteBuffer buffer;
+    private final KeyDictionary dictionary;
+    // Per field: dictionary id, or -1 and the position and length of the inline key
+    private final int[] keyIds;
+    private final int[] keyStarts;
+    private final int[] keyLengths;
+    private final int[] offsets;
+    private final boolean inlineKeys;
+    private final int valuesStart;
+    private Map<String, Object> materialized;
+
+    private LazyDocument(ByteBuffer buffer, KeyDictionary dictionary) throws IOException {
+        this.buffer = buffer;
+        this.dictionary = dictionary;
+        try {
+            ByteBuffer table = buffer.duplicate();
+            boolean keyed = table.get() == JettraBinarySerialization.TYPE_KEYED_DOCUMENT;
+            int size = JettraBinarySerialization.readVarInt(table);
+            if (size < 0 || size > table.remaining()) {
+                throw new IOException("Invalid field count: " + size);
+            }
+            keyIds = new int[size];
+            keyStarts = new int[size];
+            keyLengths = new int[size];
+            offsets = new int[size];
+            boolean inline = false;
+            for (int i = 0; i < size; i++) {
+                int ref = keyed ? JettraBinarySerialization.readVarInt(table) : 0;
+                keyIds[i] = ref - 1;
+                if (ref == 0) {
+                    inline = true;
+                    keyLengths[i] = JettraBinarySerialization.readVarInt(table);
+                    keyStarts[i] = table.position();
+                    table.position(keyStarts[i] + keyLengths[i]);
+                } else if (dictionary == null) {
+                    throw new IOException("Document keys refer to a key dictionary that was not given");
+                }
+                offsets[i] = keyed ? JettraBinarySerialization.readVarInt(table) : table.getInt();
+            }
+            inlineKeys = inline;
+            valuesStart = table.position();
+        } catch (RuntimeException e) {
+            throw new IOException("Truncated JettraDB document");
+        }
+    }
+
+    /**
+     * A lazy view when the buffer (position to limit) holds a document with
+     * an offset table, otherwise the fully decoded document.
+     */
+    public static Map<String, Object> of(ByteBuffer buffer) throws IOException {
+        return of(buffer, null);
+    }
+
+    /**
+     * Same as {@link #of(ByteBuffer)} for documents written with a key dictionary.
+     */
+    public static Map<String, Object> of(ByteBuffer buffer, KeyDictionary dictionary) throws IOException {
+        if (JettraBinarySerialization.isIndexed(buffer)) {
+            return new LazyDocument(buffer.slice(), dictionary);
+        }
+        return JettraBinarySerialization.deserialize(buffer, dictionary);
+    }
+
+    /**
+     * The plain map behind a document returned by {@link #of}.
+     */
+    public static Map<String, Object> materialize(Map<String, Object> document) {
+        return document instanceof LazyDocument lazy ? lazy.toMap() : document;
+    }
+
+    /**
+     * Decodes only the given fields; missing ones are left out.
+     */
+    public Map<String, Object> project(Collection<String> fields) {
+        Map<String, Object> result = new LinkedHashMap<>();
+        for (String field : fields) {
+            int i = indexOf(field);
+            if (i >= 0) {
+                result.put(field, value(i));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Decodes the whole document (once) into a mutable map.
+     */
+    public Map<String, Object> toMap() {
+        if (materialized == null) {
+            try {
+                materialized = JettraBinarySerialization.deserialize(buffer.duplicate(), dictionary);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return materialized;
+    }
+
+    @Override
+    public Object get(Object key) {
+        if (materialized != null) {
+            return materialized.get(key);
+        }
+        int i = key instanceof String field ? indexOf(field) : -1;
+        return i < 0 ? null : value(i);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        if (materialized != null) {
+            return materialized.containsKey(key);
+        }
+        return key instanceof String field && indexOf(field) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return materialized != null ? materialized.size() : offsets.length;
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return toMap().entrySet();
+    }
+
+    private int indexOf(String field) {
+        // A key known to the dictionary is compared by id; others can only be inline
+        int id = dictionary == null ? -1 : dictionary.lookup(field);
+        byte[] key = inlineKeys ? field.getBytes(StandardCharsets.UTF_8) : null;
+        for (int i = 0; i < offsets.length; i++) {
+            if (keyIds[i] >= 0 ? keyIds[i] == id
+                    : key != null && keyLengths[i] == key.length && keyEquals(keyStarts[i], key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean keyEquals(int start, byte[] key) {
+        for (int j = 0; j < key.length; j++) {
+            if (buffer.get(start + j) != key[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Object value(int i) {
+        try {
+            return JettraBinarySerialization.read(buffer.duplicate().position(valuesStart + offsets[i]), dictionary);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (IllegalArgumentException e) {
+            throw new UncheckedIOException(new IOException("Invalid field offset: " + offsets[i]));
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package io.jettra.core.storage;
+
+import java.io.IOException;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Second cache tier holding documents as JettraBinarySerialization bytes in
+ * direct (off-heap) buffers, so gigabytes of hot documents do not add to the
+ * Java heap or to GC work. Every hit decodes a fresh copy of the document.
+ * Keys are encoded through an in-memory KeyDictionary shared by all entries.
+ *
+ * Memory is split into fixed-size slabs used as a ring: records are appended
+ * to the current slab and, once the budget is reached, the oldest slab is
+ * recycled as a whole. There is no fragmentation and eviction is O(1); a
+ * record read from one of the oldest slabs is copied forward so hot
+ * documents survive recycling.
+ *
+ * Reads do not lock: a slab's generation is checked before and after the
+ * copy, so a record whose slab was recycled meanwhile counts as a miss.
+ */
+public class OffHeapDocumentCache {
+
+    private static final int SLAB_SIZE = 4 * 1024 * 1024;
+
+    private record Slot(int slab, long generation, int offset, int length) {
+    }
+
+    private final ByteBuffer[] slabs;
+    private final AtomicLongArray generations;
+    private final Map<String, Slot> index = new ConcurrentHashMap<>();
+    private final KeyDictionary keys = KeyDictionary.inMemory();
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final long maxBytes;
+    private int current;
+    private int position;
+    private int allocated;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    public OffHeapDocumentCache(long maxBytes) {
+        int count = (int) Math.max(2, Math.min(Integer.MAX_VALUE, maxBytes / SLAB_SIZE));
+        this.maxBytes = (long) count * SLAB_SIZE;
+        this.slabs = new ByteBuffer[count];
+        this.generations = new AtomicLongArray(count);
+    }
+
+    public Map<String, Object> get(String key) {
+        Slot slot = index.get(key);
+        if (slot == null) {
+            misses.increment();
+            return null;
+        }
+        byte[] data = new byte[slot.length()];
+        ByteBuffer slab = slabs[slot.slab()];
+        if (slab == null || generations.get(slot.slab()) != slot.generation()) {
+            index.remove(key, slot);
+            misses.increment();
+            return null;
+        }
+        slab.get(slot.offset(), data);
+        VarHandle.loadLoadFence(); // The copy must be complete before the generation is re-read
+        if (generations.get(slot.slab()) != slot.generation()) {
+            index.remove(key, slot);
+            misses.increment();
+            return null;
+        }
+        Map<String, Object> document;
+        try {
+            document = deserialize(data);
+        } catch (IOException e) {
+            index.remove(key, slot);
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        if (isOld(slot.slab())) {
+            write(key, data, slot);
+        }
+        return document;
+    }
+
+    /**
+     * Stores document unless it holds values JettraBinarySerialization cannot
+     * round-trip (they would come back as strings) or it is larger than a slab.
+     */
+    public void put(String key, Map<String, Object> document) {
+        if (!supported(document)) {
+            index.remove(key);
+            return;
+        }
+        byte[] data;
+        try {
+            data = serialize(document);
+        } catch (IOException e) {
+            index.remove(key);
+            return;
+        }
+        write(key, data, null);
+    }
+
+    public void invalidate(String key) {
+        index.remove(key);
+    }
+
+    public void invalidatePrefix(String prefix) {
+        index.keySet().removeIf(k -> k.startsWith(prefix));
+    }
+
+    public void clear() {
+        index.clear();
+    }
+
+    public Map<String, Object> stats() {
+        long h = hits.sum(), m = misses.sum();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("hits", h);
+        stats.put("misses", m);
+        stats.put("hitRate", h + m == 0 ? 0.0 : Math.round(h * 1000.0 / (h + m)) / 10.0);
+        stats.put("evictions", evictions.sum());
+        stats.put("entries", index.size());
+        stats.put("allocatedBytes", (long) allocated * SLAB_SIZE);
+        stats.put("maxBytes", maxBytes);
+        return stats;
+    }
+
+    // expected == null: unconditional store; otherwise only while key still maps to expected
+    private void write(String key, byte[] data, Slot expected) {
+        if (data.length > SLAB_SIZE) {
+            index.remove(key);
+            return;
+        }
+        writeLock.lock();
+        try {
+            if (expected != null && index.get(key) != expected) {
+                return;
+            }
+            if (slabs[current] == null || position + data.length > SLAB_SIZE) {
+                advance();
+            }
+            slabs[current].put(position, data);
+            index.put(key, new Slot(current, generations.get(current), position, data.length));
+            position += data.length;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private void advance() {
+        if (slabs[current] != null) {
+            current = (current + 1) % slabs.length;
+        }
+        if (slabs[current] == null) {
+            slabs[current] = ByteBuffer.allocateDirect(SLAB_SIZE);
+            allocated++;
+        } else {
+            // Recycle: records still pointing here become stale through the generation check
+            generations.incrementAndGet(current);
+            VarHandle.storeStoreFence();
+            int slab = current;
+            int before = index.size();
+            index.values().removeIf(s -> s.slab() == slab);
+            evictions.add(Math.max(0, before - index.size()));
+        }
+        position = 0;
+    }
+
+    // One of the oldest quarter of slabs, i.e. among the next ones to be recycled
+    private boolean isOld(int slab) {
+        if (allocated < slabs.length) {
+            return false;
+        }
+        int age = (current - slab + slabs.length) % slabs.length;
+        return age >= slabs.length - Math.max(1, slabs.length / 4);
+    }
+
+    private byte[] serialize(Map<String, Object> document) throws IOException {
+        return JettraBinarySerialization.toBytes(document, keys);
+    }
+
+    private Map<String, Object> deserialize(byte[] data) throws IOException {
+        return JettraBinarySerialization.deserialize(ByteBuffer.wrap(data), keys);
+    }
+
+    private static boolean supported(Object value) {
+        if (value == null || value instanceof String || value instanceof Boolean || value instanceof Integer
+                || value instanceof Long || value instanceof Double) {
+            return true;
+        }
+        if (value instanceof Map<?, ?> map) {
+            for (Map.Entry<?, ?> e : map.entrySet()) {
+                if (!(e.getKey() instanceof String) || !supported(e.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        if (value instanceof List<?> list) {
+            for (Object item : list) {
+                if (!supported(item)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,166 @@
+package io.jettra.core.storage;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads and filters the files of a collection scan on several threads.
+ *
+ * Files are cut into chunks of CHUNK_SIZE that workers claim in order; the
+ * calling thread takes the chunk results in that same order, so the merged
+ * result is what a sequential scan returns. Once offset + limit matches are
+ * in, the remaining chunks are not started and workers stop between files.
+ * The caller waits for started chunks to finish before returning, so no
+ * worker is still reading once it releases the collection's lock.
+ *
+ * Workers run in one pool shared by all queries, sized to the machine, and
+ * a single scan uses at most {@code parallelism} of them so it cannot take
+ * every core.
+ */
+public final class ParallelScan {
+    static final int CHUNK_SIZE = 128;
+    // Below this many files a scan is not worth handing to other threads
+    static final int MIN_FILES = CHUNK_SIZE * 2;
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+            pool -> {
+                ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                thread.setName("jettra-scan-" + thread.getPoolIndex());
+                thread.setDaemon(true);
+                return thread;
+            }, null, false);
+
+    /**
+     * Reads one file: the document if it matches, else null.
+     */
+    @FunctionalInterface
+    public interface FileReader {
+        Map<String, Object> read(Path file);
+    }
+
+    private ParallelScan() {
+    }
+
+    /**
+     * Default per-query cap: half the cores, at least 1.
+     */
+    public static int defaultParallelism() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    }
+
+    /**
+     * Matching documents of files in order, after skipping offset matches,
+     * up to limit (0 = all).
+     */
+    public static List<Map<String, Object>> scan(List<Path> files, FileReader reader, int offset, int limit,
+            int parallelism) {
+        int chunks = (files.size() + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        int workers = Math.min(Math.min(parallelism, POOL.getParallelism()), chunks);
+        if (workers <= 1 || files.size() < MIN_FILES) {
+            return collect(files, reader, offset, limit);
+        }
+
+        List<CompletableFuture<List<Map<String, Object>>>> results = new ArrayList<>(chunks);
+        for (int i = 0; i < chunks; i++) {
+            results.add(new CompletableFuture<>());
+        }
+        AtomicInteger next = new AtomicInteger();
+        CountDownLatch finished = new CountDownLatch(workers);
+        AtomicBoolean stop = new AtomicBoolean();
+        Runnable worker = () -> {
+            try {
+                int chunk;
+                while ((chunk = next.getAndIncrement()) < chunks) {
+                    List<Map<String, Object>> matches = new ArrayList<>();
+                    int end = Math.min(files.size(), (chunk + 1) * CHUNK_SIZE);
+                    try {
+                        for (int i = chunk * CHUNK_SIZE; i < end && !stop.get(); i++) {
+                            Map<String, Object> document = reader.read(files.get(i));
+                            if (document != null) {
+                                matches.add(document);
+                            }
+                        }
+                        results.get(chunk).complete(matches);
+                    } catch (RuntimeException | Error e) {
+                        results.get(chunk).completeExceptionally(e);
+                    }
+                }
+            } finally {
+                finished.countDown();
+            }
+        };
+        for (int i = 0; i < workers; i++) {
+            POOL.execute(worker);
+        }
+
+        List<Map<String, Object>> merged = new ArrayList<>();
+        int skipped = 0;
+        try {
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                for (Map<String, Object> document : result(results.get(chunk))) {
+                    if (skipped < offset) {
+                        skipped++;
+                        continue;
+                    }
+                    merged.add(document);
+                    if (limit > 0 && merged.size() >= limit) {
+                        return merged;
+                    }
+                }
+            }
+            return merged;
+        } finally {
+            stop.set(true);
+            next.set(chunks);
+            try {
+                finished.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // The chunk's matches; a reader failure is rethrown as it was thrown, as in the sequential scan
+    private static List<Map<String, Object>> result(CompletableFuture<List<Map<String, Object>>> chunk) {
+        try {
+            return chunk.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static List<Map<String, Object>> collect(List<Path> files, FileReader reader, int offset, int limit) {
+        List<Map<String, Object>> results = new ArrayList<>();
+        int skipped = 0;
+        for (Path file : files) {
+            Map<String, Object> document = reader.read(file);
+            if (document == null) {
+                continue;
+            }
+            if (skipped < offset) {
+                skipped++;
+                continue;
+            }
+            results.add(document);
+            if (limit > 0 && results.size() >= limit) {
+                break;
+            }
+        }
+        return results;
+    }
+}
@@ -4,9 +4,18 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Routes storage operations to the appropriate storage engine (Basic or
@@ -18,21 +27,252 @@ public class RouterDocumentStore implements DocumentStore {
     private final String dataDirectory;
     private final JettraBasicStore basicStore;
     private final JettraEngineStore engineStore;
+    private final JettraLogStore logStore;
+    private final DocumentCache documentCache;
+    private final Catalog catalog;
+    private final WriteAheadLog wal;
+    // Held shared by writes from log append to store apply, exclusively by a checkpoint to cut the log
+    private final ReentrantReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+    private final ReentrantLock checkpointRunning = new ReentrantLock();
+    // db -> collection -> ids written since the last cut, to be synced by the next checkpoint
+    private volatile Map<String, Map<String, Set<String>>> unsynced = new ConcurrentHashMap<>();
+    // Set when a logged write failed after changing documents: its record must be replayed by a restart
+    private volatile Exception failure;
+    private final Map<String, WriteAheadLog.Durability> durabilities = new ConcurrentHashMap<>();
+    private volatile WriteAheadLog.Durability defaultDurability = WriteAheadLog.Durability.DEFAULT;
+    private final ScheduledExecutorService checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "jettra-wal-checkpoint");
+        t.setDaemon(true);
+        return t;
+    });
     private final Map<String, DocumentStore> cache = new ConcurrentHashMap<>();
+    private final VersionArchive versionArchive;
+    private IndexEngine indexer;
+    private io.jettra.core.validation.Validator validator;
+    // Open transactions by id, see TransactionBuffer
+    private final Map<String, TransactionBuffer> transactions = new ConcurrentHashMap<>();
+    // Commit sequences and before-images for snapshot reads
+    private final SnapshotManager snapshots = new SnapshotManager();
+    private final SequenceAllocator sequences;
+
+    // BTreeIndexEngine's tree directory inside a database; not a collection
+    private static final String INDEX_DIR = "_indexes";
+    // _engine document holding a database's durability mode
+    private static final String DURABILITY_ID = "durability";
+    private static final long CHECKPOINT_INTERVAL_SECONDS = 60;
+    private static final long CHECKPOINT_BYTES = 64L * 1024 * 1024;
+    // An open transaction pins its snapshot's before-images: one left idle this long is rolled back
+    private static final long TRANSACTION_IDLE_MILLIS = 10 * 60 * 1000;
 
     // Reserved collections that might always use basic store? No, better to follow
     // DB engine.
     // Exception: getting the engine metadata itself.
 
     public RouterDocumentStore(String dataDirectory) throws Exception {
+        this(dataDirectory, DocumentCache.DEFAULT_MAX_BYTES, 0);
+    }
+
+    /**
+     * @param cacheBytes        byte budget of the document cache shared by the
+     *                          Basic and Engine stores (0 disables it)
+     * @param offHeapCacheBytes budget of its off-heap tier (0 disables it)
+     */
+    public RouterDocumentStore(String dataDirectory, long cacheBytes, long offHeapCacheBytes) throws Exception {
+        this(dataDirectory, cacheBytes, offHeapCacheBytes, false);
+    }
+
+    /**
+     * @param hashedLayout store new (and migrate existing) Basic and Engine
+     *                     collections in hashed subdirectories, see
+     *                     DocumentLayout
+     */
+    public RouterDocumentStore(String dataDirectory, long cacheBytes, long offHeapCacheBytes, boolean hashedLayout)
+            throws Exception {
         this.dataDirectory = dataDirectory;
-        this.basicStore = new JettraBasicStore(dataDirectory);
-        this.engineStore = new JettraEngineStore(dataDirectory);
+        this.documentCache = new DocumentCache(cacheBytes, offHeapCacheBytes);
+        // Shared: database-level operations run through basicStore for every engine
+        DocumentLayout layout = new DocumentLayout(hashedLayout);
+        this.versionArchive = new VersionArchive(dataDirectory, layout);
+        // One lock table for all engines: database-level operations run through basicStore (or
+        // logStore) and must wait for writers of every engine
+        CollectionLocks locks = new CollectionLocks();
+        this.basicStore = new JettraBasicStore(dataDirectory, documentCache, layout, versionArchive, locks);
+        this.engineStore = new JettraEngineStore(dataDirectory, documentCache, layout, versionArchive, locks);
+        this.logStore = new JettraLogStore(dataDirectory, locks);
+        this.sequences = new SequenceAllocator(dataDirectory);
+
+        this.catalog = new Catalog(dataDirectory);
+        this.basicStore.setCatalog(catalog);
+        this.engineStore.setCatalog(catalog);
+        this.logStore.setCatalog(catalog);
+        if (!catalog.load()) {
+            System.out.println("RouterDocumentStore: rebuilding catalog from " + dataDirectory);
+            rebuildCatalog();
+        }
+        catalog.open();
+        resumeVersions();
+
+        discardOpenTransactions();
+        this.wal = new WriteAheadLog(dataDirectory);
+        recover();
+        checkpointer.scheduleWithFixedDelay(this::checkpoint, CHECKPOINT_INTERVAL_SECONDS,
+                CHECKPOINT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        checkpointer.scheduleWithFixedDelay(this::expireTransactions, CHECKPOINT_INTERVAL_SECONDS,
+                CHECKPOINT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::close, "jettra-wal-shutdown"));
+    }
+
+    /**
+     * Durability of databases that did not set their own (see
+     * setDurability).
+     */
+    public void setDefaultDurability(WriteAheadLog.Durability durability) {
+        this.defaultDurability = durability;
+        durabilities.clear();
+    }
+
+    public WriteAheadLog.Durability getDurability(String database) {
+        if (database == null) {
+            return defaultDurability;
+        }
+        return durabilities.computeIfAbsent(database, db -> {
+            try {
+                return WriteAheadLog.Durability.fromMap(basicStore.findByID(db, "_engine", DURABILITY_ID),
+                        defaultDurability);
+            } catch (Exception e) {
+                return defaultDurability;
+            }
+        });
+    }
+
+    public void setDurability(String database, WriteAheadLog.Durability durability) throws Exception {
+        Map<String, Object> doc = new HashMap<>(durability.toMap());
+        doc.put("_id", DURABILITY_ID);
+        basicStore.save(database, "_engine", doc);
+        durabilities.put(database, durability);
+    }
+
+    public DocumentCache getDocumentCache() {
+        return documentCache;
+    }
+
+    /**
+     * Codec, dictionary and ratio per JettraEngineStore collection, see DocumentCompressor.
+     */
+    public Map<String, Object> getCompressionStats() {
+        return engineStore.compressionStats();
+    }
+
+    public Catalog getCatalog() {
+        return catalog;
+    }
+
+    /**
+     * Recounts every database from disk. Used when the manifest cannot be
+     * trusted and after the data directory was replaced (snapshot install).
+     */
+    private void rebuildCatalog() throws Exception {
+        catalog.clear();
+        Path root = Paths.get(dataDirectory);
+        if (!Files.exists(root)) {
+            return;
+        }
+        try (java.util.stream.Stream<Path> dbs = Files.list(root)) {
+            for (Path db : dbs.toList()) {
+                if (Files.isDirectory(db) && !WriteAheadLog.WAL_DIR.equals(db.getFileName().toString())) {
+                    rescanDatabase(db.getFileName().toString());
+                }
+            }
+        }
+    }
+
+    private void rescanDatabase(String database) throws Exception {
+        Path dbDir = Paths.get(dataDirectory, database);
+        if (!Files.isDirectory(dbDir)) {
+            catalog.dropDatabase(database);
+            return;
+        }
+        DocumentStore target = getStore(database);
+        Map<String, Long> counts = new HashMap<>();
+        try (java.util.stream.Stream<Path> cols = Files.list(dbDir)) {
+            for (Path col : cols.toList()) {
+                String name = col.getFileName().toString();
+                if (Files.isDirectory(col) && !INDEX_DIR.equals(name)) {
+                    counts.put(name, (long) target.count(database, name));
+                }
+            }
+        }
+        catalog.putDatabase(database, target.getDatabaseEngine(database), counts);
+    }
+
+    /**
+     * Queues versions left in _pending folders by a crash before new writes
+     * add later ones.
+     */
+    private void resumeVersions() {
+        for (String database : catalog.getStructure().keySet()) {
+            try {
+                DocumentStore target = getStore(database);
+                if (target instanceof JettraBasicStore basic) {
+                    basic.resumeVersions(database);
+                } else if (target instanceof JettraEngineStore engine) {
+                    engine.resumeVersions(database);
+                }
+            } catch (Exception e) {
+                System.err.println("RouterDocumentStore: cannot resume version archiving of " + database + ": "
+                        + e.getMessage());
+            }
+        }
     }
 
     public void setValidator(io.jettra.core.validation.Validator validator) {
-        this.basicStore.setValidator(validator);
-        this.engineStore.setValidator(validator);
+        // Its failures are marked as rejections, so logged() can tell them from failed writes
+        io.jettra.core.validation.Validator rejecting = validator == null ? null : new RejectingValidator(validator);
+        this.validator = rejecting;
+        this.basicStore.setValidator(rejecting);
+        this.engineStore.setValidator(rejecting);
+        this.logStore.setValidator(rejecting);
+    }
+
+    private static final class RejectingValidator implements io.jettra.core.validation.Validator {
+        private final io.jettra.core.validation.Validator validator;
+
+        RejectingValidator(io.jettra.core.validation.Validator validator) {
+            this.validator = validator;
+        }
+
+        @Override
+        public void validate(String database, String collection, Map<String, Object> document) throws Exception {
+            try {
+                validator.validate(database, collection, document);
+            } catch (Exception e) {
+                throw new WriteRejectedException(e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public void validateDelete(String database, String collection, Map<String, Object> document)
+                throws Exception {
+            try {
+                validator.validateDelete(database, collection, document);
+            } catch (Exception e) {
+                throw new WriteRejectedException(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Per-query thread cap for filtered scans of Engine collections.
+     */
+    public void setScanParallelism(int scanParallelism) {
+        this.engineStore.setScanParallelism(scanParallelism);
+    }
+
+    /**
+     * Index engine kept up to date on every write routed through this store.
+     */
+    public void setIndexer(IndexEngine indexer) {
+        this.indexer = indexer;
     }
 
     private DocumentStore getStore(String database) {
@@ -53,12 +293,17 @@ public class RouterDocumentStore implements DocumentStore {
                 // Let's assume we ALWAYS write _engine metadata using BasicStore (JSON/CBOR) so
                 // it's easily readable.
 
-                List<Map<String, Object>> engines = basicStore.query(db, "_engine", null, 1, 0);
-                if (!engines.isEmpty()) {
-                    String engineName = (String) engines.get(0).get("name");
+                // createDatabase leaves two metadata docs ("name" written here, "engine" in
+                // the basic store's config doc), so look at all of them instead of the first.
+                List<Map<String, Object>> engines = basicStore.query(db, "_engine", null, 0, 0);
+                for (Map<String, Object> meta : engines) {
+                    Object engineName = meta.get("name") != null ? meta.get("name") : meta.get("engine");
                     if ("JettraEngineStore".equals(engineName)) {
                         return engineStore;
                     }
+                    if (JettraLogStore.ENGINE_NAME.equals(engineName)) {
+                        return logStore;
+                    }
                 }
 
                 // Default to Basic
@@ -85,13 +330,117 @@ public class RouterDocumentStore implements DocumentStore {
 
         // Invalidate cache implicitly or explicit update
         cache.remove(name);
+        catalog.createDatabase(name, (String) metadata.get("name"));
     }
 
     // --- Delegation ---
 
     @Override
     public String save(String database, String collection, Map<String, Object> document) throws Exception {
-        return getStore(database).save(database, collection, document);
+        DocumentStore target = getStore(database);
+        String id = assignId(document);
+        assignSequences(database, collection, document);
+        long lsn = logged(List.of(op("save", database, collection, id, document)),
+                () -> versioned(target, database, collection, id, previous -> {
+                    target.save(database, collection, document);
+                    if (indexer != null) {
+                        indexer.updateIndex(database, collection, id, previous, document);
+                    }
+                }));
+        wal.commit(lsn, getDurability(database));
+        return id;
+    }
+
+    /**
+     * Saves a batch into one collection as one write-ahead log record and
+     * one commit: every document is validated first, so either all of them
+     * are saved or, on a validation error, none.
+     */
+    @Override
+    public List<String> saveAll(String database, String collection, List<Map<String, Object>> documents)
+            throws Exception {
+        if (documents.isEmpty()) {
+            return List.of();
+        }
+        DocumentStore target = getStore(database);
+        List<String> ids = new java.util.ArrayList<>(documents.size());
+        List<Map<String, Object>> ops = new java.util.ArrayList<>(documents.size());
+        for (Map<String, Object> document : documents) {
+            String id = assignId(document);
+            assignSequences(database, collection, document);
+            ids.add(id);
+            ops.add(op("save", database, collection, id, document));
+        }
+        long lsn = logged(ops, () -> target.withWriteLocks(List.<String[]>of(new String[] { database, collection }),
+                () -> {
+                    SnapshotManager.Write sequence = snapshots.begin();
+                    try {
+                        validateTransaction(ops);
+                        // An id saved twice in the batch replaces its earlier document, not the stored one
+                        Map<String, Map<String, Object>> previous = new HashMap<>();
+                        List<Map<String, Object>> replaced = new java.util.ArrayList<>(ids.size());
+                        for (int i = 0; i < ids.size(); i++) {
+                            String id = ids.get(i);
+                            replaced.add(previous.containsKey(id) ? previous.get(id)
+                                    : recordBefore(sequence, target, database, collection, id));
+                            previous.put(id, documents.get(i));
+                        }
+                        target.saveAll(database, collection, documents);
+                        if (indexer != null) {
+                            for (int i = 0; i < ids.size(); i++) {
+                                indexer.updateIndex(database, collection, ids.get(i), replaced.get(i),
+                                        documents.get(i));
+                            }
+                        }
+                    } finally {
+                        snapshots.end(sequence);
+                    }
+                }));
+        wal.commit(lsn, getDurability(database));
+        return ids;
+    }
+
+    // Same rule as the stores, applied before logging so a replay saves the same id
+    private static String assignId(Map<String, Object> document) {
+        String id = (String) document.get("_id");
+        if (id == null) {
+            id = (String) document.get("id");
+        }
+        if (id == null) {
+            id = UUID.randomUUID().toString();
+            document.put("_id", id);
+        }
+        return id;
+    }
+
+    /**
+     * Fills the fields of the collection's sequential indexes that the
+     * document lacks with the next value of their sequence. Done before the
+     * write is logged or replicated, so replays and followers store the same
+     * values.
+     */
+    public void assignSequences(String database, String collection, Map<String, Object> document)
+            throws Exception {
+        if (indexer == null) {
+            return;
+        }
+        for (String field : indexer.getSequentialFields(database, collection)) {
+            if (document.get(field) == null) {
+                document.put(field, sequences.next(database, collection, field));
+            }
+        }
+    }
+
+    /**
+     * Stored document about to be replaced, needed to drop its old index
+     * entries. Only read when the collection has indexes.
+     */
+    private Map<String, Object> previousVersion(DocumentStore target, String database, String collection, String id)
+            throws Exception {
+        if (id == null || indexer == null || !indexer.hasIndexes(database, collection)) {
+            return null;
+        }
+        return target.findByID(database, collection, id);
     }
 
     @Override
@@ -105,40 +454,518 @@ public class RouterDocumentStore implements DocumentStore {
         return getStore(database).query(database, collection, filter, limit, offset);
     }
 
+    @Override
+    public java.util.stream.Stream<Map<String, Object>> stream(String database, String collection,
+            Map<String, Object> filter) throws Exception {
+        return getStore(database).stream(database, collection, filter);
+    }
+
+    @Override
+    public Map<String, Object> findByID(String database, String collection, String id, long asOf) throws Exception {
+        return getStore(database).findByID(database, collection, id, asOf);
+    }
+
+    @Override
+    public java.util.stream.Stream<Map<String, Object>> stream(String database, String collection,
+            Map<String, Object> filter, long asOf) throws Exception {
+        return getStore(database).stream(database, collection, filter, asOf);
+    }
+
     @Override
     public void update(String database, String collection, String id, Map<String, Object> document) throws Exception {
-        getStore(database).update(database, collection, id, document);
+        DocumentStore target = getStore(database);
+        // The stores save under the document's own id, so that is what gets logged
+        String savedId = assignId(document);
+        long lsn = logged(List.of(op("save", database, collection, savedId, document)),
+                () -> versioned(target, database, collection, id, previous -> {
+                    target.update(database, collection, id, document);
+                    if (indexer != null) {
+                        indexer.updateIndex(database, collection, id, previous, document);
+                    }
+                }));
+        wal.commit(lsn, getDurability(database));
+    }
+
+    /**
+     * Reads, patches and saves the document under its collection's write
+     * lock. The resulting document is logged as a save, so replaying the
+     * log does not apply an $inc or $push twice.
+     */
+    @Override
+    public Map<String, Object> patch(String database, String collection, String id, Map<String, Object> patch,
+            PatchListener listener) throws Exception {
+        DocumentPatch.validate(patch);
+        DocumentStore target = getStore(database);
+        List<Map<String, Object>> patched = new java.util.ArrayList<>(1);
+        long[] lsn = new long[1];
+        // Taken before the collection lock as in every logged write; logged() re-enters it
+        checkpointLock.readLock().lock();
+        try {
+            target.withWriteLocks(List.<String[]>of(new String[] { database, collection }), () -> {
+                Map<String, Object> current = target.findByID(database, collection, id);
+                if (current == null) {
+                    throw new Exception("Document not found: " + id);
+                }
+                Map<String, Object> document = DocumentPatch.apply(current, patch);
+                document.put("_id", id);
+                lsn[0] = logged(List.of(op("save", database, collection, id, document)),
+                        () -> versioned(target, database, collection, id, previous -> {
+                            target.save(database, collection, document);
+                            if (indexer != null) {
+                                indexer.updateIndex(database, collection, id, previous, document);
+                            }
+                        }));
+                if (listener != null) {
+                    listener.patched(document);
+                }
+                patched.add(document);
+            });
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        wal.commit(lsn[0], getDurability(database));
+        return patched.get(0);
     }
 
     @Override
     public void delete(String database, String collection, String id) throws Exception {
-        getStore(database).delete(database, collection, id);
+        DocumentStore target = getStore(database);
+        long lsn = logged(List.of(op("delete", database, collection, id, null)),
+                () -> versioned(target, database, collection, id, previous -> {
+                    target.delete(database, collection, id);
+                    if (indexer != null) {
+                        // Also drops the id from the collection's id tree when no secondary index exists
+                        indexer.removeFromIndex(database, collection, id, previous);
+                    }
+                }));
+        wal.commit(lsn, getDurability(database));
+    }
+
+    // --- Snapshots, see SnapshotManager ---
+
+    private interface VersionedWrite {
+        void apply(Map<String, Object> previous) throws Exception;
+    }
+
+    /**
+     * Runs a write of one document under its collection's write lock as the
+     * next commit, recording the document's before-image first when
+     * snapshots are open. The sequence is taken inside the lock, so the
+     * writes of a document get sequences in the order they reach the store.
+     * The write gets the stored document it replaces when it was read
+     * (snapshots open or the collection is indexed), else null.
+     */
+    private void versioned(DocumentStore target, String database, String collection, String id,
+            VersionedWrite write) throws Exception {
+        target.withWriteLocks(List.<String[]>of(new String[] { database, collection }), () -> {
+            SnapshotManager.Write sequence = snapshots.begin();
+            try {
+                write.apply(recordBefore(sequence, target, database, collection, id));
+            } finally {
+                snapshots.end(sequence);
+            }
+        });
+    }
+
+    private Map<String, Object> recordBefore(SnapshotManager.Write sequence, DocumentStore target, String database,
+            String collection, String id) throws Exception {
+        if (id == null || !sequence.tracked()) {
+            return previousVersion(target, database, collection, id);
+        }
+        Map<String, Object> previous = target.findByID(database, collection, id);
+        snapshots.record(sequence, database, collection, id, previous);
+        return previous;
+    }
+
+    public Map<String, Object> getSnapshotStats() {
+        return snapshots.stats();
+    }
+
+    /**
+     * Runs a query against one snapshot of the collection. Documents are
+     * read one at a time as in stream(), so unlike query() the collection
+     * is not locked for the whole scan and writers are not held up by it;
+     * writes committed meanwhile are not seen.
+     */
+    public List<Map<String, Object>> querySnapshot(String database, String collection, Map<String, Object> filter,
+            int limit, int offset) throws Exception {
+        long snapshot = snapshots.open();
+        try {
+            return queryAt(database, collection, filter, limit, offset, snapshot, null);
+        } finally {
+            snapshots.close(snapshot);
+        }
+    }
+
+    private Map<String, Object> findByIDAt(String database, String collection, String id, long snapshot)
+            throws Exception {
+        // Stored version first: a write racing with this read has recorded its before-image by then
+        Map<String, Object> current = getStore(database).findByID(database, collection, id);
+        SnapshotManager.Visible visible = snapshots.visible(database, collection, id, snapshot);
+        if (visible.current()) {
+            return current;
+        }
+        return visible.document() == null ? null : new LinkedHashMap<>(visible.document());
+    }
+
+    /**
+     * Matching documents at snapshot, with the transaction's own writes (if
+     * any) in place of the stored ones. Documents deleted since the
+     * snapshot, and then those written by the transaction, come after the
+     * stored ones.
+     */
+    @SuppressWarnings("unchecked")
+    private List<Map<String, Object>> queryAt(String database, String collection, Map<String, Object> filter,
+            int limit, int offset, long snapshot, TransactionBuffer tx) throws Exception {
+        Map<String, Map<String, Object>> own = new LinkedHashMap<>();
+        if (tx != null) {
+            for (Map<String, Object> op : tx.latest(database, collection)) {
+                own.put((String) op.get("id"), op);
+            }
+        }
+        Set<String> seen = ConcurrentHashMap.newKeySet();
+        java.util.stream.Stream<Map<String, Object>> stored = getStore(database).stream(database, collection, null)
+                .map(doc -> {
+                    String id = idOf(doc);
+                    seen.add(id);
+                    SnapshotManager.Visible visible = snapshots.visible(database, collection, id, snapshot);
+                    return visible.current() ? doc
+                            : visible.document() == null ? null : new LinkedHashMap<>(visible.document());
+                });
+        // Evaluated once the stored documents are read, so deletes made during the scan are included
+        java.util.stream.Stream<Map<String, Object>> deleted = java.util.stream.Stream.of(collection)
+                .flatMap(c -> snapshots.changedIds(database, c).stream())
+                .filter(id -> !seen.contains(id))
+                .map(id -> snapshots.visible(database, collection, id, snapshot))
+                .filter(visible -> !visible.current() && visible.document() != null)
+                .map(visible -> (Map<String, Object>) new LinkedHashMap<>(visible.document()));
+        java.util.stream.Stream<Map<String, Object>> written = own.values().stream()
+                .filter(op -> "save".equals(op.get("type")))
+                .map(op -> (Map<String, Object>) op.get("doc"));
+
+        try (java.util.stream.Stream<Map<String, Object>> documents = java.util.stream.Stream.concat(
+                java.util.stream.Stream.concat(stored, deleted)
+                        .filter(doc -> doc != null && !own.containsKey(idOf(doc))),
+                written)) {
+            java.util.stream.Stream<Map<String, Object>> matching = documents
+                    .filter(doc -> FilterMatcher.matches(doc, filter))
+                    .skip(offset);
+            return limit > 0 ? matching.limit(limit).toList() : matching.toList();
+        }
+    }
+
+    private static String idOf(Map<String, Object> document) {
+        Object id = document.get("_id");
+        return String.valueOf(id != null ? id : document.get("id"));
+    }
+
+    // --- Write-ahead log ---
+
+    private interface LoggedWrite {
+        void apply() throws Exception;
+    }
+
+    private static Map<String, Object> op(String type, String database, String collection, String id,
+            Map<String, Object> document) {
+        Map<String, Object> op = new HashMap<>();
+        op.put("type", type);
+        op.put("db", database);
+        op.put("col", collection);
+        op.put("id", id);
+        if (document != null) {
+            op.put("doc", document);
+        }
+        return op;
+    }
+
+    /**
+     * Logs ops as one record, then applies them. Returns the record's LSN for
+     * WriteAheadLog.commit, which callers run after the checkpoint lock is
+     * released. When a database of the ops waits for the fsync (always), the
+     * record is forced before the stores are touched: documents are rewritten
+     * in place, and one torn by a crash must have a durable record to be
+     * redone from. A write rejected before it changed anything (validation,
+     * a transaction conflict) is marked aborted so it is not replayed. Any
+     * other failure may have left some of the record's documents written, so
+     * the record is kept for replay instead: the store refuses further writes
+     * and checkpoints until a restart redoes it in full.
+     */
+    private long logged(List<Map<String, Object>> ops, LoggedWrite write) throws Exception {
+        List<List<String>> documents = new java.util.ArrayList<>(ops.size());
+        for (Map<String, Object> op : ops) {
+            documents.add(java.util.Arrays.asList((String) op.get("db"), (String) op.get("col"),
+                    (String) op.get("id")));
+        }
+        return logged(() -> wal.append(ops), documents, write);
+    }
+
+    private interface LogAppend {
+        long append() throws Exception;
+    }
+
+    /**
+     * As above, for a record appended by append that writes the given
+     * documents ([db, col, id]).
+     */
+    private long logged(LogAppend append, List<List<String>> documents, LoggedWrite write) throws Exception {
+        long lsn;
+        boolean forced = waitsForLog(documents);
+        checkpointLock.readLock().lock();
+        try {
+            if (failure != null) {
+                throw new Exception("Writes are refused until restart, a logged write failed partway: "
+                        + failure.getMessage());
+            }
+            lsn = append.append();
+            if (forced) {
+                wal.sync(lsn);
+            }
+            try {
+                write.apply();
+            } catch (WriteRejectedException | TransactionConflictException e) {
+                long abort = wal.append(List.of(Map.of("type", "abort", "lsn", lsn)));
+                if (forced) {
+                    wal.sync(abort);
+                }
+                throw e;
+            } catch (Exception e) {
+                failure = e;
+                System.err.println("RouterDocumentStore: write " + lsn
+                        + " failed partway, refusing writes until a restart replays it: " + e.getMessage());
+                wal.sync(lsn);
+                throw e;
+            }
+            Map<String, Map<String, Set<String>>> pending = unsynced;
+            for (List<String> document : documents) {
+                pending.computeIfAbsent(document.get(0), k -> new ConcurrentHashMap<>())
+                        .computeIfAbsent(document.get(1), k -> ConcurrentHashMap.newKeySet())
+                        .add(document.get(2));
+            }
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
+        if (wal.size() > CHECKPOINT_BYTES && !checkpointRunning.isLocked()) {
+            checkpointer.execute(this::checkpoint);
+        }
+        return lsn;
+    }
+
+    private boolean waitsForLog(List<List<String>> documents) {
+        String last = null;
+        for (List<String> document : documents) {
+            String database = document.get(0);
+            if (!java.util.Objects.equals(database, last) && getDurability(database).waits()) {
+                return true;
+            }
+            last = database;
+        }
+        return false;
+    }
+
+    /**
+     * Replays the records left in the log by a crash. Saves are skipped when
+     * the stored document is already identical, so a clean log costs reads
+     * only. Index trees of every collection in the log are marked for
+     * rebuild first: a logged write may have reached the documents but not
+     * the trees, and replay itself does not go through the indexer (none is
+     * attached yet). A drop record discards the writes logged before it to
+     * the dropped database or collection.
+     */
+    private void recover() throws Exception {
+        List<WriteAheadLog.Entry> entries = wal.readAll();
+        if (entries.isEmpty()) {
+            return;
+        }
+        Set<Long> aborted = new HashSet<>();
+        for (WriteAheadLog.Entry entry : entries) {
+            for (Map<String, Object> op : entry.ops()) {
+                if ("abort".equals(op.get("type"))) {
+                    aborted.add(((Number) op.get("lsn")).longValue());
+                }
+            }
+        }
+        // Ops carry whole documents, so only the last one per document matters; replaying
+        // the earlier ones would also archive versions that never existed
+        Map<List<Object>, Map<String, Object>> last = new java.util.LinkedHashMap<>();
+        for (WriteAheadLog.Entry entry : entries) {
+            if (aborted.contains(entry.lsn())) {
+                continue;
+            }
+            for (Map<String, Object> op : entry.ops()) {
+                if ("drop".equals(op.get("type"))) {
+                    // Writes logged before a database or collection was deleted are not brought back
+                    last.keySet().removeIf(k -> op.get("db").equals(k.get(0))
+                            && (op.get("col") == null || op.get("col").equals(k.get(1))));
+                    continue;
+                }
+                List<Object> key = java.util.Arrays.asList(op.get("db"), op.get("col"), op.get("id"));
+                last.remove(key);
+                last.put(key, op);
+            }
+        }
+        Set<List<Object>> collections = new HashSet<>();
+        for (Map<String, Object> op : last.values()) {
+            boolean write = "save".equals(op.get("type")) || "delete".equals(op.get("type"));
+            if (write && collections.add(List.of(op.get("db"), op.get("col")))) {
+                BTreeIndexEngine.markStale(dataDirectory, (String) op.get("db"), (String) op.get("col"));
+            }
+        }
+        int redone = 0;
+        for (Map<String, Object> op : last.values()) {
+            if (redo(op)) {
+                redone++;
+            }
+        }
+        System.out.println("RouterDocumentStore: recovered " + entries.size() + " log records, " + redone
+                + " operations re-applied");
+        checkpoint();
+    }
+
+    @SuppressWarnings("unchecked")
+    private boolean redo(Map<String, Object> op) throws Exception {
+        String type = (String) op.get("type");
+        String database = (String) op.get("db");
+        String collection = (String) op.get("col");
+        String id = (String) op.get("id");
+        if (!"save".equals(type) && !"delete".equals(type)) {
+            return false;
+        }
+        DocumentStore target = getStore(database);
+        Map<String, Object> current;
+        try {
+            current = target.findByID(database, collection, id);
+        } catch (Exception e) {
+            current = null; // Torn write; the log has the full document
+        }
+        if ("save".equals(type)) {
+            Map<String, Object> document = (Map<String, Object>) op.get("doc");
+            if (document.equals(current)) {
+                return false;
+            }
+            target.save(database, collection, document);
+        } else {
+            if (current == null) {
+                return false;
+            }
+            target.delete(database, collection, id);
+        }
+        unsynced.computeIfAbsent(database, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(collection, k -> ConcurrentHashMap.newKeySet()).add(id);
+        return true;
+    }
+
+    /**
+     * Cuts the log, syncs every document written before the cut and drops
+     * the log up to it. Runs periodically, when the log grows large, after
+     * structural changes and on shutdown.
+     */
+    public void checkpoint() {
+        if (failure != null) {
+            // The log holds a record applied only in part; restart replays it
+            return;
+        }
+        checkpointRunning.lock();
+        try {
+            long cut;
+            Map<String, Map<String, Set<String>>> batch;
+            checkpointLock.writeLock().lock();
+            try {
+                cut = wal.rotate();
+                batch = unsynced;
+                unsynced = new ConcurrentHashMap<>();
+            } finally {
+                checkpointLock.writeLock().unlock();
+            }
+            try {
+                for (Map.Entry<String, Map<String, Set<String>>> db : batch.entrySet()) {
+                    DocumentStore target = getStore(db.getKey());
+                    for (Map.Entry<String, Set<String>> col : db.getValue().entrySet()) {
+                        target.sync(db.getKey(), col.getKey(), col.getValue());
+                    }
+                }
+            } catch (Exception e) {
+                // Keep the log; the next checkpoint retries these documents
+                System.err.println("RouterDocumentStore: checkpoint failed: " + e.getMessage());
+                batch.forEach((db, cols) -> cols.forEach((col, ids) -> unsynced
+                        .computeIfAbsent(db, k -> new ConcurrentHashMap<>())
+                        .computeIfAbsent(col, k -> ConcurrentHashMap.newKeySet()).addAll(ids)));
+                return;
+            }
+            wal.truncate(cut);
+        } catch (Exception e) {
+            System.err.println("RouterDocumentStore: checkpoint failed: " + e.getMessage());
+        } finally {
+            checkpointRunning.unlock();
+        }
+    }
+
+    // Data directory replaced (snapshot install): the logged writes no longer apply
+    private void discardLog() throws Exception {
+        long cut;
+        checkpointLock.writeLock().lock();
+        try {
+            cut = wal.rotate();
+            unsynced = new ConcurrentHashMap<>();
+        } finally {
+            checkpointLock.writeLock().unlock();
+        }
+        wal.truncate(cut);
+    }
+
+    public void close() {
+        if (checkpointer.isShutdown()) {
+            return;
+        }
+        checkpointer.shutdown();
+        checkpoint();
+        wal.close();
+        versionArchive.close();
     }
 
     @Override
     public int count(String database, String collection) throws Exception {
-        return getStore(database).count(database, collection);
+        // Maintained by the stores on every save/delete, see Catalog
+        return (int) catalog.count(database, collection);
     }
 
     @Override
     public Map<String, List<String>> getDatabaseStructure() throws Exception {
-        // Structure is filesystem based, basicStore impl returns directory structure
-        // which is same for both
-        return basicStore.getDatabaseStructure();
+        return catalog.getStructure();
     }
 
     @Override
     public void renameDatabase(String oldName, String newName) throws Exception {
-        // Physical move
+        // Documents must be on disk before they move: the log only knows them by the old name
+        checkpoint();
+        // Physical move; the log engine must release its open segments first
+        logStore.closeDatabase(oldName);
+        closeIndexes(oldName, null);
         basicStore.renameDatabase(oldName, newName); // filesystem move
         cache.remove(oldName);
         cache.remove(newName);
+        catalog.renameDatabase(oldName, newName);
+        durabilities.remove(oldName);
+        durabilities.remove(newName);
+        sequences.forget(oldName);
+        sequences.forget(newName);
+        // Writes that slipped in before the move are not replayed under the old name either
+        checkpoint();
+        if (indexer != null) {
+            indexer.openIndexes(newName);
+        }
     }
 
     @Override
     public void deleteDatabase(String name) throws Exception {
+        logDrop(name, null);
+        logStore.closeDatabase(name);
+        closeIndexes(name, null);
         basicStore.deleteDatabase(name); // filesystem delete
         cache.remove(name);
+        catalog.dropDatabase(name);
+        durabilities.remove(name);
+        sequences.forget(name);
+        checkpoint();
     }
 
     @Override
@@ -149,14 +976,27 @@ public class RouterDocumentStore implements DocumentStore {
         // Restore will unzip them.
         // Logic defaults to basicStore implementation (file walk and zip) which is
         // generic.
+        // The log engine flushes its segments before zipping them.
+        if (getStore(database) == logStore) {
+            return logStore.backupDatabase(database);
+        }
         return basicStore.backupDatabase(database);
     }
 
     @Override
     public void restoreDatabase(String zipFilename, String targetDatabase) throws Exception {
         // Restore is also generic unzipping
+        logStore.closeDatabase(targetDatabase);
+        closeIndexes(targetDatabase, null);
         basicStore.restoreDatabase(zipFilename, targetDatabase);
         cache.remove(targetDatabase);
+        rescanDatabase(targetDatabase);
+        durabilities.remove(targetDatabase);
+        sequences.forget(targetDatabase);
+        checkpoint();
+        if (indexer != null) {
+            indexer.openIndexes(targetDatabase);
+        }
     }
 
     @Override
@@ -166,7 +1006,16 @@ public class RouterDocumentStore implements DocumentStore {
 
     @Override
     public void restoreVersion(String database, String collection, String id, String version) throws Exception {
-        getStore(database).restoreVersion(database, collection, id, version);
+        DocumentStore target = getStore(database);
+        // Logged as a save of the restored content
+        Map<String, Object> content = target.getVersionContent(database, collection, id, version);
+        if (content == null) {
+            throw new Exception("Version " + version + " not found");
+        }
+        long lsn = logged(List.of(op("save", database, collection, id, content)),
+                () -> versioned(target, database, collection, id,
+                        previous -> target.restoreVersion(database, collection, id, version)));
+        wal.commit(lsn, getDurability(database));
     }
 
     @Override
@@ -175,140 +1024,338 @@ public class RouterDocumentStore implements DocumentStore {
         return getStore(database).getVersionContent(database, collection, id, version);
     }
 
+    @Override
+    public VersionArchive.Retention getRetention(String database, String collection) throws Exception {
+        return getStore(database).getRetention(database, collection);
+    }
+
+    @Override
+    public void setRetention(String database, String collection, VersionArchive.Retention retention)
+            throws Exception {
+        getStore(database).setRetention(database, collection, retention);
+    }
+
     @Override
     public long getNextSequence(String database, String collection, String field) throws Exception {
-        return getStore(database).getNextSequence(database, collection, field);
+        return sequences.next(database, collection, field);
+    }
+
+    /**
+     * Reserves count consecutive values of a sequence and returns the first.
+     */
+    public long getNextSequence(String database, String collection, String field, int count) throws Exception {
+        return sequences.next(database, collection, field, count);
+    }
+
+    public SequenceAllocator getSequences() {
+        return sequences;
     }
 
     @Override
     public void createCollection(String database, String collection) throws Exception {
         getStore(database).createCollection(database, collection);
+        catalog.createCollection(database, collection);
     }
 
     @Override
     public void renameCollection(String database, String oldName, String newName) throws Exception {
+        closeIndexes(database, oldName);
         getStore(database).renameCollection(database, oldName, newName);
+        sequences.forget(database);
+        // Recount rather than assume: not every engine moves the collection
+        rescanDatabase(database);
+        checkpoint();
+        if (indexer != null) {
+            indexer.openIndexes(database);
+        }
     }
 
     @Override
     public void deleteCollection(String database, String collection) throws Exception {
+        logDrop(database, collection);
+        closeIndexes(database, collection);
         getStore(database).deleteCollection(database, collection);
+        catalog.dropCollection(database, collection);
+        sequences.forget(database);
+        checkpoint();
+    }
+
+    /**
+     * Logs the drop of a database (collection null) or collection and forces
+     * it before any file is deleted: recover() then skips every write logged
+     * before it, which would otherwise bring deleted documents back after a
+     * crash ahead of the next checkpoint.
+     */
+    private void logDrop(String database, String collection) throws Exception {
+        Map<String, Object> op = new LinkedHashMap<>();
+        op.put("type", "drop");
+        op.put("db", database);
+        if (collection != null) {
+            op.put("col", collection);
+        }
+        checkpointLock.readLock().lock();
+        try {
+            wal.sync(wal.append(List.of(op)));
+        } finally {
+            checkpointLock.readLock().unlock();
+        }
     }
 
+    private void closeIndexes(String database, String collection) throws Exception {
+        if (indexer != null) {
+            indexer.closeIndexes(database, collection);
+        }
+    }
+
+    // --- Transactions: buffered in memory, committed as one log record ---
+
+    /**
+     * Starts a transaction reading at a snapshot of the latest commit: its
+     * reads (findByIDInTransaction, queryInTransaction) see that snapshot
+     * plus its own writes, whatever is committed meanwhile.
+     */
     @Override
     public String beginTransaction() throws Exception {
-        // Transactions are global (system) usually, or per DB?
-        // BasicStore implementation puts them in _system/_transactions.
-        // _system usually falls back to basic store.
-        return basicStore.beginTransaction();
+        String txID = UUID.randomUUID().toString();
+        long snapshot = snapshots.open();
+        transactions.put(txID, new TransactionBuffer(transactionsDir().resolve(txID + TransactionBuffer.SPILL_EXT),
+                snapshot));
+        return txID;
     }
 
+    /**
+     * Applies the transaction's ops as one write-ahead log record: they are
+     * checked for conflicts and validated first, then written while every
+     * collection they touch is locked, and a crash before the stores are
+     * synced redoes all of them on startup. The ops share one commit
+     * sequence, so a snapshot sees all of them or none. If a document the
+     * transaction writes was changed by another commit after its snapshot,
+     * it fails with a TransactionConflictException (first committer wins);
+     * like a validation error, that leaves nothing applied.
+     *
+     * Ops are streamed from the buffer (and its spill file) through
+     * validation, the log append and the apply step; only the list of
+     * documents written is held in memory.
+     */
     @Override
     public void commitTransaction(String txID) throws Exception {
-        // Replay log.
-        // The log contains "db" and "col".
-        // We need to route each op to the correct store!
-        // basicStore.commitTransaction tries to replay using `this.save`.
-        // If we use basicStore.commitTransaction, it uses basicStore.save/delete.
-        // This is WRONG if the target DB is EngineStore.
-
-        // We must implement commitTransaction logic here to dispatch ops correctly.
-        // Reuse logic from BasicStore but dispatch.
-
-        Path txDir = Paths.get(dataDirectory, "_system", "_transactions", txID);
-        if (!Files.exists(txDir)) {
+        TransactionBuffer tx = transactions.remove(txID);
+        if (tx == null) {
             throw new Exception("Transaction " + txID + " not found or already completed.");
         }
-
         try {
-            // Need serialization to read the log?
-            // Logs are written by saveTx.
-            // SaveTx uses the store of that DB? No, saveTx writes to _system location.
-            // Who writes saveTx? `getStore(db).saveTx`?
-            // If getStore(db) is EngineStore, it writes binary log.
-            // If getStore(db) is BasicStore, it writes CBOR log.
-
-            // This is messy. Transaction logs should use a consistent format or we need to
-            // know how to read them.
-            // PROPOSAL: Always use BasicStore (CBOR) for Transaction Logs in _system.
-            // So `saveTx` and `deleteTx` should usually go to BasicStore?
-            // Yes, let's enforce routing saveTx/deleteTx to BasicStore always?
-            // Or does EngineStore have optimized logging?
-            // The user didn't ask for optimized logs, just optimized storage.
-            // For simplicity and reliability, let's use BasicStore for all transaction
-            // management (WAL).
-
-            // basicStore.commitTransactionRouter(txID, this); -- Removed, using manual
-            // replay below
-            // Wait, basicStore doesn't have `commitTransactionRouter`.
-            // I need to duplicate the loop here or expose a way.
-            // Duplicating the loop is safer.
-
-            // Note: Use basicStore to READ the logs because we will force WRITE to
-            // basicStore.
-            // See saveTx override below.
-
-            // Actually, I can't easily access `JettraBasicStore.readMap` (private).
-            // But `JettraBinarySerialization` is public if I used that... but BasicStore
-            // uses Jackson.
-            // I should assume logs are Jackson/CBOR if I use BasicStore for them.
-            // So I need to use `new ObjectMapper(new CBORFactory())` here to read them?
-            // OR I can add a `readTxLog` to DocumentStore? No.
-
-            // Let's implement logic here.
-            com.fasterxml.jackson.databind.ObjectMapper mapper = new com.fasterxml.jackson.databind.ObjectMapper(
-                    new com.fasterxml.jackson.dataformat.cbor.CBORFactory());
-
-            try (java.util.stream.Stream<Path> files = Files.list(txDir)) {
-                List<Path> ops = files.sorted().toList();
-                for (Path opFile : ops) {
-                    Map<String, Object> opData = mapper.readValue(opFile.toFile(),
-                            new com.fasterxml.jackson.core.type.TypeReference<Map<String, Object>>() {
-                            });
-                    String type = (String) opData.get("type");
-                    String db = (String) opData.get("db");
-                    String col = (String) opData.get("col");
-
-                    if ("save".equals(type)) {
-                        @SuppressWarnings("unchecked")
-                        Map<String, Object> doc = (Map<String, Object>) opData.get("doc");
-                        // Route to correct store!
-                        this.save(db, col, doc);
-                    } else if ("delete".equals(type)) {
-                        String id = (String) opData.get("id");
-                        this.delete(db, col, id);
-                    }
-                }
+            List<List<String>> documents = tx.documents();
+            if (documents.isEmpty()) {
+                return;
             }
+            // Grouped per store in a fixed order, collections sorted within each, so commits cannot deadlock
+            Map<DocumentStore, Set<List<String>>> touched = new java.util.LinkedHashMap<>();
+            touched.put(basicStore, new java.util.LinkedHashSet<>());
+            touched.put(engineStore, new java.util.LinkedHashSet<>());
+            touched.put(logStore, new java.util.LinkedHashSet<>());
+            Set<String> databases = new java.util.TreeSet<>();
+            for (List<String> document : documents) {
+                String db = document.get(0);
+                touched.get(getStore(db)).add(List.of(db, document.get(1)));
+                databases.add(db);
+            }
+            List<Map.Entry<DocumentStore, Set<List<String>>>> groups = touched.entrySet().stream()
+                    .filter(e -> !e.getValue().isEmpty()).toList();
 
+            long lsn = logged(() -> wal.append(tx::forEach), documents, () -> withWriteLocks(groups, 0, () -> {
+                SnapshotManager.Write sequence = snapshots.begin();
+                try {
+                    checkConflicts(txID, tx.snapshot(), documents);
+                    tx.forEach(this::validateOp);
+                    tx.forEach(op -> applyTransactionOp(sequence, op));
+                } finally {
+                    snapshots.end(sequence);
+                }
+            }));
+            WriteAheadLog.Durability durability = null;
+            for (String db : databases) {
+                WriteAheadLog.Durability d = getDurability(db);
+                if (durability == null || d.mode().compareTo(durability.mode()) > 0) {
+                    durability = d;
+                }
+            }
+            wal.commit(lsn, durability);
         } finally {
-            try {
-                rollbackTransaction(txID);
-            } catch (Exception e) {
+            finish(tx);
+        }
+    }
+
+    private void checkConflicts(String txID, long snapshot, List<List<String>> documents)
+            throws TransactionConflictException {
+        for (List<String> document : documents) {
+            if (snapshots.changedSince(document.get(0), document.get(1), document.get(2), snapshot)) {
+                throw new TransactionConflictException("Transaction " + txID + " conflicts with a concurrent write to "
+                        + String.join("/", document));
+            }
+        }
+    }
+
+    private void withWriteLocks(List<Map.Entry<DocumentStore, Set<List<String>>>> groups, int i,
+            LockedWork work) throws Exception {
+        if (i == groups.size()) {
+            work.run();
+            return;
+        }
+        List<String[]> collections = groups.get(i).getValue().stream().map(c -> c.toArray(new String[0])).toList();
+        groups.get(i).getKey().withWriteLocks(collections, () -> withWriteLocks(groups, i + 1, work));
+    }
+
+    // Every op is checked before the first one is written, so a rejected transaction changes nothing
+    private void validateTransaction(List<Map<String, Object>> ops) throws Exception {
+        for (Map<String, Object> op : ops) {
+            validateOp(op);
+        }
+    }
+
+    private void validateOp(Map<String, Object> op) throws Exception {
+        if (validator == null) {
+            return;
+        }
+        String db = (String) op.get("db");
+        String col = (String) op.get("col");
+        if ("save".equals(op.get("type"))) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> doc = (Map<String, Object>) op.get("doc");
+            validator.validate(db, col, doc);
+        } else {
+            Map<String, Object> current = getStore(db).findByID(db, col, (String) op.get("id"));
+            if (current != null) {
+                validator.validateDelete(db, col, current);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void applyTransactionOp(SnapshotManager.Write sequence, Map<String, Object> op) throws Exception {
+        String db = (String) op.get("db");
+        String col = (String) op.get("col");
+        String id = (String) op.get("id");
+        DocumentStore target = getStore(db);
+        Map<String, Object> previous = recordBefore(sequence, target, db, col, id);
+        if ("save".equals(op.get("type"))) {
+            Map<String, Object> doc = (Map<String, Object>) op.get("doc");
+            target.save(db, col, doc);
+            if (indexer != null) {
+                indexer.updateIndex(db, col, id, previous, doc);
+            }
+        } else {
+            target.delete(db, col, id);
+            if (indexer != null) {
+                indexer.removeFromIndex(db, col, id, previous);
             }
         }
     }
 
     @Override
     public void rollbackTransaction(String txID) throws Exception {
-        basicStore.rollbackTransaction(txID);
+        TransactionBuffer tx = transactions.remove(txID);
+        if (tx != null) {
+            finish(tx);
+        }
+    }
+
+    /**
+     * The document as the transaction sees it: its own last write, else the
+     * stored version at its snapshot.
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> findByIDInTransaction(String database, String collection, String id, String txID)
+            throws Exception {
+        TransactionBuffer tx = activeTransaction(txID);
+        Map<String, Object> own = tx.latest(database, collection, id);
+        if (own != null) {
+            return "save".equals(own.get("type")) ? (Map<String, Object>) own.get("doc") : null;
+        }
+        return findByIDAt(database, collection, id, tx.snapshot());
+    }
+
+    /**
+     * query() as the transaction sees the collection, see findByIDInTransaction.
+     */
+    public List<Map<String, Object>> queryInTransaction(String database, String collection,
+            Map<String, Object> filter, int limit, int offset, String txID) throws Exception {
+        TransactionBuffer tx = activeTransaction(txID);
+        return queryAt(database, collection, filter, limit, offset, tx.snapshot(), tx);
+    }
+
+    private void finish(TransactionBuffer tx) {
+        tx.discard();
+        snapshots.close(tx.snapshot());
+    }
+
+    private void expireTransactions() {
+        long idleSince = System.currentTimeMillis() - TRANSACTION_IDLE_MILLIS;
+        for (Map.Entry<String, TransactionBuffer> e : transactions.entrySet()) {
+            if (e.getValue().lastUsed() < idleSince && transactions.remove(e.getKey(), e.getValue())) {
+                System.out.println("RouterDocumentStore: rolling back idle transaction " + e.getKey());
+                finish(e.getValue());
+            }
+        }
     }
 
     @Override
     public void saveTx(String database, String collection, Map<String, Object> document, String txID) throws Exception {
-        // ALWAYS use basic store for logs
-        basicStore.saveTx(database, collection, document, txID);
+        TransactionBuffer tx = activeTransaction(txID);
+        // The id (and sequence values) are fixed now so the logged op and the applied one agree
+        String id = assignId(document);
+        assignSequences(database, collection, document);
+        tx.add(op("save", database, collection, id, document));
     }
 
     @Override
     public void deleteTx(String database, String collection, String id, String txID) throws Exception {
-        // ALWAYS use basic store for logs
-        basicStore.deleteTx(database, collection, id, txID);
+        activeTransaction(txID).add(op("delete", database, collection, id, null));
+    }
+
+    private TransactionBuffer activeTransaction(String txID) throws Exception {
+        TransactionBuffer tx = transactions.get(txID);
+        if (tx == null) {
+            throw new Exception("Transaction " + txID + " not active");
+        }
+        tx.touch();
+        return tx;
+    }
+
+    private Path transactionsDir() {
+        return Paths.get(dataDirectory, "_system", "_transactions");
+    }
+
+    // Transactions open when the server stopped were never committed: drop what they left behind
+    private void discardOpenTransactions() {
+        Path dir = transactionsDir();
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        try (java.util.stream.Stream<Path> files = Files.list(dir)) {
+            for (Path file : files.toList()) {
+                if (Files.isDirectory(file)) {
+                    // Op-file directory of the previous transaction format
+                    try (java.util.stream.Stream<Path> ops = Files.list(file)) {
+                        for (Path op : ops.toList()) {
+                            Files.deleteIfExists(op);
+                        }
+                    }
+                }
+                Files.deleteIfExists(file);
+            }
+        } catch (java.io.IOException e) {
+            System.err.println("RouterDocumentStore: could not clean " + dir + ": " + e.getMessage());
+        }
     }
 
     @Override
     public String getDatabaseEngine(String database) throws Exception {
-        return getStore(database).getDatabaseEngine(database);
+        String engine = catalog.getEngine(database);
+        if (engine == null) {
+            engine = getStore(database).getDatabaseEngine(database);
+            catalog.setEngine(database, engine);
+        }
+        return engine;
     }
 
     @Override
@@ -317,6 +1364,11 @@ public class RouterDocumentStore implements DocumentStore {
         try {
             basicStore.reload();
             engineStore.reload();
+            logStore.reload();
+            durabilities.clear();
+            sequences.forget(null);
+            discardLog();
+            rebuildCatalog();
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -0,0 +1,141 @@
+package io.jettra.core.storage;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer reused by one thread for encoding and decoding, so
+ * writing or reading a document does not allocate its working arrays again
+ * (see {@link #get}). Contents are only valid until the owner's next use of
+ * the same slot, so anything kept has to be copied out.
+ *
+ * A buffer grown past RETAIN_LIMIT by an unusually large document is dropped
+ * on the next reset instead of being held by the thread forever.
+ */
+final class ScratchBuffer {
+    static final int RETAIN_LIMIT = 1024 * 1024;
+    private final int initialCapacity;
+    private byte[] data;
+    private int size;
+
+    ScratchBuffer(int initialCapacity) {
+        this.initialCapacity = initialCapacity;
+        this.data = new byte[initialCapacity];
+    }
+
+    /**
+     * A thread-local scratch buffer, reset and ready for writing.
+     */
+    static ScratchBuffer get(ThreadLocal<ScratchBuffer> slot) {
+        return slot.get().reset();
+    }
+
+    static ThreadLocal<ScratchBuffer> slot(int initialCapacity) {
+        return ThreadLocal.withInitial(() -> new ScratchBuffer(initialCapacity));
+    }
+
+    ScratchBuffer reset() {
+        if (data.length > RETAIN_LIMIT) {
+            data = new byte[initialCapacity];
+        }
+        size = 0;
+        return this;
+    }
+
+    int size() {
+        return size;
+    }
+
+    byte[] array() {
+        return data;
+    }
+
+    /**
+     * Makes room for at least n more bytes after the current size.
+     */
+    void ensure(int n) {
+        if (size + n > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, size + n));
+        }
+    }
+
+    /**
+     * Marks n bytes written directly into array() after the current size.
+     */
+    void advance(int n) {
+        size += n;
+    }
+
+    void write(int b) {
+        ensure(1);
+        data[size++] = (byte) b;
+    }
+
+    void write(byte[] bytes, int offset, int length) {
+        ensure(length);
+        System.arraycopy(bytes, offset, data, size, length);
+        size += length;
+    }
+
+    void write(ScratchBuffer other) {
+        write(other.data, 0, other.size);
+    }
+
+    void writeVarInt(int value) {
+        ensure(5);
+        while ((value & 0xFFFFFF80) != 0) {
+            data[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data[size++] = (byte) (value & 0x7F);
+    }
+
+    void writeVarLong(long value) {
+        ensure(10);
+        while ((value & 0xFFFFFFFFFFFFFF80L) != 0) {
+            data[size++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        data[size++] = (byte) (value & 0x7F);
+    }
+
+    void writeLong(long value) {
+        ensure(8);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            data[size++] = (byte) (value >>> shift);
+        }
+    }
+
+    /**
+     * Varint byte length and the UTF-8 bytes; ASCII, the usual case for keys
+     * and most values, is copied without an intermediate array.
+     */
+    void writeString(String value) {
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            if (value.charAt(i) >= 0x80) {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                writeVarInt(bytes.length);
+                write(bytes, 0, bytes.length);
+                return;
+            }
+        }
+        writeVarInt(length);
+        ensure(length);
+        for (int i = 0; i < length; i++) {
+            data[size++] = (byte) value.charAt(i);
+        }
+    }
+
+    /**
+     * The bytes written so far, without copying.
+     */
+    ByteBuffer view() {
+        return ByteBuffer.wrap(data, 0, size);
+    }
+
+    byte[] toByteArray() {
+        return Arrays.copyOf(data, size);
+    }
+}
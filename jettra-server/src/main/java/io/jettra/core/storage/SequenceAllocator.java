@@ -0,0 +1,183 @@
+package io.jettra.core.storage;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Persistent numeric sequences, one per (database, collection, field),
+ * starting at 1.
+ *
+ * Values are handed out from a block reserved in memory by a single
+ * getAndAdd, so a call does no I/O and takes no lock. When a block runs
+ * out, the next one (blockSize values) is reserved by writing its upper
+ * bound to the collection's {@code _sequences.json} (fsynced, replaced
+ * atomically), and the listener is told so the reservation can be
+ * replicated. After a restart a sequence continues above the last reserved
+ * bound: the unused rest of a block is skipped, so sequences are unique and
+ * increasing but not gap-free.
+ */
+public class SequenceAllocator {
+    public static final int DEFAULT_BLOCK_SIZE = 1000;
+    static final String FILE = "_sequences.json";
+
+    /**
+     * Called with a block's upper bound once it is durable, before any
+     * value of it is handed out.
+     */
+    @FunctionalInterface
+    public interface ReservationListener {
+        void reserved(String database, String collection, String field, long upper) throws Exception;
+    }
+
+    // Values in [next, end); a thread that takes a value past end reserves the next block
+    private record Block(AtomicLong next, long end) {
+        static Block empty() {
+            return new Block(new AtomicLong(), 0);
+        }
+    }
+
+    private static final class Sequence {
+        volatile Block block = Block.empty();
+    }
+
+    private final String dataDirectory;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final Map<List<String>, Sequence> sequences = new ConcurrentHashMap<>();
+    // [db, col] -> field -> upper bound of the last reserved block, as in the collection's file
+    private final Map<List<String>, Map<String, Long>> reserved = new ConcurrentHashMap<>();
+    private volatile int blockSize = DEFAULT_BLOCK_SIZE;
+    private volatile ReservationListener listener;
+
+    public SequenceAllocator(String dataDirectory) {
+        this.dataDirectory = dataDirectory;
+    }
+
+    public void setBlockSize(int blockSize) {
+        this.blockSize = Math.max(1, blockSize);
+    }
+
+    public void setListener(ReservationListener listener) {
+        this.listener = listener;
+    }
+
+    public long next(String database, String collection, String field) throws Exception {
+        return next(database, collection, field, 1);
+    }
+
+    /**
+     * Reserves count consecutive values and returns the first.
+     */
+    public long next(String database, String collection, String field, int count) throws Exception {
+        if (count < 1) {
+            throw new IllegalArgumentException("count must be at least 1");
+        }
+        Sequence sequence = sequences.computeIfAbsent(List.of(database, collection, field), k -> new Sequence());
+        while (true) {
+            Block block = sequence.block;
+            long first = block.next().getAndAdd(count);
+            if (first + count <= block.end()) {
+                return first;
+            }
+            synchronized (sequence) {
+                // Only the first thread past the end reserves; the others retry on the new block
+                if (sequence.block == block) {
+                    int size = Math.max(blockSize, count);
+                    long upper = reserve(database, collection, field, size);
+                    sequence.block = new Block(new AtomicLong(upper - size + 1), upper + 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Raises the stored bound to upper (a reservation replicated from the
+     * leader). Values this node still holds in memory are dropped, so it
+     * continues above upper if it allocates itself.
+     */
+    public void advance(String database, String collection, String field, long upper) throws IOException {
+        synchronized (this) {
+            Map<String, Long> marks = marks(database, collection);
+            if (marks.getOrDefault(field, 0L) >= upper) {
+                return;
+            }
+            marks.put(field, upper);
+            write(database, collection, marks);
+        }
+        Sequence sequence = sequences.get(List.of(database, collection, field));
+        if (sequence != null) {
+            synchronized (sequence) {
+                sequence.block = Block.empty();
+            }
+        }
+    }
+
+    /**
+     * Drops what is held for a database (all of them when null) after its
+     * directories were moved, replaced or deleted; the files are read again
+     * on next use.
+     */
+    public void forget(String database) {
+        synchronized (this) {
+            reserved.keySet().removeIf(k -> database == null || k.get(0).equals(database));
+        }
+        sequences.keySet().removeIf(k -> database == null || k.get(0).equals(database));
+    }
+
+    private long reserve(String database, String collection, String field, int size) throws Exception {
+        long upper;
+        synchronized (this) {
+            Map<String, Long> marks = marks(database, collection);
+            upper = marks.getOrDefault(field, 0L) + size;
+            marks.put(field, upper);
+            write(database, collection, marks);
+        }
+        ReservationListener l = listener;
+        if (l != null) {
+            l.reserved(database, collection, field, upper);
+        }
+        return upper;
+    }
+
+    private Map<String, Long> marks(String database, String collection) throws IOException {
+        List<String> key = List.of(database, collection);
+        Map<String, Long> marks = reserved.get(key);
+        if (marks == null) {
+            marks = new TreeMap<>();
+            Path file = file(database, collection);
+            if (Files.exists(file)) {
+                marks.putAll(mapper.readValue(file.toFile(), new TypeReference<Map<String, Long>>() {
+                }));
+            }
+            reserved.put(key, marks);
+        }
+        return marks;
+    }
+
+    private void write(String database, String collection, Map<String, Long> marks) throws IOException {
+        Path file = file(database, collection);
+        Files.createDirectories(file.getParent());
+        Path tmp = file.resolveSibling(FILE + ".tmp");
+        mapper.writeValue(tmp.toFile(), marks);
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private Path file(String database, String collection) {
+        return Paths.get(dataDirectory, database, collection, FILE);
+    }
+}
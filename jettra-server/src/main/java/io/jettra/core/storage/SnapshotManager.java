@@ -0,0 +1,205 @@
+package io.jettra.core.storage;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Snapshot reads over the stores, which only keep the latest version of a
+ * document on disk (multi-version concurrency control kept in memory).
+ *
+ * Every committed write gets the next commit sequence. A snapshot is the
+ * sequence current when it was opened: it sees every write up to it and
+ * none after. While any snapshot is open, a write first records the state
+ * the document had before it (its before-image) in the document's chain,
+ * tagged with the write's sequence. A reader at snapshot S reads the stored
+ * document and then the chain: if a write after S touched the document, the
+ * before-image of the first such write is what the document was at S.
+ * Writers record the image before changing the store and readers look at
+ * the chain after reading it, so a write racing with a read is always
+ * caught by one or the other.
+ *
+ * Readers take no locks beyond the per-document read lock of the stores,
+ * and writers never wait for readers. Opening a snapshot waits only for
+ * writes that already have a sequence to finish, so that everything up to
+ * it is in the store. Chains are dropped as soon as no open snapshot can
+ * need them, and are not kept at all while no snapshot is open: memory
+ * grows with the writes made during long snapshots, not with their reads.
+ */
+public class SnapshotManager {
+
+    /**
+     * A write in progress: its commit sequence, and whether snapshots were
+     * open when it started (only then are before-images recorded).
+     */
+    public record Write(long sequence, boolean tracked) {
+    }
+
+    /**
+     * What a snapshot sees of a document: the stored version (current), or
+     * the given before-image, null when the document did not exist then.
+     */
+    public record Visible(boolean current, Map<String, Object> document) {
+        static final Visible CURRENT = new Visible(true, null);
+    }
+
+    private record Image(long sequence, Map<String, Object> document) {
+    }
+
+    private long clock;
+    private final TreeSet<Long> inFlight = new TreeSet<>();
+    // Open snapshots (sequence -> how many), a multiset ordered so the oldest is first
+    private final TreeMap<Long, Integer> open = new TreeMap<>();
+    // "db/col" -> id -> before-images in sequence order
+    private final Map<String, Map<String, List<Image>>> chains = new ConcurrentHashMap<>();
+
+    /**
+     * Opens a snapshot at the latest commit, once the writes before it are stored.
+     */
+    public synchronized long open() throws InterruptedException {
+        long snapshot = clock;
+        open.merge(snapshot, 1, Integer::sum);
+        try {
+            while (!inFlight.isEmpty() && inFlight.first() <= snapshot) {
+                wait();
+            }
+        } catch (InterruptedException e) {
+            close(snapshot);
+            throw e;
+        }
+        return snapshot;
+    }
+
+    public synchronized void close(long snapshot) {
+        Integer count = open.get(snapshot);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            open.put(snapshot, count - 1);
+            return;
+        }
+        open.remove(snapshot);
+        prune();
+    }
+
+    /**
+     * Starts a write; call {@link #end} when it is in the store (or failed).
+     */
+    public synchronized Write begin() {
+        long sequence = ++clock;
+        inFlight.add(sequence);
+        return new Write(sequence, !open.isEmpty());
+    }
+
+    public synchronized void end(Write write) {
+        inFlight.remove(write.sequence());
+        notifyAll();
+    }
+
+    /**
+     * Records what the document was before write changed it. Only the first
+     * image per write counts, so a transaction writing a document twice keeps
+     * the state from before the transaction.
+     */
+    public void record(Write write, String database, String collection, String id, Map<String, Object> before) {
+        if (!write.tracked()) {
+            return;
+        }
+        Image image = new Image(write.sequence(), before == null ? null : new LinkedHashMap<>(before));
+        // Looked up and appended in one step, so prune() cannot drop the chain in between
+        chains.compute(database + "/" + collection, (key, ids) -> {
+            Map<String, List<Image>> collectionChains = ids == null ? new ConcurrentHashMap<>() : ids;
+            collectionChains.compute(id, (k, chain) -> {
+                List<Image> images = chain == null ? new ArrayList<>() : chain;
+                synchronized (images) {
+                    if (images.isEmpty() || images.get(images.size() - 1).sequence() != write.sequence()) {
+                        images.add(image);
+                    }
+                }
+                return images;
+            });
+            return collectionChains;
+        });
+    }
+
+    /**
+     * The document as snapshot sees it. Call after reading the stored version.
+     */
+    public Visible visible(String database, String collection, String id, long snapshot) {
+        Map<String, List<Image>> ids = chains.get(database + "/" + collection);
+        List<Image> chain = ids == null ? null : ids.get(id);
+        if (chain == null) {
+            return Visible.CURRENT;
+        }
+        synchronized (chain) {
+            for (Image image : chain) {
+                if (image.sequence() > snapshot) {
+                    return new Visible(false, image.document());
+                }
+            }
+        }
+        return Visible.CURRENT;
+    }
+
+    /**
+     * True when a write committed after snapshot changed the document, the
+     * first-committer-wins check of a transaction started at snapshot.
+     */
+    public boolean changedSince(String database, String collection, String id, long snapshot) {
+        return !visible(database, collection, id, snapshot).current();
+    }
+
+    /**
+     * Ids of the collection written since the oldest open snapshot, so a scan
+     * can find documents deleted after its snapshot.
+     */
+    public List<String> changedIds(String database, String collection) {
+        Map<String, List<Image>> ids = chains.get(database + "/" + collection);
+        return ids == null ? List.of() : new ArrayList<>(ids.keySet());
+    }
+
+    public synchronized Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("commitSequence", clock);
+        stats.put("openSnapshots", open.values().stream().mapToInt(Integer::intValue).sum());
+        stats.put("oldestSnapshot", open.isEmpty() ? null : open.firstKey());
+        long images = 0;
+        for (Map<String, List<Image>> ids : chains.values()) {
+            for (List<Image> chain : ids.values()) {
+                synchronized (chain) {
+                    images += chain.size();
+                }
+            }
+        }
+        stats.put("beforeImages", images);
+        return stats;
+    }
+
+    // Images at or below the oldest open snapshot can no longer be chosen by any reader
+    private void prune() {
+        if (open.isEmpty()) {
+            chains.clear();
+            return;
+        }
+        long oldest = open.firstKey();
+        // Removed through compute, as record() adds, so an image is never added to a dropped chain
+        for (String key : chains.keySet()) {
+            chains.computeIfPresent(key, (k, ids) -> {
+                for (String id : ids.keySet()) {
+                    ids.computeIfPresent(id, (i, chain) -> {
+                        synchronized (chain) {
+                            chain.removeIf(image -> image.sequence() <= oldest);
+                            return chain.isEmpty() ? null : chain;
+                        }
+                    });
+                }
+                return ids.isEmpty() ? null : ids;
+            });
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package io.jettra.core.storage;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+/**
+ * Ops of an open transaction, kept until commit or rollback.
+ *
+ * Each op is CBOR encoded when it is added (as in the WriteAheadLog), so
+ * later changes to the caller's map do not leak into the transaction and
+ * the buffer knows its size. Ops stay in memory up to SPILL_BYTES; past
+ * that they are appended to a spill file ([length:int][op] per op) and
+ * memory is cleared, so a large bulk transaction does not have to fit in
+ * the heap.
+ *
+ * The last op per document is indexed (its bytes, or its place in the spill
+ * file), so reads inside the transaction see its own writes: see
+ * {@link #latest}. The transaction reads everything else at the snapshot it
+ * opened with (see SnapshotManager).
+ *
+ * Nothing here is durable: a transaction that has not committed when the
+ * server stops is gone, and leftover spill files are removed on startup.
+ */
+public class TransactionBuffer {
+    public static final String SPILL_EXT = ".spill";
+    static final long SPILL_BYTES = 4L * 1024 * 1024;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper(new CBORFactory());
+    private static final TypeReference<Map<String, Object>> OP = new TypeReference<>() {
+    };
+
+    private final Path spillFile;
+    private final long snapshot;
+    private final List<byte[]> ops = new ArrayList<>();
+    // [db, col, id] -> the document's last op: its bytes, or {offset, length} in the spill file
+    private final Map<List<String>, Object> latest = new HashMap<>();
+    private long bytes;
+    private int spilled;
+    private long spillSize;
+    private boolean discarded;
+    private volatile long lastUsed = System.currentTimeMillis();
+
+    /**
+     * @param snapshot the SnapshotManager snapshot the transaction reads at
+     */
+    public TransactionBuffer(Path spillFile, long snapshot) {
+        this.spillFile = spillFile;
+        this.snapshot = snapshot;
+    }
+
+    public long snapshot() {
+        return snapshot;
+    }
+
+    public long lastUsed() {
+        return lastUsed;
+    }
+
+    public void touch() {
+        lastUsed = System.currentTimeMillis();
+    }
+
+    public synchronized void add(Map<String, Object> op) throws IOException {
+        if (discarded) {
+            // Committed, rolled back or expired while this op was on its way
+            throw new IOException("Transaction already completed");
+        }
+        byte[] data = MAPPER.writeValueAsBytes(op);
+        ops.add(data);
+        latest.put(key(op), data);
+        bytes += data.length;
+        if (bytes > SPILL_BYTES) {
+            spill();
+        }
+    }
+
+    /**
+     * The transaction's last op on a document, null when it has not touched it.
+     */
+    public synchronized Map<String, Object> latest(String database, String collection, String id)
+            throws IOException {
+        Object data = latest.get(List.of(database, collection, id));
+        return data == null ? null : read(data);
+    }
+
+    /**
+     * The transaction's last op on each document of a collection it touched.
+     */
+    public synchronized List<Map<String, Object>> latest(String database, String collection) throws IOException {
+        List<Map<String, Object>> result = new ArrayList<>();
+        for (Map.Entry<List<String>, Object> e : latest.entrySet()) {
+            if (e.getKey().get(0).equals(database) && e.getKey().get(1).equals(collection)) {
+                result.add(read(e.getValue()));
+            }
+        }
+        return result;
+    }
+
+    public synchronized int size() {
+        return spilled + ops.size();
+    }
+
+    /**
+     * Visits every op in the order it was added. Spilled ops are read back
+     * one at a time, so a commit never holds the whole transaction in memory.
+     */
+    public synchronized void forEach(WriteAheadLog.OpVisitor visitor) throws Exception {
+        if (spilled > 0) {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(spillFile), 64 * 1024))) {
+                for (int i = 0; i < spilled; i++) {
+                    byte[] op = new byte[in.readInt()];
+                    in.readFully(op);
+                    visitor.visit(MAPPER.readValue(op, OP));
+                }
+            }
+        }
+        for (byte[] op : ops) {
+            visitor.visit(MAPPER.readValue(op, OP));
+        }
+    }
+
+    /**
+     * Each document the transaction writes, as [db, col, id], once.
+     */
+    public synchronized List<List<String>> documents() {
+        return new ArrayList<>(latest.keySet());
+    }
+
+    public synchronized void discard() {
+        discarded = true;
+        ops.clear();
+        latest.clear();
+        bytes = 0;
+        if (spilled > 0) {
+            try {
+                Files.deleteIfExists(spillFile);
+            } catch (IOException e) {
+                System.err.println("TransactionBuffer: could not delete " + spillFile + ": " + e.getMessage());
+            }
+            spilled = 0;
+            spillSize = 0;
+        }
+    }
+
+    private static List<String> key(Map<String, Object> op) {
+        return List.of((String) op.get("db"), (String) op.get("col"), (String) op.get("id"));
+    }
+
+    private Map<String, Object> read(Object data) throws IOException {
+        if (data instanceof byte[] bytes) {
+            return MAPPER.readValue(bytes, OP);
+        }
+        long[] at = (long[]) data;
+        ByteBuffer op = ByteBuffer.allocate((int) at[1]);
+        try (FileChannel channel = FileChannel.open(spillFile, StandardOpenOption.READ)) {
+            while (op.hasRemaining()) {
+                if (channel.read(op, at[0] + op.position()) < 0) {
+                    throw new IOException("Truncated spill file " + spillFile);
+                }
+            }
+        }
+        return MAPPER.readValue(op.array(), OP);
+    }
+
+    private void spill() throws IOException {
+        Files.createDirectories(spillFile.getParent());
+        Map<byte[], long[]> positions = new java.util.IdentityHashMap<>();
+        try (FileChannel channel = FileChannel.open(spillFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            for (byte[] op : ops) {
+                ByteBuffer record = ByteBuffer.allocate(4 + op.length).putInt(op.length).put(op).flip();
+                while (record.hasRemaining()) {
+                    channel.write(record);
+                }
+                positions.put(op, new long[] { spillSize + 4, op.length });
+                spillSize += 4 + op.length;
+            }
+        }
+        // Ops still the latest of their document are now read from the spill file
+        latest.replaceAll((k, v) -> v instanceof byte[] && positions.containsKey(v) ? positions.get(v) : v);
+        spilled += ops.size();
+        ops.clear();
+        bytes = 0;
+    }
+}
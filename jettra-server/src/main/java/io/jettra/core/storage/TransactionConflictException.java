@@ -0,0 +1,15 @@
+package io.jettra.core.storage;
+
+/**
+ * A transaction tried to commit a write to a document that another write
+ * changed after the transaction's snapshot (first committer wins). Nothing
+ * of the transaction was applied; it can be retried from the start.
+ */
+public class TransactionConflictException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public TransactionConflictException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,762 @@
+package io.jettra.core.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+/**
+ * Version history of the file-per-document stores (JettraBasicStore,
+ * JettraEngineStore).
+ *
+ * When a document is overwritten or deleted, the store renames its file into
+ * the collection's {@code _pending/} folder (no copy) and queues it here. A
+ * single background thread appends it to the document's history chain
+ * ({@link DocumentLayout#historyFile}) and deletes the pending file, so the
+ * write itself never copies or re-encodes the old version.
+ *
+ * A chain is one append-only file of records, each the state a document had
+ * from validFrom (the old file's modification time) to validTo (when it was
+ * replaced). Every {@value #FULL_EVERY}th record is a full CBOR copy, the
+ * others are top-level field deltas against the record before, so reading a
+ * version decodes at most that many records. Versions are named by validTo.
+ *
+ * {@link #asOf} answers time-travel reads from an in-memory index per
+ * collection (id -> versions sorted by validTo), loaded on first use and
+ * kept current by the archiver thread, so a point-in-time read costs a binary
+ * search plus at most one short chain read.
+ *
+ * Per-collection retention (max versions and/or max age, in
+ * {@code <col>/_retention.json}) is applied by a compaction job that
+ * rewrites chains; it runs hourly and whenever a retention is set. Old
+ * {@code _versions/<id>/<ts>.jdb} copies are folded into the chain the
+ * first time a document's history is touched.
+ */
+public class VersionArchive {
+    public static final String PENDING_DIR = "_pending";
+    private static final String RETENTION_FILE = "_retention.json";
+    private static final String PENDING_EXT = ".pend";
+    private static final int FULL_EVERY = 16;
+    private static final byte FULL = 0;
+    private static final byte DELTA = 1;
+    private static final byte KIND_MASK = 0x0F;
+    // Flag on a record whose state ended with a delete rather than a new version
+    private static final byte DELETED = 0x10;
+    // Record: [validTo:long][validFrom:long][kind:byte][baseOffset:long][length:int][payload][start:long]
+    private static final int HEADER_SIZE = 29;
+    private static final int TRAILER_SIZE = 8;
+    private static final long COMPACTION_INTERVAL_MINUTES = 60;
+
+    /**
+     * Reads a document file in the owning store's format.
+     */
+    public interface DocumentReader {
+        Map<String, Object> read(Path file) throws Exception;
+    }
+
+    /**
+     * 0 disables a limit.
+     */
+    public record Retention(int maxVersions, long maxAgeMs) {
+        public static final Retention NONE = new Retention(0, 0);
+
+        public Retention {
+            if (maxVersions < 0 || maxAgeMs < 0) {
+                throw new IllegalArgumentException("maxVersions and maxAgeMs must be >= 0");
+            }
+        }
+
+        public Map<String, Object> toMap() {
+            return Map.of("maxVersions", maxVersions, "maxAgeMs", maxAgeMs);
+        }
+
+        public static Retention fromMap(Map<String, Object> map) {
+            Object versions = map.get("maxVersions");
+            Object age = map.get("maxAgeMs");
+            return new Retention(versions == null ? 0 : Integer.parseInt(versions.toString()),
+                    age == null ? 0 : Long.parseLong(age.toString()));
+        }
+
+        public boolean isNone() {
+            return maxVersions <= 0 && maxAgeMs <= 0;
+        }
+    }
+
+    /**
+     * One archived state: what the document was from validFrom until validTo.
+     */
+    public record Version(long validFrom, long validTo, byte kind, long base, long start) {
+
+        public boolean deleted() {
+            return (kind & DELETED) != 0;
+        }
+    }
+
+    private final String dataDirectory;
+    private final DocumentLayout layout;
+    private final ObjectMapper cbor = new ObjectMapper(new CBORFactory());
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private final AtomicLong sequence = new AtomicLong(System.nanoTime());
+    // Collection directory -> id -> versions oldest first; written by the archiver thread only
+    private final Map<Path, Map<String, List<Version>>> indexes = new ConcurrentHashMap<>();
+    // Collection directory -> files queued but not archived yet
+    private final Map<Path, AtomicInteger> queued = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "jettra-version-archiver");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public VersionArchive(String dataDirectory, DocumentLayout layout) {
+        this.dataDirectory = dataDirectory;
+        this.layout = layout;
+        writer.scheduleWithFixedDelay(this::compactAll, COMPACTION_INTERVAL_MINUTES, COMPACTION_INTERVAL_MINUTES,
+                TimeUnit.MINUTES);
+    }
+
+    // --- Write path (caller holds the collection write lock) ---
+
+    /**
+     * Moves liveFile out of the way and queues it for archiving. The caller
+     * then writes the new document, or nothing when deleted is true.
+     */
+    public void archive(Path collectionDir, String id, Path liveFile, boolean deleted, DocumentReader reader)
+            throws IOException {
+        Path pendingDir = collectionDir.resolve(PENDING_DIR);
+        Files.createDirectories(pendingDir);
+        Path pending = pendingDir.resolve(System.currentTimeMillis() + "~" + sequence.incrementAndGet() + "~"
+                + (deleted ? "d" : "u") + "~" + id + PENDING_EXT);
+        Files.move(liveFile, pending);
+        queue(collectionDir, id, pending, reader, false);
+    }
+
+    private void queue(Path collectionDir, String id, Path pending, DocumentReader reader, boolean resumed) {
+        AtomicInteger count = queued.computeIfAbsent(collectionDir, k -> new AtomicInteger());
+        count.incrementAndGet();
+        writer.execute(() -> {
+            try {
+                process(collectionDir, id, pending, reader, resumed);
+            } finally {
+                count.decrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * Queues the pending files a crash left behind in a database's
+     * collections, oldest first.
+     */
+    public void resume(Path databaseDir, DocumentReader reader) throws IOException {
+        if (!Files.isDirectory(databaseDir)) {
+            return;
+        }
+        try (Stream<Path> cols = Files.list(databaseDir)) {
+            for (Path collectionDir : cols.toList()) {
+                Path pendingDir = collectionDir.resolve(PENDING_DIR);
+                if (!Files.isDirectory(pendingDir)) {
+                    continue;
+                }
+                List<Path> files;
+                try (Stream<Path> s = Files.list(pendingDir)) {
+                    files = s.filter(p -> p.getFileName().toString().endsWith(PENDING_EXT))
+                            .sorted(Comparator.comparingLong((Path p) -> pendingField(p, 0))
+                                    .thenComparingLong(p -> pendingField(p, 1)))
+                            .toList();
+                }
+                for (Path pending : files) {
+                    String id = pendingFields(pending)[3];
+                    queue(collectionDir, id.substring(0, id.length() - PENDING_EXT.length()), pending, reader, true);
+                }
+            }
+        }
+    }
+
+    // <validTo>~<sequence>~<d|u>~<id>.pend
+    private static String[] pendingFields(Path pending) {
+        return pending.getFileName().toString().split("~", 4);
+    }
+
+    private static long pendingField(Path pending, int index) {
+        return Long.parseLong(pendingFields(pending)[index]);
+    }
+
+    private void process(Path collectionDir, String id, Path pending, DocumentReader reader, boolean resumed) {
+        try {
+            if (!Files.exists(pending)) {
+                return; // Collection or database dropped meanwhile
+            }
+            Map<String, Object> state = reader.read(pending);
+            long validFrom = Files.getLastModifiedTime(pending).toMillis();
+            long validTo = pendingField(pending, 0);
+            boolean deleted = "d".equals(pendingFields(pending)[2]);
+            Path chain = layout.historyFile(collectionDir, id);
+            importLegacy(collectionDir, id, chain, reader);
+            Version written = append(chain, validFrom, validTo, deleted, state, resumed);
+            Map<String, List<Version>> index = indexes.get(collectionDir);
+            if (written != null && index != null) {
+                List<Version> versions = new ArrayList<>(index.getOrDefault(id, List.of()));
+                versions.add(written);
+                index.put(id, List.copyOf(versions));
+            }
+            Files.delete(pending);
+        } catch (Exception e) {
+            System.err.println("VersionArchive: failed to archive " + pending + ": " + e.getMessage());
+        }
+    }
+
+    // --- Reads ---
+
+    /**
+     * Version names of a document, newest first.
+     */
+    public List<String> versions(Path collectionDir, String id, DocumentReader reader) throws Exception {
+        return onWriter(() -> {
+            Path chain = layout.historyFile(collectionDir, id);
+            importLegacy(collectionDir, id, chain, reader);
+            List<String> names = new ArrayList<>();
+            List<Version> index = readIndex(chain);
+            for (int i = index.size() - 1; i >= 0; i--) {
+                names.add(String.valueOf(index.get(i).validTo()));
+            }
+            return names;
+        });
+    }
+
+    /**
+     * Content of a version, or null if there is no such version.
+     */
+    public Map<String, Object> content(Path collectionDir, String id, String version, DocumentReader reader)
+            throws Exception {
+        long validTo = parseVersion(version);
+        return onWriter(() -> {
+            Path chain = layout.historyFile(collectionDir, id);
+            importLegacy(collectionDir, id, chain, reader);
+            for (Version v : readIndex(chain)) {
+                if (v.validTo() == validTo) {
+                    return read(chain, v);
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * The document as it was at asOf (epoch millis): the archived state valid
+     * then, the current document (liveFile, read through current) if it
+     * already existed, or null. Caller holds the collection read lock.
+     */
+    public Map<String, Object> asOf(Path collectionDir, String id, long asOf, Path liveFile, DocumentReader reader,
+            Callable<Map<String, Object>> current) throws Exception {
+        AtomicInteger pending = queued.get(collectionDir);
+        if (pending != null && pending.get() > 0) {
+            flush();
+        }
+        List<Version> versions = index(collectionDir, reader).getOrDefault(id, List.of());
+        if (Files.exists(liveFile)) {
+            // The current state began when the last version ended, unless that was a delete
+            Version last = versions.isEmpty() ? null : versions.get(versions.size() - 1);
+            long since = last != null && !last.deleted() ? last.validTo()
+                    : Files.getLastModifiedTime(liveFile).toMillis();
+            if (since <= asOf) {
+                return current.call();
+            }
+        }
+        Version version = find(versions, asOf);
+        if (version == null) {
+            return null;
+        }
+        Path chain = layout.historyFile(collectionDir, id);
+        try {
+            return read(chain, version);
+        } catch (IOException e) {
+            // Chain rewritten by compaction since the index was read; look it up again on the archiver
+            return onWriter(() -> {
+                Version again = find(index(collectionDir, reader).getOrDefault(id, List.of()), asOf);
+                return again == null ? null : read(chain, again);
+            });
+        }
+    }
+
+    // The version whose [validFrom, validTo) contains asOf, by binary search on validTo
+    private static Version find(List<Version> versions, long asOf) {
+        int low = 0;
+        int high = versions.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (versions.get(mid).validTo() <= asOf) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        if (low < versions.size() && versions.get(low).validFrom() <= asOf) {
+            return versions.get(low);
+        }
+        return null;
+    }
+
+    /**
+     * Ids with archived versions in a collection, including deleted documents.
+     */
+    public java.util.Set<String> ids(Path collectionDir, DocumentReader reader) throws Exception {
+        AtomicInteger pending = queued.get(collectionDir);
+        if (pending != null && pending.get() > 0) {
+            flush();
+        }
+        return index(collectionDir, reader).keySet();
+    }
+
+    private Map<String, List<Version>> index(Path collectionDir, DocumentReader reader) throws Exception {
+        Map<String, List<Version>> index = indexes.get(collectionDir);
+        if (index != null) {
+            return index;
+        }
+        return onWriter(() -> {
+            Map<String, List<Version>> loaded = indexes.get(collectionDir);
+            if (loaded == null) {
+                loaded = loadIndex(collectionDir, reader);
+                indexes.put(collectionDir, loaded);
+            }
+            return loaded;
+        });
+    }
+
+    private Map<String, List<Version>> loadIndex(Path collectionDir, DocumentReader reader) throws Exception {
+        Map<String, List<Version>> index = new ConcurrentHashMap<>();
+        List<Path> legacy;
+        try (Stream<Path> dirs = layout.legacyVersionDirs(collectionDir)) {
+            legacy = dirs.toList();
+        }
+        for (Path dir : legacy) {
+            String id = dir.getFileName().toString();
+            importLegacy(collectionDir, id, layout.historyFile(collectionDir, id), reader);
+        }
+        List<Path> chains;
+        try (Stream<Path> files = layout.historyFiles(collectionDir)) {
+            chains = files.toList();
+        }
+        for (Path chain : chains) {
+            List<Version> versions = readIndex(chain);
+            if (!versions.isEmpty()) {
+                index.put(chainId(chain), List.copyOf(versions));
+            }
+        }
+        return index;
+    }
+
+    private static String chainId(Path chain) {
+        String name = chain.getFileName().toString();
+        return name.substring(0, name.length() - DocumentLayout.HISTORY_EXT.length());
+    }
+
+    // After a chain was rewritten
+    private void reindex(Path collectionDir, Path chain) throws IOException {
+        Map<String, List<Version>> index = indexes.get(collectionDir);
+        if (index == null) {
+            return;
+        }
+        List<Version> versions = readIndex(chain);
+        if (versions.isEmpty()) {
+            index.remove(chainId(chain));
+        } else {
+            index.put(chainId(chain), List.copyOf(versions));
+        }
+    }
+
+    /**
+     * Drops the indexes of every collection under dir, after it was renamed,
+     * deleted or restored.
+     */
+    public void forget(Path dir) {
+        indexes.keySet().removeIf(p -> p.startsWith(dir));
+    }
+
+    /**
+     * Blocks until everything queued so far is archived, e.g. before the
+     * directories holding pending files are moved or deleted.
+     */
+    public void flush() {
+        try {
+            onWriter(() -> null);
+        } catch (Exception e) {
+            System.err.println("VersionArchive: flush failed: " + e.getMessage());
+        }
+    }
+
+    private <T> T onWriter(Callable<T> task) throws Exception {
+        try {
+            return writer.submit(task).get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        }
+    }
+
+    // Legacy version names are "<millis>" or "<millis>_<nanos>"
+    private static long parseVersion(String version) {
+        int sep = version.indexOf('_');
+        return Long.parseLong(sep < 0 ? version : version.substring(0, sep));
+    }
+
+    // --- Retention and compaction ---
+
+    public Retention getRetention(Path collectionDir) {
+        return readRetention(collectionDir);
+    }
+
+    /**
+     * Retention stored in a collection directory; JettraLogStore keeps its own
+     * there too, in the same file.
+     */
+    static Retention readRetention(Path collectionDir) {
+        Path file = collectionDir.resolve(RETENTION_FILE);
+        if (!Files.exists(file)) {
+            return Retention.NONE;
+        }
+        try {
+            Map<String, Object> map = JSON.readValue(file.toFile(), new TypeReference<Map<String, Object>>() {
+            });
+            return Retention.fromMap(map);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("VersionArchive: unreadable " + file + ": " + e.getMessage());
+            return Retention.NONE;
+        }
+    }
+
+    static void writeRetention(Path collectionDir, Retention retention) throws IOException {
+        Files.createDirectories(collectionDir);
+        Path file = collectionDir.resolve(RETENTION_FILE);
+        if (retention.isNone()) {
+            Files.deleteIfExists(file);
+        } else {
+            JSON.writeValue(file.toFile(), retention.toMap());
+        }
+    }
+
+    /**
+     * Stores the retention of a collection and compacts its history now.
+     */
+    public void setRetention(Path collectionDir, Retention retention) throws Exception {
+        writeRetention(collectionDir, retention);
+        if (retention.isNone()) {
+            return;
+        }
+        onWriter(() -> {
+            compactCollection(collectionDir, retention);
+            return null;
+        });
+    }
+
+    private void compactAll() {
+        Path root = java.nio.file.Paths.get(dataDirectory);
+        try (Stream<Path> dbs = Files.list(root)) {
+            for (Path db : dbs.filter(Files::isDirectory).toList()) {
+                try (Stream<Path> cols = Files.list(db)) {
+                    for (Path col : cols.filter(p -> Files.exists(p.resolve(RETENTION_FILE))).toList()) {
+                        compactCollection(col, getRetention(col));
+                    }
+                }
+            }
+        } catch (Exception e) {
+            System.err.println("VersionArchive: compaction failed: " + e.getMessage());
+        }
+    }
+
+    private void compactCollection(Path collectionDir, Retention retention) throws IOException {
+        if (retention.isNone()) {
+            return;
+        }
+        List<Path> chains;
+        try (Stream<Path> files = layout.historyFiles(collectionDir)) {
+            chains = files.toList();
+        }
+        long cutoff = retention.maxAgeMs() > 0 ? System.currentTimeMillis() - retention.maxAgeMs() : Long.MIN_VALUE;
+        int removed = 0;
+        for (Path chain : chains) {
+            List<Version> index = readIndex(chain);
+            int keepFrom = 0;
+            if (retention.maxVersions() > 0) {
+                keepFrom = Math.max(0, index.size() - retention.maxVersions());
+            }
+            while (keepFrom < index.size() && index.get(keepFrom).validTo() < cutoff) {
+                keepFrom++;
+            }
+            if (keepFrom == 0) {
+                continue;
+            }
+            removed += keepFrom;
+            List<Version> kept = index.subList(keepFrom, index.size());
+            List<Map<String, Object>> states = new ArrayList<>();
+            for (Version v : kept) {
+                states.add(read(chain, v));
+            }
+            rewrite(chain, kept, states);
+            reindex(collectionDir, chain);
+        }
+        if (removed > 0) {
+            System.out.println("VersionArchive: compacted " + collectionDir + ", dropped " + removed + " versions");
+        }
+    }
+
+    // --- Chain files ---
+
+    private Version append(Path chain, long validFrom, long validTo, boolean deleted, Map<String, Object> state,
+            boolean resumed) throws IOException {
+        Files.createDirectories(chain.getParent());
+        try (FileChannel channel = FileChannel.open(chain, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            byte kind = FULL;
+            long base = size;
+            byte[] payload;
+            if (size >= HEADER_SIZE + TRAILER_SIZE) {
+                Version last = header(channel, trailer(channel, size));
+                if (validTo <= last.validTo()) {
+                    if (resumed) {
+                        return null; // Appended before the crash, pending file not yet deleted
+                    }
+                    validTo = last.validTo() + 1; // Names must stay unique
+                }
+                List<Version> run = readRun(channel, last.base(), size);
+                if (run.size() < FULL_EVERY) {
+                    Map<String, Object> previous = replay(channel, run);
+                    kind = DELTA;
+                    base = last.base();
+                    payload = cbor.writeValueAsBytes(delta(previous, state));
+                } else {
+                    payload = cbor.writeValueAsBytes(state);
+                }
+            } else {
+                payload = cbor.writeValueAsBytes(state);
+            }
+            if (deleted) {
+                kind |= DELETED;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload.length + TRAILER_SIZE);
+            buffer.putLong(validTo).putLong(validFrom).put(kind).putLong(base).putInt(payload.length).put(payload)
+                    .putLong(size).flip();
+            long position = size;
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+            return new Version(validFrom, validTo, kind, base, size);
+        }
+    }
+
+    /**
+     * All complete records of a chain, oldest first (empty if it does not exist).
+     */
+    public List<Version> readIndex(Path chain) throws IOException {
+        if (!Files.exists(chain)) {
+            return new ArrayList<>();
+        }
+        try (FileChannel channel = FileChannel.open(chain, StandardOpenOption.READ)) {
+            return readRun(channel, 0, channel.size());
+        }
+    }
+
+    public Map<String, Object> read(Path chain, Version version) throws IOException {
+        try (FileChannel channel = FileChannel.open(chain, StandardOpenOption.READ)) {
+            if (channel.size() < version.start() + HEADER_SIZE + TRAILER_SIZE
+                    || header(channel, version.start()).validTo() != version.validTo()) {
+                throw new IOException("Version " + version.validTo() + " moved in " + chain);
+            }
+            List<Version> run = readRun(channel, version.base(), version.start() + 1);
+            return replay(channel, run);
+        }
+    }
+
+    private List<Version> readRun(FileChannel channel, long from, long end) throws IOException {
+        List<Version> run = new ArrayList<>();
+        long size = channel.size();
+        long position = from;
+        while (position < end && position + HEADER_SIZE + TRAILER_SIZE <= size) {
+            Version v = header(channel, position);
+            long next = position + HEADER_SIZE + payloadLength(channel, position) + TRAILER_SIZE;
+            if (next > size) {
+                break; // Torn append
+            }
+            run.add(v);
+            position = next;
+        }
+        return run;
+    }
+
+    private Map<String, Object> replay(FileChannel channel, List<Version> run) throws IOException {
+        Map<String, Object> state = null;
+        for (Version v : run) {
+            byte[] payload = new byte[payloadLength(channel, v.start())];
+            readFully(channel, ByteBuffer.wrap(payload), v.start() + HEADER_SIZE);
+            if ((v.kind() & KIND_MASK) == FULL) {
+                state = cbor.readValue(payload, new TypeReference<Map<String, Object>>() {
+                });
+            } else {
+                state = applyDelta(state == null ? new HashMap<>() : state,
+                        cbor.readValue(payload, new TypeReference<Map<String, Object>>() {
+                        }));
+            }
+        }
+        return state;
+    }
+
+    private void rewrite(Path chain, List<Version> versions, List<Map<String, Object>> states) throws IOException {
+        if (versions.isEmpty()) {
+            Files.deleteIfExists(chain);
+            return;
+        }
+        Path tmp = chain.resolveSibling(chain.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            long position = 0;
+            long base = 0;
+            for (int i = 0; i < versions.size(); i++) {
+                boolean full = i % FULL_EVERY == 0;
+                if (full) {
+                    base = position;
+                }
+                byte[] payload = cbor.writeValueAsBytes(full ? states.get(i) : delta(states.get(i - 1), states.get(i)));
+                ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + payload.length + TRAILER_SIZE);
+                buffer.putLong(versions.get(i).validTo()).putLong(versions.get(i).validFrom())
+                        .put((byte) ((full ? FULL : DELTA) | (versions.get(i).kind() & DELETED))).putLong(base).putInt(payload.length).put(payload)
+                        .putLong(position).flip();
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer, position);
+                }
+            }
+        }
+        Files.move(tmp, chain, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Folds the full-copy version files of the old layout into the chain.
+     */
+    private void importLegacy(Path collectionDir, String id, Path chain, DocumentReader reader) throws Exception {
+        Path legacyDir = layout.versionDir(collectionDir, id);
+        if (!Files.isDirectory(legacyDir)) {
+            return;
+        }
+        List<Path> files;
+        try (Stream<Path> s = Files.list(legacyDir)) {
+            files = s.filter(p -> p.getFileName().toString().endsWith(DocumentLayout.EXT)).toList();
+        }
+        Map<Long, Map<String, Object>> byTime = new java.util.TreeMap<>();
+        Map<Long, Version> existing = new HashMap<>();
+        for (Version v : readIndex(chain)) {
+            byTime.put(v.validTo(), read(chain, v));
+            existing.put(v.validTo(), v);
+        }
+        for (Path file : files) {
+            long validTo = parseVersion(DocumentLayout.idOf(file));
+            while (byTime.containsKey(validTo)) {
+                validTo++;
+            }
+            byTime.put(validTo, reader.read(file));
+        }
+        List<Version> versions = new ArrayList<>();
+        List<Map<String, Object>> states = new ArrayList<>();
+        long previous = 0; // Unknown for the oldest copy
+        for (Map.Entry<Long, Map<String, Object>> e : byTime.entrySet()) {
+            Version v = existing.get(e.getKey());
+            versions.add(v != null ? v : new Version(previous, e.getKey(), FULL, 0, 0));
+            states.add(e.getValue());
+            previous = e.getKey();
+        }
+        Files.createDirectories(chain.getParent());
+        rewrite(chain, versions, states);
+        reindex(collectionDir, chain);
+        try (Stream<Path> walk = Files.walk(legacyDir)) {
+            for (Path p : walk.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(p);
+            }
+        }
+    }
+
+    private Version header(FileChannel channel, long position) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(channel, header, position);
+        header.flip();
+        long validTo = header.getLong();
+        long validFrom = header.getLong();
+        byte kind = header.get();
+        long base = header.getLong();
+        return new Version(validFrom, validTo, kind, base, position);
+    }
+
+    private static int payloadLength(FileChannel channel, long position) throws IOException {
+        ByteBuffer length = ByteBuffer.allocate(4);
+        readFully(channel, length, position + HEADER_SIZE - 4);
+        return length.flip().getInt();
+    }
+
+    private static long trailer(FileChannel channel, long size) throws IOException {
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_SIZE);
+        readFully(channel, trailer, size - TRAILER_SIZE);
+        return trailer.flip().getLong();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of history file");
+            }
+        }
+    }
+
+    // --- Deltas: top-level fields set to a new value, and fields removed ---
+
+    private static Map<String, Object> delta(Map<String, Object> previous, Map<String, Object> state) {
+        Map<String, Object> set = new HashMap<>();
+        List<String> unset = new ArrayList<>();
+        for (Map.Entry<String, Object> e : state.entrySet()) {
+            if (!previous.containsKey(e.getKey()) || !Objects.equals(previous.get(e.getKey()), e.getValue())) {
+                set.put(e.getKey(), e.getValue());
+            }
+        }
+        for (String key : previous.keySet()) {
+            if (!state.containsKey(key)) {
+                unset.add(key);
+            }
+        }
+        Map<String, Object> delta = new HashMap<>();
+        delta.put("s", set);
+        delta.put("u", unset);
+        return delta;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> applyDelta(Map<String, Object> state, Map<String, Object> delta) {
+        Map<String, Object> result = new LinkedHashMap<>(state);
+        result.putAll((Map<String, Object>) delta.get("s"));
+        for (Object key : (List<Object>) delta.get("u")) {
+            result.remove(key);
+        }
+        return result;
+    }
+
+    public void close() {
+        flush();
+        writer.shutdown();
+    }
+}
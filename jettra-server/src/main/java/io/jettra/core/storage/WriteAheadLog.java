@@ -0,0 +1,482 @@
+package io.jettra.core.storage;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+/**
+ * Write-ahead log shared by every database. Each record is an atomic batch
+ * of operations (maps with the same "type"/"db"/"col"/"id"/"doc" keys as the
+ * transaction op files), CBOR encoded behind a checksummed header.
+ *
+ * Records are written without fsync; {@link #commit} then makes them durable
+ * according to the database's {@link Durability}. Concurrent ALWAYS commits
+ * share one fsync (group commit): the first waiter forces the log up to the
+ * last appended byte and every record up to there is released at once.
+ *
+ * Positions (LSNs) are global byte offsets; segment files are named by the
+ * LSN they start at so they sort in log order. RouterDocumentStore replays
+ * the log on startup and truncates it at checkpoints, once the stores have
+ * synced the documents it covers.
+ */
+public class WriteAheadLog {
+    public static final String WAL_DIR = "_wal";
+    private static final String SEGMENT_EXT = ".wal";
+    // Record layout: [magic:int][bodyLength:int][crc32(body):int][body]
+    private static final int RECORD_MAGIC = 0x4A57414C; // "JWAL"
+    private static final int HEADER_SIZE = 12;
+
+    public enum Mode {
+        NONE, BATCHED, ALWAYS;
+
+        public static Mode parse(String mode) {
+            return valueOf(mode.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * NONE leaves flushing to the OS, BATCHED fsyncs within intervalMs of a
+     * write without making it wait, ALWAYS waits for the fsync.
+     */
+    public record Durability(Mode mode, long intervalMs) {
+        public static final Durability DEFAULT = new Durability(Mode.BATCHED, 10);
+
+        public Durability {
+            if (intervalMs < 0) {
+                throw new IllegalArgumentException("intervalMs must be >= 0");
+            }
+        }
+
+        /**
+         * True when a write waits for its record to be fsynced.
+         */
+        public boolean waits() {
+            return mode == Mode.ALWAYS || (mode == Mode.BATCHED && intervalMs == 0);
+        }
+
+        public Map<String, Object> toMap() {
+            return Map.of("mode", mode.name().toLowerCase(Locale.ROOT), "intervalMs", intervalMs);
+        }
+
+        public static Durability fromMap(Map<String, Object> map, Durability fallback) {
+            if (map == null || map.get("mode") == null) {
+                return fallback;
+            }
+            Object interval = map.get("intervalMs");
+            return new Durability(Mode.parse(map.get("mode").toString()),
+                    interval == null ? fallback.intervalMs() : Long.parseLong(interval.toString()));
+        }
+    }
+
+    public record Entry(long lsn, List<Map<String, Object>> ops) {
+    }
+
+    @FunctionalInterface
+    public interface OpVisitor {
+        void visit(Map<String, Object> op) throws Exception;
+    }
+
+    /**
+     * Ops of one record, produced one at a time (see {@link #append(OpSource)}).
+     */
+    @FunctionalInterface
+    public interface OpSource {
+        void forEach(OpVisitor visitor) throws Exception;
+    }
+
+    private static final class Segment {
+        final Path path;
+        final long base;
+        final FileChannel channel;
+        volatile long end;
+
+        Segment(Path path, long base, FileChannel channel, long end) {
+            this.path = path;
+            this.base = base;
+            this.channel = channel;
+            this.end = end;
+        }
+    }
+
+    private final Path dir;
+    private final ObjectMapper mapper = new ObjectMapper(new CBORFactory());
+    private final ReentrantLock appendLock = new ReentrantLock();
+    private final List<Segment> closed = new ArrayList<>();
+    private volatile Segment active;
+
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private final Condition syncDone = syncLock.newCondition();
+    private long syncedLsn;
+    private boolean syncing;
+    private long pendingDeadline;
+
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "jettra-wal-flush");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public WriteAheadLog(String dataDirectory) throws IOException {
+        this.dir = Paths.get(dataDirectory, WAL_DIR);
+        Files.createDirectories(dir);
+        List<Path> paths;
+        try (Stream<Path> files = Files.list(dir)) {
+            paths = files.filter(p -> p.getFileName().toString().endsWith(SEGMENT_EXT)).sorted().toList();
+        }
+        for (Path path : paths) {
+            FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            closed.add(new Segment(path, base(path), channel, base(path) + channel.size()));
+        }
+        if (closed.isEmpty()) {
+            active = create(0);
+        } else {
+            // Appends continue after the last valid record of the newest segment
+            active = closed.remove(closed.size() - 1);
+            long validEnd = scan(active, null);
+            if (validEnd < active.end) {
+                System.err.println("WriteAheadLog: truncating " + active.path + " from " + (active.end - active.base)
+                        + " to " + (validEnd - active.base) + " bytes");
+                active.channel.truncate(validEnd - active.base);
+                active.end = validEnd;
+            }
+        }
+        syncedLsn = active.end;
+    }
+
+    /**
+     * Every valid record still in the log, oldest first.
+     */
+    public List<Entry> readAll() throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        appendLock.lock();
+        try {
+            for (Segment segment : closed) {
+                if (scan(segment, entries) < segment.end) {
+                    System.err.println("WriteAheadLog: ignoring damaged tail of " + segment.path);
+                }
+            }
+            scan(active, entries);
+        } finally {
+            appendLock.unlock();
+        }
+        return entries;
+    }
+
+    /**
+     * Appends one atomic record and returns its LSN (the offset just past it).
+     */
+    public long append(List<Map<String, Object>> ops) throws IOException {
+        byte[] body = mapper.writeValueAsBytes(ops);
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + body.length);
+        buffer.putInt(RECORD_MAGIC).putInt(body.length).putInt(crc32(body)).put(body).flip();
+        appendLock.lock();
+        try {
+            Segment segment = active;
+            long position = segment.end - segment.base;
+            while (buffer.hasRemaining()) {
+                position += segment.channel.write(buffer, position);
+            }
+            segment.end = segment.base + position;
+            return segment.end;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Appends one atomic record whose ops are encoded straight into the
+     * segment as the source produces them, so a record larger than the heap
+     * (a spilled transaction) is never held in memory. The header, which
+     * needs the body's length and checksum, is written last: a crash midway
+     * leaves a torn tail that is dropped on open. Other appends wait until
+     * the record is complete.
+     */
+    public long append(OpSource ops) throws Exception {
+        appendLock.lock();
+        try {
+            Segment segment = active;
+            long start = segment.end - segment.base;
+            CRC32 crc = new CRC32();
+            long[] position = { start + HEADER_SIZE };
+            OutputStream body = new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    write(new byte[] { (byte) b }, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] bytes, int offset, int length) throws IOException {
+                    crc.update(bytes, offset, length);
+                    ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+                    while (buffer.hasRemaining()) {
+                        position[0] += segment.channel.write(buffer, position[0]);
+                    }
+                }
+            };
+            try {
+                try (JsonGenerator generator = mapper.getFactory()
+                        .createGenerator(new BufferedOutputStream(body, 64 * 1024))) {
+                    // Not flushed per op: the buffer batches the channel writes
+                    ObjectWriter writer = mapper.writer().without(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+                    generator.writeStartArray();
+                    ops.forEach(op -> writer.writeValue(generator, op));
+                    generator.writeEndArray();
+                }
+                long length = position[0] - start - HEADER_SIZE;
+                if (length > Integer.MAX_VALUE) {
+                    throw new IOException("Log record of " + length + " bytes exceeds the 2 GB limit");
+                }
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(RECORD_MAGIC).putInt((int) length).putInt((int) crc.getValue()).flip();
+                long at = start;
+                while (header.hasRemaining()) {
+                    at += segment.channel.write(header, at);
+                }
+            } catch (Exception e) {
+                // Drop the partial record so the next append starts on a clean tail
+                segment.channel.truncate(start);
+                throw e;
+            }
+            segment.end = segment.base + position[0];
+            return segment.end;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Makes the record ending at lsn as durable as the given mode asks.
+     */
+    public void commit(long lsn, Durability durability) throws IOException {
+        if (durability.waits()) {
+            sync(lsn);
+        } else if (durability.mode() == Mode.BATCHED) {
+            scheduleSync(durability.intervalMs());
+        }
+    }
+
+    /**
+     * Group commit: returns once everything up to lsn is on disk.
+     */
+    public void sync(long lsn) throws IOException {
+        syncLock.lock();
+        try {
+            while (syncedLsn < lsn) {
+                if (syncing) {
+                    syncDone.awaitUninterruptibly();
+                    continue;
+                }
+                syncing = true;
+                Segment segment = active;
+                long target = segment.end;
+                syncLock.unlock();
+                IOException failure = null;
+                try {
+                    segment.channel.force(false);
+                } catch (ClosedChannelException e) {
+                    target = 0; // Rotated meanwhile; rotation forced it and advanced syncedLsn
+                } catch (IOException e) {
+                    failure = e;
+                } finally {
+                    syncLock.lock();
+                    syncing = false;
+                    syncDone.signalAll();
+                }
+                if (failure != null) {
+                    throw failure;
+                }
+                syncedLsn = Math.max(syncedLsn, target);
+            }
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private void scheduleSync(long delayMs) {
+        long deadline = System.currentTimeMillis() + delayMs;
+        syncLock.lock();
+        try {
+            if (pendingDeadline != 0 && pendingDeadline <= deadline) {
+                return;
+            }
+            pendingDeadline = deadline;
+        } finally {
+            syncLock.unlock();
+        }
+        flusher.schedule(() -> {
+            syncLock.lock();
+            try {
+                pendingDeadline = 0;
+            } finally {
+                syncLock.unlock();
+            }
+            try {
+                sync(active.end);
+            } catch (IOException e) {
+                System.err.println("WriteAheadLog: background sync failed: " + e.getMessage());
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Bytes written since the last rotation.
+     */
+    public long size() {
+        Segment segment = active;
+        return segment.end - segment.base;
+    }
+
+    /**
+     * Starts a new segment and returns the LSN where it begins. Every record
+     * before it can be dropped with {@link #truncate} once its effects are
+     * durable in the stores.
+     */
+    public long rotate() throws IOException {
+        appendLock.lock();
+        try {
+            Segment old = active;
+            if (old.end == old.base) {
+                return old.base; // Nothing since the last rotation
+            }
+            old.channel.force(false);
+            active = create(old.end);
+            closed.add(old);
+            markSynced(old.end);
+            return active.base;
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the segments that end at or before lsn.
+     */
+    public void truncate(long lsn) throws IOException {
+        appendLock.lock();
+        try {
+            for (Segment segment : new ArrayList<>(closed)) {
+                if (segment.end <= lsn) {
+                    segment.channel.close();
+                    Files.deleteIfExists(segment.path);
+                    closed.remove(segment);
+                }
+            }
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    public void close() {
+        flusher.shutdown();
+        appendLock.lock();
+        try {
+            if (!active.channel.isOpen()) {
+                return;
+            }
+            for (Segment segment : closed) {
+                segment.channel.close();
+            }
+            active.channel.force(false);
+            active.channel.close();
+        } catch (IOException e) {
+            System.err.println("WriteAheadLog: close failed: " + e.getMessage());
+        } finally {
+            appendLock.unlock();
+        }
+    }
+
+    private void markSynced(long lsn) {
+        syncLock.lock();
+        try {
+            syncedLsn = Math.max(syncedLsn, lsn);
+            syncDone.signalAll();
+        } finally {
+            syncLock.unlock();
+        }
+    }
+
+    private Segment create(long base) throws IOException {
+        Path path = dir.resolve(String.format("%020d", base) + SEGMENT_EXT);
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        return new Segment(path, base, channel, base + channel.size());
+    }
+
+    private static long base(Path path) {
+        String name = path.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_EXT.length()));
+    }
+
+    /**
+     * Reads the records of a segment into entries (if not null) and returns
+     * the LSN after the last valid one.
+     */
+    private long scan(Segment segment, List<Entry> entries) throws IOException {
+        long size = segment.end - segment.base;
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (position + HEADER_SIZE <= size) {
+            header.clear();
+            readFully(segment.channel, header, position);
+            header.flip();
+            int magic = header.getInt();
+            int bodyLength = header.getInt();
+            int crc = header.getInt();
+            if (magic != RECORD_MAGIC || bodyLength <= 0 || position + HEADER_SIZE + bodyLength > size) {
+                break;
+            }
+            ByteBuffer body = ByteBuffer.allocate(bodyLength);
+            readFully(segment.channel, body, position + HEADER_SIZE);
+            if (crc32(body.array()) != crc) {
+                break;
+            }
+            position += HEADER_SIZE + bodyLength;
+            if (entries != null) {
+                entries.add(new Entry(segment.base + position,
+                        mapper.readValue(body.array(), new TypeReference<List<Map<String, Object>>>() {
+                        })));
+            }
+        }
+        return segment.base + position;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new IOException("Unexpected end of log segment");
+            }
+        }
+    }
+
+    private static int crc32(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,15 @@
+package io.jettra.core.storage;
+
+/**
+ * A write refused by the validator before any of its documents reached the
+ * stores. RouterDocumentStore marks such a write aborted in the log; any
+ * other failure of a logged write may have left documents written.
+ */
+class WriteRejectedException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    WriteRejectedException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
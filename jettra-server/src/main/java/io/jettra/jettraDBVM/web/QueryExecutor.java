@@ -1,6 +1,8 @@
 package io.jettra.jettraDBVM.web;
 
 import io.jettra.core.Engine;
+import io.jettra.core.query.QueryPlanner;
+import io.jettra.core.storage.FilterMatcher;
 import java.util.*;
 import java.util.regex.*;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -16,20 +18,132 @@ public class QueryExecutor {
 
     public Object execute(String db, String command) throws Exception {
         command = command.trim();
-        
+
+        // EXPLAIN <query> returns the plan the planner picks instead of the documents
+        if (command.toUpperCase().startsWith("EXPLAIN ")) return execute(db, command.substring(8).trim(), true);
+
+        return execute(db, command, false);
+    }
+
+    private Object execute(String db, String command, boolean explain) throws Exception {
         // Simple Heuristics for language detection
-        if (command.startsWith("db.")) return executeMongo(db, command);
+        if (command.startsWith("db.")) return executeMongo(db, command, explain);
         
         String upperCmd = command.toUpperCase();
         if (upperCmd.startsWith("SELECT") || 
             (upperCmd.startsWith("INSERT INTO") && !upperCmd.contains(" DOC ")) || 
             upperCmd.startsWith("UPDATE") ||
-            upperCmd.startsWith("DELETE FROM")) return executeSQL(db, command);
+            upperCmd.startsWith("DELETE FROM")) return executeSQL(db, command, explain);
             
-        return executeJQL(db, command);
+        return executeJQL(db, command, explain);
+    }
+
+    private Object find(String db, String col, Map<String, Object> filter, boolean explain) throws Exception {
+        return find(db, col, new FindClauses(filter, null, 100), explain);
+    }
+
+    private Object find(String db, String col, FindClauses clauses, boolean explain) throws Exception {
+        QueryPlanner planner = engine.getQueryPlanner();
+        if (explain) return planner.explain(db, col, clauses.filter(), clauses.sort(), clauses.limit(), 0).toMap();
+        return planner.query(db, col, clauses.filter(), clauses.sort(), clauses.limit(), 0);
     }
 
-    private Object executeMongo(String db, String cmd) throws Exception {
+    // WHERE / ORDER BY / LIMIT of a FIND or SELECT
+    private record FindClauses(Map<String, Object> filter, QueryPlanner.Sort sort, int limit) {
+    }
+
+    private static final Pattern LIMIT_CLAUSE = Pattern.compile("\\s+LIMIT\\s+(\\d+)\\s*$", Pattern.CASE_INSENSITIVE);
+    private static final Pattern ORDER_CLAUSE = Pattern.compile("\\s+ORDER\\s+BY\\s+([a-zA-Z0-9_.]+)(\\s+(ASC|DESC))?\\s*$",
+            Pattern.CASE_INSENSITIVE);
+    private static final String VALUE = "(\"[^\"]*\"|'[^']*'|[^\\s]+)";
+    private static final Pattern CONDITION = Pattern.compile("([a-zA-Z0-9_.]+)\\s*(?:(!=|<>|>=|<=|=|>|<)\\s*" + VALUE
+            + "|\\s+BETWEEN\\s+" + VALUE + "\\s+AND\\s+" + VALUE + ")", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * Parses "[WHERE cond [AND cond]...] [ORDER BY field [ASC|DESC]] [LIMIT n]"
+     * where cond is "field op value" (=, !=, >, >=, <, <=) or
+     * "field BETWEEN a AND b". Range conditions become $gt/$gte/$lt/$lte filters.
+     */
+    private FindClauses parseClauses(String tail) {
+        String rest = " " + (tail == null ? "" : tail.trim());
+        int limit = 100;
+        Matcher m = LIMIT_CLAUSE.matcher(rest);
+        if (m.find()) {
+            limit = Integer.parseInt(m.group(1));
+            rest = rest.substring(0, m.start());
+        }
+        QueryPlanner.Sort sort = null;
+        m = ORDER_CLAUSE.matcher(rest);
+        if (m.find()) {
+            sort = new QueryPlanner.Sort(m.group(1), "DESC".equalsIgnoreCase(m.group(3)));
+            rest = rest.substring(0, m.start());
+        }
+
+        Map<String, Object> filter = null;
+        rest = rest.trim();
+        if (rest.toUpperCase().startsWith("WHERE")) {
+            filter = new HashMap<>();
+            m = CONDITION.matcher(rest.substring(5));
+            while (m.find()) {
+                String field = m.group(1);
+                if (m.group(2) == null) {
+                    addCondition(filter, field, FilterMatcher.GTE, parseValue(m.group(4)));
+                    addCondition(filter, field, FilterMatcher.LTE, parseValue(m.group(5)));
+                    continue;
+                }
+                Object value = parseValue(m.group(3));
+                switch (m.group(2)) {
+                    case "=" -> addCondition(filter, field, null, value);
+                    case "!=", "<>" -> addCondition(filter, field, FilterMatcher.NE, value);
+                    case ">" -> addCondition(filter, field, FilterMatcher.GT, value);
+                    case ">=" -> addCondition(filter, field, FilterMatcher.GTE, value);
+                    case "<" -> addCondition(filter, field, FilterMatcher.LT, value);
+                    default -> addCondition(filter, field, FilterMatcher.LTE, value);
+                }
+            }
+        }
+        return new FindClauses(filter, sort, limit);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void addCondition(Map<String, Object> filter, String field, String op, Object value) {
+        Object current = filter.get(field);
+        if (op == null && current == null) {
+            filter.put(field, value);
+            return;
+        }
+        Map<String, Object> ops;
+        if (FilterMatcher.isOperator(current)) {
+            ops = (Map<String, Object>) current;
+        } else {
+            ops = new HashMap<>();
+            if (filter.containsKey(field)) ops.put(FilterMatcher.EQ, current);
+            filter.put(field, ops);
+        }
+        ops.put(op != null ? op : FilterMatcher.EQ, value);
+    }
+
+    // Quoted -> string, true/false/null, numbers -> Integer/Long/Double, anything else as text
+    private static Object parseValue(String token) {
+        if (token.length() >= 2 && (token.startsWith("\"") && token.endsWith("\"")
+                || token.startsWith("'") && token.endsWith("'"))) {
+            return token.substring(1, token.length() - 1);
+        }
+        if (token.equalsIgnoreCase("true") || token.equalsIgnoreCase("false")) return Boolean.parseBoolean(token);
+        if (token.equalsIgnoreCase("null")) return null;
+        if (token.matches("-?\\d+")) {
+            long n = Long.parseLong(token);
+            return n >= Integer.MIN_VALUE && n <= Integer.MAX_VALUE ? (Object) (int) n : (Object) n;
+        }
+        if (token.matches("-?\\d*\\.\\d+([eE][-+]?\\d+)?")) return Double.parseDouble(token);
+        return token;
+    }
+
+    private void checkNotExplain(boolean explain) {
+        if (explain) throw new IllegalArgumentException("EXPLAIN is only supported for queries");
+    }
+
+    private Object executeMongo(String db, String cmd, boolean explain) throws Exception {
         // e.g. db.users.find({"age": 20})
         // Regex to extract collection and operation
         Pattern p = Pattern.compile("db\\.([a-zA-Z0-9_]+)\\.([a-zA-Z0-9]+)\\((.*)\\)");
@@ -43,8 +157,9 @@ public class QueryExecutor {
         if (op.equals("find")) {
             // naive json parse
             Map<String, Object> query = parseJsonArg(args);
-            return engine.getStore().query(db, col, query, 100, 0);
+            return find(db, col, query, explain);
         } else if (op.equals("insert")) {
+             checkNotExplain(explain);
              checkLeader();
              Map<String, Object> doc = parseJsonArg(args);
              return engine.getStore().save(db, col, doc);
@@ -56,32 +171,20 @@ public class QueryExecutor {
         return "Unknown mongo op";
     }
 
-    private Object executeSQL(String db, String cmd) throws Exception {
+    private Object executeSQL(String db, String cmd, boolean explain) throws Exception {
         // Very basic SQL parser
         String up = cmd.toUpperCase();
         if (up.startsWith("SELECT")) {
             // SELECT * FROM users WHERE ...
-            Pattern p = Pattern.compile("SELECT\\s+\\*\\s+FROM\\s+([a-zA-Z0-9_]+)(\\s+WHERE\\s+(.*))?", Pattern.CASE_INSENSITIVE);
+            Pattern p = Pattern.compile("SELECT\\s+\\*\\s+FROM\\s+([a-zA-Z0-9_]+)(.*)", Pattern.CASE_INSENSITIVE);
             Matcher m = p.matcher(cmd);
             if (m.find()) {
                 String col = m.group(1);
-                String where = m.group(3);
-                Map<String, Object> filter = null;
-                if (where != null) {
-                    // Extremely simple parser: field = value
-                    String[] parts = where.split("=");
-                    if (parts.length == 2) {
-                        filter = new HashMap<>();
-                        String val = parts[1].trim();
-                        // Strip quotes
-                        if (val.startsWith("'") || val.startsWith("\"")) val = val.substring(1, val.length()-1);
-                        filter.put(parts[0].trim(), val);
-                        // Convert to int if looks like int? For now string.
-                    }
-                }
-                return engine.getStore().query(db, col, filter, 100, 0);
+                // WHERE field op value [AND ...] [ORDER BY field [ASC|DESC]] [LIMIT n]
+                return find(db, col, parseClauses(m.group(2)), explain);
             }
         } else if (up.startsWith("INSERT INTO")) {
+             checkNotExplain(explain);
              checkLeader();
              // INSERT INTO users (name, age) VALUES ('Alice', 30)
              // Regex to extract table, columns, values
@@ -118,32 +221,20 @@ public class QueryExecutor {
         return "SQL not fully supported yet";
     }
 
-    private Object executeJQL(String db, String cmd) throws Exception {
+    private Object executeJQL(String db, String cmd, boolean explain) throws Exception {
         String[] tokens = cmd.split("\\s+");
         String op = tokens[0].toUpperCase();
 
         if (op.equals("FIND")) {
-            // FIND IN users WHERE ...
+            // FIND IN users [WHERE age > 30 AND status = "open"] [ORDER BY age DESC] [LIMIT 10]
             if (tokens.length < 3 || !tokens[1].equalsIgnoreCase("IN")) throw new IllegalArgumentException("Syntax: FIND IN <col>");
             String col = tokens[2];
-            Map<String, Object> filter = null;
-            // Parse WHERE
-            int whereIdx = -1;
-            for(int i=0; i<tokens.length; i++) if(tokens[i].equalsIgnoreCase("WHERE")) whereIdx = i;
-            
-            if (whereIdx != -1 && whereIdx + 3 <= tokens.length) {
-                // Supported: WHERE field = val
-                String field = tokens[whereIdx+1];
-                String operator = tokens[whereIdx+2]; // =, >, <
-                String val = tokens[whereIdx+3];
-                if (operator.equals("=")) {
-                     filter = new HashMap<>();
-                     if (val.startsWith("\"")) val = val.substring(1, val.length()-1);
-                     filter.put(field, val);
-                }
-            }
-            return engine.getStore().query(db, col, filter, 100, 0);
+            // Everything after the collection: WHERE / ORDER BY / LIMIT
+            Matcher m = Pattern.compile("^\\s*\\S+\\s+\\S+\\s+\\S+").matcher(cmd);
+            String tail = m.find() ? cmd.substring(m.end()) : "";
+            return find(db, col, parseClauses(tail), explain);
         } else if (op.equals("INSERT")) {
+            checkNotExplain(explain);
             checkLeader();
             // INSERT INTO users DOC {...}
              // Flexibly find "INTO" and "DOC" keywords
@@ -166,6 +257,7 @@ public class QueryExecutor {
              Map<String, Object> doc = mapper.readValue(json, new TypeReference<Map<String, Object>>(){});
              return engine.getStore().save(db, col, doc);
         } else if (op.equals("CREATE") && tokens.length > 1 && tokens[1].equalsIgnoreCase("INDEX")) {
+            checkNotExplain(explain);
             checkLeader();
             // CREATE INDEX ON users (email)
             // Expect: CREATE INDEX ON <col> (<field>)
@@ -21,6 +21,8 @@ public class WebServices {
     private final ObjectMapper jsonMapper = new ObjectMapper();
     private final QueryExecutor queryExecutor;
     private static final ThreadLocal<String> CURRENT_USER = new ThreadLocal<>();
+    // Documents per saved and replicated batch of an import
+    private static final int IMPORT_BATCH = 1000;
     private static final Map<String, Map<String, Object>> PEER_METRICS_CACHE = new java.util.concurrent.ConcurrentHashMap<>();
     private final java.util.concurrent.ScheduledExecutorService metricsScheduler = java.util.concurrent.Executors
             .newSingleThreadScheduledExecutor();
@@ -107,16 +109,21 @@ public class WebServices {
                 .post("/api/dbs", this::createDatabase)
                 .delete("/api/dbs", this::deleteDatabase)
                 .post("/api/dbs/rename", this::renameDatabase)
+                .get("/api/dbs/durability", this::getDurability)
+                .post("/api/dbs/durability", this::setDurability)
                 .get("/api/dbs/{db}/cols", this::listCollections)
                 .post("/api/cols", this::createCollection)
                 .delete("/api/cols", this::deleteCollection)
                 .post("/api/cols/rename", this::renameCollection)
                 // Document CRUD
                 .post("/api/doc", this::saveDocument)
+                .post("/api/doc/bulk", this::saveDocuments)
                 .get("/api/doc", this::getDocument)
                 .put("/api/doc", this::updateDocument)
+                .patch("/api/doc", this::patchDocument)
                 .delete("/api/doc", this::deleteDocument)
                 .get("/api/query", this::queryDocuments)
+                .post("/api/sequence", this::nextSequence)
                 .post("/api/command", this::executeCommand)
                 // Index Management
                 .get("/api/index", this::getIndexes)
@@ -151,6 +158,8 @@ public class WebServices {
                 // Versioning
                 .get("/api/versions", this::getVersions)
                 .get("/api/versions", this::getVersions)
+                .get("/api/versions/retention", this::getRetention)
+                .post("/api/versions/retention", this::setRetention)
                 .get("/api/version", this::getVersionContent)
                 .post("/api/restore-version", this::restoreVersion)
                 // Transactions
@@ -358,27 +367,22 @@ public class WebServices {
                 }
             }
 
-            java.io.File root = new java.io.File("data");
-            java.io.File[] files = root.listFiles(java.io.File::isDirectory);
-
+            // Served from the store's in-memory catalog, no directory walk
             List<Map<String, String>> dbs = new java.util.ArrayList<>();
-            if (files != null) {
-                for (java.io.File dir : files) {
-                    String dbName = dir.getName();
-                    if (!isAdmin && !canSeeAll && !allowedDbs.contains(dbName)) {
-                        continue;
-                    }
+            for (String dbName : engine.getStore().getDatabaseStructure().keySet()) {
+                if (!isAdmin && !canSeeAll && !allowedDbs.contains(dbName)) {
+                    continue;
+                }
 
-                    Map<String, String> dbInfo = new java.util.HashMap<>();
-                    dbInfo.put("name", dbName);
-                    try {
-                        String engineName = engine.getStore().getDatabaseEngine(dbName);
-                        dbInfo.put("engine", engineName != null ? engineName : "JettraBasicStore");
-                    } catch (Exception ex) {
-                        dbInfo.put("engine", "Unknown");
-                    }
-                    dbs.add(dbInfo);
+                Map<String, String> dbInfo = new java.util.HashMap<>();
+                dbInfo.put("name", dbName);
+                try {
+                    String engineName = engine.getStore().getDatabaseEngine(dbName);
+                    dbInfo.put("engine", engineName != null ? engineName : "JettraBasicStore");
+                } catch (Exception ex) {
+                    dbInfo.put("engine", "Unknown");
                 }
+                dbs.add(dbInfo);
             }
             res.send(jsonMapper.writeValueAsString(dbs));
         } catch (Exception e) {
@@ -622,13 +626,15 @@ public class WebServices {
         }
 
         try {
-            java.io.File dbDir = new java.io.File("data/" + db);
-            String[] cols = dbDir.list((dir, name) -> new java.io.File(dir, name).isDirectory());
+            List<String> cols = engine.getStore() instanceof io.jettra.core.storage.RouterDocumentStore router
+                    ? router.getCatalog().getCollections(db)
+                    : engine.getStore().getDatabaseStructure().get(db);
 
             if (cols == null) {
                 res.send("[]");
                 return;
             }
+            cols.sort(null);
 
             List<String> visibleCols = new java.util.ArrayList<>();
             for (String col : cols) {
@@ -685,6 +691,10 @@ public class WebServices {
                 engine.getStore().saveTx(db, col, doc, txID);
             } else {
                 checkLeader(res);
+                // Sequential index fields are filled on the leader so every node stores the same values
+                if (engine.getStore() instanceof io.jettra.core.storage.RouterDocumentStore router) {
+                    router.assignSequences(db, col, doc);
+                }
                 // Distributed Write Logic
                 if (engine.getRaftNode() != null) {
                     Map<String, Object> cmd = new java.util.HashMap<>();
@@ -736,12 +746,86 @@ public class WebServices {
         }
     }
 
+    /**
+     * Saves a JSON array or NDJSON (one document per line) of documents into
+     * one collection as a single batch: one log record, one Raft command.
+     */
+    private void saveDocuments(ServerRequest req, ServerResponse res) {
+        try {
+            String db = req.query().get("db");
+            String col = req.query().get("col");
+            byte[] content = req.content().as(byte[].class);
+            List<Map<String, Object>> docs;
+            // readValues takes both the elements of a top-level array and a sequence of objects
+            try (com.fasterxml.jackson.databind.MappingIterator<Map<String, Object>> it = jsonMapper
+                    .readerFor(new TypeReference<Map<String, Object>>() {
+                    }).readValues(content)) {
+                docs = it.readAll();
+            } catch (java.io.IOException e) {
+                res.status(Status.BAD_REQUEST_400).send("Invalid JSON array or NDJSON: " + e.getMessage());
+                return;
+            }
+            checkLeader(res);
+            List<String> ids = saveBatch(db, col, docs);
+            Map<String, Object> body = new java.util.LinkedHashMap<>();
+            body.put("status", "ok");
+            body.put("count", ids.size());
+            body.put("ids", ids);
+            res.send(jsonMapper.writeValueAsString(body));
+        } catch (Exception e) {
+            if (!res.isSent()) {
+                res.status(Status.INTERNAL_SERVER_ERROR_500).send(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Assigns ids and sequence values on the leader, replicates the batch as
+     * one command and saves it locally.
+     */
+    private List<String> saveBatch(String db, String col, List<Map<String, Object>> docs) throws Exception {
+        for (Map<String, Object> doc : docs) {
+            if (doc.get("_id") == null) {
+                doc.put("_id", doc.get("id") != null ? String.valueOf(doc.get("id"))
+                        : java.util.UUID.randomUUID().toString());
+            }
+            if (engine.getStore() instanceof io.jettra.core.storage.RouterDocumentStore router) {
+                router.assignSequences(db, col, doc);
+            }
+        }
+        if (engine.getRaftNode() != null) {
+            Map<String, Object> cmd = new java.util.HashMap<>();
+            cmd.put("op", "save_all");
+            cmd.put("db", db);
+            cmd.put("col", col);
+            cmd.put("docs", docs);
+            engine.getRaftNode().replicate(cmd);
+        }
+        return engine.getStore().saveAll(db, col, docs);
+    }
+
     private void getDocument(ServerRequest req, ServerResponse res) {
         try {
             String db = req.query().get("db");
             String col = req.query().get("col");
             String id = req.query().get("id");
-            Map<String, Object> doc = engine.getStore().findByID(db, col, id);
+            Long asOf;
+            try {
+                asOf = parseAsOf(req);
+            } catch (IllegalArgumentException e) {
+                res.status(Status.BAD_REQUEST_400).send(e.getMessage());
+                return;
+            }
+            String txID = req.query().first("tx").orElse(null);
+            Map<String, Object> doc;
+            if (txID != null && !txID.isEmpty()
+                    && engine.getStore() instanceof io.jettra.core.storage.RouterDocumentStore router) {
+                // Read inside the transaction: its snapshot plus its own writes
+                doc = router.findByIDInTransaction(db, col, id, txID);
+            } else {
+                doc = asOf == null ? engine.getStore().findByID(db, col, id)
+                        : engine.getStore().findByID(db, col, id, asOf);
+            }
             if (doc != null) {
                 res.send(jsonMapper.writeValueAsString(doc));
             } else {
@@ -784,6 +868,53 @@ public class WebServices {
         }
     }
 
+    /**
+     * Changes fields of a document in place with $set, $unset, $inc and $push
+     * (see DocumentPatch), without the client reading and sending it whole.
+     * The patch is applied here first and the resulting document is
+     * replicated as a save, from under the collection lock so replicas get
+     * the patches of a document in the order they were applied. Returns the
+     * document as saved.
+     */
+    private void patchDocument(ServerRequest req, ServerResponse res) {
+        try {
+            String db = req.query().get("db");
+            String col = req.query().get("col");
+            String id = req.query().get("id");
+            byte[] content = req.content().as(byte[].class);
+            Map<String, Object> patch;
+            try {
+                patch = jsonMapper.readValue(content, new TypeReference<Map<String, Object>>() {
+                });
+                io.jettra.core.storage.DocumentPatch.validate(patch);
+            } catch (Exception e) {
+                res.status(Status.BAD_REQUEST_400).send(e.getMessage());
+                return;
+            }
+
+            checkLeader(res);
+
+            if (engine.getStore().findByID(db, col, id) == null) {
+                res.status(Status.NOT_FOUND_404).send("Not found");
+                return;
+            }
+            Map<String, Object> doc = engine.getStore().patch(db, col, id, patch, patched -> {
+                if (engine.getRaftNode() != null) {
+                    Map<String, Object> cmd = new java.util.HashMap<>();
+                    cmd.put("op", "save");
+                    cmd.put("db", db);
+                    cmd.put("col", col);
+                    cmd.put("doc", patched);
+                    engine.getRaftNode().replicate(cmd);
+                }
+            });
+
+            res.send(jsonMapper.writeValueAsString(doc));
+        } catch (Exception e) {
+            res.status(Status.INTERNAL_SERVER_ERROR_500).send(e.getMessage());
+        }
+    }
+
     private void deleteDocument(ServerRequest req, ServerResponse res) {
         try {
             String db = req.query().get("db");
@@ -824,11 +955,183 @@ public class WebServices {
             if (req.query().contains("offset"))
                 offset = Integer.parseInt(req.query().get("offset"));
 
-            List<Map<String, Object>> docs = engine.getStore().query(db, col, null, limit, offset);
-            System.out.println("DEBUG: Found " + docs.size() + " documents");
-            res.send(jsonMapper.writeValueAsString(docs));
+            Map<String, Object> filter = null;
+            if (req.query().contains("filter")) {
+                filter = jsonMapper.readValue(req.query().get("filter"), new TypeReference<Map<String, Object>>() {
+                });
+            }
+            boolean explain = Boolean.parseBoolean(req.query().first("explain").orElse("false"));
+            // sort=field (ascending) or sort=-field (descending)
+            io.jettra.core.query.QueryPlanner.Sort sort = io.jettra.core.query.QueryPlanner.Sort
+                    .parse(req.query().first("sort").orElse(null));
+
+            // Keyset pagination: paginate=true for the first page, then token=<next> for the following ones
+            String token = req.query().first("token").orElse(null);
+            boolean paginate = token != null || Boolean.parseBoolean(req.query().first("paginate").orElse("false"));
+
+            Long asOf;
+            try {
+                asOf = parseAsOf(req);
+            } catch (IllegalArgumentException e) {
+                res.status(Status.BAD_REQUEST_400).send(e.getMessage());
+                return;
+            }
+            // tx=<id> reads inside the transaction, snapshot=true at a snapshot without locking the collection
+            String txID = req.query().first("tx").orElse(null);
+            boolean snapshot = Boolean.parseBoolean(req.query().first("snapshot").orElse("false"));
+            if ((txID != null && !txID.isEmpty() || snapshot)
+                    && engine.getStore() instanceof io.jettra.core.storage.RouterDocumentStore router) {
+                if (paginate || asOf != null || sort != null) {
+                    res.status(Status.BAD_REQUEST_400)
+                            .send("tx and snapshot reads cannot be combined with asOf, sort or pagination");
+                    return;
+                }
+                List<Map<String, Object>> results = txID != null && !txID.isEmpty()
+                        ? router.queryInTransaction(db, col, filter, limit, offset, txID)
+                        : router.querySnapshot(db, col, filter, limit, offset);
+                res.send(jsonMapper.writeValueAsString(results));
+                return;
+            }
+
+            if (asOf != null) {
+                if (paginate) {
+                    res.status(Status.BAD_REQUEST_400).send("asOf cannot be combined with pagination");
+                    return;
+                }
+                try (io.jettra.core.query.QueryPlanner.QueryCursor cursor = engine.getQueryPlanner().open(db, col,
+                        filter, sort, limit, offset, asOf)) {
+                    res.headers().add(io.helidon.http.HeaderNames.create("X-Jettra-Query-Plan"), cursor.plan().type());
+                    streamJson(res, cursor.documents(), explain ? cursor.plan().toMap() : null, false);
+                }
+                return;
+            }
+
+            if (paginate) {
+                io.jettra.core.query.QueryPlanner.QueryPage page;
+                try {
+                    page = engine.getQueryPlanner().page(db, col, filter, sort, limit, token);
+                } catch (IllegalArgumentException e) {
+                    res.status(Status.BAD_REQUEST_400).send(e.getMessage());
+                    return;
+                }
+                Map<String, Object> body = new java.util.LinkedHashMap<>();
+                body.put("results", page.documents());
+                body.put("next", page.nextToken());
+                if (explain) {
+                    body.put("plan", page.plan().toMap());
+                }
+                res.headers().add(io.helidon.http.HeaderNames.create("X-Jettra-Query-Plan"), page.plan().type());
+                res.send(jsonMapper.writeValueAsString(body));
+                return;
+            }
+
+            try (io.jettra.core.query.QueryPlanner.QueryCursor cursor = engine.getQueryPlanner().open(db, col, filter,
+                    sort, limit, offset)) {
+                LOGGER.fine(() -> "Streaming documents using " + cursor.plan().type());
+                res.headers().add(io.helidon.http.HeaderNames.create("X-Jettra-Query-Plan"), cursor.plan().type());
+                streamJson(res, cursor.documents(), explain ? cursor.plan().toMap() : null, false);
+            }
         } catch (Exception e) {
             e.printStackTrace();
+            if (!res.isSent()) {
+                res.status(Status.INTERNAL_SERVER_ERROR_500).send(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Next value(s) of the sequence of db/col/field; count reserves that many
+     * consecutive values and returns the first.
+     */
+    private void nextSequence(ServerRequest req, ServerResponse res) {
+        try {
+            String db = req.query().get("db");
+            String col = req.query().get("col");
+            String field = req.query().first("field").orElse("_id");
+            int count = Integer.parseInt(req.query().first("count").orElse("1"));
+            if (count < 1) {
+                res.status(Status.BAD_REQUEST_400).send("count must be at least 1");
+                return;
+            }
+            // Sequences are allocated by the leader only; its reservations are replicated
+            checkLeader(res);
+            long value = engine.getStore() instanceof io.jettra.core.storage.RouterDocumentStore router
+                    ? router.getNextSequence(db, col, field, count)
+                    : engine.getStore().getNextSequence(db, col, field);
+            res.send(jsonMapper.createObjectNode().put("value", value).put("count", count).toString());
+        } catch (NumberFormatException e) {
+            res.status(Status.BAD_REQUEST_400).send("Invalid count");
+        } catch (Exception e) {
+            if (!res.isSent()) {
+                res.status(Status.INTERNAL_SERVER_ERROR_500).send(e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * asOf query parameter as epoch millis: a number, or an ISO-8601 instant
+     * such as 2025-01-31T12:00:00Z. Null when absent.
+     */
+    private static Long parseAsOf(ServerRequest req) {
+        String asOf = req.query().first("asOf").orElse(null);
+        if (asOf == null || asOf.isBlank()) {
+            return null;
+        }
+        try {
+            return asOf.chars().allMatch(Character::isDigit) ? Long.parseLong(asOf)
+                    : java.time.Instant.parse(asOf).toEpochMilli();
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid asOf: " + asOf + " (epoch millis or ISO-8601 instant)");
+        }
+    }
+
+    private void getDurability(ServerRequest req, ServerResponse res) {
+        try {
+            String db = req.query().get("name");
+            if (!(engine.getStore() instanceof io.jettra.core.storage.RouterDocumentStore router)) {
+                res.status(Status.NOT_IMPLEMENTED_501).send("Durability modes not supported by this store");
+                return;
+            }
+            res.send(jsonMapper.writeValueAsString(router.getDurability(db).toMap()));
+        } catch (Exception e) {
+            res.status(Status.INTERNAL_SERVER_ERROR_500).send(e.getMessage());
+        }
+    }
+
+    private void setDurability(ServerRequest req, ServerResponse res) {
+        try {
+            checkLeader(res);
+            byte[] content = req.content().as(byte[].class);
+            Map<String, Object> body = jsonMapper.readValue(content, new TypeReference<Map<String, Object>>() {
+            });
+            String db = (String) body.get("name");
+            if (db == null || body.get("mode") == null) {
+                res.status(Status.BAD_REQUEST_400).send("Missing name or mode");
+                return;
+            }
+            if (!(engine.getStore() instanceof io.jettra.core.storage.RouterDocumentStore router)) {
+                res.status(Status.NOT_IMPLEMENTED_501).send("Durability modes not supported by this store");
+                return;
+            }
+            io.jettra.core.storage.WriteAheadLog.Durability durability;
+            try {
+                durability = io.jettra.core.storage.WriteAheadLog.Durability.fromMap(body, router.getDurability(db));
+            } catch (IllegalArgumentException e) {
+                res.status(Status.BAD_REQUEST_400).send("Invalid durability: " + e.getMessage());
+                return;
+            }
+            router.setDurability(db, durability);
+
+            if (engine.getRaftNode() != null && engine.getRaftNode().isLeader()) {
+                Map<String, Object> command = new java.util.HashMap<>();
+                command.put("op", "set_durability");
+                command.put("db", db);
+                command.put("durability", durability.toMap());
+                engine.getRaftNode().replicate(command);
+            }
+
+            res.send(jsonMapper.writeValueAsString(durability.toMap()));
+        } catch (Exception e) {
             res.status(Status.INTERNAL_SERVER_ERROR_500).send(e.getMessage());
         }
     }
@@ -1115,6 +1418,8 @@ public class WebServices {
             String txID = req.query().get("txID");
             engine.getStore().commitTransaction(txID);
             res.send(jsonMapper.createObjectNode().put("status", "committed").toString());
+        } catch (io.jettra.core.storage.TransactionConflictException e) {
+            res.status(Status.CONFLICT_409).send(e.getMessage());
         } catch (Exception e) {
             res.status(Status.INTERNAL_SERVER_ERROR_500).send(e.getMessage());
         }
@@ -1397,32 +1702,32 @@ public class WebServices {
                 return;
             }
 
-            // Get all documents
-            List<Map<String, Object>> docs = engine.getStore().query(db, col, null, 1000000, 0); // Large limit
-
-            String content = "";
-            String contentType = "text/plain";
-            String ext = "";
-
-            if ("json".equalsIgnoreCase(format)) {
-                content = jsonMapper.writerWithDefaultPrettyPrinter().writeValueAsString(docs);
-                contentType = "application/json";
-                ext = "json";
-            } else if ("csv".equalsIgnoreCase(format)) {
-                content = convertToCSV(docs);
-                contentType = "text/csv";
-                ext = "csv";
-            } else {
+            boolean json = "json".equalsIgnoreCase(format);
+            if (!json && !"csv".equalsIgnoreCase(format)) {
                 res.status(Status.BAD_REQUEST_400).send("Invalid format. Use json or csv.");
                 return;
             }
 
             res.headers().add(io.helidon.http.HeaderNames.CONTENT_DISPOSITION,
-                    "attachment; filename=\"" + col + "." + ext + "\"");
-            res.headers().add(io.helidon.http.HeaderNames.CONTENT_TYPE, contentType);
-            res.send(content);
+                    "attachment; filename=\"" + col + "." + (json ? "json" : "csv") + "\"");
+
+            // Documents are streamed from the store straight into the response
+            try (java.util.stream.Stream<Map<String, Object>> docs = engine.getStore().stream(db, col, null)) {
+                if (json) {
+                    streamJson(res, docs, null, true);
+                } else {
+                    res.headers().add(io.helidon.http.HeaderNames.CONTENT_TYPE, "text/csv");
+                    try (java.io.Writer writer = new java.io.BufferedWriter(new java.io.OutputStreamWriter(
+                            res.outputStream(), java.nio.charset.StandardCharsets.UTF_8))) {
+                        writeCSV(docs, writer);
+                    }
+                }
+            }
         } catch (Exception e) {
-            res.status(Status.INTERNAL_SERVER_ERROR_500).send(e.getMessage());
+            System.err.println("Export failed: " + e.getMessage());
+            if (!res.isSent()) {
+                res.status(Status.INTERNAL_SERVER_ERROR_500).send(e.getMessage());
+            }
         }
     }
 
@@ -1467,22 +1772,106 @@ public class WebServices {
         }
     }
 
-    private String convertToCSV(List<Map<String, Object>> docs) {
-        if (docs.isEmpty())
-            return "";
-        StringBuilder sb = new StringBuilder();
-        // Header
-        java.util.Set<String> keys = docs.get(0).keySet();
-        sb.append(String.join(",", keys)).append("\n");
-        // Rows
-        for (Map<String, Object> doc : docs) {
+    private void getRetention(ServerRequest req, ServerResponse res) {
+        try {
+            String db = req.query().get("db");
+            String col = req.query().get("col");
+            if (db == null || col == null) {
+                res.status(Status.BAD_REQUEST_400).send("Missing db or col");
+                return;
+            }
+            res.send(jsonMapper.writeValueAsString(engine.getStore().getRetention(db, col).toMap()));
+        } catch (Exception e) {
+            res.status(Status.INTERNAL_SERVER_ERROR_500).send(e.getMessage());
+        }
+    }
+
+    private void setRetention(ServerRequest req, ServerResponse res) {
+        try {
+            checkLeader(res);
+            byte[] content = req.content().as(byte[].class);
+            Map<String, Object> body = jsonMapper.readValue(content, new TypeReference<Map<String, Object>>() {
+            });
+            String db = (String) body.get("db");
+            String col = (String) body.get("col");
+            if (db == null || col == null) {
+                res.status(Status.BAD_REQUEST_400).send("Missing db or col");
+                return;
+            }
+            io.jettra.core.storage.VersionArchive.Retention retention;
+            try {
+                retention = io.jettra.core.storage.VersionArchive.Retention.fromMap(body);
+            } catch (IllegalArgumentException e) {
+                res.status(Status.BAD_REQUEST_400).send("Invalid retention: " + e.getMessage());
+                return;
+            }
+            engine.getStore().setRetention(db, col, retention);
+
+            if (engine.getRaftNode() != null && engine.getRaftNode().isLeader()) {
+                Map<String, Object> command = new java.util.HashMap<>();
+                command.put("op", "set_retention");
+                command.put("db", db);
+                command.put("col", col);
+                command.put("retention", retention.toMap());
+                engine.getRaftNode().replicate(command);
+            }
+
+            res.send(jsonMapper.writeValueAsString(retention.toMap()));
+        } catch (Exception e) {
+            res.status(Status.INTERNAL_SERVER_ERROR_500).send(e.getMessage());
+        }
+    }
+
+    private void writeCSV(java.util.stream.Stream<Map<String, Object>> docs, java.io.Writer writer)
+            throws java.io.IOException {
+        java.util.Set<String> keys = null;
+        java.util.Iterator<Map<String, Object>> it = docs.iterator();
+        while (it.hasNext()) {
+            Map<String, Object> doc = it.next();
+            if (keys == null) {
+                // Header from the first document
+                keys = doc.keySet();
+                writer.write(String.join(",", keys));
+                writer.write("\n");
+            }
             java.util.List<String> values = new java.util.ArrayList<>();
             for (String key : keys) {
                 values.add(String.valueOf(doc.get(key)));
             }
-            sb.append(String.join(",", values)).append("\n");
+            writer.write(String.join(",", values));
+            writer.write("\n");
+        }
+    }
+
+    /**
+     * Writes documents as a JSON array (or {"plan": ..., "results": [...]}
+     * when plan is given) directly to the response, one document at a time.
+     * Once the first byte is out the status can no longer change, so later
+     * failures only cut the response short.
+     */
+    private void streamJson(ServerResponse res, java.util.stream.Stream<Map<String, Object>> docs,
+            Map<String, Object> plan, boolean pretty) throws java.io.IOException {
+        res.headers().add(io.helidon.http.HeaderNames.CONTENT_TYPE, "application/json");
+        try (java.io.OutputStream out = res.outputStream();
+                com.fasterxml.jackson.core.JsonGenerator gen = jsonMapper.getFactory().createGenerator(out)) {
+            if (pretty) {
+                gen.useDefaultPrettyPrinter();
+            }
+            if (plan != null) {
+                gen.writeStartObject();
+                gen.writeObjectField("plan", plan);
+                gen.writeFieldName("results");
+            }
+            gen.writeStartArray();
+            java.util.Iterator<Map<String, Object>> it = docs.iterator();
+            while (it.hasNext()) {
+                gen.writeObject(it.next());
+            }
+            gen.writeEndArray();
+            if (plan != null) {
+                gen.writeEndObject();
+            }
         }
-        return sb.toString();
     }
 
     private void importCollection(ServerRequest req, ServerResponse res) {
@@ -1500,44 +1889,25 @@ public class WebServices {
             byte[] bytes = req.content().as(byte[].class);
             String content = new String(bytes, java.nio.charset.StandardCharsets.UTF_8);
 
-            int count = 0;
-            boolean isLeader = (engine.getRaftNode() != null && engine.getRaftNode().isLeader());
-
+            List<Map<String, Object>> docs;
             if ("json".equalsIgnoreCase(format)) {
-                List<Map<String, Object>> docs = jsonMapper.readValue(content,
-                        new TypeReference<List<Map<String, Object>>>() {
-                        });
-                for (Map<String, Object> doc : docs) {
-                    if (isLeader) {
-                        Map<String, Object> cmd = new java.util.HashMap<>();
-                        cmd.put("op", "save");
-                        cmd.put("db", db);
-                        cmd.put("col", col);
-                        cmd.put("doc", doc);
-                        engine.getRaftNode().replicate(cmd);
-                    }
-                    engine.getStore().save(db, col, doc);
-                    count++;
-                }
+                docs = jsonMapper.readValue(content, new TypeReference<List<Map<String, Object>>>() {
+                });
             } else if ("csv".equalsIgnoreCase(format)) {
-                List<Map<String, Object>> docs = parseCSV(content);
-                for (Map<String, Object> doc : docs) {
-                    if (isLeader) {
-                        Map<String, Object> cmd = new java.util.HashMap<>();
-                        cmd.put("op", "save");
-                        cmd.put("db", db);
-                        cmd.put("col", col);
-                        cmd.put("doc", doc);
-                        engine.getRaftNode().replicate(cmd);
-                    }
-                    engine.getStore().save(db, col, doc);
-                    count++;
-                }
+                docs = parseCSV(content);
             } else {
                 res.status(Status.BAD_REQUEST_400).send("Invalid format");
                 return;
             }
 
+            // Saved and replicated in batches rather than one command per document
+            int count = 0;
+            for (int i = 0; i < docs.size(); i += IMPORT_BATCH) {
+                List<Map<String, Object>> batch = new java.util.ArrayList<>(
+                        docs.subList(i, Math.min(docs.size(), i + IMPORT_BATCH)));
+                count += saveBatch(db, col, batch).size();
+            }
+
             res.send(jsonMapper.createObjectNode().put("status", "imported").put("count", count).toString());
 
         } catch (Exception e) {
@@ -1629,7 +1999,13 @@ public class WebServices {
     private void getMetrics(ServerRequest req, ServerResponse res) {
         try {
             String dataDir = (String) engine.getConfigManager().getOrDefault("DataDir", "data");
-            res.send(jsonMapper.writeValueAsString(io.jettra.core.util.MetricsUtils.getSystemMetrics(dataDir)));
+            Map<String, Object> metrics = io.jettra.core.util.MetricsUtils.getSystemMetrics(dataDir);
+            if (engine.getStore() instanceof io.jettra.core.storage.RouterDocumentStore router) {
+                metrics.put("documentCache", router.getDocumentCache().stats());
+                metrics.put("compression", router.getCompressionStats());
+                metrics.put("snapshots", router.getSnapshotStats());
+            }
+            res.send(jsonMapper.writeValueAsString(metrics));
         } catch (Exception e) {
             res.status(Status.INTERNAL_SERVER_ERROR_500).send(e.getMessage());
         }
@@ -10,6 +10,7 @@ const App = {
         currentPage: 1,
         pageSize: 10,
         hasMore: false,
+        pageTokens: [null], // Continuation token of each visited page
         clusterInterval: null
     },
 
@@ -569,6 +570,7 @@ const App = {
                 <select id="new-db-engine" class="form-control">
                     <option value="JettraBasicStore">Basic Store (Default, Standard JSON/CBOR)</option>
                     <option value="JettraEngineStore">Engine Store (Optimized Binary)</option>
+                    <option value="JettraLogStore">Log Store (Append-only Segments)</option>
                 </select>
                 <small class="text-muted">Choose 'Engine Store' for high performance with Java objects.</small>
             </div>
@@ -702,7 +704,7 @@ const App = {
                         <span class="badge bg-primary" style="font-size: 1em; padding: 5px 10px;">${engine || 'Unknown'}</span>
                     </div>
                      <p style="margin-top:5px; color:#666; font-size:0.9em;">
-                        ${engine === 'JettraEngineStore' ? 'Binary format optimized for performance.' : 'Standard JSON/CBOR storage.'}
+                        ${engine === 'JettraEngineStore' ? 'Binary format optimized for performance.' : engine === 'JettraLogStore' ? 'Append-only segment files for very large collections.' : 'Standard JSON/CBOR storage.'}
                      </p>
                 </div>
             </div>
@@ -874,24 +876,25 @@ const App = {
     async loadDocuments(db, col) {
         try {
             const limit = this.state.pageSize;
-            const offset = (this.state.currentPage - 1) * limit;
+            if (this.state.currentPage === 1) {
+                this.state.pageTokens = [null];
+            }
+            const token = this.state.pageTokens[this.state.currentPage - 1];
 
-            // Note: Request limit+1 to check if there is a next page
-            const res = await this.authenticatedFetch(`/api/query?db=${db}&col=${col}&limit=${limit + 1}&offset=${offset}`);
-            let docs = await res.json();
+            // Keyset pagination: the server returns the token of the next page
+            let url = `/api/query?db=${db}&col=${col}&limit=${limit}&paginate=true`;
+            if (token) url += `&token=${encodeURIComponent(token)}`;
+            const res = await this.authenticatedFetch(url);
+            const page = await res.json();
+            let docs = page.results || [];
+            this.state.hasMore = page.next != null;
+            this.state.pageTokens[this.state.currentPage] = page.next;
 
             // Client-side search filtering if implemented (Ideally server-side but for now simplest)
             if (this.state.searchTerm) {
                 docs = docs.filter(d => JSON.stringify(d).toLowerCase().includes(this.state.searchTerm));
             }
 
-            if (docs.length > limit) {
-                this.state.hasMore = true;
-                docs.pop(); // Remove the extra check item
-            } else {
-                this.state.hasMore = false;
-            }
-
             this.state.docs = docs;
             this.renderDocuments();
         } catch (e) {
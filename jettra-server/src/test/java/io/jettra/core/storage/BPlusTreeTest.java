@@ -0,0 +1,239 @@
+package io.jettra.core.storage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class BPlusTreeTest {
+    private static final int FORMAT = 1;
+    // Enough entries for the tree to split into several levels
+    private static final int ENTRIES = 20_000;
+
+    @TempDir
+    Path dir;
+
+    private static byte[] key(int i) {
+        return String.format("key-%06d", i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] value(int i) {
+        return ("value-" + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static List<Integer> shuffled(int count) {
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            order.add(i);
+        }
+        Collections.shuffle(order, new Random(42));
+        return order;
+    }
+
+    private static List<byte[]> keys(BPlusTree tree, byte[] from, boolean descending) throws Exception {
+        List<byte[]> keys = new ArrayList<>();
+        BPlusTree.EntryVisitor visitor = (key, value) -> keys.add(key);
+        if (descending) {
+            tree.scanDescending(from, true, visitor);
+        } else {
+            tree.scan(from, true, visitor);
+        }
+        return keys;
+    }
+
+    @Test
+    void scansInKeyOrderWhateverTheInsertOrder() throws Exception {
+        try (BPlusTree tree = new BPlusTree(dir.resolve("t.bpt"), FORMAT)) {
+            for (int i : shuffled(ENTRIES)) {
+                tree.put(key(i), value(i));
+            }
+            assertEquals(ENTRIES, tree.size());
+
+            List<byte[]> ascending = keys(tree, null, false);
+            assertEquals(ENTRIES, ascending.size());
+            for (int i = 0; i < ENTRIES; i++) {
+                assertArrayEquals(key(i), ascending.get(i));
+            }
+
+            List<byte[]> descending = keys(tree, null, true);
+            assertEquals(ENTRIES, descending.size());
+            for (int i = 0; i < ENTRIES; i++) {
+                assertArrayEquals(key(ENTRIES - 1 - i), descending.get(i));
+            }
+        }
+    }
+
+    @Test
+    void scansStartAtTheGivenKey() throws Exception {
+        try (BPlusTree tree = new BPlusTree(dir.resolve("t.bpt"), FORMAT)) {
+            for (int i : shuffled(ENTRIES)) {
+                tree.put(key(i), value(i));
+            }
+            List<byte[]> from = keys(tree, key(12_345), false);
+            assertEquals(ENTRIES - 12_345, from.size());
+            assertArrayEquals(key(12_345), from.get(0));
+
+            List<byte[]> down = keys(tree, key(12_345), true);
+            assertEquals(12_346, down.size());
+            assertArrayEquals(key(12_345), down.get(0));
+            assertArrayEquals(key(0), down.get(down.size() - 1));
+
+            List<byte[]> after = new ArrayList<>();
+            tree.scan(key(12_345), false, (key, value) -> after.add(key));
+            assertArrayEquals(key(12_346), after.get(0));
+        }
+    }
+
+    @Test
+    void putReplacesTheValueOfAnExistingKey() throws Exception {
+        try (BPlusTree tree = new BPlusTree(dir.resolve("t.bpt"), FORMAT)) {
+            tree.put(key(1), value(1));
+            tree.put(key(1), value(2));
+            assertEquals(1, tree.size());
+            assertArrayEquals(value(2), tree.get(key(1)));
+        }
+    }
+
+    @Test
+    void removedKeysAreNotScanned() throws Exception {
+        try (BPlusTree tree = new BPlusTree(dir.resolve("t.bpt"), FORMAT)) {
+            for (int i : shuffled(ENTRIES)) {
+                tree.put(key(i), value(i));
+            }
+            for (int i : shuffled(ENTRIES)) {
+                if (i % 2 == 0) {
+                    assertTrue(tree.remove(key(i)));
+                }
+            }
+            assertFalse(tree.remove(key(0)));
+            assertEquals(ENTRIES / 2, tree.size());
+            assertNull(tree.get(key(2)));
+
+            List<byte[]> left = keys(tree, null, false);
+            assertEquals(ENTRIES / 2, left.size());
+            for (int i = 0; i < left.size(); i++) {
+                assertArrayEquals(key(2 * i + 1), left.get(i));
+            }
+        }
+    }
+
+    @Test
+    void entriesSurviveReopening() throws Exception {
+        Path file = dir.resolve("t.bpt");
+        try (BPlusTree tree = new BPlusTree(file, FORMAT)) {
+            for (int i : shuffled(ENTRIES)) {
+                tree.put(key(i), value(i));
+            }
+        }
+        try (BPlusTree tree = new BPlusTree(file, FORMAT)) {
+            assertTrue(tree.isClean());
+            assertEquals(ENTRIES, tree.size());
+            assertArrayEquals(value(777), tree.get(key(777)));
+            assertEquals(ENTRIES, keys(tree, null, false).size());
+        }
+    }
+
+    @Test
+    void treeModifiedSinceItsLastCheckpointIsUnclean() throws Exception {
+        Path file = dir.resolve("t.bpt");
+        try (BPlusTree tree = new BPlusTree(file, FORMAT)) {
+            tree.put(key(1), value(1));
+        }
+        BPlusTree crashed = new BPlusTree(file, FORMAT);
+        crashed.put(key(2), value(2));
+        // Not closed: as after a crash, the header on disk still says unclean
+        try (BPlusTree reopened = new BPlusTree(file, FORMAT)) {
+            assertFalse(reopened.isClean());
+        }
+        crashed.close();
+
+        BPlusTree.markUnclean(file);
+        try (BPlusTree reopened = new BPlusTree(file, FORMAT)) {
+            assertFalse(reopened.isClean());
+        }
+    }
+
+    @Test
+    void fileOfAnotherFormatOpensEmptyAndUnclean() throws Exception {
+        Path file = dir.resolve("t.bpt");
+        try (BPlusTree tree = new BPlusTree(file, FORMAT)) {
+            tree.put(key(1), value(1));
+        }
+        try (BPlusTree tree = new BPlusTree(file, FORMAT + 1)) {
+            assertFalse(tree.isClean());
+            assertEquals(0, tree.size());
+        }
+    }
+
+    @Test
+    void rankEstimatesThePositionOfAKey() throws Exception {
+        try (BPlusTree tree = new BPlusTree(dir.resolve("t.bpt"), FORMAT)) {
+            for (int i : shuffled(ENTRIES)) {
+                tree.put(key(i), value(i));
+            }
+            assertEquals(0, tree.rank(key(0)));
+            assertEquals(ENTRIES, tree.rank(null));
+            long middle = tree.rank(key(ENTRIES / 2));
+            assertTrue(Math.abs(middle - ENTRIES / 2) < ENTRIES / 10, "rank " + middle);
+        }
+    }
+
+    @Test
+    void uncleanIndexIsRebuiltFromTheDocuments() throws Exception {
+        String data = dir.toString();
+        RouterDocumentStore store = new RouterDocumentStore(data);
+        try {
+            store.createDatabase("db", "JettraEngineStore");
+            BTreeIndexEngine indexer = new BTreeIndexEngine(data, store);
+            store.setIndexer(indexer);
+            indexer.createIndex("db", "people", List.of("city"), false, false);
+            List<Map<String, Object>> people = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                Map<String, Object> person = new HashMap<>();
+                person.put("_id", "p" + i);
+                person.put("city", i % 2 == 0 ? "Lima" : "Quito");
+                store.save("db", "people", person);
+                people.add(person);
+            }
+            assertEquals(25, indexer.findWithIndex("db", "people", List.of("city"), List.of("Lima")).size());
+
+            // Entries lost while the tree itself is checkpointed clean, as if writes had bypassed it
+            for (Map<String, Object> person : people) {
+                indexer.removeFromIndex("db", "people", (String) person.get("_id"), person);
+            }
+            indexer.close();
+            BTreeIndexEngine clean = new BTreeIndexEngine(data, store);
+            clean.loadIndexes();
+            try {
+                assertTrue(clean.findWithIndex("db", "people", List.of("city"), List.of("Lima")).isEmpty());
+            } finally {
+                clean.close();
+            }
+
+            BTreeIndexEngine.markStale(data, "db", "people");
+            BTreeIndexEngine reopened = new BTreeIndexEngine(data, store);
+            reopened.loadIndexes();
+            try {
+                assertEquals(25, reopened.findWithIndex("db", "people", List.of("city"), List.of("Lima")).size());
+                assertEquals(25, reopened.findWithIndex("db", "people", List.of("city"), List.of("Quito")).size());
+            } finally {
+                reopened.close();
+            }
+        } finally {
+            store.close();
+        }
+    }
+}
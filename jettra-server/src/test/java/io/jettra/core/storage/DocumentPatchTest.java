@@ -0,0 +1,100 @@
+package io.jettra.core.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class DocumentPatchTest {
+
+    private static Map<String, Object> document() {
+        Map<String, Object> doc = new LinkedHashMap<>();
+        doc.put("_id", "d1");
+        doc.put("name", "Ana");
+        doc.put("visits", 41);
+        doc.put("score", 1.5);
+        doc.put("tags", new ArrayList<>(List.of("a")));
+        return doc;
+    }
+
+    private static Map<String, Object> patch(String operator, String field, Object argument) {
+        Map<String, Object> arguments = new LinkedHashMap<>();
+        arguments.put(field, argument);
+        return Map.of(operator, arguments);
+    }
+
+    private static String failure(Map<String, Object> patch) {
+        return assertThrows(Exception.class, () -> DocumentPatch.apply(document(), patch)).getMessage();
+    }
+
+    @Test
+    void setAndUnset() throws Exception {
+        Map<String, Object> patched = DocumentPatch.apply(document(),
+                Map.of("$set", Map.of("name", "Eva", "city", "Lima"), "$unset", Map.of("score", "")));
+        assertEquals("Eva", patched.get("name"));
+        assertEquals("Lima", patched.get("city"));
+        assertFalse(patched.containsKey("score"));
+        assertEquals("d1", patched.get("_id"));
+    }
+
+    @Test
+    void incKeepsIntegersIntegral() throws Exception {
+        assertEquals(42, DocumentPatch.apply(document(), patch("$inc", "visits", 1)).get("visits"));
+        assertEquals(3_000_000_041L,
+                DocumentPatch.apply(document(), patch("$inc", "visits", 3_000_000_000L)).get("visits"));
+        assertEquals(5, DocumentPatch.apply(document(), patch("$inc", "missing", 5)).get("missing"));
+    }
+
+    @Test
+    void incMixesDecimalsAsDoubles() throws Exception {
+        assertEquals(2.0, DocumentPatch.apply(document(), patch("$inc", "score", 0.5)).get("score"));
+        assertEquals(41.25, DocumentPatch.apply(document(), patch("$inc", "visits", 0.25)).get("visits"));
+        assertEquals(new BigDecimal("41.10"),
+                DocumentPatch.apply(document(), patch("$inc", "visits", new BigDecimal("0.10"))).get("visits"));
+    }
+
+    @Test
+    void pushAppendsOneOrEachValue() throws Exception {
+        assertEquals(List.of("a", "b"), DocumentPatch.apply(document(), patch("$push", "tags", "b")).get("tags"));
+        assertEquals(List.of("a", "b", "c"),
+                DocumentPatch.apply(document(), patch("$push", "tags", Map.of("$each", List.of("b", "c")))).get("tags"));
+        assertEquals(List.of(1), DocumentPatch.apply(document(), patch("$push", "new", 1)).get("new"));
+    }
+
+    @Test
+    void storedDocumentIsNotChanged() throws Exception {
+        Map<String, Object> original = document();
+        DocumentPatch.apply(original, Map.of("$push", Map.of("tags", "b"), "$set", Map.of("name", "Eva")));
+        assertEquals(document(), original);
+    }
+
+    @Test
+    void malformedPatchesAreRefused() {
+        assertThrows(Exception.class, () -> DocumentPatch.validate(null));
+        assertThrows(Exception.class, () -> DocumentPatch.validate(Map.of()));
+        assertEquals("Unknown patch operator $rename, expected one of $set, $unset, $inc, $push",
+                failure(patch("$rename", "name", "fullName")));
+        assertEquals("$set takes an object of {field: value}", failure(Map.of("$set", "name")));
+        assertEquals("_id cannot be patched", failure(patch("$set", "_id", "d2")));
+        assertEquals("Field name is named by more than one patch operator",
+                failure(Map.of("$set", Map.of("name", "Eva"), "$unset", Map.of("name", ""))));
+        assertEquals("$inc on visits takes a number", failure(patch("$inc", "visits", "1")));
+    }
+
+    @Test
+    void operatorsRefuseFieldsOfTheWrongType() {
+        assertEquals("$inc on name, which is not a number", failure(patch("$inc", "name", 1)));
+        assertEquals("$push on name, which is not an array", failure(patch("$push", "name", "x")));
+        Map<String, Object> big = document();
+        big.put("visits", Long.MAX_VALUE);
+        assertEquals("$inc on visits overflows a long",
+                assertThrows(Exception.class, () -> DocumentPatch.apply(big, patch("$inc", "visits", 1))).getMessage());
+    }
+}
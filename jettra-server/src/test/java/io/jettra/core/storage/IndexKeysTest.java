@@ -0,0 +1,83 @@
+package io.jettra.core.storage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+class IndexKeysTest {
+
+    private static byte[] key(Object... values) {
+        return IndexKeys.encode(Arrays.asList(values));
+    }
+
+    private static void assertOrdered(List<byte[]> keys) {
+        for (int i = 1; i < keys.size(); i++) {
+            assertTrue(BPlusTree.compare(keys.get(i - 1), keys.get(i)) < 0, "key " + (i - 1) + " sorts before " + i);
+        }
+    }
+
+    @Test
+    void typesSortNullBooleansNumbersStrings() {
+        assertOrdered(List.of(key((Object) null), key(false), key(true), key(-1), key(0), key(1), key(""),
+                key("0")));
+    }
+
+    @Test
+    void numbersSortNumericallyAcrossTypes() {
+        List<byte[]> keys = new ArrayList<>();
+        for (Object n : new Object[] { Double.NEGATIVE_INFINITY, -1e300, -1000L, -2.5, -1, -0.001, 0, 1e-9, 1, 1.5, 2L,
+                10, 255, 256, 1L << 40, 1e300, Double.POSITIVE_INFINITY }) {
+            keys.add(key(n));
+        }
+        assertOrdered(keys);
+    }
+
+    @Test
+    void equalNumbersOfDifferentTypesShareAKey() {
+        assertArrayEquals(key(2), key(2L));
+        assertArrayEquals(key(2), key(2.0));
+        assertArrayEquals(key(0.0), key(-0.0));
+    }
+
+    @Test
+    void stringsSortByteWiseWithShorterFirst() {
+        assertOrdered(List.of(key(""), key("A"), key("Z"), key("a"), key("a\u0000"), key("a\u0001"), key("ab"),
+                key("b"), key("é")));
+    }
+
+    @Test
+    void compositeKeysSortFieldByField() {
+        // A field ends before the next one starts, so "a" and anything after it sort before "ab"
+        assertOrdered(List.of(key("a", 5), key("a", "z"), key("a\u0000", 1), key("ab", 0), key("b", (Object) null)));
+        assertOrdered(List.of(key(1, "z"), key(2, "a"), key(10, "a")));
+    }
+
+    @Test
+    void compositeKeyStartsWithTheKeyOfItsPrefix() {
+        assertTrue(IndexKeys.startsWith(key("Lima", 30, "x"), key("Lima")));
+        assertTrue(IndexKeys.startsWith(key("Lima", 30, "x"), key("Lima", 30)));
+        assertFalse(IndexKeys.startsWith(key("Limassol", 30), key("Lima")));
+        assertFalse(IndexKeys.startsWith(key("Lima"), key("Lima", 30)));
+    }
+
+    @Test
+    void typeBoundsEncloseEveryValueOfTheType() {
+        List<Object> prefix = List.of("Lima");
+        byte[] start = IndexKeys.typeStart(prefix, 0);
+        byte[] end = IndexKeys.typeEnd(prefix, 0);
+        for (Object n : new Object[] { Double.NEGATIVE_INFINITY, -5, 0, 7.5, Long.MAX_VALUE }) {
+            byte[] key = key("Lima", n);
+            assertTrue(BPlusTree.compare(start, key) <= 0 && BPlusTree.compare(key, end) < 0, "number " + n);
+        }
+        for (Object other : new Object[] { null, true, "7" }) {
+            byte[] key = key("Lima", other);
+            assertFalse(BPlusTree.compare(start, key) <= 0 && BPlusTree.compare(key, end) < 0, "value " + other);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package io.jettra.core.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Documents written by earlier versions must still read back: the encoder
+ * below writes the old type bytes by hand, as those versions did.
+ */
+class JettraBinarySerializationTest {
+    private static final int TYPE_INTEGER = 3;
+    private static final int TYPE_LONG = 4;
+    private static final int TYPE_STRING = 6;
+    private static final int TYPE_LIST = 7;
+    private static final int TYPE_MAP = 8;
+    private static final int TYPE_INT_ARRAY = 9;
+    private static final int TYPE_LONG_ARRAY = 10;
+
+    @TempDir
+    Path dir;
+
+    private static final class Old {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        Old type(int type) {
+            out.write(type);
+            return this;
+        }
+
+        Old varInt(int value) {
+            while ((value & ~0x7F) != 0) {
+                out.write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out.write(value);
+            return this;
+        }
+
+        Old string(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            varInt(bytes.length);
+            out.writeBytes(bytes);
+            return this;
+        }
+
+        Old fixedInt(int value) {
+            out.writeBytes(ByteBuffer.allocate(4).putInt(value).array());
+            return this;
+        }
+
+        Old fixedLong(long value) {
+            out.writeBytes(ByteBuffer.allocate(8).putLong(value).array());
+            return this;
+        }
+
+        byte[] bytes() {
+            return out.toByteArray();
+        }
+    }
+
+    private static Map<String, Object> expected() {
+        Map<String, Object> doc = new LinkedHashMap<>();
+        doc.put("_id", "old-1");
+        doc.put("count", 300);
+        doc.put("big", 5_000_000_000L);
+        doc.put("ints", List.of(1, 200));
+        doc.put("longs", List.of(-1L, 7L));
+        doc.put("nested", Map.of("name", "Ana"));
+        return doc;
+    }
+
+    // The fields of expected(), each written as key then value
+    private static Old fields(Old old) {
+        old.string("_id").type(TYPE_STRING).string("old-1");
+        old.string("count").type(TYPE_INTEGER).varInt(300);
+        old.string("big").type(TYPE_LONG).fixedLong(5_000_000_000L);
+        old.string("ints").type(TYPE_INT_ARRAY).varInt(2).varInt(1).varInt(200);
+        old.string("longs").type(TYPE_LONG_ARRAY).varInt(2).fixedLong(-1L).fixedLong(7L);
+        return old.string("nested").type(TYPE_MAP).varInt(1).string("name").type(TYPE_STRING).string("Ana");
+    }
+
+    private static byte[] oldMap() {
+        return fields(new Old().type(TYPE_MAP).varInt(6)).bytes();
+    }
+
+    private static byte[] oldDocument() {
+        // Offset table with fixed 4-byte offsets, relative to the first value
+        Old values = new Old();
+        int[] offsets = new int[6];
+        offsets[0] = values.out.size();
+        values.type(TYPE_STRING).string("old-1");
+        offsets[1] = values.out.size();
+        values.type(TYPE_INTEGER).varInt(300);
+        offsets[2] = values.out.size();
+        values.type(TYPE_LONG).fixedLong(5_000_000_000L);
+        offsets[3] = values.out.size();
+        values.type(TYPE_INT_ARRAY).varInt(2).varInt(1).varInt(200);
+        offsets[4] = values.out.size();
+        values.type(TYPE_LONG_ARRAY).varInt(2).fixedLong(-1L).fixedLong(7L);
+        offsets[5] = values.out.size();
+        values.type(TYPE_MAP).varInt(1).string("name").type(TYPE_STRING).string("Ana");
+
+        Old old = new Old().type(JettraBinarySerialization.TYPE_DOCUMENT).varInt(6);
+        int field = 0;
+        for (String key : expected().keySet()) {
+            old.string(key).fixedInt(offsets[field++]);
+        }
+        old.out.writeBytes(values.bytes());
+        return old.bytes();
+    }
+
+    private static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(bytes);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    void currentFormatRoundTrips() throws Exception {
+        Map<String, Object> doc = expected();
+        doc.put("list", List.of("x", 1, 2.5, true));
+        doc.put("none", null);
+        doc.put("negative", -3);
+        assertEquals(doc, JettraBinarySerialization.deserialize(
+                ByteBuffer.wrap(JettraBinarySerialization.toBytes(doc, null))));
+    }
+
+    @Test
+    void readsPlainMapDocuments() throws Exception {
+        assertEquals(expected(), JettraBinarySerialization.deserialize(ByteBuffer.wrap(oldMap())));
+    }
+
+    @Test
+    void readsDocumentsWithFixedOffsetTables() throws Exception {
+        assertEquals(expected(), JettraBinarySerialization.deserialize(ByteBuffer.wrap(oldDocument())));
+    }
+
+    @Test
+    void refusesTruncatedAndUnknownData() {
+        byte[] map = oldMap();
+        assertThrows(IOException.class, () -> JettraBinarySerialization
+                .deserialize(ByteBuffer.wrap(java.util.Arrays.copyOf(map, map.length - 3))));
+        assertThrows(IOException.class, () -> JettraBinarySerialization.deserialize(ByteBuffer.wrap(new byte[] { 99 })));
+        assertThrows(IOException.class, () -> JettraBinarySerialization
+                .deserialize(ByteBuffer.wrap(new Old().type(TYPE_LIST).varInt(0).bytes())));
+    }
+
+    @Test
+    void engineStoreReadsOldDocumentFiles() throws Exception {
+        String data = dir.toString();
+        RouterDocumentStore store = new RouterDocumentStore(data, 0, 0);
+        try {
+            store.createDatabase("db", "JettraEngineStore");
+            store.save("db", "c", new LinkedHashMap<>(Map.of("_id", "new", "value", 1)));
+            Path collection = dir.resolve("db").resolve("c");
+            Files.write(collection.resolve("old-map.jdb"), oldMap());
+            Files.write(collection.resolve("old-document.jdb"), oldDocument());
+            Files.write(collection.resolve("old-gzip.jdb"), gzip(oldMap()));
+
+            for (String id : List.of("old-map", "old-document", "old-gzip")) {
+                assertEquals(expected(), store.findByID("db", "c", id), id);
+            }
+            assertEquals(3, store.query("db", "c", Map.of("count", 300), 0, 0).size());
+        } finally {
+            store.close();
+        }
+    }
+}
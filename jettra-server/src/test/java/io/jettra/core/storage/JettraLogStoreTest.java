@@ -0,0 +1,66 @@
+package io.jettra.core.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class JettraLogStoreTest {
+
+    private static final String PADDING = "x".repeat(1 << 20);
+
+    @TempDir
+    Path dir;
+
+    private static Map<String, Object> doc(String id, int round) {
+        Map<String, Object> doc = new HashMap<>();
+        doc.put("_id", id);
+        doc.put("round", round);
+        doc.put("padding", PADDING);
+        return doc;
+    }
+
+    @Test
+    void compactionDropsExpiredVersionsAndKeepsTheRest() throws Exception {
+        JettraLogStore store = new JettraLogStore(dir.toString());
+        store.createDatabase("db", JettraLogStore.ENGINE_NAME);
+        // Three rounds of 40 documents of 1 MB: the first segment is sealed after 63 records
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 40; i++) {
+                store.save("db", "c", doc("d" + i, round));
+            }
+        }
+        store.delete("db", "c", "d39");
+        Path first = dir.resolve("db").resolve("c").resolve("_segments").resolve("1.seg");
+        assertTrue(Files.exists(first));
+
+        store.setRetention("db", "c", new VersionArchive.Retention(1, 0));
+        store.compact("db", "c");
+
+        assertFalse(Files.exists(first));
+        assertCompacted(store);
+        // Copies keep their timestamps, so a reopened store sees the same history
+        assertCompacted(new JettraLogStore(dir.toString()));
+    }
+
+    private static void assertCompacted(JettraLogStore store) throws Exception {
+        assertEquals(39, store.count("db", "c"));
+        assertEquals(2, store.findByID("db", "c", "d0").get("round"));
+        List<String> versions = store.getVersions("db", "c", "d0");
+        assertEquals(1, versions.size());
+        assertEquals(1, store.getVersionContent("db", "c", "d0", versions.get(0)).get("round"));
+
+        assertNull(store.findByID("db", "c", "d39"));
+        List<String> deleted = store.getVersions("db", "c", "d39");
+        assertEquals(2, store.getVersionContent("db", "c", "d39", deleted.get(0)).get("round"));
+    }
+}
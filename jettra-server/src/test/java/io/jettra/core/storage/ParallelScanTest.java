@@ -0,0 +1,108 @@
+package io.jettra.core.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.jupiter.api.Test;
+
+class ParallelScanTest {
+    private static final int FILES = ParallelScan.CHUNK_SIZE * 20 + 7;
+    private static final int PARALLELISM = 4;
+
+    private static List<Path> files() {
+        List<Path> files = new ArrayList<>();
+        for (int i = 0; i < FILES; i++) {
+            files.add(Path.of("doc-" + i + ".jdb"));
+        }
+        return files;
+    }
+
+    private static int number(Path file) {
+        String name = file.getFileName().toString();
+        return Integer.parseInt(name.substring(4, name.length() - 4));
+    }
+
+    // Every third file matches
+    private static ParallelScan.FileReader reader(AtomicInteger reads) {
+        return file -> {
+            reads.incrementAndGet();
+            int n = number(file);
+            return n % 3 == 0 ? Map.of("n", n) : null;
+        };
+    }
+
+    private static List<Object> numbers(List<Map<String, Object>> documents) {
+        return documents.stream().map(d -> d.get("n")).toList();
+    }
+
+    private static List<Object> expected(int offset, int limit) {
+        List<Object> numbers = new ArrayList<>();
+        for (int n = 0; n < FILES; n += 3) {
+            numbers.add(n);
+        }
+        numbers = numbers.subList(Math.min(offset, numbers.size()), numbers.size());
+        return limit > 0 && limit < numbers.size() ? numbers.subList(0, limit) : numbers;
+    }
+
+    @Test
+    void resultsComeInFileOrder() {
+        AtomicInteger reads = new AtomicInteger();
+        assertEquals(expected(0, 0), numbers(ParallelScan.scan(files(), reader(reads), 0, 0, PARALLELISM)));
+        assertEquals(FILES, reads.get());
+    }
+
+    @Test
+    void offsetAndLimitApplyToMatchesInOrder() {
+        AtomicInteger reads = new AtomicInteger();
+        for (int[] page : new int[][] { { 0, 10 }, { 100, 50 }, { 500, 0 }, { 850, 100 }, { 5000, 10 } }) {
+            assertEquals(expected(page[0], page[1]),
+                    numbers(ParallelScan.scan(files(), reader(reads), page[0], page[1], PARALLELISM)),
+                    "offset " + page[0] + " limit " + page[1]);
+        }
+    }
+
+    @Test
+    void stopsReadingOnceTheLimitIsReached() {
+        AtomicInteger reads = new AtomicInteger();
+        ParallelScan.FileReader matching = reader(reads);
+        // Takes some time per file, as a disk read does, so the caller sees the first chunk while workers read
+        ParallelScan.FileReader slow = file -> {
+            LockSupport.parkNanos(200_000);
+            return matching.read(file);
+        };
+        assertEquals(expected(0, 5), numbers(ParallelScan.scan(files(), slow, 0, 5, PARALLELISM)));
+        // At most the chunks already claimed by the workers are read, not the whole collection
+        assertTrue(reads.get() <= ParallelScan.CHUNK_SIZE * (PARALLELISM + 1), "read " + reads.get() + " files");
+    }
+
+    @Test
+    void sequentialScanGivesTheSameResults() {
+        AtomicInteger reads = new AtomicInteger();
+        assertEquals(numbers(ParallelScan.scan(files(), reader(reads), 30, 200, PARALLELISM)),
+                numbers(ParallelScan.scan(files(), reader(reads), 30, 200, 1)));
+    }
+
+    @Test
+    void readerFailureIsRethrownToTheCaller() {
+        ParallelScan.FileReader failing = file -> {
+            if (number(file) == FILES / 2) {
+                throw new IllegalStateException("unreadable " + file);
+            }
+            return Map.of("n", number(file));
+        };
+        // The same exception whether a worker or the caller read the file
+        IllegalStateException parallel = assertThrows(IllegalStateException.class,
+                () -> ParallelScan.scan(files(), failing, 0, 0, PARALLELISM));
+        IllegalStateException sequential = assertThrows(IllegalStateException.class,
+                () -> ParallelScan.scan(files(), failing, 0, 0, 1));
+        assertEquals(sequential.getMessage(), parallel.getMessage());
+    }
+}
@@ -0,0 +1,149 @@
+package io.jettra.core.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SnapshotManagerTest {
+
+    @TempDir
+    Path dir;
+
+    private RouterDocumentStore store;
+
+    @BeforeEach
+    void open() throws Exception {
+        store = new RouterDocumentStore(dir.toString());
+        store.createDatabase("db", "JettraEngineStore");
+    }
+
+    @AfterEach
+    void close() {
+        store.close();
+    }
+
+    private static Map<String, Object> doc(String id, Object value) {
+        Map<String, Object> doc = new HashMap<>();
+        doc.put("_id", id);
+        doc.put("value", value);
+        return doc;
+    }
+
+    // A committed write of the document, as the stores do it: image first, then the change
+    private static void write(SnapshotManager snapshots, String id, Map<String, Object> before) {
+        SnapshotManager.Write write = snapshots.begin();
+        snapshots.record(write, "db", "c", id, before);
+        snapshots.end(write);
+    }
+
+    @Test
+    void snapshotSeesTheDocumentAsItWasWhenOpened() throws Exception {
+        SnapshotManager snapshots = new SnapshotManager();
+        long snapshot = snapshots.open();
+        write(snapshots, "a", doc("a", 1));
+        write(snapshots, "a", doc("a", 2));
+        write(snapshots, "b", null);
+
+        SnapshotManager.Visible a = snapshots.visible("db", "c", "a", snapshot);
+        assertFalse(a.current());
+        assertEquals(1, a.document().get("value"));
+        SnapshotManager.Visible b = snapshots.visible("db", "c", "b", snapshot);
+        assertFalse(b.current());
+        assertNull(b.document());
+        assertTrue(snapshots.visible("db", "c", "untouched", snapshot).current());
+
+        long later = snapshots.open();
+        assertTrue(snapshots.visible("db", "c", "a", later).current());
+        assertTrue(snapshots.changedSince("db", "c", "a", snapshot));
+        assertFalse(snapshots.changedSince("db", "c", "a", later));
+        snapshots.close(snapshot);
+        snapshots.close(later);
+    }
+
+    @Test
+    void writesWithoutOpenSnapshotsKeepNoImages() throws Exception {
+        SnapshotManager snapshots = new SnapshotManager();
+        write(snapshots, "a", doc("a", 1));
+        long snapshot = snapshots.open();
+        assertTrue(snapshots.visible("db", "c", "a", snapshot).current());
+        assertTrue(snapshots.changedIds("db", "c").isEmpty());
+        snapshots.close(snapshot);
+    }
+
+    @Test
+    void imagesAreDroppedWhenTheLastSnapshotCloses() throws Exception {
+        SnapshotManager snapshots = new SnapshotManager();
+        long snapshot = snapshots.open();
+        write(snapshots, "a", doc("a", 1));
+        assertEquals(List.of("a"), snapshots.changedIds("db", "c"));
+        snapshots.close(snapshot);
+        assertTrue(snapshots.changedIds("db", "c").isEmpty());
+    }
+
+    @Test
+    void transactionReadsItsSnapshotAndItsOwnWrites() throws Exception {
+        store.save("db", "c", doc("a", 1));
+        String tx = store.beginTransaction();
+        store.save("db", "c", doc("a", 2));
+        store.save("db", "c", doc("b", 1));
+
+        assertEquals(1, store.findByIDInTransaction("db", "c", "a", tx).get("value"));
+        assertNull(store.findByIDInTransaction("db", "c", "b", tx));
+        assertEquals(1, store.queryInTransaction("db", "c", null, 0, 0, tx).size());
+
+        store.saveTx("db", "c", doc("c", 1), tx);
+        assertEquals(1, store.findByIDInTransaction("db", "c", "c", tx).get("value"));
+        assertNull(store.findByID("db", "c", "c"));
+        store.commitTransaction(tx);
+        assertEquals(1, store.findByID("db", "c", "c").get("value"));
+    }
+
+    @Test
+    void firstCommitterWins() throws Exception {
+        store.save("db", "c", doc("a", 0));
+        String first = store.beginTransaction();
+        String second = store.beginTransaction();
+        store.saveTx("db", "c", doc("a", 1), first);
+        store.saveTx("db", "c", doc("a", 2), second);
+        store.saveTx("db", "c", doc("other", 2), second);
+
+        store.commitTransaction(first);
+        assertThrows(TransactionConflictException.class, () -> store.commitTransaction(second));
+        assertEquals(1, store.findByID("db", "c", "a").get("value"));
+        // Nothing of the losing transaction is applied
+        assertNull(store.findByID("db", "c", "other"));
+    }
+
+    @Test
+    void commitAfterANonTransactionalWriteConflicts() throws Exception {
+        store.save("db", "c", doc("a", 0));
+        String tx = store.beginTransaction();
+        store.deleteTx("db", "c", "a", tx);
+        store.save("db", "c", doc("a", 5));
+        assertThrows(TransactionConflictException.class, () -> store.commitTransaction(tx));
+        assertEquals(5, store.findByID("db", "c", "a").get("value"));
+    }
+
+    @Test
+    void transactionsOnDifferentDocumentsBothCommit() throws Exception {
+        String first = store.beginTransaction();
+        String second = store.beginTransaction();
+        store.saveTx("db", "c", doc("a", 1), first);
+        store.saveTx("db", "c", doc("b", 2), second);
+        store.commitTransaction(first);
+        store.commitTransaction(second);
+        assertEquals(2, store.count("db", "c"));
+    }
+}
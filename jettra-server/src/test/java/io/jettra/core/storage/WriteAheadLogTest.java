@@ -0,0 +1,262 @@
+package io.jettra.core.storage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class WriteAheadLogTest {
+
+    @TempDir
+    Path dir;
+
+    private static Map<String, Object> save(String db, String col, String id, Object value) {
+        Map<String, Object> doc = new LinkedHashMap<>();
+        doc.put("_id", id);
+        doc.put("value", value);
+        Map<String, Object> op = new LinkedHashMap<>();
+        op.put("type", "save");
+        op.put("db", db);
+        op.put("col", col);
+        op.put("id", id);
+        op.put("doc", doc);
+        return op;
+    }
+
+    private Path segment() throws IOException {
+        try (Stream<Path> files = Files.list(dir.resolve(WriteAheadLog.WAL_DIR))) {
+            return files.filter(p -> p.toString().endsWith(".wal")).sorted().reduce((a, b) -> b).orElseThrow();
+        }
+    }
+
+    private static List<Object> ids(List<WriteAheadLog.Entry> entries) {
+        return entries.stream().flatMap(e -> e.ops().stream()).map(op -> op.get("id")).toList();
+    }
+
+    @Test
+    void recordsAreReadBackInOrder() throws Exception {
+        WriteAheadLog wal = new WriteAheadLog(dir.toString());
+        long first = wal.append(List.of(save("db", "c", "a", 1), save("db", "c", "b", 2)));
+        long second = wal.append(List.of(save("db", "c", "c", 3)));
+        wal.close();
+
+        WriteAheadLog reopened = new WriteAheadLog(dir.toString());
+        try {
+            List<WriteAheadLog.Entry> entries = reopened.readAll();
+            assertEquals(2, entries.size());
+            assertEquals(first, entries.get(0).lsn());
+            assertEquals(second, entries.get(1).lsn());
+            assertEquals(List.of("a", "b", "c"), ids(entries));
+            assertEquals(2, ((Map<?, ?>) entries.get(0).ops().get(1).get("doc")).get("value"));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    void tornTailIsCutOffOnReopen() throws Exception {
+        WriteAheadLog wal = new WriteAheadLog(dir.toString());
+        wal.append(List.of(save("db", "c", "a", 1)));
+        long end = wal.append(List.of(save("db", "c", "b", 2)));
+        wal.close();
+
+        // A record whose header made it to disk but whose body did not
+        try (FileChannel channel = FileChannel.open(segment(), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.allocate(12).putInt(0x4A57414C).putInt(1000).putInt(0).flip());
+            channel.write(ByteBuffer.wrap(new byte[] { 1, 2, 3 }));
+        }
+
+        WriteAheadLog reopened = new WriteAheadLog(dir.toString());
+        try {
+            assertEquals(end, Files.size(segment()));
+            assertEquals(List.of("a", "b"), ids(reopened.readAll()));
+            // Appends continue right after the last valid record
+            long next = reopened.append(List.of(save("db", "c", "c", 3)));
+            List<WriteAheadLog.Entry> entries = reopened.readAll();
+            assertEquals(List.of("a", "b", "c"), ids(entries));
+            assertEquals(end, entries.get(1).lsn());
+            assertEquals(next, entries.get(2).lsn());
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    void recordWithABadChecksumEndsTheLog() throws Exception {
+        WriteAheadLog wal = new WriteAheadLog(dir.toString());
+        long first = wal.append(List.of(save("db", "c", "a", 1)));
+        wal.append(List.of(save("db", "c", "b", 2)));
+        wal.close();
+
+        try (FileChannel channel = FileChannel.open(segment(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, channel.size() - 1);
+            channel.write(ByteBuffer.wrap(new byte[] { (byte) (last.get(0) ^ 0x55) }), channel.size() - 1);
+        }
+
+        WriteAheadLog reopened = new WriteAheadLog(dir.toString());
+        try {
+            assertEquals(List.of("a"), ids(reopened.readAll()));
+            assertEquals(first, Files.size(segment()));
+        } finally {
+            reopened.close();
+        }
+    }
+
+    @Test
+    void failedStreamedAppendLeavesNoRecord() throws Exception {
+        WriteAheadLog wal = new WriteAheadLog(dir.toString());
+        try {
+            long first = wal.append(visitor -> visitor.visit(save("db", "c", "a", 1)));
+            assertThrows(IllegalStateException.class, () -> wal.append(visitor -> {
+                visitor.visit(save("db", "c", "b", 2));
+                throw new IllegalStateException("source failed");
+            }));
+            assertEquals(first, Files.size(segment()));
+            wal.append(visitor -> {
+                visitor.visit(save("db", "c", "c", 3));
+                visitor.visit(save("db", "c", "d", 4));
+            });
+            assertEquals(List.of("a", "c", "d"), ids(wal.readAll()));
+        } finally {
+            wal.close();
+        }
+    }
+
+    @Test
+    void truncateDropsSegmentsBeforeTheCut() throws Exception {
+        WriteAheadLog wal = new WriteAheadLog(dir.toString());
+        try {
+            wal.append(List.of(save("db", "c", "a", 1)));
+            long cut = wal.rotate();
+            wal.append(List.of(save("db", "c", "b", 2)));
+            wal.truncate(cut);
+            assertEquals(List.of("b"), ids(wal.readAll()));
+        } finally {
+            wal.close();
+        }
+    }
+
+    @Test
+    void abortedRecordIsNotReplayed() throws Exception {
+        String data = dir.toString();
+        RouterDocumentStore store = new RouterDocumentStore(data);
+        store.createDatabase("db", "JettraEngineStore");
+        store.createCollection("db", "c");
+        store.close();
+
+        // As left by a crash: a failed write marked aborted, and a logged write never applied
+        WriteAheadLog wal = new WriteAheadLog(data);
+        long failed = wal.append(List.of(save("db", "c", "failed", 1)));
+        wal.append(List.of(Map.of("type", "abort", "lsn", failed)));
+        wal.append(List.of(save("db", "c", "logged", 2)));
+        wal.close();
+
+        RouterDocumentStore recovered = new RouterDocumentStore(data);
+        try {
+            assertNull(recovered.findByID("db", "c", "failed"));
+            Map<String, Object> logged = recovered.findByID("db", "c", "logged");
+            assertNotNull(logged);
+            assertEquals(2, logged.get("value"));
+        } finally {
+            recovered.close();
+        }
+    }
+
+    @Test
+    void writesBeforeADropAreNotReplayed() throws Exception {
+        String data = dir.toString();
+        RouterDocumentStore store = new RouterDocumentStore(data);
+        store.createDatabase("db", "JettraEngineStore");
+        store.createCollection("db", "c");
+        store.createCollection("db", "kept");
+        store.close();
+
+        // As left by a crash after the collection's files were deleted, before the next checkpoint
+        WriteAheadLog wal = new WriteAheadLog(data);
+        wal.append(List.of(save("db", "c", "dropped", 1), save("db", "kept", "kept", 1)));
+        wal.append(List.of(Map.of("type", "drop", "db", "db", "col", "c")));
+        wal.append(List.of(save("db", "c", "after", 2)));
+        wal.close();
+
+        RouterDocumentStore recovered = new RouterDocumentStore(data);
+        try {
+            assertNull(recovered.findByID("db", "c", "dropped"));
+            assertNotNull(recovered.findByID("db", "kept", "kept"));
+            assertNotNull(recovered.findByID("db", "c", "after"));
+        } finally {
+            recovered.close();
+        }
+    }
+
+    @Test
+    void rejectedWriteIsAbortedAndTheStoreKeepsWriting() throws Exception {
+        RouterDocumentStore store = new RouterDocumentStore(dir.toString());
+        try {
+            store.createDatabase("db", "JettraEngineStore");
+            store.setValidator(new io.jettra.core.validation.Validator() {
+                @Override
+                public void validate(String database, String collection, Map<String, Object> document)
+                        throws Exception {
+                    if (document.containsKey("invalid")) {
+                        throw new Exception("Validation Error: invalid");
+                    }
+                }
+
+                @Override
+                public void validateDelete(String database, String collection, Map<String, Object> document) {
+                }
+            });
+            Map<String, Object> invalid = new LinkedHashMap<>(Map.of("_id", "a", "invalid", true));
+            assertEquals("Validation Error: invalid",
+                    assertThrows(Exception.class, () -> store.save("db", "c", invalid)).getMessage());
+            store.save("db", "c", new LinkedHashMap<>(Map.of("_id", "b")));
+            assertNotNull(store.findByID("db", "c", "b"));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    void transactionThatFailsPartwayIsReplayedOnRestart() throws Exception {
+        String data = dir.toString();
+        RouterDocumentStore store = new RouterDocumentStore(data);
+        Path blocked = dir.resolve("db").resolve("blocked");
+        try {
+            store.createDatabase("db", "JettraEngineStore");
+            // A file where the collection directory should be, so writing the second op fails
+            Files.writeString(blocked, "not a directory");
+            String tx = store.beginTransaction();
+            store.saveTx("db", "c", new LinkedHashMap<>(Map.of("_id", "a")), tx);
+            store.saveTx("db", "blocked", new LinkedHashMap<>(Map.of("_id", "b")), tx);
+            assertThrows(IOException.class, () -> store.commitTransaction(tx));
+            assertThrows(Exception.class, () -> store.save("db", "c", new LinkedHashMap<>(Map.of("_id", "c"))));
+        } finally {
+            store.close();
+        }
+
+        Files.delete(blocked);
+        RouterDocumentStore recovered = new RouterDocumentStore(data);
+        try {
+            assertNotNull(recovered.findByID("db", "c", "a"));
+            assertNotNull(recovered.findByID("db", "blocked", "b"));
+            assertNull(recovered.findByID("db", "c", "c"));
+        } finally {
+            recovered.close();
+        }
+    }
+}
@@ -203,7 +203,7 @@ public class DataSeeder {
                     invoice.put("cliente_id", "C" + rand.nextInt(numClients));
                     invoice.put("total", 0.0); // Will update
                     
-                    postDocument(db, "facturas", invoice);
+                    String savedId = postDocument(db, "facturas", invoice);
                     
                     // Details (1-5 items)
                     int items = 1 + rand.nextInt(5);
@@ -223,10 +223,8 @@ public class DataSeeder {
                         postDocument(db, "facturasdetalles", detail);
                     }
                     
-                    // Update invoice total? 
-                    // Jettra currently overwrite whole doc on save. 
-                    invoice.put("total", total);
-                    postDocument(db, "facturas", invoice);
+                    // Only the total changes, so it is patched in place instead of saving the invoice again
+                    patchDocument(db, "facturas", savedId, Map.of("$set", Map.of("total", total)));
 
                     int p = progress.incrementAndGet();
                     if (p % 1000 == 0) System.out.println("Invoices: " + p + "/" + count);
@@ -239,7 +237,7 @@ public class DataSeeder {
         executor.awaitTermination(24, TimeUnit.HOURS); // Give it time
     }
 
-    private static void postDocument(String db, String col, Map<String, Object> doc) throws Exception {
+    private static String postDocument(String db, String col, Map<String, Object> doc) throws Exception {
          HttpRequest req = HttpRequest.newBuilder()
                 .uri(URI.create(BASE_URL + "/api/doc?db=" + db + "&col=" + col))
                 .header("Authorization", token)
@@ -251,5 +249,20 @@ public class DataSeeder {
         if (res.statusCode() != 200) {
             throw new RuntimeException("Post failed: " + res.body());
         }
+        return mapper.readTree(res.body()).path("id").asText();
+    }
+
+    private static void patchDocument(String db, String col, String id, Map<String, Object> patch) throws Exception {
+         HttpRequest req = HttpRequest.newBuilder()
+                .uri(URI.create(BASE_URL + "/api/doc?db=" + db + "&col=" + col + "&id=" + id))
+                .header("Authorization", token)
+                .header("Content-Type", "application/json")
+                .method("PATCH", HttpRequest.BodyPublishers.ofString(mapper.writeValueAsString(patch)))
+                .build();
+
+        HttpResponse<String> res = client.send(req, HttpResponse.BodyHandlers.ofString());
+        if (res.statusCode() != 200) {
+            throw new RuntimeException("Patch failed: " + res.body());
+        }
     }
 }